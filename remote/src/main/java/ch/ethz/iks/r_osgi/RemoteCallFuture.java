@@ -0,0 +1,315 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi;
+
+/**
+ * The pending result of an asynchronous remote call. The calling thread is
+ * not blocked while the call is in flight; the result can either be awaited
+ * with {@link #get()} or handled by callbacks that are invoked as soon as the
+ * call has completed. A future is completed only once, later results are
+ * ignored. A pending call can be abandoned with {@link #cancel()}.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public final class RemoteCallFuture implements AsyncRemoteCallCallback {
+
+	/**
+	 * <code>true</code>, if the call has completed.
+	 */
+	private boolean done;
+
+	/**
+	 * <code>true</code>, if the call has completed without exception.
+	 */
+	private boolean success;
+
+	/**
+	 * the result or the exception.
+	 */
+	private Object result;
+
+	/**
+	 * the callbacks that wait for the completion, or <code>null</code>.
+	 */
+	private AsyncRemoteCallCallback[] callbacks;
+
+	/**
+	 * <code>true</code>, if the call has been cancelled.
+	 */
+	private boolean cancelled;
+
+	/**
+	 * the action that abandons the call, or <code>null</code>.
+	 */
+	private Runnable cancelAction;
+
+	/**
+	 * get a future that completes when all of the given futures have
+	 * completed. Its result is the array of the individual results in the
+	 * order of the futures. If one of the calls has failed, the future fails
+	 * with the exception of the first failed call in that order.
+	 * 
+	 * @param futures
+	 *            the futures.
+	 * @return the future of all results.
+	 */
+	public static RemoteCallFuture all(final RemoteCallFuture[] futures) {
+		final RemoteCallFuture all = new RemoteCallFuture();
+		final Object[] results = new Object[futures.length];
+		final boolean[] failed = new boolean[futures.length];
+		final int[] pending = new int[] { futures.length };
+		if (futures.length == 0) {
+			all.remoteCallResult(true, results);
+			return all;
+		}
+		all.onCancel(new Runnable() {
+			public void run() {
+				for (int i = 0; i < futures.length; i++) {
+					futures[i].cancel();
+				}
+			}
+		});
+		for (int i = 0; i < futures.length; i++) {
+			final int index = i;
+			futures[i].addCallback(new AsyncRemoteCallCallback() {
+				public void remoteCallResult(final boolean success,
+						final Object o) {
+					synchronized (pending) {
+						results[index] = o;
+						failed[index] = !success;
+						if (--pending[0] > 0) {
+							return;
+						}
+					}
+					for (int j = 0; j < results.length; j++) {
+						if (failed[j]) {
+							all.remoteCallResult(false, results[j]);
+							return;
+						}
+					}
+					all.remoteCallResult(true, results);
+				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * complete the future. Called by the system when the result of the call
+	 * has arrived.
+	 * 
+	 * @param success
+	 *            indicates if the call has completed successfully or with an
+	 *            exception.
+	 * @param o
+	 *            the result of the call or the exception if success is set to
+	 *            <code>false</code>.
+	 * @see ch.ethz.iks.r_osgi.AsyncRemoteCallCallback#remoteCallResult(boolean,
+	 *      java.lang.Object)
+	 */
+	public void remoteCallResult(final boolean success, final Object o) {
+		complete(success, o, false);
+	}
+
+	/**
+	 * complete the future unless it has already completed.
+	 * 
+	 * @param success
+	 *            indicates if the call has completed successfully.
+	 * @param o
+	 *            the result or the exception.
+	 * @param cancel
+	 *            <code>true</code> if the call is cancelled.
+	 * @return <code>true</code> if the future was completed by this call.
+	 */
+	private boolean complete(final boolean success, final Object o,
+			final boolean cancel) {
+		final AsyncRemoteCallCallback[] waiting;
+		final Runnable action;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.success = success;
+			this.result = o;
+			done = true;
+			cancelled = cancel;
+			waiting = callbacks;
+			callbacks = null;
+			action = cancel ? cancelAction : null;
+			cancelAction = null;
+			notifyAll();
+		}
+		if (waiting != null) {
+			for (int i = 0; i < waiting.length; i++) {
+				waiting[i].remoteCallResult(success, o);
+			}
+		}
+		if (action != null) {
+			action.run();
+		}
+		return true;
+	}
+
+	/**
+	 * add a callback that is invoked when the call has completed. If the call
+	 * has already completed, the callback is invoked immediately by the
+	 * calling thread, otherwise by the thread that delivers the result.
+	 * Callbacks should therefore not block.
+	 * 
+	 * @param callback
+	 *            the callback.
+	 * @return this future.
+	 */
+	public RemoteCallFuture addCallback(final AsyncRemoteCallCallback callback) {
+		synchronized (this) {
+			if (!done) {
+				if (callbacks == null) {
+					callbacks = new AsyncRemoteCallCallback[] { callback };
+				} else {
+					final AsyncRemoteCallCallback[] newCallbacks = new AsyncRemoteCallCallback[callbacks.length + 1];
+					System.arraycopy(callbacks, 0, newCallbacks, 0,
+							callbacks.length);
+					newCallbacks[callbacks.length] = callback;
+					callbacks = newCallbacks;
+				}
+				return this;
+			}
+		}
+		callback.remoteCallResult(success, result);
+		return this;
+	}
+
+	/**
+	 * cancel the call. If the call has not completed yet, the future fails
+	 * with a <code>RemoteOSGiException</code>, the result of the call is
+	 * discarded, and the remote peer is told to abandon the call. Depending on
+	 * the progress of the call, the remote service may or may not have been
+	 * invoked.
+	 * 
+	 * @return <code>true</code> if the call was cancelled,
+	 *         <code>false</code> if it had already completed.
+	 */
+	public boolean cancel() {
+		return complete(false,
+				new RemoteOSGiException("Call cancelled"), true); //$NON-NLS-1$
+	}
+
+	/**
+	 * check if the call has been cancelled.
+	 * 
+	 * @return <code>true</code> if the call was cancelled before it
+	 *         completed.
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * set the action that abandons the call when the future is cancelled.
+	 * Called by the system when the call is issued. If the future has already
+	 * been cancelled, the action is run immediately.
+	 * 
+	 * @param action
+	 *            the action.
+	 */
+	public void onCancel(final Runnable action) {
+		synchronized (this) {
+			if (!cancelled) {
+				if (!done) {
+					cancelAction = action;
+				}
+				return;
+			}
+		}
+		action.run();
+	}
+
+	/**
+	 * check if the call has completed.
+	 * 
+	 * @return <code>true</code>, if the result or the exception is available.
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * wait for the result of the call.
+	 * 
+	 * @return the result of the call.
+	 * @throws Throwable
+	 *             the exception that was thrown by the remote service or that
+	 *             occurred during the invocation.
+	 */
+	public Object get() throws Throwable {
+		return get(0);
+	}
+
+	/**
+	 * wait for the result of the call for a limited time.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds, <code>0</code>
+	 *            waits until the call has completed.
+	 * @return the result of the call.
+	 * @throws RemoteOSGiException
+	 *             if the timeout has expired or the waiting thread was
+	 *             interrupted.
+	 * @throws Throwable
+	 *             the exception that was thrown by the remote service or that
+	 *             occurred during the invocation.
+	 */
+	public synchronized Object get(final long timeout) throws Throwable {
+		final long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while (!done) {
+				if (timeout == 0) {
+					wait();
+				} else {
+					final long remaining = deadline
+							- System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new RemoteOSGiException(
+								"Method Invocation failed, timeout exceeded."); //$NON-NLS-1$
+					}
+					wait(remaining);
+				}
+			}
+		} catch (final InterruptedException ie) {
+			throw new RemoteOSGiException(
+					"Interrupted while waiting for the result", ie); //$NON-NLS-1$
+		}
+		if (!success) {
+			throw (Throwable) result;
+		}
+		return result;
+	}
+
+}
@@ -135,6 +135,22 @@ public interface RemoteOSGiService {
 	 */
 	String SERVICE_URI = "service.uri"; //$NON-NLS-1$
 
+	/**
+	 * the timeout of remote calls to the service in milliseconds. The value
+	 * of this property in the service property dictionary is either a
+	 * <code>Number</code> that applies to all methods, or a
+	 * <code>String</code> of comma-separated entries, each either a timeout
+	 * for all methods or of the form <code>method=timeout</code>, where
+	 * <code>method</code> is a method name or a method name followed by its
+	 * descriptor, e.g., <code>"5000,query=500"</code>. Without this property,
+	 * the framework-wide default is used. The caller passes the timeout to
+	 * the service provider, which drops calls that have been waiting longer
+	 * than their timeout before they could be processed.
+	 * 
+	 * @since 1.0
+	 */
+	String TIMEOUT = "service.remote.timeout"; //$NON-NLS-1$
+
 	/**
 	 * connect to a remote OSGi framework. Has to be called prior to any service
 	 * access. Causes the frameworks to exchange leases and start the transport
@@ -258,6 +274,58 @@ public interface RemoteOSGiService {
 	void asyncRemoteCall(final URI service, final Method method,
 			final Object[] args, final AsyncRemoteCallCallback callback);
 
+	/**
+	 * make an asynchronous remote call to a service and get a future for the
+	 * result. The calling thread does not wait for the reply, so that calls to
+	 * many services can be issued at once.
+	 * 
+	 * @param service
+	 *            the URI of the service
+	 * @param methodSignature
+	 *            the signature of the method to call
+	 * @param args
+	 *            the arguments to pass
+	 * @return the future of the result.
+	 * @since 1.0
+	 */
+	RemoteCallFuture asyncRemoteCall(final URI service,
+			final String methodSignature, final Object[] args);
+
+	/**
+	 * make an asynchronous remote call to a service and get a future for the
+	 * result.
+	 * 
+	 * @param service
+	 *            the URI of the service
+	 * @param method
+	 *            the method to call
+	 * @param args
+	 *            the arguments to pass
+	 * @return the future of the result.
+	 * @since 1.0
+	 */
+	RemoteCallFuture asyncRemoteCall(final URI service, final Method method,
+			final Object[] args);
+
+	/**
+	 * make a batch of asynchronous remote calls. Calls to services of the
+	 * same peer are pipelined, i.e., written to the channel back to back
+	 * without waiting for the replies, and complete in the order in which the
+	 * replies arrive. Use {@link RemoteCallFuture#all(RemoteCallFuture[])} to
+	 * wait for the batch as a whole.
+	 * 
+	 * @param services
+	 *            the URIs of the services
+	 * @param methodSignatures
+	 *            the signatures of the methods to call
+	 * @param args
+	 *            the arguments to pass to each call
+	 * @return the futures of the results, in the order of the calls.
+	 * @since 1.0
+	 */
+	RemoteCallFuture[] asyncRemoteCalls(final URI[] services,
+			final String[] methodSignatures, final Object[][] args);
+
 	/**
 	 * get the port on which the corresponding NetworkChannelFactory for the
 	 * given protocol listens for incoming connections.
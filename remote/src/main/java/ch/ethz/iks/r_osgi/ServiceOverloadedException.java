@@ -0,0 +1,56 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi;
+
+/**
+ * ServiceOverloadedException is the result of a remote call that the remote
+ * peer has rejected because too many calls of the caller were already in
+ * flight. The service has not been invoked, so the call can safely be
+ * retried later.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public final class ServiceOverloadedException extends RuntimeException {
+
+	/**
+	 * the serial UID.
+	 */
+	private static final long serialVersionUID = -3101648862342741529L;
+
+	/**
+	 * creates a new ServiceOverloadedException from error message.
+	 * 
+	 * @param message
+	 *            the error message.
+	 */
+	public ServiceOverloadedException(final String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,82 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi.channels;
+
+import java.io.IOException;
+
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+
+/**
+ * Network channel that can send a batch of messages at once. Transports that
+ * buffer their output implement this interface so that pipelined calls are
+ * written back to back and reach the network with a single write, and
+ * announce whether several calls can be coalesced into one message.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public interface BatchNetworkChannel extends NetworkChannel {
+
+	/**
+	 * send a batch of messages through the channel. The messages are sent in
+	 * the order of the array, no other message is sent in between. If one of
+	 * the messages cannot be serialized, the messages behind it are not sent.
+	 * 
+	 * @param messages
+	 *            the messages to be sent.
+	 * @throws IOException
+	 *             if the transport fails.
+	 */
+	void sendMessages(final RemoteOSGiMessage[] messages) throws IOException;
+
+	/**
+	 * check if the peer accepts messages that carry several remote calls,
+	 * i.e., <code>MultiCallMessage</code>s.
+	 * 
+	 * @return <code>true</code> if calls can be coalesced on this channel.
+	 */
+	boolean acceptsMultiCalls();
+
+	/**
+	 * check if the peer accepts remote calls that carry a time budget, i.e.,
+	 * <code>RemoteCallMessage</code>s with a timeout.
+	 * 
+	 * @return <code>true</code> if calls can carry their deadline on this
+	 *         channel.
+	 */
+	boolean acceptsDeadlines();
+
+	/**
+	 * check if the peer accepts the cancellation of remote calls, i.e.,
+	 * <code>CancelCallMessage</code>s.
+	 * 
+	 * @return <code>true</code> if calls can be cancelled on this channel.
+	 */
+	boolean acceptsCancellation();
+
+}
@@ -40,6 +40,7 @@ import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -54,18 +55,23 @@ import org.osgi.service.event.EventHandler;
 import org.osgi.service.log.LogService;
 
 import ch.ethz.iks.r_osgi.AsyncRemoteCallCallback;
+import ch.ethz.iks.r_osgi.RemoteCallFuture;
 import ch.ethz.iks.r_osgi.RemoteOSGiException;
 import ch.ethz.iks.r_osgi.RemoteOSGiService;
 import ch.ethz.iks.r_osgi.RemoteServiceEvent;
 import ch.ethz.iks.r_osgi.RemoteServiceReference;
+import ch.ethz.iks.r_osgi.ServiceOverloadedException;
 import ch.ethz.iks.r_osgi.URI;
+import ch.ethz.iks.r_osgi.channels.BatchNetworkChannel;
 import ch.ethz.iks.r_osgi.channels.ChannelEndpoint;
 import ch.ethz.iks.r_osgi.channels.NetworkChannel;
 import ch.ethz.iks.r_osgi.channels.NetworkChannelFactory;
+import ch.ethz.iks.r_osgi.messages.CancelCallMessage;
 import ch.ethz.iks.r_osgi.messages.DeliverBundlesMessage;
 import ch.ethz.iks.r_osgi.messages.DeliverServiceMessage;
 import ch.ethz.iks.r_osgi.messages.LeaseMessage;
 import ch.ethz.iks.r_osgi.messages.LeaseUpdateMessage;
+import ch.ethz.iks.r_osgi.messages.MultiCallMessage;
 import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
 import ch.ethz.iks.r_osgi.messages.RemoteCallResultMessage;
 import ch.ethz.iks.r_osgi.messages.RemoteEventMessage;
@@ -81,6 +87,7 @@ import ch.ethz.iks.r_osgi.streams.InputStreamProxy;
 import ch.ethz.iks.r_osgi.streams.OutputStreamHandle;
 import ch.ethz.iks.r_osgi.streams.OutputStreamProxy;
 import ch.ethz.iks.r_osgi.types.BoxedPrimitive;
+import ch.ethz.iks.util.ConcurrentIntHashMap;
 
 /**
  * <p>
@@ -122,9 +129,10 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 
 	/**
 	 * the services provided by the OSGi framework holding the remote channel
-	 * endpoint. Map of service URI -> RemoteServiceReferences
+	 * endpoint. Map of service URI -> RemoteServiceReferences. Synchronized,
+	 * the lease handlers modify it while calls look up their references.
 	 */
-	private Map remoteServices = new HashMap(0);
+	private Map remoteServices = new Hashtable(0);
 
 	/**
 	 * the topics of interest of the OSGi framework holding the remote channel
@@ -139,20 +147,104 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	private TimeOffset timeOffset;
 
 	/**
-	 * Timeout.
+	 * the number of services of a lease for which the remote service listeners
+	 * are notified at once.
 	 */
-	private static final int TIMEOUT = 120000;
+	private static final int LEASE_BATCH_SIZE = 64;
 
 	/**
-	 * the callback register
+	 * the number of cancellations of calls that have not arrived yet that an
+	 * endpoint remembers.
 	 */
-	protected final Map callbacks = new HashMap(0);
+	private static final int EARLY_CANCELS = 64;
+
+	/**
+	 * the callback register, xid -> callback.
+	 */
+	protected final ConcurrentIntHashMap callbacks = new ConcurrentIntHashMap();
+
+	/**
+	 * the remote calls of the peer that have not completed yet, xid ->
+	 * invocation. Only tracked if the peer can cancel calls.
+	 */
+	private final ConcurrentIntHashMap invocations = new ConcurrentIntHashMap();
+
+	/**
+	 * the xids of the cancelled calls of the peer that had not arrived when
+	 * their cancellation did, oldest first. On a channel with several
+	 * connections, a call and its cancellation can travel through different
+	 * connections.
+	 */
+	private final int[] earlyCancels = new int[EARLY_CANCELS];
+
+	/**
+	 * the number of early cancellations, guarded by their array.
+	 */
+	private int earlyCancelCount;
+
+	/**
+	 * the number of received requests that are queued or handled.
+	 */
+	private int inFlight;
+
+	/**
+	 * the number of remote calls that were rejected because of the in-flight
+	 * limit.
+	 */
+	private int rejected;
+
+	/**
+	 * the requests that wait for the in-flight count to drop below the limit,
+	 * guarded by the in-flight lock, at most the capacity of a handler queue.
+	 * The channel keeps reading meanwhile, so the replies to the calls that
+	 * the running handlers make to the peer are not held up behind them.
+	 */
+	private final LinkedList deferred = new LinkedList();
+
+	/**
+	 * the lock of the in-flight counter.
+	 */
+	private final Object inFlightLock = new Object();
+
+	/**
+	 * the next transaction id of this endpoint. The endpoint that opened the
+	 * connection uses odd ids, the endpoint that accepted it even ids, so
+	 * that a request of the peer is never taken for the reply to a pending
+	 * call.
+	 */
+	private int nextXid;
+
+	/**
+	 * the lock of the transaction id counter.
+	 */
+	private final Object xidLock = new Object();
+
+	/**
+	 * the maximum number of calls that are coalesced into one message.
+	 */
+	private static final int MAX_COALESCED_CALLS = 64;
+
+	/**
+	 * the calls that are collected in the current coalescing window.
+	 */
+	private final ArrayList coalescing = new ArrayList(0);
+
+	/**
+	 * the waiting callback of the current thread, reused for all blocking
+	 * calls of the thread.
+	 */
+	private static final ThreadLocal waitingCallback = new ThreadLocal();
 
 	/**
 	 * map of service uri -> RemoteServiceRegistration.
 	 */
 	private final HashMap localServices = new HashMap(2);
 
+	/**
+	 * the interned method signatures of this endpoint.
+	 */
+	private final MethodTable methodTable = new MethodTable();
+
 	/**
 	 * map of service uri -> service registration.
 	 */
@@ -185,9 +277,10 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	private static final String NO_LOOPS = "(!(" //$NON-NLS-1$
 			+ RemoteEventMessage.EVENT_SENDER_URI + "=*))"; //$NON-NLS-1$
 
-	private ThreadGroup threadPool;
-
-	private ArrayList workQueue = new ArrayList();
+	/**
+	 * the queue of this endpoint in the shared message executor.
+	 */
+	private MessageExecutor.Queue queue;
 
 	/**
 	 * used by the multiplexer and serves as a marker whether or not the channel
@@ -209,14 +302,16 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	 */
 	ChannelEndpointImpl(final NetworkChannelFactory factory,
 			final URI endpointAddress) throws RemoteOSGiException, IOException {
+		if (USE_THREAD_POOL) {
+			queue = RemoteOSGiServiceImpl.getExecutor().createQueue();
+		}
+		// initialize the transaction id with a random odd value
+		nextXid = ((int) (Math.random() * Short.MAX_VALUE) << 1) | 1;
 		networkChannel = factory.getConnection(this, endpointAddress);
 		if (RemoteOSGiServiceImpl.DEBUG && RemoteOSGiServiceImpl.log != null) {
 			RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
 					"opening new channel " + getRemoteAddress()); //$NON-NLS-1$
 		}
-		if (USE_THREAD_POOL) {
-			initThreadPool();
-		}
 		RemoteOSGiServiceImpl.registerChannelEndpoint(this);
 	}
 
@@ -227,46 +322,16 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	 *            the network channel of the incoming connection.
 	 */
 	ChannelEndpointImpl(final NetworkChannel channel) {
-		networkChannel = channel;
-		channel.bind(this);
 		if (USE_THREAD_POOL) {
-			initThreadPool();
+			queue = RemoteOSGiServiceImpl.getExecutor().createQueue();
 		}
+		// initialize the transaction id with a random even value
+		nextXid = ((int) (Math.random() * Short.MAX_VALUE) + 1) << 1;
+		networkChannel = channel;
+		channel.bind(this);
 		RemoteOSGiServiceImpl.registerChannelEndpoint(this);
 	}
 
-	/**
-	 * initialize the thread pool
-	 */
-	private void initThreadPool() {
-		// TODO: tradeoff, could as well be central for all endpoints...
-		// could also be instantiated lazily...
-		if (USE_THREAD_POOL) {
-			threadPool = new ThreadGroup("WorkerThreads" + toString());
-			for (int i = 0; i < RemoteOSGiServiceImpl.MAX_THREADS_PER_ENDPOINT; i++) {
-				final Thread t = new Thread(threadPool, "WorkerThread" + i) {
-					public void run() {
-						try {
-							while (!isInterrupted()) {
-								final Runnable r;
-								synchronized (workQueue) {
-									while (workQueue.isEmpty()) {
-										workQueue.wait();
-									}
-									r = (Runnable) workQueue.remove(0);
-								}
-								r.run();
-							}
-						} catch (final InterruptedException ie) {
-							// that's fine
-						}
-					}
-				};
-				t.start();
-			}
-		}
-	}
-
 	/**
 	 * process a received message. Called by the channel.
 	 * 
@@ -280,49 +345,290 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 			dispose();
 			return;
 		}
-		final Integer xid = new Integer(msg.getXID());
-		final AsyncCallback callback;
-		synchronized (callbacks) {
-			callback = (AsyncCallback) callbacks.remove(xid);
+		switch (msg.getFuncID()) {
+		case RemoteOSGiMessage.CANCEL_CALL: {
+			// handled right away, the call might block the handler queue
+			final Invocation invocation = (Invocation) invocations.remove(msg
+					.getXID());
+			if (invocation != null) {
+				invocation.cancel();
+			} else {
+				// the call has completed or is still on its way
+				cancelledEarly(msg.getXID());
+			}
+			return;
+		}
+		case RemoteOSGiMessage.REMOTE_CALL:
+			if (acceptsCancellation()) {
+				track(msg.getXID());
+			}
+			break;
+		case RemoteOSGiMessage.MULTI_CALL:
+			if (acceptsCancellation()) {
+				final RemoteCallMessage[] calls = ((MultiCallMessage) msg)
+						.getCalls();
+				for (int i = 0; i < calls.length; i++) {
+					track(calls[i].getXID());
+				}
+			}
+			break;
 		}
+		final AsyncCallback callback;
+		callback = (AsyncCallback) callbacks.remove(msg.getXID());
 		if (callback != null) {
 			callback.result(msg);
 			return;
 		} else {
-			if (USE_THREAD_POOL) {
-				final Runnable r = new Runnable() {
-					public void run() {
-						final RemoteOSGiMessage reply = handleMessage(msg);
-						if (reply != null) {
-							try {
-								networkChannel.sendMessage(reply);
-							} catch (final NotSerializableException nse) {
-								throw new RemoteOSGiException("Error sending " //$NON-NLS-1$
-										+ reply, nse);
-							} catch (final IOException e) {
-								dispose();
-							}
-						}
-					}
-				};
-				synchronized (workQueue) {
-					workQueue.add(r);
-					workQueue.notify();
+			if (msg.getFuncID() == RemoteOSGiMessage.MULTI_CALL) {
+				// every call of the batch is handled on its own, the results
+				// are sent as they become available
+				final RemoteCallMessage[] calls = ((MultiCallMessage) msg)
+						.getCalls();
+				for (int i = 0; i < calls.length; i++) {
+					handle(calls[i]);
 				}
 			} else {
-				final RemoteOSGiMessage reply = handleMessage(msg);
-				if (reply != null) {
+				handle(msg);
+			}
+		}
+	}
 
-					try {
-						networkChannel.sendMessage(reply);
-					} catch (final NotSerializableException nse) {
-						throw new RemoteOSGiException("Error sending " //$NON-NLS-1$
-								+ reply, nse);
-					} catch (final IOException e) {
-						dispose();
+	/**
+	 * handle a received request and send the reply. The request is handed to
+	 * a handler of the executor, unless the thread pool is disabled.
+	 * 
+	 * @param msg
+	 *            the request.
+	 */
+	private void handle(final RemoteOSGiMessage msg) {
+		if (USE_THREAD_POOL) {
+			dispatch(msg);
+			return;
+		}
+		final RemoteOSGiMessage reply = handleMessage(msg);
+		if (reply != msg) {
+			msg.recycle();
+		}
+		if (reply != null) {
+
+			try {
+				networkChannel.sendMessage(reply);
+			} catch (final NotSerializableException nse) {
+				throw new RemoteOSGiException("Error sending " //$NON-NLS-1$
+						+ reply, nse);
+			} catch (final IOException e) {
+				dispose();
+			}
+		}
+	}
+
+	/**
+	 * track a received remote call so that the peer can cancel it. A call
+	 * whose cancellation has arrived first is dropped when its handler runs.
+	 * 
+	 * @param xid
+	 *            the transaction ID of the call.
+	 */
+	private void track(final int xid) {
+		final Invocation invocation = new Invocation();
+		synchronized (earlyCancels) {
+			for (int i = 0; i < earlyCancelCount; i++) {
+				if (earlyCancels[i] == xid) {
+					System.arraycopy(earlyCancels, i + 1, earlyCancels, i,
+							--earlyCancelCount - i);
+					invocation.cancel();
+					break;
+				}
+			}
+		}
+		invocations.put(xid, invocation);
+	}
+
+	/**
+	 * remember the cancellation of a call that is not tracked. If the
+	 * cancellation is late, the xid is eventually forgotten.
+	 * 
+	 * @param xid
+	 *            the transaction ID of the call.
+	 */
+	private void cancelledEarly(final int xid) {
+		synchronized (earlyCancels) {
+			if (earlyCancelCount == EARLY_CANCELS) {
+				System.arraycopy(earlyCancels, 1, earlyCancels, 0,
+						--earlyCancelCount);
+			}
+			earlyCancels[earlyCancelCount++] = xid;
+		}
+	}
+
+	/**
+	 * hand a received message to a handler of the executor.
+	 * 
+	 * @param msg
+	 *            the message.
+	 */
+	private void dispatch(final RemoteOSGiMessage msg) {
+		final boolean control = msg.isControl();
+		final Runnable r = new Runnable() {
+			public void run() {
+				try {
+					final RemoteOSGiMessage reply = handleMessage(msg);
+					if (reply != msg) {
+						msg.recycle();
+					}
+					if (reply != null) {
+						try {
+							networkChannel.sendMessage(reply);
+						} catch (final NotSerializableException nse) {
+							throw new RemoteOSGiException("Error sending " //$NON-NLS-1$
+									+ reply, nse);
+						} catch (final IOException e) {
+							dispose();
+						}
+					}
+				} finally {
+					if (!control) {
+						completed();
 					}
 				}
 			}
+		};
+		if (control) {
+			submit(r, MessageExecutor.CONTROL_LANE);
+		} else if (admit(msg, r)) {
+			submit(r, MessageExecutor.BULK_LANE);
+		}
+	}
+
+	/**
+	 * submit a message handler to the executor. The in-flight limit keeps the
+	 * bulk lane of the queue from filling up, so the executor only refuses
+	 * handlers when the channel is going down.
+	 * 
+	 * @param task
+	 *            the handler.
+	 * @param lane
+	 *            the lane of the executor.
+	 */
+	private void submit(final Runnable task, final int lane) {
+		if (!RemoteOSGiServiceImpl.getExecutor().execute(queue, task, lane)
+				&& lane == MessageExecutor.BULK_LANE) {
+			synchronized (inFlightLock) {
+				inFlight--;
+			}
+		}
+	}
+
+	/**
+	 * admit a received request to the message handlers. The receiving thread
+	 * of the channel never waits here, and the channel is not paused, since
+	 * the receiving thread might be the only one to read the replies that the
+	 * running handlers wait for. If the in-flight limit of the endpoint, at
+	 * most the capacity of its handler queue, is reached, the request is
+	 * deferred until a request has completed. Once the deferred requests fill
+	 * a handler queue, remote calls are rejected with a
+	 * <code>ServiceOverloadedException</code>, or right away if configured,
+	 * remote events are dropped, and any other request closes the channel.
+	 * 
+	 * @param msg
+	 *            the request.
+	 * @param task
+	 *            the handler of the request.
+	 * @return <code>true</code> if the handler can be submitted,
+	 *         <code>false</code> if the request has been deferred or
+	 *         rejected.
+	 */
+	private boolean admit(final RemoteOSGiMessage msg, final Runnable task) {
+		final int capacity = RemoteOSGiServiceImpl.getExecutor().getCapacity();
+		final int limit = RemoteOSGiServiceImpl.MAX_IN_FLIGHT > 0 ? Math.min(
+				RemoteOSGiServiceImpl.MAX_IN_FLIGHT, capacity) : capacity;
+		final boolean call = msg.getFuncID() == RemoteOSGiMessage.REMOTE_CALL;
+		synchronized (inFlightLock) {
+			if (inFlight < limit) {
+				inFlight++;
+				return true;
+			}
+			if (deferred.size() < capacity
+					&& !(call && RemoteOSGiServiceImpl.REJECT_OVERLOAD)) {
+				deferred.addLast(task);
+				return false;
+			}
+			if (call) {
+				rejected++;
+			}
+		}
+		if (call) {
+			reject(msg);
+			return false;
+		}
+		// the peer does not wait for a reply to an event
+		final boolean drop = msg.getFuncID() == RemoteOSGiMessage.REMOTE_EVENT;
+		if (RemoteOSGiServiceImpl.log != null) {
+			RemoteOSGiServiceImpl.log.log(LogService.LOG_WARNING,
+					"Too many requests in flight from " + getRemoteAddress() //$NON-NLS-1$
+							+ (drop ? ", dropping " //$NON-NLS-1$
+									: ", closing the channel on ") + msg); //$NON-NLS-1$
+		}
+		msg.recycle();
+		if (!drop) {
+			dispose();
+		}
+		return false;
+	}
+
+	/**
+	 * mark an admitted request as completed. The slot goes to the oldest
+	 * deferred request, if any.
+	 */
+	private void completed() {
+		final Runnable next;
+		synchronized (inFlightLock) {
+			if (deferred.isEmpty()) {
+				inFlight--;
+				return;
+			}
+			next = (Runnable) deferred.removeFirst();
+		}
+		submit(next, MessageExecutor.BULK_LANE);
+	}
+
+	/**
+	 * reject a remote call without invoking the service. The reply is sent
+	 * through the control lane of the executor, since sending might wait for
+	 * the channel to drain, and the receiving thread of some transports is
+	 * the one that drains it.
+	 * 
+	 * @param msg
+	 *            the <code>RemoteCallMessage</code>.
+	 */
+	private void reject(final RemoteOSGiMessage msg) {
+		invocations.remove(msg.getXID());
+		final RemoteCallResultMessage reply = new RemoteCallResultMessage();
+		reply.setXID(msg.getXID());
+		reply.setException(new ServiceOverloadedException(
+				"Too many calls in flight, call rejected")); //$NON-NLS-1$
+		msg.recycle();
+		// if the executor refuses the reply, the channel is going down
+		RemoteOSGiServiceImpl.getExecutor().execute(queue, new Runnable() {
+			public void run() {
+				try {
+					send(reply);
+				} catch (final RemoteOSGiException e) {
+					// the channel is going down
+				}
+			}
+		}, MessageExecutor.CONTROL_LANE);
+	}
+
+	/**
+	 * get the number of remote calls of the peer that were rejected because
+	 * of the in-flight limit.
+	 * 
+	 * @return the number of rejected calls.
+	 */
+	int getRejectedCalls() {
+		synchronized (inFlightLock) {
+			return rejected;
 		}
 	}
 
@@ -358,18 +664,39 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 			}
 		}
 
-		final RemoteCallMessage invokeMsg = new RemoteCallMessage();
-		invokeMsg.setServiceID(URI.create(service).getFragment());
+		// the references cache the parsed service URI
+		final Map services = remoteServices;
+		final RemoteServiceReferenceImpl ref = services == null ? null
+				: (RemoteServiceReferenceImpl) services.get(service);
+		final RemoteCallMessage invokeMsg = RemoteCallMessage.obtain();
+		invokeMsg.setServiceID(ref == null ? URI.create(service).getFragment()
+				: ref.getURI().getFragment());
 		invokeMsg.setMethodSignature(methodSignature);
 		invokeMsg.setArgs(args);
+		methodTable.prepare(invokeMsg);
+		final int timeout = ref == null ? RemoteOSGiServiceImpl.CALL_TIMEOUT
+				: ref.getTimeout(methodSignature);
+		if (networkChannel instanceof BatchNetworkChannel
+				&& ((BatchNetworkChannel) networkChannel).acceptsDeadlines()) {
+			// let the peer drop the call once the caller has given up
+			invokeMsg.setTimeout(timeout);
+		}
 
 		try {
 			// send the message and get a MethodResultMessage in return
-			final RemoteCallResultMessage resultMsg = (RemoteCallResultMessage) sendAndWait(invokeMsg);
+			final RemoteCallResultMessage resultMsg = (RemoteCallResultMessage) sendAndWait(
+					invokeMsg, timeout);
+			// the peer has replied, so the call message is no longer needed
 			if (resultMsg.causedException()) {
-				throw resultMsg.getException();
+				final Throwable t = resultMsg.getException();
+				resultMsg.recycle();
+				invokeMsg.recycle();
+				throw t;
 			}
+			methodTable.acknowledge(invokeMsg);
 			final Object result = resultMsg.getResult();
+			resultMsg.recycle();
+			invokeMsg.recycle();
 			if (result instanceof InputStreamHandle) {
 				return getInputStreamProxy((InputStreamHandle) result);
 			} else if (result instanceof OutputStreamHandle) {
@@ -383,11 +710,84 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 		}
 	}
 
+	/**
+	 * make an asynchronous remote call.
+	 * 
+	 * @param fragment
+	 *            the fragment of the service URI.
+	 * @param methodSignature
+	 *            the method signature.
+	 * @param args
+	 *            the arguments.
+	 * @param callback
+	 *            the callback that receives the result.
+	 */
 	void asyncRemoteCall(final String fragment, final String methodSignature,
 			final Object[] args, final AsyncRemoteCallCallback callback) {
 		if (networkChannel == null) {
 			throw new RemoteOSGiException("Channel is closed"); //$NON-NLS-1$
 		}
+		final RemoteCallMessage invokeMsg = prepareCall(fragment,
+				methodSignature, args, callback);
+		try {
+			send(invokeMsg);
+		} catch (final RemoteOSGiException e) {
+			failCall(invokeMsg, callback, e);
+		}
+	}
+
+	/**
+	 * make a batch of asynchronous remote calls. The calls are written back
+	 * to back without waiting for the replies and each callback is invoked as
+	 * soon as the result of its call has arrived, independent of the order of
+	 * the batch.
+	 * 
+	 * @param fragments
+	 *            the fragments of the service URIs.
+	 * @param methodSignatures
+	 *            the method signatures.
+	 * @param args
+	 *            the arguments of each call.
+	 * @param resultCallbacks
+	 *            the callbacks that receive the results.
+	 */
+	void asyncRemoteCalls(final String[] fragments,
+			final String[] methodSignatures, final Object[][] args,
+			final AsyncRemoteCallCallback[] resultCallbacks) {
+		if (networkChannel == null) {
+			throw new RemoteOSGiException("Channel is closed"); //$NON-NLS-1$
+		}
+		final RemoteCallMessage[] invokeMsgs = new RemoteCallMessage[fragments.length];
+		for (int i = 0; i < invokeMsgs.length; i++) {
+			invokeMsgs[i] = prepareCall(fragments[i], methodSignatures[i],
+					args[i], resultCallbacks[i]);
+		}
+		try {
+			send(invokeMsgs);
+		} catch (final RemoteOSGiException e) {
+			for (int i = 0; i < invokeMsgs.length; i++) {
+				failCall(invokeMsgs[i], resultCallbacks[i], e);
+			}
+		}
+	}
+
+	/**
+	 * create the message of an asynchronous call and register the callback
+	 * for its result.
+	 * 
+	 * @param fragment
+	 *            the fragment of the service URI.
+	 * @param methodSignature
+	 *            the method signature.
+	 * @param args
+	 *            the arguments.
+	 * @param callback
+	 *            the callback that receives the result.
+	 * @return the message.
+	 */
+	private RemoteCallMessage prepareCall(final String fragment,
+			final String methodSignature, final Object[] args,
+			final AsyncRemoteCallCallback callback) {
 		// check arguments for streams and replace with placeholder
 		for (int i = 0; i < args.length; i++) {
 			if (args[i] instanceof InputStream) {
@@ -397,49 +797,102 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 			}
 		}
 
-		final Integer xid = new Integer(RemoteOSGiServiceImpl.nextXid());
-
-		synchronized (callbacks) {
-			callbacks.put(xid, new AsyncCallback() {
-				public void result(final RemoteOSGiMessage msg) {
-					final RemoteCallResultMessage resultMsg = (RemoteCallResultMessage) msg;
-					if (resultMsg.causedException()) {
-						callback.remoteCallResult(false,
-								resultMsg.getException());
-					}
-					final Object result = resultMsg.getResult();
-					final Object res;
-					if (result instanceof InputStreamHandle) {
-						res = getInputStreamProxy((InputStreamHandle) result);
-					} else if (result instanceof OutputStreamHandle) {
-						res = getOutputStreamProxy((OutputStreamHandle) result);
-					} else {
-						res = result;
-					}
-					callback.remoteCallResult(true, res);
+		final RemoteCallMessage invokeMsg = RemoteCallMessage.obtain();
+		invokeMsg.setServiceID(fragment);
+		invokeMsg.setMethodSignature(methodSignature);
+		invokeMsg.setArgs(args);
+		invokeMsg.setXID(nextXid());
+		methodTable.prepare(invokeMsg);
+
+		callbacks.put(invokeMsg.getXID(), new AsyncCallback() {
+			public void result(final RemoteOSGiMessage msg) {
+				final RemoteCallResultMessage resultMsg = (RemoteCallResultMessage) msg;
+				if (resultMsg.causedException()) {
+					final Throwable t = resultMsg.getException();
+					resultMsg.recycle();
+					invokeMsg.recycle();
+					callback.remoteCallResult(false, t);
+					return;
+				}
+				methodTable.acknowledge(invokeMsg);
+				final Object result = resultMsg.getResult();
+				resultMsg.recycle();
+				invokeMsg.recycle();
+				final Object res;
+				if (result instanceof InputStreamHandle) {
+					res = getInputStreamProxy((InputStreamHandle) result);
+				} else if (result instanceof OutputStreamHandle) {
+					res = getOutputStreamProxy((OutputStreamHandle) result);
+				} else {
+					res = result;
+				}
+				callback.remoteCallResult(true, res);
+			}
+		});
+		if (callback instanceof RemoteCallFuture) {
+			final int xid = invokeMsg.getXID();
+			((RemoteCallFuture) callback).onCancel(new Runnable() {
+				public void run() {
+					cancelCall(xid);
 				}
 			});
 		}
+		return invokeMsg;
+	}
 
-		final RemoteCallMessage invokeMsg = new RemoteCallMessage();
-		invokeMsg.setServiceID(fragment);
-		invokeMsg.setMethodSignature(methodSignature);
-		invokeMsg.setArgs(args);
-		invokeMsg.setXID(xid.shortValue());
+	/**
+	 * report an asynchronous call that could not be sent to its callback,
+	 * unless the call has already completed otherwise.
+	 * 
+	 * @param invokeMsg
+	 *            the message of the call.
+	 * @param callback
+	 *            the callback.
+	 * @param e
+	 *            the exception.
+	 */
+	private void failCall(final RemoteCallMessage invokeMsg,
+			final AsyncRemoteCallCallback callback, final RemoteOSGiException e) {
+		if (callbacks.remove(invokeMsg.getXID()) == null) {
+			return;
+		}
+		callback.remoteCallResult(
+				false,
+				new RemoteOSGiException(
+						"Method invocation of " //$NON-NLS-1$
+								+ getRemoteAddress()
+								+ "#" + invokeMsg.getServiceID() + " " + invokeMsg.getMethodSignature() + " failed.", e)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
 
+	/**
+	 * abandon a pending remote call. The result of the call is discarded and
+	 * the peer is told to drop or interrupt the call, if it supports it.
+	 * 
+	 * @param xid
+	 *            the transaction ID of the call.
+	 */
+	void cancelCall(final int xid) {
+		if (callbacks.remove(xid) == null || !acceptsCancellation()) {
+			return;
+		}
 		try {
-			send(invokeMsg);
+			send(new CancelCallMessage(xid));
 		} catch (final RemoteOSGiException e) {
-			callbacks.remove(xid);
-			callback.remoteCallResult(
-					false,
-					new RemoteOSGiException(
-							"Method invocation of " //$NON-NLS-1$
-									+ getRemoteAddress()
-									+ "#" + fragment + " " + methodSignature + " failed.", e)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			// the channel is going down, the call is abandoned anyway
 		}
 	}
 
+	/**
+	 * check if the peer understands <code>CancelCallMessage</code>s.
+	 * 
+	 * @return <code>true</code> if calls can be cancelled on this channel.
+	 */
+	private boolean acceptsCancellation() {
+		final NetworkChannel channel = networkChannel;
+		return channel instanceof BatchNetworkChannel
+				&& ((BatchNetworkChannel) channel).acceptsCancellation();
+	}
+
 	/**
 	 * get the attributes of a service. This function is used to simplify proxy
 	 * bundle generation.
@@ -585,32 +1038,47 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 			}
 		}
 
-		// dispose off the thread pool
-		if (threadPool != null) {
-			final Thread[] threads = new Thread[RemoteOSGiServiceImpl.MAX_THREADS_PER_ENDPOINT];
-			final int count = threadPool.enumerate(threads);
-			for (int i = 0; i < count; i++) {
-				threads[i].interrupt();
-				try {
-					threads[i].join();
-				} catch (InterruptedException e) {
-					//
-				}
-			}
-			threadPool.destroy();
+		// discard the messages that wait for a handler
+		if (queue != null) {
+			RemoteOSGiServiceImpl.getExecutor().close(queue);
 		}
 
 		remoteServices = null;
 		remoteTopics = null;
 		timeOffset = null;
-		callbacks.clear();
+		final Object[] pending = callbacks.clear();
+		synchronized (inFlightLock) {
+			// the deferred requests are discarded like the queued ones
+			deferred.clear();
+			if (rejected > 0 && RemoteOSGiServiceImpl.DEBUG
+					&& RemoteOSGiServiceImpl.log != null) {
+				RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+						"rejected " + rejected + " calls of " //$NON-NLS-1$ //$NON-NLS-2$
+								+ oldchannel.getRemoteAddress());
+			}
+		}
+		// nobody is waiting for the results of the running calls of the peer
+		final Object[] running = invocations.clear();
+		for (int i = 0; i < running.length; i++) {
+			((Invocation) running[i]).cancel();
+		}
 		localServices.clear();
 		proxiedServices.clear();
 		closeStreams();
 		streams.clear();
 		handlerReg = null;
-		synchronized (callbacks) {
-			callbacks.notifyAll();
+		// wake up the threads that wait for a reply and fail the pending
+		// asynchronous calls
+		for (int i = 0; i < pending.length; i++) {
+			if (pending[i] instanceof WaitingCallback) {
+				((WaitingCallback) pending[i]).wake();
+			} else {
+				final RemoteCallResultMessage failed = RemoteCallResultMessage
+						.obtain();
+				failed.setException(new RemoteOSGiException(
+						"Channel is closed")); //$NON-NLS-1$
+				((AsyncCallback) pending[i]).result(failed);
+			}
 		}
 	}
 
@@ -779,7 +1247,9 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 		final LeaseMessage l = new LeaseMessage();
 		populateLease(l, myServices, myTopics);
 		final LeaseMessage lease = (LeaseMessage) sendAndWait(l);
-		return processLease(lease);
+		final RemoteServiceReferenceImpl[] refs = processLease(lease);
+		notifyRegistered(refs);
+		return refs;
 	}
 
 	/**
@@ -899,10 +1369,11 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	 * @return the remote service reference, or <code>null</code>.
 	 */
 	RemoteServiceReferenceImpl getRemoteReference(final String uri) {
-		if (remoteServices == null) {
+		final Map services = remoteServices;
+		if (services == null) {
 			throw new RemoteOSGiException("Channel is closed."); //$NON-NLS-1$
 		}
-		return (RemoteServiceReferenceImpl) remoteServices.get(uri);
+		return (RemoteServiceReferenceImpl) services.get(uri);
 	}
 
 	/**
@@ -915,8 +1386,7 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	RemoteServiceReference[] getAllRemoteReferences(final Filter filter) {
 		final List result = new ArrayList();
 		final RemoteServiceReferenceImpl[] refs = (RemoteServiceReferenceImpl[]) remoteServices
-				.values().toArray(
-						new RemoteServiceReferenceImpl[remoteServices.size()]);
+				.values().toArray(new RemoteServiceReferenceImpl[0]);
 		if (filter == null) {
 			return refs.length > 0 ? refs : null;
 		} else {
@@ -958,7 +1428,7 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 		}
 
 		if (msg.getXID() == 0) {
-			msg.setXID(RemoteOSGiServiceImpl.nextXid());
+			msg.setXID(nextXid());
 		}
 
 		try {
@@ -971,8 +1441,7 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 				// instead
 				// of sending the same message again
 				if (msg instanceof TimeOffsetMessage) {
-					((TimeOffsetMessage) msg).restamp(RemoteOSGiServiceImpl
-							.nextXid());
+					((TimeOffsetMessage) msg).restamp(nextXid());
 					networkChannel.sendMessage(msg);
 				} else {
 					networkChannel.sendMessage(msg);
@@ -987,6 +1456,41 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 		}
 	}
 
+	/**
+	 * send a batch of messages. If the channel supports it, the messages are
+	 * handed over at once, otherwise they are sent one by one.
+	 * 
+	 * @param msgs
+	 *            the messages.
+	 */
+	void send(final RemoteOSGiMessage[] msgs) {
+		final NetworkChannel channel = networkChannel;
+		if (channel == null) {
+			throw new RemoteOSGiException("Channel is closed"); //$NON-NLS-1$
+		}
+		if (!(channel instanceof BatchNetworkChannel)) {
+			for (int i = 0; i < msgs.length; i++) {
+				send(msgs[i]);
+			}
+			return;
+		}
+
+		for (int i = 0; i < msgs.length; i++) {
+			if (msgs[i].getXID() == 0) {
+				msgs[i].setXID(nextXid());
+			}
+		}
+
+		try {
+			((BatchNetworkChannel) channel).sendMessages(msgs);
+		} catch (final NotSerializableException nse) {
+			throw new RemoteOSGiException("Error sending batch", nse); //$NON-NLS-1$
+		} catch (final IOException ioe) {
+			dispose();
+			throw new RemoteOSGiException("Network error", ioe); //$NON-NLS-1$
+		}
+	}
+
 	/**
 	 * message handler method.
 	 * 
@@ -1003,11 +1507,23 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 		// requests
 		case RemoteOSGiMessage.LEASE: {
 			final LeaseMessage lease = (LeaseMessage) msg;
-			processLease(lease);
+			final RemoteServiceReferenceImpl[] refs = processLease(lease);
 
 			populateLease(lease, RemoteOSGiServiceImpl.getServices(),
 					RemoteOSGiServiceImpl.getTopics());
-			return lease;
+			// reply first, the peer waits for the lease while the local
+			// listeners are notified
+			try {
+				networkChannel.sendMessage(lease);
+			} catch (final NotSerializableException nse) {
+				throw new RemoteOSGiException("Error sending " //$NON-NLS-1$
+						+ lease, nse);
+			} catch (final IOException e) {
+				dispose();
+				return null;
+			}
+			notifyRegistered(refs);
+			return null;
 		}
 		case RemoteOSGiMessage.REQUEST_SERVICE: {
 			final RequestServiceMessage reqSrv = (RequestServiceMessage) msg;
@@ -1095,73 +1611,8 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 			}
 			return null;
 		}
-		case RemoteOSGiMessage.REMOTE_CALL: {
-			final RemoteCallMessage invMsg = (RemoteCallMessage) msg;
-			try {
-				RemoteServiceRegistration serv = (RemoteServiceRegistration) localServices
-						.get(invMsg.getServiceID());
-				if (serv == null) {
-					final RemoteServiceRegistration reg = getServiceRegistration(invMsg
-							.getServiceID());
-					if (reg == null) {
-						throw new IllegalStateException(toString()
-								+ "Could not get " + invMsg.getServiceID() //$NON-NLS-1$
-								+ ", known services " + localServices); //$NON-NLS-1$
-					} else {
-						serv = reg;
-					}
-				}
-
-				// get the invocation arguments and the local method
-				final Object[] arguments = invMsg.getArgs();
-				for (int i = 0; i < arguments.length; i++) {
-					if (arguments[i] instanceof InputStreamHandle) {
-						arguments[i] = getInputStreamProxy((InputStreamHandle) arguments[i]);
-					} else if (arguments[i] instanceof OutputStreamHandle) {
-						arguments[i] = getOutputStreamProxy((OutputStreamHandle) arguments[i]);
-					}
-				}
-
-				final Method method = serv.getMethod(invMsg
-						.getMethodSignature());
-
-				// invoke method
-				try {
-					if (!TCPChannelFactory.beSmart) {
-						if (arguments != null) {
-							for (int i = 0; i < arguments.length; i++) {
-								if (arguments[i] instanceof BoxedPrimitive) {
-									arguments[i] = ((BoxedPrimitive) arguments[i])
-											.getBoxed();
-								}
-							}
-						}
-					}
-					final Object result = method.invoke(
-							serv.getServiceObject(), arguments);
-					final RemoteCallResultMessage m = new RemoteCallResultMessage();
-					m.setXID(invMsg.getXID());
-					if (result instanceof InputStream) {
-						m.setResult(getInputStreamPlaceholder((InputStream) result));
-					} else if (result instanceof OutputStream) {
-						m.setResult(getOutputStreamPlaceholder((OutputStream) result));
-					} else {
-						m.setResult(result);
-					}
-					return m;
-				} catch (final InvocationTargetException t) {
-					t.printStackTrace();
-					throw t.getTargetException();
-				}
-			} catch (final Throwable t) {
-				// TODO: send to log
-				t.printStackTrace();
-				final RemoteCallResultMessage m = new RemoteCallResultMessage();
-				m.setXID(invMsg.getXID());
-				m.setException(t);
-				return m;
-			}
-		}
+		case RemoteOSGiMessage.REMOTE_CALL:
+			return invoke((RemoteCallMessage) msg);
 		case RemoteOSGiMessage.REMOTE_EVENT: {
 			final RemoteEventMessage eventMsg = (RemoteEventMessage) msg;
 			final Dictionary properties = eventMsg.getProperties();
@@ -1289,42 +1740,308 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	}
 
 	/**
-	 * send a message and wait for the result.
+	 * invoke a method of a local service for a remote call.
+	 * 
+	 * @param invMsg
+	 *            the remote call.
+	 * @return the result message, carrying the transaction ID of the call, or
+	 *         <code>null</code> if the deadline of the call has passed or the
+	 *         call was cancelled and the caller is no longer waiting for the
+	 *         result.
+	 */
+	private RemoteCallResultMessage invoke(final RemoteCallMessage invMsg) {
+		final Invocation invocation = (Invocation) invocations.get(invMsg
+				.getXID());
+		if (invocation == null) {
+			return execute(invMsg);
+		}
+		if (!invocation.begin()) {
+			// cancelled while waiting for a handler, or before the call
+			// arrived
+			invocations.remove(invMsg.getXID());
+			return null;
+		}
+		final RemoteCallResultMessage result = execute(invMsg);
+		invocations.remove(invMsg.getXID());
+		if (invocation.end()) {
+			// cancelled during the execution, the caller has given up
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * execute a remote call.
+	 * 
+	 * @param invMsg
+	 *            the remote call.
+	 * @return the result message, or <code>null</code> if the call has
+	 *         expired.
+	 */
+	private RemoteCallResultMessage execute(final RemoteCallMessage invMsg) {
+		try {
+			RemoteServiceRegistration serv;
+			final Method method;
+			if (invMsg.getServiceID() == null) {
+				// interned method
+				serv = methodTable.getRegistration(invMsg.getMethodID());
+				method = methodTable.getMethod(invMsg.getMethodID());
+				if (serv == null) {
+					throw new IllegalStateException(toString()
+							+ "Unknown method id " + invMsg.getMethodID()); //$NON-NLS-1$
+				}
+			} else {
+				serv = (RemoteServiceRegistration) localServices
+						.get(invMsg.getServiceID());
+				if (serv == null) {
+					final RemoteServiceRegistration reg = getServiceRegistration(invMsg
+							.getServiceID());
+					if (reg == null) {
+						throw new IllegalStateException(toString()
+								+ "Could not get " + invMsg.getServiceID() //$NON-NLS-1$
+								+ ", known services " + localServices); //$NON-NLS-1$
+					} else {
+						serv = reg;
+					}
+				}
+				method = serv.getMethod(invMsg.getMethodSignature());
+				if (method != null && invMsg.definesMethod()) {
+					methodTable.define(invMsg.getMethodID(), serv, method);
+				}
+			}
+
+			if (invMsg.getDeadline() != 0
+					&& System.currentTimeMillis() > invMsg.getDeadline()) {
+				if (RemoteOSGiServiceImpl.DEBUG
+						&& RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+							"dropping expired call " + invMsg); //$NON-NLS-1$
+				}
+				return null;
+			}
+
+			// get the invocation arguments and the local method
+			final Object[] arguments = invMsg.getArgs();
+			for (int i = 0; i < arguments.length; i++) {
+				if (arguments[i] instanceof InputStreamHandle) {
+					arguments[i] = getInputStreamProxy((InputStreamHandle) arguments[i]);
+				} else if (arguments[i] instanceof OutputStreamHandle) {
+					arguments[i] = getOutputStreamProxy((OutputStreamHandle) arguments[i]);
+				}
+			}
+
+			// invoke method
+			try {
+				if (!TCPChannelFactory.beSmart) {
+					if (arguments != null) {
+						for (int i = 0; i < arguments.length; i++) {
+							if (arguments[i] instanceof BoxedPrimitive) {
+								arguments[i] = ((BoxedPrimitive) arguments[i])
+										.getBoxed();
+							}
+						}
+					}
+				}
+				final Object result = method.invoke(
+						serv.getServiceObject(), arguments);
+				final RemoteCallResultMessage m = new RemoteCallResultMessage();
+				m.setXID(invMsg.getXID());
+				if (result instanceof InputStream) {
+					m.setResult(getInputStreamPlaceholder((InputStream) result));
+				} else if (result instanceof OutputStream) {
+					m.setResult(getOutputStreamPlaceholder((OutputStream) result));
+				} else {
+					m.setResult(result);
+				}
+				return m;
+			} catch (final InvocationTargetException t) {
+				t.printStackTrace();
+				throw t.getTargetException();
+			}
+		} catch (final Throwable t) {
+			// TODO: send to log
+			t.printStackTrace();
+			final RemoteCallResultMessage m = new RemoteCallResultMessage();
+			m.setXID(invMsg.getXID());
+			m.setException(t);
+			return m;
+		}
+	}
+
+	/**
+	 * get the next transaction id of this endpoint. The ids of each side run
+	 * through the positive integers and wrap around; ids that still belong to
+	 * a pending call are skipped.
+	 * 
+	 * @return the next xid.
+	 */
+	int nextXid() {
+		synchronized (xidLock) {
+			int xid;
+			do {
+				xid = nextXid;
+				nextXid += 2;
+				if (nextXid <= 0) {
+					// wrapped around, restart with the parity of this side
+					nextXid = 2 - (nextXid & 1);
+				}
+			} while (callbacks.get(xid) != null);
+			return xid;
+		}
+	}
+
+	/**
+	 * send a remote call. If coalescing is enabled and the peer accepts it,
+	 * the call is collected with the other calls that are issued within the
+	 * coalescing window, and all of them are sent as one message by the
+	 * thread of the first call.
+	 * 
+	 * @param msg
+	 *            the call, with its callback already registered.
+	 */
+	private void sendCall(final RemoteCallMessage msg) {
+		final NetworkChannel channel = networkChannel;
+		if (RemoteOSGiServiceImpl.COALESCING_WINDOW <= 0
+				|| !(channel instanceof BatchNetworkChannel)
+				|| !((BatchNetworkChannel) channel).acceptsMultiCalls()) {
+			send(msg);
+			return;
+		}
+
+		final RemoteCallMessage[] calls;
+		synchronized (coalescing) {
+			coalescing.add(msg);
+			if (coalescing.size() > 1) {
+				// the first call of the window sends the message
+				if (coalescing.size() >= MAX_COALESCED_CALLS) {
+					coalescing.notifyAll();
+				}
+				return;
+			}
+			// only wait for more calls if other calls are in flight,
+			// a lone caller is not delayed
+			if (callbacks.size() > 1) {
+				final long end = System.currentTimeMillis()
+						+ RemoteOSGiServiceImpl.COALESCING_WINDOW;
+				try {
+					long remaining = RemoteOSGiServiceImpl.COALESCING_WINDOW;
+					while (coalescing.size() < MAX_COALESCED_CALLS
+							&& remaining > 0) {
+						coalescing.wait(remaining);
+						remaining = end - System.currentTimeMillis();
+					}
+				} catch (final InterruptedException ie) {
+					// send what has been collected so far
+					Thread.currentThread().interrupt();
+				}
+			}
+			calls = (RemoteCallMessage[]) coalescing
+					.toArray(new RemoteCallMessage[coalescing.size()]);
+			coalescing.clear();
+		}
+
+		if (calls.length == 1) {
+			send(msg);
+			return;
+		}
+		final MultiCallMessage multi = new MultiCallMessage();
+		multi.setCalls(calls);
+		try {
+			send(multi);
+		} catch (final RemoteOSGiException e) {
+			// the other calls of the message fail as well
+			for (int i = 0; i < calls.length; i++) {
+				if (calls[i] == msg) {
+					continue;
+				}
+				final AsyncCallback callback = (AsyncCallback) callbacks
+						.remove(calls[i].getXID());
+				if (callback != null) {
+					final RemoteCallResultMessage failed = RemoteCallResultMessage
+							.obtain();
+					failed.setXID(calls[i].getXID());
+					failed.setException(e);
+					callback.result(failed);
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * send a message and wait for the result with the default timeout.
 	 * 
 	 * @param msg
 	 *            the message.
 	 * @return the result message.
 	 */
 	private RemoteOSGiMessage sendAndWait(final RemoteOSGiMessage msg) {
+		return sendAndWait(msg, RemoteOSGiServiceImpl.CALL_TIMEOUT);
+	}
+
+	/**
+	 * send a message and wait for the result.
+	 * 
+	 * @param msg
+	 *            the message.
+	 * @param timeout
+	 *            the timeout in milliseconds, or 0 to wait until the result
+	 *            arrives or the channel is closed.
+	 * @return the result message.
+	 */
+	private RemoteOSGiMessage sendAndWait(final RemoteOSGiMessage msg,
+			final int timeout) {
 		if (msg.getXID() == 0) {
-			msg.setXID(RemoteOSGiServiceImpl.nextXid());
+			msg.setXID(nextXid());
 		}
-		final Integer xid = new Integer(msg.getXID());
-		final WaitingCallback blocking = new WaitingCallback();
-
-		synchronized (callbacks) {
-			callbacks.put(xid, blocking);
+		final int xid = msg.getXID();
+		WaitingCallback blocking = (WaitingCallback) waitingCallback.get();
+		if (blocking == null) {
+			blocking = new WaitingCallback();
+			waitingCallback.set(blocking);
 		}
+		blocking.reset(xid);
 
-		send(msg);
+		callbacks.put(xid, blocking);
+
+		try {
+			if (msg instanceof RemoteCallMessage) {
+				sendCall((RemoteCallMessage) msg);
+			} else {
+				send(msg);
+			}
+		} catch (final RemoteOSGiException e) {
+			callbacks.remove(xid);
+			throw e;
+		}
 
 		// wait for the reply
 		synchronized (blocking) {
-			final long timeout = System.currentTimeMillis() + TIMEOUT;
+			final long deadline = System.currentTimeMillis() + timeout;
 			RemoteOSGiMessage result = blocking.getResult();
 			try {
-				while (result == null && networkChannel != null
-						&& System.currentTimeMillis() < timeout) {
-					blocking.wait(TIMEOUT);
+				long remaining = timeout;
+				while (result == null && networkChannel != null) {
+					if (timeout > 0) {
+						remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							break;
+						}
+					}
+					blocking.wait(remaining);
 					result = blocking.getResult();
 				}
 			} catch (InterruptedException ie) {
+				abandon(msg);
 				throw new RemoteOSGiException(
 						"Interrupted while waiting for callback", ie); //$NON-NLS-1$
 			}
+			blocking.reset(0);
 			if (result != null) {
 				return result;
-			} else if (networkChannel == null) {
+			}
+			abandon(msg);
+			if (networkChannel == null) {
 				throw new RemoteOSGiException("Channel is closed"); //$NON-NLS-1$
 			} else {
 				throw new RemoteOSGiException(
@@ -1334,6 +2051,21 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 
 	}
 
+	/**
+	 * give up waiting for the reply to a message. Remote calls are cancelled
+	 * on the peer.
+	 * 
+	 * @param msg
+	 *            the message.
+	 */
+	private void abandon(final RemoteOSGiMessage msg) {
+		if (msg instanceof RemoteCallMessage) {
+			cancelCall(msg.getXID());
+		} else {
+			callbacks.remove(msg.getXID());
+		}
+	}
+
 	/**
 	 * get the remote service registration for a given service ID.
 	 * 
@@ -1384,25 +2116,48 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	 *            the lease message.
 	 * @return the remote references.
 	 */
-	private RemoteServiceReference[] processLease(final LeaseMessage lease) {
+	private RemoteServiceReferenceImpl[] processLease(final LeaseMessage lease) {
 		final String[] serviceIDs = lease.getServiceIDs();
 		final String[][] serviceInterfaces = lease.getServiceInterfaces();
 		final Dictionary[] serviceProperties = lease.getServiceProperties();
 
 		final RemoteServiceReferenceImpl[] refs = new RemoteServiceReferenceImpl[serviceIDs.length];
-		for (short i = 0; i < serviceIDs.length; i++) {
+		for (int i = 0; i < serviceIDs.length; i++) {
 			refs[i] = new RemoteServiceReferenceImpl(serviceInterfaces[i],
 					serviceIDs[i], serviceProperties[i], this);
 
 			remoteServices.put(refs[i].getURI().toString(), refs[i]);
-			RemoteOSGiServiceImpl
-					.notifyRemoteServiceListeners(new RemoteServiceEvent(
-							RemoteServiceEvent.REGISTERED, refs[i]));
 		}
 		updateTopics(lease.getTopics(), new String[0]);
 		return refs;
 	}
 
+	/**
+	 * notify the remote service listeners about the services of a lease. The
+	 * listeners are notified in batches of <code>LEASE_BATCH_SIZE</code>
+	 * services.
+	 * 
+	 * @param refs
+	 *            the remote references.
+	 */
+	private void notifyRegistered(final RemoteServiceReferenceImpl[] refs) {
+		final RemoteServiceEvent[] events = new RemoteServiceEvent[Math.min(
+				refs.length, LEASE_BATCH_SIZE)];
+		int count = 0;
+		for (int i = 0; i < refs.length; i++) {
+			events[count++] = new RemoteServiceEvent(
+					RemoteServiceEvent.REGISTERED, refs[i]);
+			if (count == events.length) {
+				RemoteOSGiServiceImpl.notifyRemoteServiceListeners(events,
+						count);
+				count = 0;
+			}
+		}
+		if (count > 0) {
+			RemoteOSGiServiceImpl.notifyRemoteServiceListeners(events, count);
+		}
+	}
+
 	/**
 	 * perform a stream operation.
 	 * 
@@ -1614,16 +2369,71 @@ public final class ChannelEndpointImpl implements ChannelEndpoint {
 	}
 
 	/**
-	 * callback that signals when the result has become available.
+	 * a remote call of the peer that can be cancelled. The call is dropped if
+	 * it is cancelled before its execution has begun, otherwise the thread
+	 * that executes it is interrupted.
+	 * 
+	 * @author Jan S. Rellermeyer
+	 */
+	static final class Invocation {
+
+		private Thread thread;
+
+		private boolean cancelled;
+
+		synchronized boolean begin() {
+			if (cancelled) {
+				return false;
+			}
+			thread = Thread.currentThread();
+			return true;
+		}
+
+		synchronized boolean end() {
+			thread = null;
+			if (cancelled) {
+				// do not leak the interrupt to the next call of the thread
+				Thread.interrupted();
+			}
+			return cancelled;
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+
+	}
+
+	/**
+	 * callback that signals when the result has become available. Each thread
+	 * reuses its callback for all blocking calls, replies to an earlier call
+	 * that arrive late are ignored.
 	 * 
 	 * @author Jan S. Rellermeyer
 	 * 
 	 */
-	class WaitingCallback implements AsyncCallback {
+	static final class WaitingCallback implements AsyncCallback {
+
+		private int xid;
 
 		private RemoteOSGiMessage result;
 
+		synchronized void reset(final int xid) {
+			this.xid = xid;
+			result = null;
+		}
+
+		synchronized void wake() {
+			this.notifyAll();
+		}
+
 		public synchronized void result(RemoteOSGiMessage msg) {
+			if (msg.getXID() != xid) {
+				return;
+			}
 			result = msg;
 			this.notifyAll();
 		}
@@ -0,0 +1,672 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.util.CompressionCodec;
+import ch.ethz.iks.util.DescriptorTable;
+import ch.ethz.iks.util.SmartObjectInputStream;
+import ch.ethz.iks.util.SmartObjectOutputStream;
+
+/**
+ * <p>
+ * Codec for the framed wire mode of the TCP transport. In framed mode, every
+ * message is preceded by a header that carries the length of the body:
+ * </p>
+ * 
+ * <pre>
+ *   0                   1                   2                   3
+ *   0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *  |  Version (2)  |  Function-ID  |              XID              |
+ *  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *  |          XID cntd.            |     Codec     |    Length     |
+ *  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *  |                Length cntd.                   |     Body      \
+ *  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * 
+ * <p>
+ * The body of each frame is an object stream segment without stream header
+ * that does not refer to objects of previous frames. The receiver can
+ * therefore slice the frames off the socket and decode them independently,
+ * and in parallel. Only class descriptors are shared between the frames of a
+ * channel, through a <code>DescriptorTable</code> on each side. If the codec
+ * is not <code>CompressionCodec.NONE</code>, the body starts with the
+ * uncompressed length, followed by the compressed segment.
+ * </p>
+ * 
+ * <p>
+ * Large byte arrays in remote calls and results are not copied into the body.
+ * If the <code>SEGMENTS</code> flag is set in the codec field, the body is
+ * followed by the number of out-of-band segments and, for each segment, its
+ * length and its raw, uncompressed content. The segments are written straight
+ * from the arrays of the caller.
+ * </p>
+ * 
+ * <p>
+ * Both peers start with a handshake frame (function ID 0) that announces the
+ * supported codecs, the preferred codec, and the size threshold below which
+ * frames are not compressed. Each peer then compresses with the cheaper of
+ * the two preferred codecs. Since every frame carries its codec, frames sent
+ * before the handshake of the peer has arrived are simply not compressed.
+ * The handshake ends with a byte of feature flags, e.g.,
+ * <code>MULTI_CALLS</code> or <code>DEADLINES</code>, that peers of earlier
+ * versions do not send and ignore.
+ * </p>
+ * 
+ * <p>
+ * If the <code>STRIPES</code> flag is set, the flags are followed by the
+ * number of connections of the channel, the id of the channel, and the index
+ * of the connection within the channel. The peer that accepts the connection
+ * answers with the number of connections it agrees to, the peer that has
+ * opened it then opens the remaining connections with the same channel id.
+ * </p>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+final class FrameCodec {
+
+	/**
+	 * the protocol version of framed messages. Unframed streams start either
+	 * with the GZIP magic or with the object stream magic.
+	 */
+	static final int VERSION = 2;
+
+	/**
+	 * the function ID of the handshake frame.
+	 */
+	static final short HELLO = 0;
+
+	/**
+	 * flag in the codec field of the header that indicates that out-of-band
+	 * segments follow the body.
+	 */
+	static final int SEGMENTS = 0x80;
+
+	/**
+	 * feature flag in the handshake that indicates that the peer understands
+	 * messages that carry several remote calls.
+	 */
+	static final int MULTI_CALLS = 0x01;
+
+	/**
+	 * feature flag in the handshake that indicates that the peer understands
+	 * remote calls that carry a time budget.
+	 */
+	static final int DEADLINES = 0x02;
+
+	/**
+	 * feature flag in the handshake that indicates that the peer understands
+	 * the cancellation of remote calls.
+	 */
+	static final int CANCELLATION = 0x04;
+
+	/**
+	 * feature flag in the handshake that indicates that the peer can spread a
+	 * channel over several connections. The handshake then carries the
+	 * connection fields.
+	 */
+	static final int STRIPES = 0x08;
+
+	/**
+	 * the features that every handshake announces.
+	 */
+	private static final int FEATURES = MULTI_CALLS | DEADLINES | CANCELLATION;
+
+	/**
+	 * the length of the frame header.
+	 */
+	static final int HEADER_LENGTH = 11;
+
+	/**
+	 * the offset of the body in a frame buffer returned by
+	 * <code>allocate</code>.
+	 */
+	static final int BODY_OFFSET = 4;
+
+	/**
+	 * the object stream header that is implicit for every frame body.
+	 */
+	private static final byte[] STREAM_HEADER = new byte[] {
+			(byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8),
+			(byte) ObjectStreamConstants.STREAM_MAGIC,
+			(byte) (ObjectStreamConstants.STREAM_VERSION >>> 8),
+			(byte) ObjectStreamConstants.STREAM_VERSION };
+
+	/**
+	 * the buffer that holds the current frame.
+	 */
+	private final FrameBuffer buffer = new FrameBuffer();
+
+	/**
+	 * the object output stream writing into the buffer.
+	 */
+	private ObjectOutputStream output;
+
+	/**
+	 * the table of the class descriptors sent to the peer.
+	 */
+	private final DescriptorTable descriptors = new DescriptorTable(
+			RemoteOSGiServiceImpl.DESCRIPTOR_CACHE_SIZE);
+
+	/**
+	 * the out-of-band segments of the current frame.
+	 */
+	private final ArrayList segments = new ArrayList(0);
+
+	/**
+	 * the buffer that holds the current frame if it is compressed.
+	 */
+	private byte[] packed = new byte[0];
+
+	/**
+	 * the length of the current frame in <code>packed</code> or -1 if the
+	 * current frame is not compressed.
+	 */
+	private int packedLength = -1;
+
+	/**
+	 * the negotiated codec, <code>null</code> for no compression.
+	 */
+	private CompressionCodec compressor;
+
+	/**
+	 * the negotiated compression threshold.
+	 */
+	private int threshold;
+
+	/**
+	 * the feature flags of the peer.
+	 */
+	private int features;
+
+	/**
+	 * the number of connections announced by the peer.
+	 */
+	private int peerStripes = 1;
+
+	/**
+	 * the channel id announced by the peer.
+	 */
+	private long peerChannel;
+
+	/**
+	 * the connection index announced by the peer.
+	 */
+	private int peerStripe;
+
+	/**
+	 * create a new encoder.
+	 * 
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	FrameCodec() throws IOException {
+		initOutput();
+	}
+
+	/**
+	 * (re-)create the object stream.
+	 * 
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	private void initOutput() throws IOException {
+		buffer.reset();
+		output = TCPChannelFactory.beSmart ? new SmartObjectOutputStream(
+				buffer, false, descriptors) : new ObjectOutputStream(buffer);
+		output.flush();
+	}
+
+	/**
+	 * encode a message into a frame. The frame is held by the codec until the
+	 * next message is encoded. Not thread-safe, callers have to synchronize on
+	 * the codec.
+	 * 
+	 * @param msg
+	 *            the message.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	void encode(final RemoteOSGiMessage msg) throws IOException {
+		buffer.reset();
+		buffer.skip(HEADER_LENGTH);
+		segments.clear();
+		final int mark = descriptors.mark();
+		try {
+			// clear the handle table, frames must be self-contained
+			output.reset();
+			msg.sendBody(output, segments);
+		} catch (final IOException ioe) {
+			// the frame is discarded, and so are the descriptors it defines
+			descriptors.rollback(mark);
+			segments.clear();
+			// the object stream is in an undefined state, start over
+			initOutput();
+			throw ioe;
+		}
+
+		final int length = buffer.size() - HEADER_LENGTH;
+		final int flags = segments.isEmpty() ? 0 : SEGMENTS;
+		packedLength = -1;
+		if (compressor != null && length >= threshold) {
+			final int max = HEADER_LENGTH + 4
+					+ CompressionCodec.maxCompressedLength(length);
+			if (packed.length < max) {
+				packed = new byte[max];
+			}
+			final int n = compressor.compress(buffer.array(), HEADER_LENGTH,
+					length, packed, HEADER_LENGTH + 4);
+			if (n + 4 < length) {
+				writeInt(packed, HEADER_LENGTH, length);
+				writeHeader(packed, msg.getFuncID(), msg.getXID(),
+						(byte) (compressor.getId() | flags), n + 4);
+				packedLength = HEADER_LENGTH + 4 + n;
+				return;
+			}
+		}
+		writeHeader(buffer.array(), msg.getFuncID(), msg.getXID(),
+				(byte) (CompressionCodec.NONE | flags), length);
+	}
+
+	/**
+	 * encode the handshake frame that announces the compression settings of
+	 * this peer.
+	 */
+	void encodeHello() {
+		encodeHello(FEATURES);
+		finishHello();
+	}
+
+	/**
+	 * encode the handshake frame of a connection that belongs to a channel
+	 * with several connections.
+	 * 
+	 * @param channel
+	 *            the channel id.
+	 * @param stripe
+	 *            the index of the connection.
+	 * @param stripes
+	 *            the number of connections.
+	 */
+	void encodeHello(final long channel, final int stripe, final int stripes) {
+		encodeHello(FEATURES | STRIPES);
+		buffer.write(stripes);
+		buffer.skip(8);
+		writeInt(buffer.array(), HEADER_LENGTH + 8, (int) (channel >>> 32));
+		writeInt(buffer.array(), HEADER_LENGTH + 12, (int) channel);
+		buffer.write(stripe);
+		finishHello();
+	}
+
+	/**
+	 * start the handshake frame.
+	 * 
+	 * @param flags
+	 *            the feature flags.
+	 */
+	private void encodeHello(final int flags) {
+		buffer.reset();
+		buffer.skip(HEADER_LENGTH);
+		segments.clear();
+		buffer.write(CompressionCodec.SUPPORTED);
+		buffer.write(RemoteOSGiServiceImpl.COMPRESSION);
+		buffer.skip(4);
+		writeInt(buffer.array(), HEADER_LENGTH + 2,
+				RemoteOSGiServiceImpl.COMPRESSION_THRESHOLD);
+		buffer.write(flags);
+	}
+
+	/**
+	 * finish the handshake frame.
+	 */
+	private void finishHello() {
+		writeHeader(buffer.array(), HELLO, 0, CompressionCodec.NONE, buffer
+				.size()
+				- HEADER_LENGTH);
+		packedLength = -1;
+	}
+
+	/**
+	 * process the handshake frame of the peer.
+	 * 
+	 * @param body
+	 *            the body of the handshake frame.
+	 * @return the codec that is used from now on.
+	 * @throws IOException
+	 *             if the handshake frame is malformed.
+	 */
+	synchronized byte processHello(final byte[] body) throws IOException {
+		if (body.length < 6) {
+			throw new IOException("Malformed handshake"); //$NON-NLS-1$
+		}
+		final int supported = body[0] & CompressionCodec.SUPPORTED;
+		final byte preferred = rank(body[1]) < rank(
+				RemoteOSGiServiceImpl.COMPRESSION) ? body[1]
+				: RemoteOSGiServiceImpl.COMPRESSION;
+		final byte codec = (supported & 1 << preferred) != 0 ? preferred
+				: CompressionCodec.NONE;
+		compressor = CompressionCodec.create(codec);
+		threshold = Math.max(readInt(body, 2),
+				RemoteOSGiServiceImpl.COMPRESSION_THRESHOLD);
+		features = body.length > 6 ? body[6] & 0xff : 0;
+		if ((features & STRIPES) != 0) {
+			if (body.length < 17) {
+				throw new IOException("Malformed handshake"); //$NON-NLS-1$
+			}
+			peerStripes = body[7] & 0xff;
+			peerChannel = (long) readInt(body, 8) << 32 | readInt(body, 12)
+					& 0xffffffffL;
+			peerStripe = body[16] & 0xff;
+		}
+		return codec;
+	}
+
+	/**
+	 * get the number of connections announced by the peer.
+	 * 
+	 * @return the number of connections, 1 if the peer has not announced
+	 *         any.
+	 */
+	synchronized int getPeerStripes() {
+		return peerStripes;
+	}
+
+	/**
+	 * get the channel id announced by the peer.
+	 * 
+	 * @return the channel id.
+	 */
+	synchronized long getPeerChannel() {
+		return peerChannel;
+	}
+
+	/**
+	 * get the index of the connection announced by the peer.
+	 * 
+	 * @return the index.
+	 */
+	synchronized int getPeerStripe() {
+		return peerStripe;
+	}
+
+	/**
+	 * check if the peer has announced a feature in its handshake.
+	 * 
+	 * @param feature
+	 *            the feature flag.
+	 * @return <code>true</code> if the peer supports the feature.
+	 */
+	synchronized boolean supports(final int feature) {
+		return (features & feature) != 0;
+	}
+
+	/**
+	 * write the current frame to an output stream. The segments of the frame
+	 * are released afterwards.
+	 * 
+	 * @param out
+	 *            the output stream.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	void writeTo(final OutputStream out) throws IOException {
+		if (packedLength < 0) {
+			buffer.writeTo(out);
+		} else {
+			out.write(packed, 0, packedLength);
+		}
+		if (segments.isEmpty()) {
+			return;
+		}
+		try {
+			final int count = segments.size();
+			final byte[] lengths = new byte[4 + 4 * count];
+			writeInt(lengths, 0, count);
+			for (int i = 0; i < count; i++) {
+				writeInt(lengths, 4 + 4 * i,
+						((byte[]) segments.get(i)).length);
+			}
+			out.write(lengths);
+			for (int i = 0; i < count; i++) {
+				out.write((byte[]) segments.get(i));
+			}
+		} finally {
+			segments.clear();
+		}
+	}
+
+	/**
+	 * read the out-of-band segments that follow a frame body.
+	 * 
+	 * @param in
+	 *            the input stream positioned behind the body.
+	 * @return the list of segments.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	static List readSegments(final DataInputStream in) throws IOException {
+		final int count = in.readInt();
+		if (count < 0) {
+			throw new IOException(
+					"Illegal segment count " + count); //$NON-NLS-1$
+		}
+		final int[] lengths = new int[count];
+		for (int i = 0; i < count; i++) {
+			lengths[i] = in.readInt();
+			if (lengths[i] < 0) {
+				throw new IOException("Illegal segment length " //$NON-NLS-1$
+						+ lengths[i]);
+			}
+		}
+		final ArrayList result = new ArrayList(count);
+		for (int i = 0; i < count; i++) {
+			final byte[] segment = new byte[lengths[i]];
+			in.readFully(segment);
+			result.add(segment);
+		}
+		return result;
+	}
+
+	/**
+	 * check if the current frame has out-of-band segments.
+	 * 
+	 * @return <code>true</code> if segments follow the body.
+	 */
+	boolean hasSegments() {
+		return !segments.isEmpty();
+	}
+
+	/**
+	 * get the table of the class descriptors sent to the peer.
+	 * 
+	 * @return the descriptor table.
+	 */
+	DescriptorTable getDescriptorTable() {
+		return descriptors;
+	}
+
+	/**
+	 * allocate the buffer for an uncompressed frame body. The body has to be
+	 * written to offset <code>BODY_OFFSET</code>.
+	 * 
+	 * @param length
+	 *            the length of the body.
+	 * @return the buffer.
+	 */
+	static byte[] allocate(final int length) {
+		final byte[] frame = new byte[BODY_OFFSET + length];
+		System.arraycopy(STREAM_HEADER, 0, frame, 0, BODY_OFFSET);
+		return frame;
+	}
+
+	/**
+	 * decode a frame.
+	 * 
+	 * @param funcID
+	 *            the function ID from the frame header.
+	 * @param xid
+	 *            the xid from the frame header.
+	 * @param codec
+	 *            the codec from the frame header.
+	 * @param body
+	 *            the frame body. For uncompressed frames, the buffer as
+	 *            returned by <code>allocate</code>.
+	 * @param segments
+	 *            the out-of-band segments of the frame, or <code>null</code>.
+	 * @param descriptors
+	 *            the table of the class descriptors sent by the peer.
+	 * @return the message.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @throws ClassNotFoundException
+	 *             if the frame contains objects of unknown classes.
+	 */
+	static RemoteOSGiMessage decode(final short funcID, final int xid,
+			final int codec, final byte[] body, final List segments,
+			final DescriptorTable descriptors) throws IOException,
+			ClassNotFoundException {
+		final byte[] frame;
+		if (codec == CompressionCodec.NONE) {
+			frame = body;
+		} else {
+			final int length = readInt(body, 0);
+			frame = allocate(length);
+			CompressionCodec.decompress(codec, body, 4, body.length - 4,
+					frame, BODY_OFFSET, length);
+		}
+		final ByteArrayInputStream bytes = new ByteArrayInputStream(frame);
+		final ObjectInputStream input;
+		if (TCPChannelFactory.beSmart) {
+			input = new SmartObjectInputStream(bytes, false, descriptors);
+		} else {
+			input = new ObjectInputStream(bytes);
+		}
+		return RemoteOSGiMessage.parse(funcID, xid, input, segments);
+	}
+
+	/**
+	 * the rank of a codec, in the order of increasing CPU cost.
+	 * 
+	 * @param codec
+	 *            the codec id.
+	 * @return the rank.
+	 */
+	private static int rank(final byte codec) {
+		switch (codec) {
+		case CompressionCodec.NONE:
+			return 0;
+		case CompressionCodec.FAST:
+			return 1;
+		default:
+			return 2;
+		}
+	}
+
+	/**
+	 * write a frame header.
+	 * 
+	 * @param b
+	 *            the buffer.
+	 * @param funcID
+	 *            the function ID.
+	 * @param xid
+	 *            the xid.
+	 * @param codec
+	 *            the codec.
+	 * @param length
+	 *            the length of the body.
+	 */
+	private static void writeHeader(final byte[] b, final short funcID,
+			final int xid, final byte codec, final int length) {
+		b[0] = (byte) VERSION;
+		b[1] = (byte) funcID;
+		writeInt(b, 2, xid);
+		b[6] = codec;
+		writeInt(b, 7, length);
+	}
+
+	private static void writeInt(final byte[] b, final int off, final int i) {
+		b[off] = (byte) (i >>> 24);
+		b[off + 1] = (byte) (i >>> 16);
+		b[off + 2] = (byte) (i >>> 8);
+		b[off + 3] = (byte) i;
+	}
+
+	private static int readInt(final byte[] b, final int off) {
+		return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+				| (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+	}
+
+	/**
+	 * a byte array output stream that gives access to its buffer.
+	 */
+	private static final class FrameBuffer extends ByteArrayOutputStream {
+
+		FrameBuffer() {
+			super(1024);
+		}
+
+		/**
+		 * reserve space.
+		 * 
+		 * @param len
+		 *            the number of bytes.
+		 */
+		void skip(final int len) {
+			if (count + len > buf.length) {
+				write(new byte[len], 0, len);
+			} else {
+				count += len;
+			}
+		}
+
+		/**
+		 * get the buffer.
+		 * 
+		 * @return the buffer.
+		 */
+		byte[] array() {
+			return buf;
+		}
+	}
+
+}
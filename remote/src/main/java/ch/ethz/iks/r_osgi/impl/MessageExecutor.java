@@ -0,0 +1,492 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi.impl;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * The executor that runs the message handlers of all channel endpoints. Each
+ * endpoint submits its messages to its own queue and the queues with pending
+ * messages are served round robin, so that a busy peer cannot starve the
+ * others. The number of handlers that run concurrently for one endpoint is
+ * limited as well. The executor starts threads on demand up to the maximum,
+ * threads above the core size terminate when they have been idle for a while.
+ * The number of pending messages is bounded per queue, so that a flooding
+ * peer only fills its own queue. Submitting never blocks, the receiving thread
+ * of a channel might be the only one to read the replies that the running
+ * handlers wait for. If requested and supported by the VM, the handlers run on
+ * virtual threads.
+ * <p>
+ * Messages are submitted to one of two lanes. Control messages, e.g., lease
+ * updates and time offsets, are served before the bulk messages of all
+ * queues and do not count against the capacity. Each queue runs one control
+ * handler at a time in addition to its bulk handlers, so that a slow bulk
+ * handler never delays the control messages of its endpoint.
+ * </p>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+final class MessageExecutor {
+
+	/**
+	 * the time in milliseconds after which idle threads above the core size
+	 * terminate.
+	 */
+	private static final long KEEP_ALIVE = 60000;
+
+	/**
+	 * the lane of control messages.
+	 */
+	static final int CONTROL_LANE = 0;
+
+	/**
+	 * the lane of bulk messages.
+	 */
+	static final int BULK_LANE = 1;
+
+	/**
+	 * the number of threads that are kept when idle.
+	 */
+	private final int coreThreads;
+
+	/**
+	 * the maximum number of threads.
+	 */
+	private final int maxThreads;
+
+	/**
+	 * the maximum number of pending bulk messages per queue.
+	 */
+	private final int capacity;
+
+	/**
+	 * the maximum number of concurrently running handlers per queue.
+	 */
+	private final int maxPerQueue;
+
+	/**
+	 * the builder for virtual threads or <code>null</code>.
+	 */
+	private final Object virtualBuilder;
+
+	/**
+	 * the <code>Thread.Builder.unstarted</code> method or <code>null</code>.
+	 */
+	private static Method unstarted;
+
+	/**
+	 * the queues that have pending messages and may run another handler, in
+	 * round robin order.
+	 */
+	private final LinkedList ready = new LinkedList();
+
+	/**
+	 * the number of pending messages per lane.
+	 */
+	private final int[] pending = new int[2];
+
+	/**
+	 * the highest number of pending messages per lane so far.
+	 */
+	private final int[] peak = new int[2];
+
+	/**
+	 * the number of threads.
+	 */
+	private int threads;
+
+	/**
+	 * the number of idle threads.
+	 */
+	private int idle;
+
+	/**
+	 * the number of threads started so far, for the thread names.
+	 */
+	private int threadCount;
+
+	/**
+	 * set when the executor has been shut down.
+	 */
+	private boolean shutdown;
+
+	/**
+	 * create a new executor.
+	 * 
+	 * @param coreThreads
+	 *            the number of threads that are kept when idle.
+	 * @param maxThreads
+	 *            the maximum number of threads.
+	 * @param capacity
+	 *            the maximum number of pending bulk messages per queue.
+	 * @param maxPerQueue
+	 *            the maximum number of concurrently running handlers per
+	 *            queue.
+	 * @param virtual
+	 *            run the handlers on virtual threads if the VM supports them.
+	 */
+	MessageExecutor(final int coreThreads, final int maxThreads,
+			final int capacity, final int maxPerQueue, final boolean virtual) {
+		this.maxThreads = Math.max(1, maxThreads);
+		this.coreThreads = Math.min(Math.max(0, coreThreads), this.maxThreads);
+		this.capacity = Math.max(1, capacity);
+		this.maxPerQueue = Math.max(1, maxPerQueue);
+		this.virtualBuilder = virtual ? getVirtualThreadBuilder() : null;
+		if (virtual && virtualBuilder == null
+				&& RemoteOSGiServiceImpl.log != null) {
+			RemoteOSGiServiceImpl.log.log(LogService.LOG_WARNING,
+					"Virtual threads are not supported by this VM"); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * create a new queue, e.g., for a channel endpoint.
+	 * 
+	 * @return the queue.
+	 */
+	Queue createQueue() {
+		return new Queue();
+	}
+
+	/**
+	 * submit a message handler to the bulk lane.
+	 * 
+	 * @param queue
+	 *            the queue of the endpoint.
+	 * @param task
+	 *            the handler.
+	 * @return <code>false</code> if the queue is closed or full.
+	 */
+	boolean execute(final Queue queue, final Runnable task) {
+		return execute(queue, task, BULK_LANE);
+	}
+
+	/**
+	 * submit a message handler. Never blocks, bulk messages are refused when
+	 * the queue has no capacity left, control messages are always accepted.
+	 * 
+	 * @param queue
+	 *            the queue of the endpoint.
+	 * @param task
+	 *            the handler.
+	 * @param lane
+	 *            the lane, either <code>CONTROL_LANE</code> or
+	 *            <code>BULK_LANE</code>.
+	 * @return <code>false</code> if the queue is closed or full.
+	 */
+	boolean execute(final Queue queue, final Runnable task, final int lane) {
+		synchronized (this) {
+			if (shutdown || queue.closed) {
+				return false;
+			}
+			if (lane == BULK_LANE && queue.tasks.size() >= capacity) {
+				return false;
+			}
+			if (lane == CONTROL_LANE) {
+				queue.control.addLast(task);
+			} else {
+				queue.tasks.addLast(task);
+			}
+			if (++pending[lane] > peak[lane]) {
+				peak[lane] = pending[lane];
+			}
+			schedule(queue);
+			if (ready.isEmpty()) {
+				// the endpoint already runs the maximum number of handlers
+				return true;
+			}
+			if (idle > 0) {
+				notifyAll();
+			} else if (threads < maxThreads) {
+				startThread();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * get the maximum number of pending bulk messages per queue.
+	 * 
+	 * @return the capacity of a queue.
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * close a queue and discard its pending messages. Handlers that are
+	 * already running are not affected.
+	 * 
+	 * @param queue
+	 *            the queue.
+	 */
+	synchronized void close(final Queue queue) {
+		queue.closed = true;
+		pending[CONTROL_LANE] -= queue.control.size();
+		pending[BULK_LANE] -= queue.tasks.size();
+		queue.control.clear();
+		queue.tasks.clear();
+		if (queue.scheduled) {
+			ready.remove(queue);
+			queue.scheduled = false;
+		}
+	}
+
+	/**
+	 * shut down the executor. Pending messages are discarded, the threads
+	 * terminate after their current handler.
+	 */
+	synchronized void shutdown() {
+		shutdown = true;
+		while (!ready.isEmpty()) {
+			((Queue) ready.removeFirst()).scheduled = false;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * get the number of threads.
+	 * 
+	 * @return the number of threads.
+	 */
+	synchronized int getThreadCount() {
+		return threads;
+	}
+
+	/**
+	 * get the number of pending messages of a lane.
+	 * 
+	 * @param lane
+	 *            the lane.
+	 * @return the number of messages that wait for a handler.
+	 */
+	synchronized int getQueueDepth(final int lane) {
+		return pending[lane];
+	}
+
+	/**
+	 * get the highest number of pending messages of a lane since the executor
+	 * was created.
+	 * 
+	 * @param lane
+	 *            the lane.
+	 * @return the peak queue depth.
+	 */
+	synchronized int getPeakQueueDepth(final int lane) {
+		return peak[lane];
+	}
+
+	/**
+	 * put a queue into the ready list if it can run another handler. Queues
+	 * with a pending control message go to the front. Called with the lock
+	 * held.
+	 * 
+	 * @param queue
+	 *            the queue.
+	 */
+	private void schedule(final Queue queue) {
+		if (queue.closed) {
+			return;
+		}
+		if (!queue.control.isEmpty() && !queue.controlRunning) {
+			if (queue.scheduled) {
+				if (ready.getFirst() == queue) {
+					return;
+				}
+				ready.remove(queue);
+			}
+			queue.scheduled = true;
+			ready.addFirst(queue);
+		} else if (!queue.scheduled && !queue.tasks.isEmpty()
+				&& queue.running < maxPerQueue) {
+			queue.scheduled = true;
+			ready.addLast(queue);
+		}
+	}
+
+	/**
+	 * start a new worker thread. Called with the lock held.
+	 */
+	private void startThread() {
+		final Runnable worker = new Runnable() {
+			public void run() {
+				work();
+			}
+		};
+		final String name = "R-OSGi:WorkerThread" + threadCount++; //$NON-NLS-1$
+		Thread thread = null;
+		if (virtualBuilder != null) {
+			try {
+				thread = (Thread) unstarted.invoke(virtualBuilder,
+						new Object[] { worker });
+				thread.setName(name);
+			} catch (final Exception e) {
+				thread = null;
+			}
+		}
+		if (thread == null) {
+			thread = new Thread(worker, name);
+			thread.setDaemon(true);
+		}
+		threads++;
+		thread.start();
+	}
+
+	/**
+	 * the loop of a worker thread.
+	 */
+	private void work() {
+		Queue queue = null;
+		boolean control = false;
+		while (true) {
+			final Runnable task;
+			synchronized (this) {
+				if (queue != null) {
+					if (control) {
+						queue.controlRunning = false;
+					} else {
+						queue.running--;
+					}
+					schedule(queue);
+				}
+				long idleSince = 0;
+				while (ready.isEmpty()) {
+					if (shutdown) {
+						threads--;
+						return;
+					}
+					final long now = System.currentTimeMillis();
+					if (threads > coreThreads) {
+						if (idleSince == 0) {
+							idleSince = now;
+						} else if (now - idleSince >= KEEP_ALIVE) {
+							threads--;
+							return;
+						}
+					}
+					idle++;
+					try {
+						wait(threads > coreThreads ? KEEP_ALIVE : 0);
+					} catch (final InterruptedException ie) {
+						// keep serving until shut down
+					} finally {
+						idle--;
+					}
+				}
+				queue = (Queue) ready.removeFirst();
+				queue.scheduled = false;
+				control = !queue.control.isEmpty() && !queue.controlRunning;
+				if (control) {
+					task = (Runnable) queue.control.removeFirst();
+					pending[CONTROL_LANE]--;
+					queue.controlRunning = true;
+				} else {
+					task = (Runnable) queue.tasks.removeFirst();
+					pending[BULK_LANE]--;
+					queue.running++;
+				}
+				// back to the end of the line
+				schedule(queue);
+			}
+			try {
+				task.run();
+			} catch (final Throwable t) {
+				if (RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_ERROR,
+							"Error in message handler", t); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+
+	/**
+	 * get a builder for virtual threads through reflection, the bundle has to
+	 * run on VMs without virtual threads.
+	 * 
+	 * @return the builder or <code>null</code> if the VM does not support
+	 *         virtual threads.
+	 */
+	private static synchronized Object getVirtualThreadBuilder() {
+		try {
+			final Object builder = Thread.class.getMethod("ofVirtual", //$NON-NLS-1$
+					new Class[0]).invoke(null, new Object[0]);
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod( //$NON-NLS-1$
+					"unstarted", new Class[] { Runnable.class }); //$NON-NLS-1$
+			return builder;
+		} catch (final Throwable t) {
+			return null;
+		}
+	}
+
+	/**
+	 * the queue of a channel endpoint.
+	 */
+	static final class Queue {
+
+		/**
+		 * the pending bulk messages.
+		 */
+		final LinkedList tasks = new LinkedList();
+
+		/**
+		 * the pending control messages.
+		 */
+		final LinkedList control = new LinkedList();
+
+		/**
+		 * the number of running bulk handlers.
+		 */
+		int running;
+
+		/**
+		 * is a control handler running ?
+		 */
+		boolean controlRunning;
+
+		/**
+		 * is the queue in the ready list ?
+		 */
+		boolean scheduled;
+
+		/**
+		 * is the queue closed ?
+		 */
+		boolean closed;
+
+		/**
+		 * hidden constructor.
+		 */
+		Queue() {
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi.impl;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
+
+/**
+ * <p>
+ * The table of interned method signatures of a channel endpoint. The caller
+ * assigns a small integer id to every (service, method) pair the first time it
+ * invokes it and sends the id together with the full service ID and method
+ * signature. Once the peer has replied to such a defining call, the caller
+ * only sends the id. The callee resolves ids through an array.
+ * </p>
+ * <p>
+ * Ids are not used before the first reply, because the peer may decode and
+ * dispatch concurrent calls in any order.
+ * </p>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+final class MethodTable {
+
+	/**
+	 * the outgoing method ids. Map of service ID -> (map of method signature
+	 * -> OutgoingMethod)
+	 */
+	private final HashMap outgoing = new HashMap(0);
+
+	/**
+	 * the next outgoing method id.
+	 */
+	private int nextID = 1;
+
+	/**
+	 * the registrations of the incoming method ids.
+	 */
+	private RemoteServiceRegistration[] registrations = new RemoteServiceRegistration[0];
+
+	/**
+	 * the methods of the incoming method ids.
+	 */
+	private Method[] methods = new Method[0];
+
+	/**
+	 * assign the method id to an outgoing call.
+	 * 
+	 * @param msg
+	 *            the remote call message.
+	 */
+	void prepare(final RemoteCallMessage msg) {
+		final OutgoingMethod method;
+		synchronized (outgoing) {
+			HashMap signatures = (HashMap) outgoing.get(msg.getServiceID());
+			if (signatures == null) {
+				signatures = new HashMap();
+				outgoing.put(msg.getServiceID(), signatures);
+			}
+			OutgoingMethod m = (OutgoingMethod) signatures.get(msg
+					.getMethodSignature());
+			if (m == null) {
+				m = new OutgoingMethod(nextID++);
+				signatures.put(msg.getMethodSignature(), m);
+			}
+			method = m;
+			msg.setMethodID(method.id, !method.acknowledged);
+		}
+	}
+
+	/**
+	 * mark the method id of a call as known to the peer. Called when the
+	 * call has returned a result.
+	 * 
+	 * @param msg
+	 *            the remote call message.
+	 */
+	void acknowledge(final RemoteCallMessage msg) {
+		if (!msg.definesMethod()) {
+			return;
+		}
+		synchronized (outgoing) {
+			final HashMap signatures = (HashMap) outgoing.get(msg
+					.getServiceID());
+			if (signatures != null) {
+				final OutgoingMethod m = (OutgoingMethod) signatures.get(msg
+						.getMethodSignature());
+				if (m != null && m.id == msg.getMethodID()) {
+					m.acknowledged = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * register an incoming method id.
+	 * 
+	 * @param id
+	 *            the method id.
+	 * @param reg
+	 *            the service registration.
+	 * @param method
+	 *            the method.
+	 */
+	synchronized void define(final int id, final RemoteServiceRegistration reg,
+			final Method method) {
+		if (id >= methods.length) {
+			final int size = Math.max(id + 1, methods.length * 2);
+			final RemoteServiceRegistration[] newRegistrations = new RemoteServiceRegistration[size];
+			final Method[] newMethods = new Method[size];
+			System.arraycopy(registrations, 0, newRegistrations, 0,
+					registrations.length);
+			System.arraycopy(methods, 0, newMethods, 0, methods.length);
+			registrations = newRegistrations;
+			methods = newMethods;
+		}
+		registrations[id] = reg;
+		methods[id] = method;
+	}
+
+	/**
+	 * get the service registration of an incoming method id.
+	 * 
+	 * @param id
+	 *            the method id.
+	 * @return the service registration or <code>null</code> if the id is
+	 *         unknown.
+	 */
+	synchronized RemoteServiceRegistration getRegistration(final int id) {
+		return id < registrations.length ? registrations[id] : null;
+	}
+
+	/**
+	 * get the method of an incoming method id.
+	 * 
+	 * @param id
+	 *            the method id.
+	 * @return the method or <code>null</code> if the id is unknown.
+	 */
+	synchronized Method getMethod(final int id) {
+		return id < methods.length ? methods[id] : null;
+	}
+
+	/**
+	 * the state of an outgoing method id.
+	 */
+	private static final class OutgoingMethod {
+
+		/**
+		 * the id.
+		 */
+		final int id;
+
+		/**
+		 * <code>true</code> if the peer knows the id.
+		 */
+		boolean acknowledged;
+
+		/**
+		 * create a new outgoing method id.
+		 * 
+		 * @param id
+		 *            the id.
+		 */
+		OutgoingMethod(final int id) {
+			this.id = id;
+		}
+	}
+
+}
@@ -0,0 +1,1383 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.osgi.service.log.LogService;
+
+import ch.ethz.iks.r_osgi.Remoting;
+import ch.ethz.iks.r_osgi.URI;
+import ch.ethz.iks.r_osgi.channels.BatchNetworkChannel;
+import ch.ethz.iks.r_osgi.channels.ChannelEndpoint;
+import ch.ethz.iks.r_osgi.channels.NetworkChannel;
+import ch.ethz.iks.r_osgi.channels.NetworkChannelFactory;
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.util.CompressionCodec;
+import ch.ethz.iks.util.DescriptorTable;
+
+/**
+ * <p>
+ * channel factory for TCP transport on non-blocking sockets. The channels
+ * speak the framed wire mode of the <code>FrameCodec</code>, just like the
+ * channels of the <code>TCPChannelFactory</code>, but there is no thread per
+ * connection. A small, fixed set of selector threads accepts the connections
+ * and does all reads and writes, a pool of worker threads decodes the frames
+ * and delivers the messages to the endpoints. The frames of a channel are
+ * decoded and delivered in order and the workers never wait for a channel or
+ * its endpoint, a channel whose frames pile up stops being read instead.
+ * </p>
+ * 
+ * <p>
+ * The factory requires a J2SE 1.4 VM and is registered instead of the
+ * <code>TCPChannelFactory</code> if the <code>ch.ethz.iks.r_osgi.tcp.nio</code>
+ * property is set to "true". Connections of peers that use the unframed wire
+ * mode are refused.
+ * </p>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+final class NIOChannelFactory implements NetworkChannelFactory {
+
+	/**
+	 * the size of the direct read buffer of a selector thread. The buffer is
+	 * shared by all channels of the selector.
+	 */
+	private static final int READ_BUFFER_SIZE = 65536;
+
+	/**
+	 * the number of received frames of a channel that wait for delivery
+	 * before the selector stops reading from the channel.
+	 */
+	private static final int MAX_PENDING_FRAMES = 64;
+
+	/**
+	 * the number of bytes of a channel that wait to be written before senders
+	 * of bulk messages are blocked.
+	 */
+	private static final int MAX_PENDING_BYTES = 1 << 20;
+
+	/**
+	 * the maximum number of buffers in one gathering write.
+	 */
+	private static final int MAX_GATHER = 64;
+
+	/**
+	 * marks the end of the frames of a channel that has been closed by the
+	 * peer.
+	 */
+	static final Object CLOSED = new Object();
+
+	Remoting remoting;
+	protected int listeningPort;
+
+	/**
+	 * the server socket.
+	 */
+	ServerSocketChannel server;
+
+	/**
+	 * the selector threads.
+	 */
+	private SelectorThread[] selectors;
+
+	/**
+	 * the index of the selector thread of the next channel.
+	 */
+	private int next;
+
+	/**
+	 * the tasks waiting for the worker threads.
+	 */
+	final LinkedList tasks = new LinkedList();
+
+	/**
+	 * the worker threads, shared by all channels.
+	 */
+	private Thread[] workers;
+
+	/**
+	 * get a new connection.
+	 * 
+	 * @param endpoint
+	 *            the channel endpoint.
+	 * @param endpointURI
+	 *            the URI of the remote host.
+	 * @return the transport channel.
+	 * @see ch.ethz.iks.r_osgi.channels.NetworkChannelFactory#getConnection(ch.ethz.iks.r_osgi.channels.ChannelEndpoint,
+	 *      ch.ethz.iks.r_osgi.URI)
+	 */
+	public NetworkChannel getConnection(final ChannelEndpoint endpoint,
+			final URI endpointURI) throws IOException {
+		return new NIOChannel(this, endpoint, endpointURI);
+	}
+
+	/**
+	 * Activate the factory. Is called by R-OSGi when the factory is discovered.
+	 * 
+	 * @see ch.ethz.iks.r_osgi.channels.NetworkChannelFactory#activate(ch.ethz.iks.r_osgi.Remoting)
+	 */
+	public void activate(final Remoting r) throws IOException {
+		remoting = r;
+		workers = new Thread[Math.max(RemoteOSGiServiceImpl.TCP_WORKER_THREADS,
+				1)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new WorkerThread(i);
+			workers[i].start();
+		}
+		selectors = new SelectorThread[Math.max(
+				RemoteOSGiServiceImpl.TCP_SELECTOR_THREADS, 1)];
+		for (int i = 0; i < selectors.length; i++) {
+			selectors[i] = new SelectorThread(i);
+			selectors[i].start();
+		}
+
+		int e = 0;
+		while (true) {
+			listeningPort = RemoteOSGiServiceImpl.R_OSGI_PORT + e;
+			final ServerSocketChannel s = ServerSocketChannel.open();
+			try {
+				s.socket().bind(new InetSocketAddress(listeningPort));
+				server = s;
+				break;
+			} catch (final BindException b) {
+				// normal behavior, get a BindException if the port is
+				// already in use
+				s.close();
+				e++;
+			} catch (final SocketException se) {
+				// Windows 7 behavior
+				s.close();
+				e++;
+			}
+		}
+		if (e != 0 && RemoteOSGiServiceImpl.log != null) {
+			RemoteOSGiServiceImpl.log.log(LogService.LOG_WARNING, "Port " //$NON-NLS-1$
+					+ RemoteOSGiServiceImpl.R_OSGI_PORT
+					+ " already in use. This instance of R-OSGi is running on port " //$NON-NLS-1$
+					+ listeningPort);
+		}
+		RemoteOSGiServiceImpl.R_OSGI_PORT = listeningPort;
+		server.configureBlocking(false);
+		selectors[0].update(server);
+		if (RemoteOSGiServiceImpl.DEBUG && RemoteOSGiServiceImpl.log != null) {
+			RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+					"{NIO Channel} listening on port " + listeningPort //$NON-NLS-1$
+							+ " with " + selectors.length //$NON-NLS-1$
+							+ " selector threads"); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Deactivate the factory. The channels of the factory are closed.
+	 * 
+	 * @see ch.ethz.iks.r_osgi.channels.NetworkChannelFactory#deactivate(ch.ethz.iks.r_osgi.Remoting)
+	 */
+	public void deactivate(final Remoting r) throws IOException {
+		if (server != null) {
+			server.close();
+			server = null;
+		}
+		if (selectors != null) {
+			for (int i = 0; i < selectors.length; i++) {
+				selectors[i].close();
+			}
+			selectors = null;
+		}
+		if (workers != null) {
+			for (int i = 0; i < workers.length; i++) {
+				workers[i].interrupt();
+			}
+			workers = null;
+		}
+		remoting = null;
+	}
+
+	/**
+	 * get the listening port.
+	 * 
+	 * @see ch.ethz.iks.r_osgi.channels.NetworkChannelFactory#getListeningPort(java.lang.String)
+	 */
+	public int getListeningPort(final String protocol) {
+		return listeningPort;
+	}
+
+	/**
+	 * hand a task over to the worker threads.
+	 * 
+	 * @param task
+	 *            the task.
+	 */
+	void execute(final Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+			tasks.notify();
+		}
+	}
+
+	/**
+	 * get the selector thread for a new channel. The channels are spread over
+	 * the selector threads in a round-robin fashion.
+	 * 
+	 * @return the selector thread.
+	 * @throws IOException
+	 *             if the factory is not active.
+	 */
+	synchronized SelectorThread nextSelector() throws IOException {
+		if (selectors == null) {
+			throw new IOException("Channel factory is not active"); //$NON-NLS-1$
+		}
+		next = (next + 1) % selectors.length;
+		return selectors[next];
+	}
+
+	/**
+	 * accept the pending incoming connections. Called by the selector thread
+	 * that owns the server socket.
+	 */
+	void accept() {
+		final ServerSocketChannel socket = server;
+		if (socket == null) {
+			return;
+		}
+		try {
+			SocketChannel s;
+			while ((s = socket.accept()) != null) {
+				try {
+					new NIOChannel(this, s);
+				} catch (final IOException ioe) {
+					s.close();
+				}
+			}
+		} catch (final IOException ioe) {
+			if (RemoteOSGiServiceImpl.log != null) {
+				RemoteOSGiServiceImpl.log.log(LogService.LOG_ERROR,
+						"{NIO Channel} error while accepting connections", //$NON-NLS-1$
+						ioe);
+			}
+		}
+	}
+
+	private static int readInt(final byte[] b, final int off) {
+		return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+				| (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+	}
+
+	/**
+	 * a received frame.
+	 */
+	private static final class Frame {
+
+		final short funcID;
+
+		final int xid;
+
+		final int codec;
+
+		final byte[] body;
+
+		List segments;
+
+		Frame(final short funcID, final int xid, final int codec,
+				final byte[] body) {
+			this.funcID = funcID;
+			this.xid = xid;
+			this.codec = codec;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * the inner class representing a channel with non-blocking TCP transport.
+	 * The socket is only read and written by the selector thread of the
+	 * channel. Senders encode their messages into frames and queue them for
+	 * the selector thread, so that an interrupt of a sender does not close the
+	 * socket.
+	 * 
+	 * @author Jan S. Rellermeyer, ETH Zurich
+	 * @since 1.0
+	 */
+	private static final class NIOChannel implements BatchNetworkChannel {
+
+		/**
+		 * read states.
+		 */
+		private static final int HEADER = 0;
+
+		private static final int BODY = 1;
+
+		private static final int SEGMENT_COUNT = 2;
+
+		private static final int SEGMENT_LENGTHS = 3;
+
+		private static final int SEGMENT = 4;
+
+		/**
+		 * the socket channel.
+		 */
+		final SocketChannel channel;
+
+		/**
+		 * the channel factory.
+		 */
+		final NIOChannelFactory factory;
+
+		/**
+		 * the selector thread that owns the channel.
+		 */
+		final SelectorThread selector;
+
+		/**
+		 * the selection key, only used by the selector thread.
+		 */
+		private SelectionKey key;
+
+		/**
+		 * the remote endpoint address.
+		 */
+		private URI remoteEndpointAddress;
+
+		/**
+		 * the local endpoint address.
+		 */
+		private URI localEndpointAddress;
+
+		/**
+		 * is this an incoming connection?
+		 */
+		private final boolean accepted;
+
+		/**
+		 * the channel endpoint.
+		 */
+		ChannelEndpoint endpoint;
+
+		/**
+		 * the frame encoder.
+		 */
+		final FrameCodec encoder = new FrameCodec();
+
+		/**
+		 * the buffer that collects the encoded frames, guarded by the
+		 * encoder.
+		 */
+		private final ByteArrayOutputStream staging = new ByteArrayOutputStream(
+				1024);
+
+		/**
+		 * the table of the class descriptors sent by the peer. The frames are
+		 * decoded in order, so a descriptor is always defined before it is
+		 * referenced and a decode never waits for one.
+		 */
+		final DescriptorTable inputDescriptors = new DescriptorTable(
+				RemoteOSGiServiceImpl.DESCRIPTOR_CACHE_SIZE, 0);
+
+		/**
+		 * the buffers waiting to be written.
+		 */
+		private final LinkedList outbox = new LinkedList();
+
+		/**
+		 * the number of bytes waiting to be written.
+		 */
+		private int pendingBytes;
+
+		/**
+		 * the highest number of bytes waiting to be written so far.
+		 */
+		private int peakPendingBytes;
+
+		/**
+		 * connected ?
+		 */
+		private boolean connected = true;
+
+		/**
+		 * the received frames waiting for delivery.
+		 */
+		private final LinkedList inbox = new LinkedList();
+
+		/**
+		 * is a worker thread delivering the frames of the inbox?
+		 */
+		private boolean delivering;
+
+		/**
+		 * has the selector stopped reading because the inbox is full?
+		 */
+		private boolean readPaused;
+
+		/**
+		 * has a frame failed to decode? The frames behind it are dropped.
+		 * Only used by the delivering worker thread.
+		 */
+		private boolean broken;
+
+		/**
+		 * the current read state.
+		 */
+		private int state = HEADER;
+
+		/**
+		 * the array that is currently filled by the reads.
+		 */
+		private byte[] target;
+
+		/**
+		 * the position in the target array.
+		 */
+		private int offset;
+
+		/**
+		 * the header of the current frame.
+		 */
+		private final byte[] header = new byte[FrameCodec.HEADER_LENGTH];
+
+		/**
+		 * the current frame.
+		 */
+		private Frame frame;
+
+		/**
+		 * the segment lengths of the current frame.
+		 */
+		private int[] segmentLengths;
+
+		/**
+		 * has a frame been received?
+		 */
+		private boolean started;
+
+		/**
+		 * delivers the frames of the inbox in order.
+		 */
+		private final Runnable deliverer = new Runnable() {
+			public void run() {
+				deliver();
+			}
+		};
+
+		/**
+		 * create a new NIOChannel.
+		 * 
+		 * @param factory
+		 *            the channel factory.
+		 * @param endpoint
+		 *            the channel endpoint.
+		 * @param endpointAddress
+		 *            the remote peer's URI.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 */
+		NIOChannel(final NIOChannelFactory factory,
+				final ChannelEndpoint endpoint, final URI endpointAddress)
+				throws IOException {
+			int port = endpointAddress.getPort();
+			if (port == -1) {
+				port = 9278;
+			}
+			this.factory = factory;
+			this.endpoint = endpoint;
+			accepted = false;
+			remoteEndpointAddress = endpointAddress;
+			selector = factory.nextSelector();
+			channel = SocketChannel.open(new InetSocketAddress(endpointAddress
+					.getHost(), port));
+			try {
+				open();
+				initLocalAddress();
+				sendHello();
+			} catch (final IOException ioe) {
+				channel.close();
+				throw ioe;
+			}
+		}
+
+		/**
+		 * create a new NIOChannel from an accepted socket channel. The
+		 * endpoint is created when the handshake of the peer has arrived.
+		 * 
+		 * @param factory
+		 *            the channel factory.
+		 * @param channel
+		 *            the socket channel.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 */
+		NIOChannel(final NIOChannelFactory factory, final SocketChannel channel)
+				throws IOException {
+			this.factory = factory;
+			this.channel = channel;
+			accepted = true;
+			selector = factory.nextSelector();
+			open();
+			selector.update(this);
+		}
+
+		/**
+		 * bind the channel to a channel endpoint.
+		 * 
+		 * @param e
+		 *            the channel endpoint.
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#bind(ch.ethz.iks.r_osgi.channels.ChannelEndpoint)
+		 */
+		public void bind(final ChannelEndpoint e) {
+			endpoint = e;
+		}
+
+		/**
+		 * prepare the socket for non-blocking operation.
+		 * 
+		 * @throws IOException
+		 *             if something goes wrong.
+		 */
+		private void open() throws IOException {
+			channel.configureBlocking(false);
+			final Socket socket = channel.socket();
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
+			target = header;
+		}
+
+		/**
+		 * set the local address. May do a name lookup and is therefore not
+		 * called by the selector thread.
+		 */
+		private void initLocalAddress() {
+			final Socket socket = channel.socket();
+			localEndpointAddress = URI.create(getProtocol() + "://" //$NON-NLS-1$
+					+ socket.getLocalAddress().getHostName() + ":" //$NON-NLS-1$
+					+ socket.getLocalPort());
+		}
+
+		/**
+		 * get the String representation of the channel.
+		 * 
+		 * @return the ID.
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			return "NIOChannel (" + getRemoteAddress() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		/**
+		 * close the channel.
+		 * 
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#close()
+		 */
+		public void close() throws IOException {
+			if (RemoteOSGiServiceImpl.MSG_DEBUG
+					&& RemoteOSGiServiceImpl.log != null) {
+				final int peak;
+				synchronized (outbox) {
+					peak = peakPendingBytes;
+				}
+				RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+						"{NIO Channel} closing " + this + ", sent " //$NON-NLS-1$ //$NON-NLS-2$
+								+ encoder.getDescriptorTable() + ", received " //$NON-NLS-1$
+								+ inputDescriptors + ", peak pending bytes " //$NON-NLS-1$
+								+ peak);
+			}
+			shutdown();
+		}
+
+		/**
+		 * close the socket and release the waiting senders.
+		 * 
+		 * @return <code>false</code> if the channel was already closed.
+		 */
+		boolean shutdown() {
+			synchronized (outbox) {
+				if (!connected) {
+					return false;
+				}
+				connected = false;
+				outbox.clear();
+				pendingBytes = 0;
+				outbox.notifyAll();
+			}
+			try {
+				channel.close();
+			} catch (final IOException ioe) {
+				// ignore
+			}
+			return true;
+		}
+
+		/**
+		 * handle a failure of the socket. Once the frames received so far
+		 * have been delivered, the endpoint is notified.
+		 */
+		void failed() {
+			if (shutdown()) {
+				schedule(CLOSED);
+			}
+		}
+
+		/**
+		 * get the protocol that is implemented by the channel.
+		 * 
+		 * @return the protocol.
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#getProtocol()
+		 */
+		public String getProtocol() {
+			return TCPChannelFactory.PROTOCOL;
+		}
+
+		/**
+		 * get the remote address.
+		 * 
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#getRemoteAddress()
+		 */
+		public URI getRemoteAddress() {
+			return remoteEndpointAddress;
+		}
+
+		/**
+		 * get the local address.
+		 * 
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#getLocalAddress()
+		 */
+		public URI getLocalAddress() {
+			return localEndpointAddress;
+		}
+
+		/**
+		 * send a message through the channel. The frame is queued for the
+		 * selector thread.
+		 * 
+		 * @param message
+		 *            the message.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#sendMessage(ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage)
+		 */
+		public void sendMessage(final RemoteOSGiMessage message)
+				throws IOException {
+			if (RemoteOSGiServiceImpl.MSG_DEBUG
+					&& RemoteOSGiServiceImpl.log != null) {
+				RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+						"{NIO Channel} sending " + message); //$NON-NLS-1$
+			}
+			if (!message.isControl()) {
+				awaitCapacity();
+			}
+			synchronized (encoder) {
+				encoder.encode(message);
+				try {
+					encoder.writeTo(staging);
+					enqueue(staging.toByteArray());
+				} finally {
+					staging.reset();
+				}
+			}
+		}
+
+		/**
+		 * send a batch of messages through the channel. The frames are queued
+		 * at once.
+		 * 
+		 * @param messages
+		 *            the messages.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#sendMessages(ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage[])
+		 */
+		public void sendMessages(final RemoteOSGiMessage[] messages)
+				throws IOException {
+			if (RemoteOSGiServiceImpl.MSG_DEBUG
+					&& RemoteOSGiServiceImpl.log != null) {
+				for (int i = 0; i < messages.length; i++) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+							"{NIO Channel} sending " + messages[i]); //$NON-NLS-1$
+				}
+			}
+			awaitCapacity();
+			final DescriptorTable descriptors = encoder.getDescriptorTable();
+			synchronized (encoder) {
+				final int mark = descriptors.mark();
+				try {
+					for (int i = 0; i < messages.length; i++) {
+						encoder.encode(messages[i]);
+						encoder.writeTo(staging);
+					}
+				} catch (final IOException ioe) {
+					// nothing has been sent, withdraw the descriptors that
+					// the frames of the batch define
+					descriptors.rollback(mark);
+					staging.reset();
+					throw ioe;
+				}
+				try {
+					enqueue(staging.toByteArray());
+				} finally {
+					staging.reset();
+				}
+			}
+		}
+
+		/**
+		 * send the handshake frame.
+		 * 
+		 * @throws IOException
+		 *             if the channel is closed.
+		 */
+		private void sendHello() throws IOException {
+			synchronized (encoder) {
+				encoder.encodeHello();
+				try {
+					encoder.writeTo(staging);
+					enqueue(staging.toByteArray());
+				} finally {
+					staging.reset();
+				}
+			}
+		}
+
+		/**
+		 * wait until the frames waiting to be written have dropped below the
+		 * limit. The wait is not interrupted, the interrupt status is restored
+		 * afterwards.
+		 */
+		private void awaitCapacity() {
+			synchronized (outbox) {
+				boolean interrupted = false;
+				while (connected && pendingBytes >= MAX_PENDING_BYTES) {
+					try {
+						outbox.wait();
+					} catch (final InterruptedException ie) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * queue encoded frames for the selector thread. Callers hold the lock
+		 * of the encoder, so the frames are queued in the order in which they
+		 * have been encoded.
+		 * 
+		 * @param frames
+		 *            the frames.
+		 * @throws IOException
+		 *             if the channel is closed.
+		 */
+		private void enqueue(final byte[] frames) throws IOException {
+			synchronized (outbox) {
+				if (!connected) {
+					throw new IOException("Channel closed"); //$NON-NLS-1$
+				}
+				outbox.addLast(ByteBuffer.wrap(frames));
+				pendingBytes += frames.length;
+				if (pendingBytes > peakPendingBytes) {
+					peakPendingBytes = pendingBytes;
+				}
+				if (outbox.size() > 1) {
+					// the selector thread already knows
+					return;
+				}
+			}
+			selector.update(this);
+		}
+
+		/**
+		 * write as many of the queued frames as the socket takes. Called by
+		 * the selector thread.
+		 * 
+		 * @throws IOException
+		 *             in case of IO errors.
+		 */
+		void write() throws IOException {
+			synchronized (outbox) {
+				while (!outbox.isEmpty()) {
+					final ByteBuffer[] buffers = new ByteBuffer[Math.min(
+							outbox.size(), MAX_GATHER)];
+					final Iterator it = outbox.iterator();
+					for (int i = 0; i < buffers.length; i++) {
+						buffers[i] = (ByteBuffer) it.next();
+					}
+					final long n = channel.write(buffers);
+					pendingBytes -= n;
+					while (!outbox.isEmpty()
+							&& !((ByteBuffer) outbox.getFirst())
+									.hasRemaining()) {
+						outbox.removeFirst();
+					}
+					if (buffers[buffers.length - 1].hasRemaining()) {
+						// the socket buffer is full
+						break;
+					}
+				}
+				if (pendingBytes < MAX_PENDING_BYTES) {
+					outbox.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * register the channel with the selector or update its interest set.
+		 * Called by the selector thread.
+		 * 
+		 * @param s
+		 *            the selector.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 */
+		void updateInterest(final Selector s) throws IOException {
+			int ops = 0;
+			synchronized (inbox) {
+				if (!readPaused) {
+					ops |= SelectionKey.OP_READ;
+				}
+			}
+			synchronized (outbox) {
+				if (!connected) {
+					return;
+				}
+				if (!outbox.isEmpty()) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+			}
+			if (key == null) {
+				key = channel.register(s, ops, this);
+			} else if (key.isValid()) {
+				key.interestOps(ops);
+			}
+		}
+
+		/**
+		 * read from the socket and slice off the frames. Called by the
+		 * selector thread.
+		 * 
+		 * @param buffer
+		 *            the read buffer of the selector thread.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 */
+		void read(final ByteBuffer buffer) throws IOException {
+			buffer.clear();
+			if (channel.read(buffer) == -1) {
+				throw new EOFException();
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				final int len = Math.min(buffer.remaining(), target.length
+						- offset);
+				buffer.get(target, offset, len);
+				offset += len;
+				while (offset == target.length) {
+					completed();
+				}
+			}
+		}
+
+		/**
+		 * continue reading into another array.
+		 * 
+		 * @param next
+		 *            the next read state.
+		 * @param b
+		 *            the array.
+		 * @param off
+		 *            the offset in the array.
+		 */
+		private void expect(final int next, final byte[] b, final int off) {
+			state = next;
+			target = b;
+			offset = off;
+		}
+
+		/**
+		 * the target array of the current read state has been filled.
+		 * 
+		 * @throws IOException
+		 *             if the frame is malformed.
+		 */
+		private void completed() throws IOException {
+			switch (state) {
+			case HEADER: {
+				final int version = header[0] & 0xff;
+				if (version != FrameCodec.VERSION) {
+					if (accepted && !started) {
+						if (RemoteOSGiServiceImpl.log != null) {
+							RemoteOSGiServiceImpl.log.log(
+									LogService.LOG_WARNING,
+									"{NIO Channel} refusing unframed connection from " //$NON-NLS-1$
+											+ channel.socket().getInetAddress());
+						}
+						throw new IOException(
+								"Unframed connections are not supported"); //$NON-NLS-1$
+					}
+					throw new IOException("Unsupported frame version " //$NON-NLS-1$
+							+ version);
+				}
+				started = true;
+				final short funcID = (short) (header[1] & 0xff);
+				final int flags = header[6] & 0xff;
+				final int codec = flags & ~FrameCodec.SEGMENTS;
+				final int length = readInt(header, 7);
+				if (length < 0) {
+					throw new IOException("Illegal frame length " + length); //$NON-NLS-1$
+				}
+				if (funcID != FrameCodec.HELLO
+						&& codec == CompressionCodec.NONE) {
+					frame = new Frame(funcID, readInt(header, 2), codec,
+							FrameCodec.allocate(length));
+					expect(BODY, frame.body, FrameCodec.BODY_OFFSET);
+				} else {
+					frame = new Frame(funcID, readInt(header, 2), codec,
+							new byte[length]);
+					expect(BODY, frame.body, 0);
+				}
+				if ((flags & FrameCodec.SEGMENTS) != 0) {
+					frame.segments = new ArrayList(0);
+				}
+				return;
+			}
+			case BODY:
+				if (frame.segments != null) {
+					expect(SEGMENT_COUNT, new byte[4], 0);
+					return;
+				}
+				break;
+			case SEGMENT_COUNT: {
+				final int count = readInt(target, 0);
+				if (count < 0) {
+					throw new IOException("Illegal segment count " + count); //$NON-NLS-1$
+				}
+				if (count > 0) {
+					expect(SEGMENT_LENGTHS, new byte[4 * count], 0);
+					return;
+				}
+				break;
+			}
+			case SEGMENT_LENGTHS: {
+				segmentLengths = new int[target.length / 4];
+				for (int i = 0; i < segmentLengths.length; i++) {
+					segmentLengths[i] = readInt(target, 4 * i);
+					if (segmentLengths[i] < 0) {
+						throw new IOException("Illegal segment length " //$NON-NLS-1$
+								+ segmentLengths[i]);
+					}
+				}
+				expect(SEGMENT, new byte[segmentLengths[0]], 0);
+				return;
+			}
+			case SEGMENT: {
+				frame.segments.add(target);
+				final int i = frame.segments.size();
+				if (i < segmentLengths.length) {
+					expect(SEGMENT, new byte[segmentLengths[i]], 0);
+					return;
+				}
+				segmentLengths = null;
+				break;
+			}
+			}
+			final Frame f = frame;
+			frame = null;
+			expect(HEADER, header, 0);
+			schedule(f);
+		}
+
+		/**
+		 * put a frame into the inbox and make sure that a worker thread
+		 * delivers it.
+		 * 
+		 * @param o
+		 *            the frame or <code>CLOSED</code>.
+		 */
+		private void schedule(final Object o) {
+			synchronized (inbox) {
+				inbox.addLast(o);
+				if (inbox.size() >= MAX_PENDING_FRAMES && !readPaused
+						&& o != CLOSED) {
+					// called by the selector thread
+					readPaused = true;
+					if (key != null && key.isValid()) {
+						key.interestOps(key.interestOps()
+								& ~SelectionKey.OP_READ);
+					}
+				}
+				if (delivering) {
+					return;
+				}
+				delivering = true;
+			}
+			factory.execute(deliverer);
+		}
+
+		/**
+		 * deliver the frames of the inbox. Called by a worker thread. After a
+		 * batch of frames, the worker moves on to the other channels and the
+		 * rest of the inbox is delivered later.
+		 */
+		void deliver() {
+			for (int i = 0;; i++) {
+				final Object o;
+				synchronized (inbox) {
+					if (inbox.isEmpty()) {
+						delivering = false;
+						return;
+					}
+					if (i == MAX_PENDING_FRAMES) {
+						break;
+					}
+					o = inbox.removeFirst();
+					if (readPaused && inbox.size() <= MAX_PENDING_FRAMES / 2) {
+						readPaused = false;
+						selector.update(this);
+					}
+				}
+				if (o == CLOSED) {
+					if (endpoint != null) {
+						endpoint.receivedMessage(null);
+					}
+					continue;
+				}
+				final Frame f = (Frame) o;
+				if (broken) {
+					continue;
+				} else if (f.funcID == FrameCodec.HELLO) {
+					processHello(f.body);
+				} else if (endpoint == null) {
+					// the peer has to start with the handshake
+					failed();
+				} else {
+					deliverFrame(f);
+				}
+			}
+			factory.execute(deliverer);
+		}
+
+		/**
+		 * process the handshake frame of the peer. On incoming connections,
+		 * the handshake is answered and the endpoint is created.
+		 * 
+		 * @param body
+		 *            the body of the handshake frame.
+		 */
+		private void processHello(final byte[] body) {
+			try {
+				final byte mode = encoder.processHello(body);
+				if (RemoteOSGiServiceImpl.MSG_DEBUG
+						&& RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+							"{NIO Channel} compression with " //$NON-NLS-1$
+									+ CompressionCodec.getName(mode));
+				}
+				if (accepted && endpoint == null) {
+					final Socket socket = channel.socket();
+					remoteEndpointAddress = URI.create(getProtocol() + "://" //$NON-NLS-1$
+							+ socket.getInetAddress().getHostName() + ":" //$NON-NLS-1$
+							+ socket.getPort());
+					initLocalAddress();
+					sendHello();
+					final Remoting remoting = factory.remoting;
+					if (remoting == null) {
+						failed();
+						return;
+					}
+					remoting.createEndpoint(this);
+				}
+			} catch (final IOException ioe) {
+				failed();
+			}
+		}
+
+		/**
+		 * decode a frame and deliver the message to the endpoint. A frame that
+		 * cannot be decoded fails the channel, the class descriptors it
+		 * defines would be missing for the frames behind it.
+		 * 
+		 * @param f
+		 *            the frame.
+		 */
+		void deliverFrame(final Frame f) {
+			final RemoteOSGiMessage msg;
+			try {
+				msg = FrameCodec.decode(f.funcID, f.xid, f.codec, f.body,
+						f.segments, inputDescriptors);
+			} catch (final Throwable t) {
+				if (RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_ERROR,
+							"{NIO Channel} cannot decode frame from " //$NON-NLS-1$
+									+ remoteEndpointAddress
+									+ ", closing the channel", t); //$NON-NLS-1$
+				}
+				broken = true;
+				failed();
+				return;
+			}
+			if (RemoteOSGiServiceImpl.MSG_DEBUG
+					&& RemoteOSGiServiceImpl.log != null) {
+				RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+						"{NIO Channel} received " + msg); //$NON-NLS-1$
+			}
+			try {
+				endpoint.receivedMessage(msg);
+			} catch (final Throwable t) {
+				if (RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_ERROR,
+							"{NIO Channel} error while delivering " + msg, t); //$NON-NLS-1$
+				}
+			}
+		}
+
+		/**
+		 * check if the peer accepts messages that carry several remote calls.
+		 * 
+		 * @return <code>true</code> if calls can be coalesced.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsMultiCalls()
+		 */
+		public boolean acceptsMultiCalls() {
+			return encoder.supports(FrameCodec.MULTI_CALLS);
+		}
+
+		/**
+		 * check if the peer accepts remote calls that carry a time budget.
+		 * 
+		 * @return <code>true</code> if calls can carry their deadline.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsDeadlines()
+		 */
+		public boolean acceptsDeadlines() {
+			return encoder.supports(FrameCodec.DEADLINES);
+		}
+
+		/**
+		 * check if the peer accepts the cancellation of remote calls.
+		 * 
+		 * @return <code>true</code> if calls can be cancelled.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsCancellation()
+		 */
+		public boolean acceptsCancellation() {
+			return encoder.supports(FrameCodec.CANCELLATION);
+		}
+	}
+
+	/**
+	 * the selector thread multiplexes the sockets of its channels. It owns a
+	 * direct buffer into which all its channels are read, so that the socket
+	 * reads do not go through an intermediate copy.
+	 * 
+	 * @author Jan S. Rellermeyer, ETH Zurich
+	 * @since 1.0
+	 */
+	private final class SelectorThread extends Thread {
+
+		/**
+		 * the selector.
+		 */
+		private final Selector selector;
+
+		/**
+		 * the read buffer.
+		 */
+		private final ByteBuffer readBuffer = ByteBuffer
+				.allocateDirect(READ_BUFFER_SIZE);
+
+		/**
+		 * the channels that have to be registered or whose interest set has
+		 * changed.
+		 */
+		private final ArrayList updates = new ArrayList();
+
+		/**
+		 * closed ?
+		 */
+		private boolean closed;
+
+		SelectorThread(final int i) throws IOException {
+			setName("NIOChannel:SelectorThread" + i); //$NON-NLS-1$
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/**
+		 * request the registration of a channel or the server socket, or the
+		 * update of the interest set of a channel.
+		 * 
+		 * @param o
+		 *            the <code>NIOChannel</code> or the
+		 *            <code>ServerSocketChannel</code>.
+		 */
+		void update(final Object o) {
+			synchronized (updates) {
+				updates.add(o);
+			}
+			selector.wakeup();
+		}
+
+		/**
+		 * stop the thread, the channels are closed.
+		 */
+		void close() {
+			synchronized (updates) {
+				closed = true;
+			}
+			selector.wakeup();
+		}
+
+		/**
+		 * thread loop.
+		 * 
+		 * @see java.lang.Thread#run()
+		 */
+		public void run() {
+			try {
+				while (true) {
+					final Object[] pending;
+					synchronized (updates) {
+						if (closed) {
+							break;
+						}
+						pending = updates.toArray();
+						updates.clear();
+					}
+					for (int i = 0; i < pending.length; i++) {
+						if (pending[i] instanceof ServerSocketChannel) {
+							((ServerSocketChannel) pending[i]).register(
+									selector, SelectionKey.OP_ACCEPT);
+							continue;
+						}
+						final NIOChannel channel = (NIOChannel) pending[i];
+						try {
+							// write right away, the socket is most likely
+							// ready
+							channel.write();
+							channel.updateInterest(selector);
+						} catch (final CancelledKeyException cke) {
+							// closed by another thread
+						} catch (final IOException ioe) {
+							channel.failed();
+						}
+					}
+
+					selector.select();
+
+					final Iterator it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						final SelectionKey key = (SelectionKey) it.next();
+						it.remove();
+						if (key.attachment() == null) {
+							accept();
+							continue;
+						}
+						final NIOChannel channel = (NIOChannel) key
+								.attachment();
+						try {
+							if (key.isReadable()) {
+								channel.read(readBuffer);
+							}
+							if (key.isValid() && key.isWritable()) {
+								channel.write();
+								channel.updateInterest(selector);
+							}
+						} catch (final CancelledKeyException cke) {
+							// closed by another thread
+						} catch (final IOException ioe) {
+							channel.failed();
+						}
+					}
+				}
+			} catch (final IOException ioe) {
+				if (RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_ERROR,
+							"{NIO Channel} selector failed, closing its channels", //$NON-NLS-1$
+							ioe);
+				}
+			} finally {
+				final Iterator it = selector.keys().iterator();
+				while (it.hasNext()) {
+					final Object o = ((SelectionKey) it.next()).attachment();
+					if (o != null) {
+						// the endpoints are notified
+						((NIOChannel) o).failed();
+					}
+				}
+				try {
+					selector.close();
+				} catch (final IOException ioe) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * the worker thread decodes the frames of all channels and delivers the
+	 * messages.
+	 * 
+	 * @author Jan S. Rellermeyer, ETH Zurich
+	 * @since 1.0
+	 */
+	private final class WorkerThread extends Thread {
+		WorkerThread(final int i) {
+			setName("NIOChannel:WorkerThread" + i); //$NON-NLS-1$
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					final Runnable r;
+					synchronized (tasks) {
+						while (tasks.isEmpty()) {
+							tasks.wait();
+						}
+						r = (Runnable) tasks.removeFirst();
+					}
+					r.run();
+				}
+			} catch (final InterruptedException ie) {
+				// that's fine
+			}
+		}
+	}
+
+}
@@ -89,8 +89,12 @@ public final class RemoteOSGiActivator implements BundleActivator {
 				final Dictionary properties = new Hashtable();
 				properties.put(NetworkChannelFactory.PROTOCOL_PROPERTY,
 						TCPChannelFactory.PROTOCOL);
+				// the non-blocking channel is only loaded if selected, it
+				// does not run on Foundation VMs
+				final NetworkChannelFactory factory = RemoteOSGiServiceImpl.TCP_NIO ? (NetworkChannelFactory) new NIOChannelFactory()
+						: new TCPChannelFactory();
 				context.registerService(NetworkChannelFactory.class.getName(),
-						new TCPChannelFactory(), properties);
+						factory, properties);
 			}
 
 			final Hashtable props = new Hashtable();
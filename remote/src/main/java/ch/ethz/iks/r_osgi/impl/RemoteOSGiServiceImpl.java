@@ -46,7 +46,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
@@ -69,6 +68,7 @@ import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 import ch.ethz.iks.r_osgi.AsyncRemoteCallCallback;
+import ch.ethz.iks.r_osgi.RemoteCallFuture;
 import ch.ethz.iks.r_osgi.RemoteOSGiException;
 import ch.ethz.iks.r_osgi.RemoteOSGiService;
 import ch.ethz.iks.r_osgi.RemoteServiceEvent;
@@ -84,6 +84,8 @@ import ch.ethz.iks.r_osgi.channels.NetworkChannelFactory;
 import ch.ethz.iks.r_osgi.messages.LeaseUpdateMessage;
 import ch.ethz.iks.r_osgi.service_discovery.ServiceDiscoveryHandler;
 import ch.ethz.iks.util.CollectionUtils;
+import ch.ethz.iks.util.CompressionCodec;
+import ch.ethz.iks.util.DescriptorTable;
 import ch.ethz.iks.util.StringUtils;
 
 /**
@@ -158,11 +160,123 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 	static final String REGISTER_DEFAULT_TCP_CHANNEL = "ch.ethz.iks.r_osgi.registerDefaultChannel"; //$NON-NLS-1$
 
 	/**
-	 * register the default tcp channel? If not set to "false", the channel gets
-	 * registered.
+	 * the maximum number of message handlers that run concurrently for one
+	 * channel endpoint.
 	 */
 	static final String THREADS_PER_ENDPOINT = "ch.ethz.iks.r_osgi.threadsPerEndpoint"; //$NON-NLS-1$
 
+	/**
+	 * use the framed wire mode for outgoing TCP connections? If not set to
+	 * "false", new connections are framed. Set to "false" to connect to peers
+	 * that only support the unframed mode. Incoming connections are accepted
+	 * in both modes.
+	 */
+	static final String TCP_FRAMING_PROPERTY = "ch.ethz.iks.r_osgi.tcp.framing"; //$NON-NLS-1$
+
+	/**
+	 * the number of threads that decode large frames of framed TCP channels.
+	 */
+	static final String TCP_DECODER_THREADS_PROPERTY = "ch.ethz.iks.r_osgi.tcp.decoderThreads"; //$NON-NLS-1$
+
+	/**
+	 * the number of TCP connections of a channel to a peer. Remote calls are
+	 * spread over the connections. Requires the framed wire mode, peers that
+	 * do not support several connections get one.
+	 */
+	static final String TCP_STRIPES_PROPERTY = "ch.ethz.iks.r_osgi.tcp.stripes"; //$NON-NLS-1$
+
+	/**
+	 * use non-blocking sockets for the default TCP channel? If set to "true",
+	 * the connections are multiplexed over a few selector threads instead of
+	 * having a receiver thread each. Requires a J2SE 1.4 VM and the framed
+	 * wire mode.
+	 */
+	static final String TCP_NIO_PROPERTY = "ch.ethz.iks.r_osgi.tcp.nio"; //$NON-NLS-1$
+
+	/**
+	 * the number of selector threads of the non-blocking TCP channel.
+	 */
+	static final String TCP_SELECTOR_THREADS_PROPERTY = "ch.ethz.iks.r_osgi.tcp.selectorThreads"; //$NON-NLS-1$
+
+	/**
+	 * the number of threads that decode and deliver the frames of the
+	 * non-blocking TCP channel.
+	 */
+	static final String TCP_WORKER_THREADS_PROPERTY = "ch.ethz.iks.r_osgi.tcp.workerThreads"; //$NON-NLS-1$
+
+	/**
+	 * the compression of framed TCP channels, one of "none", "fast", and
+	 * "deflate". The peers use the cheaper of their two settings.
+	 */
+	static final String COMPRESSION_PROPERTY = "ch.ethz.iks.r_osgi.compression"; //$NON-NLS-1$
+
+	/**
+	 * the size in bytes below which messages are never compressed.
+	 */
+	static final String COMPRESSION_THRESHOLD_PROPERTY = "ch.ethz.iks.r_osgi.compression.threshold"; //$NON-NLS-1$
+
+	/**
+	 * the maximum number of class descriptors per channel and direction that
+	 * are sent only once.
+	 */
+	static final String DESCRIPTOR_CACHE_PROPERTY = "ch.ethz.iks.r_osgi.descriptorCache.size"; //$NON-NLS-1$
+
+	/**
+	 * the number of message handler threads that are kept when idle. The
+	 * handler threads are shared by all channel endpoints.
+	 */
+	static final String EXECUTOR_CORE_THREADS_PROPERTY = "ch.ethz.iks.r_osgi.executor.coreThreads"; //$NON-NLS-1$
+
+	/**
+	 * the maximum number of message handler threads.
+	 */
+	static final String EXECUTOR_MAX_THREADS_PROPERTY = "ch.ethz.iks.r_osgi.executor.maxThreads"; //$NON-NLS-1$
+
+	/**
+	 * the maximum number of received messages of one peer that wait for a
+	 * handler thread.
+	 */
+	static final String EXECUTOR_QUEUE_SIZE_PROPERTY = "ch.ethz.iks.r_osgi.executor.queueSize"; //$NON-NLS-1$
+
+	/**
+	 * run the message handlers on virtual threads? Only has an effect on VMs
+	 * that support virtual threads.
+	 */
+	static final String EXECUTOR_VIRTUAL_THREADS_PROPERTY = "ch.ethz.iks.r_osgi.executor.virtualThreads"; //$NON-NLS-1$
+
+	/**
+	 * the time in milliseconds for which synchronous remote calls to the same
+	 * peer are collected and sent as one message. <code>0</code> disables
+	 * the coalescing of calls.
+	 */
+	static final String COALESCING_WINDOW_PROPERTY = "ch.ethz.iks.r_osgi.coalescing.window"; //$NON-NLS-1$
+
+	/**
+	 * the default timeout in milliseconds of remote calls to services that do
+	 * not set the <code>RemoteOSGiService.TIMEOUT</code> property.
+	 */
+	static final String CALL_TIMEOUT_PROPERTY = "ch.ethz.iks.r_osgi.timeout"; //$NON-NLS-1$
+
+	/**
+	 * the maximum number of received requests of one peer that are queued or
+	 * handled at the same time, at most the executor queue size.
+	 * <code>0</code> limits them only by the executor queue size. Requests
+	 * above the limit are deferred, up to the executor queue size, while the
+	 * endpoint keeps reading from the channel. The channel is not paused, its
+	 * receiving thread also reads the replies that the running handlers may
+	 * wait for. Above that, remote calls are rejected, remote events dropped,
+	 * and any other request closes the channel.
+	 */
+	static final String MAX_IN_FLIGHT_PROPERTY = "ch.ethz.iks.r_osgi.endpoint.maxInFlight"; //$NON-NLS-1$
+
+	/**
+	 * reject remote calls that exceed the in-flight limit with a
+	 * <code>ServiceOverloadedException</code>? Otherwise, they are deferred
+	 * in memory and only rejected once the deferred requests of the peer fill
+	 * a handler queue. There is no mode that stops reading from the channel.
+	 */
+	static final String REJECT_OVERLOAD_PROPERTY = "ch.ethz.iks.r_osgi.endpoint.rejectOverload"; //$NON-NLS-1$
+
 	/**
 	 * constant that holds the property string for proxy debug option.
 	 */
@@ -201,11 +315,102 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 	private static final int BUFFER_SIZE = 2048;
 
 	/**
-	 * how many worker threads per endpoint?
+	 * how many concurrent message handlers per endpoint?
 	 */
 	static final int MAX_THREADS_PER_ENDPOINT = Integer.getInteger(
 			THREADS_PER_ENDPOINT, 16).intValue();
 
+	/**
+	 * how many decoder threads for framed TCP channels?
+	 */
+	static final int TCP_DECODER_THREADS = Integer.getInteger(
+			TCP_DECODER_THREADS_PROPERTY, 2).intValue();
+
+	/**
+	 * use framing for outgoing TCP connections.
+	 */
+	static boolean TCP_FRAMING = true;
+
+	/**
+	 * the number of TCP connections per channel.
+	 */
+	static int TCP_STRIPES = 1;
+
+	/**
+	 * use the non-blocking TCP channel.
+	 */
+	static boolean TCP_NIO = false;
+
+	/**
+	 * the number of selector threads.
+	 */
+	static int TCP_SELECTOR_THREADS = 2;
+
+	/**
+	 * the number of worker threads of the non-blocking TCP channel.
+	 */
+	static int TCP_WORKER_THREADS = 8;
+
+	/**
+	 * the preferred compression codec.
+	 */
+	static byte COMPRESSION = CompressionCodec.FAST;
+
+	/**
+	 * the compression threshold.
+	 */
+	static int COMPRESSION_THRESHOLD = 1024;
+
+	/**
+	 * the capacity of the class descriptor cache.
+	 */
+	static int DESCRIPTOR_CACHE_SIZE = DescriptorTable.DEFAULT_CAPACITY;
+
+	/**
+	 * the number of handler threads that are kept when idle.
+	 */
+	static int EXECUTOR_CORE_THREADS = 4;
+
+	/**
+	 * the maximum number of handler threads.
+	 */
+	static int EXECUTOR_MAX_THREADS = 64;
+
+	/**
+	 * the maximum number of messages per peer that wait for a handler thread.
+	 */
+	static int EXECUTOR_QUEUE_SIZE = 1024;
+
+	/**
+	 * run the handlers on virtual threads.
+	 */
+	static boolean EXECUTOR_VIRTUAL_THREADS = false;
+
+	/**
+	 * the coalescing window for remote calls.
+	 */
+	static int COALESCING_WINDOW = 0;
+
+	/**
+	 * the default timeout of remote calls.
+	 */
+	static int CALL_TIMEOUT = 120000;
+
+	/**
+	 * the in-flight limit of the requests of a peer.
+	 */
+	static int MAX_IN_FLIGHT = 256;
+
+	/**
+	 * reject remote calls above the in-flight limit.
+	 */
+	static boolean REJECT_OVERLOAD = false;
+
+	/**
+	 * the executor for the message handlers of all endpoints.
+	 */
+	private static MessageExecutor executor;
+
 	/**
 	 * log proxy generation debug output.
 	 */
@@ -231,11 +436,6 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 	 */
 	static Map serviceRegistrations = new HashMap(1);
 
-	/**
-	 * next transaction id.
-	 */
-	private static int nextXid;
-
 	/**
 	 * OSGi log service instance.
 	 */
@@ -361,8 +561,46 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 		prop = context.getProperty(R_OSGi_PORT_PROPERTY);
 		R_OSGI_PORT = prop != null ? Integer.parseInt(prop) : 9278;
 
-		// initialize the transactionID with a random value
-		nextXid = (short) Math.round(Math.random() * Short.MAX_VALUE);
+		// set the wire mode of the TCP transport
+		prop = context.getProperty(TCP_FRAMING_PROPERTY);
+		TCP_FRAMING = prop != null ? Boolean.valueOf(prop).booleanValue()
+				: true;
+		prop = context.getProperty(TCP_STRIPES_PROPERTY);
+		TCP_STRIPES = prop != null ? Integer.parseInt(prop) : 1;
+		prop = context.getProperty(TCP_NIO_PROPERTY);
+		TCP_NIO = prop != null ? Boolean.valueOf(prop).booleanValue() : false;
+		prop = context.getProperty(TCP_SELECTOR_THREADS_PROPERTY);
+		TCP_SELECTOR_THREADS = prop != null ? Integer.parseInt(prop) : 2;
+		prop = context.getProperty(TCP_WORKER_THREADS_PROPERTY);
+		TCP_WORKER_THREADS = prop != null ? Integer.parseInt(prop) : 8;
+		prop = context.getProperty(COMPRESSION_PROPERTY);
+		COMPRESSION = prop != null ? CompressionCodec.forName(prop)
+				: CompressionCodec.FAST;
+		prop = context.getProperty(COMPRESSION_THRESHOLD_PROPERTY);
+		COMPRESSION_THRESHOLD = prop != null ? Integer.parseInt(prop) : 1024;
+		prop = context.getProperty(DESCRIPTOR_CACHE_PROPERTY);
+		DESCRIPTOR_CACHE_SIZE = prop != null ? Integer.parseInt(prop)
+				: DescriptorTable.DEFAULT_CAPACITY;
+
+		// configure the message handler threads
+		prop = context.getProperty(EXECUTOR_CORE_THREADS_PROPERTY);
+		EXECUTOR_CORE_THREADS = prop != null ? Integer.parseInt(prop) : 4;
+		prop = context.getProperty(EXECUTOR_MAX_THREADS_PROPERTY);
+		EXECUTOR_MAX_THREADS = prop != null ? Integer.parseInt(prop) : 64;
+		prop = context.getProperty(EXECUTOR_QUEUE_SIZE_PROPERTY);
+		EXECUTOR_QUEUE_SIZE = prop != null ? Integer.parseInt(prop) : 1024;
+		prop = context.getProperty(EXECUTOR_VIRTUAL_THREADS_PROPERTY);
+		EXECUTOR_VIRTUAL_THREADS = prop != null ? Boolean.valueOf(prop)
+				.booleanValue() : false;
+		prop = context.getProperty(COALESCING_WINDOW_PROPERTY);
+		COALESCING_WINDOW = prop != null ? Integer.parseInt(prop) : 0;
+		prop = context.getProperty(CALL_TIMEOUT_PROPERTY);
+		CALL_TIMEOUT = prop != null ? Integer.parseInt(prop) : 120000;
+		prop = context.getProperty(MAX_IN_FLIGHT_PROPERTY);
+		MAX_IN_FLIGHT = prop != null ? Integer.parseInt(prop) : 256;
+		prop = context.getProperty(REJECT_OVERLOAD_PROPERTY);
+		REJECT_OVERLOAD = prop != null ? Boolean.valueOf(prop).booleanValue()
+				: false;
 
 		// get the package admin
 		final ServiceReference ref = context
@@ -961,6 +1199,21 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 		for (int i = 0; i < c.length; i++) {
 			c[i].dispose();
 		}
+		synchronized (RemoteOSGiServiceImpl.class) {
+			if (executor != null) {
+				if (DEBUG && log != null) {
+					log.log(LogService.LOG_DEBUG,
+							"peak queue depth of the message handlers: control " //$NON-NLS-1$
+									+ executor
+											.getPeakQueueDepth(MessageExecutor.CONTROL_LANE)
+									+ ", bulk " //$NON-NLS-1$
+									+ executor
+											.getPeakQueueDepth(MessageExecutor.BULK_LANE));
+				}
+				executor.shutdown();
+				executor = null;
+			}
+		}
 		final Object[] factories = networkChannelFactoryTracker.getServices();
 		for (int i = 0; i < factories.length; i++) {
 			try {
@@ -978,6 +1231,21 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 		networkChannelFactoryTracker.close();
 	}
 
+	/**
+	 * get the executor for the message handlers. The executor is created
+	 * lazily and shared by all channel endpoints.
+	 * 
+	 * @return the executor.
+	 */
+	static synchronized MessageExecutor getExecutor() {
+		if (executor == null) {
+			executor = new MessageExecutor(EXECUTOR_CORE_THREADS,
+					EXECUTOR_MAX_THREADS, EXECUTOR_QUEUE_SIZE,
+					MAX_THREADS_PER_ENDPOINT, EXECUTOR_VIRTUAL_THREADS);
+		}
+		return executor;
+	}
+
 	/**
 	 * get all provided (remote-enabled) services of this peer.
 	 * 
@@ -1034,18 +1302,6 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 		return (String[]) topics.toArray(new String[topics.size()]);
 	}
 
-	/**
-	 * get the next transaction id.
-	 * 
-	 * @return the next xid.
-	 */
-	static synchronized int nextXid() {
-		if (nextXid == -1) {
-			nextXid = 0;
-		}
-		return (++nextXid);
-	}
-
 	/**
 	 * register a channel.
 	 * 
@@ -1083,47 +1339,67 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 	 * @param event
 	 */
 	static void notifyRemoteServiceListeners(final RemoteServiceEvent event) {
+		notifyRemoteServiceListeners(new RemoteServiceEvent[] { event }, 1);
+	}
+
+	/**
+	 * notify the remote service listeners about a batch of events. The
+	 * listeners and their interface and filter properties are resolved once
+	 * per batch and not once per event.
+	 * 
+	 * @param events
+	 *            the events.
+	 * @param count
+	 *            the number of valid events in the array.
+	 */
+	static void notifyRemoteServiceListeners(final RemoteServiceEvent[] events,
+			final int count) {
 		final ServiceReference[] refs = remoteServiceListenerTracker
 				.getServiceReferences();
 		if (refs == null) {
 			return;
 		}
-		final Set serviceIfaces = new HashSet(Arrays.asList(event
-				.getRemoteReference().getServiceInterfaces()));
 		for (int i = 0; i < refs.length; i++) {
 			final String[] ifaces = (String[]) refs[i]
 					.getProperty(RemoteServiceListener.SERVICE_INTERFACES);
-			if (ifaces == null) {
-				match(refs[i], event);
-			} else {
-				for (int j = 0; j < ifaces.length; j++) {
-					if (serviceIfaces.contains(ifaces[j])) {
-						match(refs[i], event);
-						break;
-					}
+			final Filter filter = (Filter) refs[i]
+					.getProperty(RemoteServiceListener.FILTER);
+			final RemoteServiceListener listener = (RemoteServiceListener) remoteServiceListenerTracker
+					.getService(refs[i]);
+			if (listener == null) {
+				continue;
+			}
+			for (int j = 0; j < count; j++) {
+				final RemoteServiceReferenceImpl ref = (RemoteServiceReferenceImpl) events[j]
+						.getRemoteReference();
+				if ((ifaces == null || matches(ifaces, ref
+						.getServiceInterfaces()))
+						&& (filter == null || filter.match(ref.getProperties()))) {
+					listener.remoteServiceEvent(events[j]);
 				}
 			}
 		}
 	}
 
 	/**
+	 * check if two interface arrays have an interface in common.
 	 * 
-	 * @param ref
-	 * @param event
+	 * @param ifaces
+	 *            the interfaces of the listener.
+	 * @param serviceIfaces
+	 *            the interfaces of the service.
+	 * @return true if there is a common interface.
 	 */
-	private static void match(final ServiceReference ref,
-			final RemoteServiceEvent event) {
-		final Filter filter = (Filter) ref
-				.getProperty(RemoteServiceListener.FILTER);
-		if (filter == null
-				|| filter.match(((RemoteServiceReferenceImpl) event
-						.getRemoteReference()).getProperties())) {
-			final RemoteServiceListener listener = (RemoteServiceListener) remoteServiceListenerTracker
-					.getService(ref);
-			if (listener != null) {
-				listener.remoteServiceEvent(event);
+	private static boolean matches(final String[] ifaces,
+			final String[] serviceIfaces) {
+		for (int i = 0; i < ifaces.length; i++) {
+			for (int j = 0; j < serviceIfaces.length; j++) {
+				if (ifaces[i].equals(serviceIfaces[j])) {
+					return true;
+				}
 			}
 		}
+		return false;
 	}
 
 	/**
@@ -1384,4 +1660,83 @@ final class RemoteOSGiServiceImpl implements RemoteOSGiService, Remoting {
 				callback);
 	}
 
+	/**
+	 * 
+	 * @see ch.ethz.iks.r_osgi.RemoteOSGiService#asyncRemoteCall(ch.ethz.iks.r_osgi.URI,
+	 *      java.lang.String, java.lang.Object[])
+	 * @category RemoteOSGiService
+	 */
+	public RemoteCallFuture asyncRemoteCall(final URI service,
+			final String methodSignature, final Object[] args) {
+		final RemoteCallFuture future = new RemoteCallFuture();
+		asyncRemoteCall(service, methodSignature, args, future);
+		return future;
+	}
+
+	/**
+	 * 
+	 * @see ch.ethz.iks.r_osgi.RemoteOSGiService#asyncRemoteCall(ch.ethz.iks.r_osgi.URI,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 * @category RemoteOSGiService
+	 */
+	public RemoteCallFuture asyncRemoteCall(final URI service,
+			final Method method, final Object[] args) {
+		return asyncRemoteCall(service, Type.getMethodDescriptor(method), args);
+	}
+
+	/**
+	 * 
+	 * @see ch.ethz.iks.r_osgi.RemoteOSGiService#asyncRemoteCalls(ch.ethz.iks.r_osgi.URI[],
+	 *      java.lang.String[], java.lang.Object[][])
+	 * @category RemoteOSGiService
+	 */
+	public RemoteCallFuture[] asyncRemoteCalls(final URI[] services,
+			final String[] methodSignatures, final Object[][] args) {
+		final RemoteCallFuture[] futures = new RemoteCallFuture[services.length];
+		final ChannelEndpointImpl[] endpoints = new ChannelEndpointImpl[services.length];
+		for (int i = 0; i < services.length; i++) {
+			endpoints[i] = getChannel(services[i]);
+		}
+		final boolean[] sent = new boolean[services.length];
+		for (int i = 0; i < services.length; i++) {
+			if (sent[i]) {
+				continue;
+			}
+			// collect the calls that go through the same channel
+			final ChannelEndpointImpl endpoint = endpoints[i];
+			final ArrayList batch = new ArrayList();
+			for (int j = i; j < services.length; j++) {
+				if (!sent[j] && endpoints[j] == endpoint) {
+					batch.add(new Integer(j));
+					sent[j] = true;
+				}
+			}
+			final int size = batch.size();
+			final String[] fragments = new String[size];
+			final String[] signatures = new String[size];
+			final Object[][] arguments = new Object[size][];
+			final RemoteCallFuture[] results = new RemoteCallFuture[size];
+			for (int k = 0; k < size; k++) {
+				final int index = ((Integer) batch.get(k)).intValue();
+				fragments[k] = services[index].getFragment();
+				signatures[k] = methodSignatures[index];
+				arguments[k] = args[index];
+				results[k] = futures[index] = new RemoteCallFuture();
+			}
+			try {
+				if (endpoint == null) {
+					throw new RemoteOSGiException("No connection to " //$NON-NLS-1$
+							+ services[i]);
+				}
+				endpoint.asyncRemoteCalls(fragments, signatures, arguments,
+						results);
+			} catch (final RemoteOSGiException e) {
+				for (int k = 0; k < size; k++) {
+					results[k].remoteCallResult(false, e);
+				}
+			}
+		}
+		return futures;
+	}
+
 }
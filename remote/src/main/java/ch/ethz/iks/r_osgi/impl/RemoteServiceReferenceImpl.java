@@ -32,12 +32,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
 
 import org.osgi.framework.Constants;
 
+import ch.ethz.iks.r_osgi.RemoteOSGiException;
 import ch.ethz.iks.r_osgi.RemoteOSGiService;
 import ch.ethz.iks.r_osgi.RemoteServiceReference;
 import ch.ethz.iks.r_osgi.URI;
+import ch.ethz.iks.util.StringUtils;
 
 /**
  * Service reference to remote services.
@@ -72,6 +75,11 @@ final class RemoteServiceReferenceImpl implements RemoteServiceReference {
 	 */
 	private final ChannelEndpointImpl channel;
 
+	/**
+	 * the cached timeouts of the methods, method signature -> timeout.
+	 */
+	private HashMap timeouts;
+
 	/**
 	 * create a new remote service reference.
 	 * 
@@ -167,6 +175,76 @@ final class RemoteServiceReferenceImpl implements RemoteServiceReference {
 	 */
 	void setProperties(final Dictionary newProps) {
 		properties = newProps;
+		synchronized (this) {
+			timeouts = null;
+		}
+	}
+
+	/**
+	 * get the timeout of calls to a method of the service, as configured by
+	 * the <code>RemoteOSGiService.TIMEOUT</code> property of the service.
+	 * 
+	 * @param methodSignature
+	 *            the method signature, i.e., the name followed by the
+	 *            descriptor.
+	 * @return the timeout in milliseconds.
+	 */
+	synchronized int getTimeout(final String methodSignature) {
+		if (timeouts == null) {
+			timeouts = new HashMap(0);
+		}
+		Integer timeout = (Integer) timeouts.get(methodSignature);
+		if (timeout == null) {
+			timeout = new Integer(parseTimeout(properties
+					.get(RemoteOSGiService.TIMEOUT), methodSignature));
+			timeouts.put(methodSignature, timeout);
+		}
+		return timeout.intValue();
+	}
+
+	/**
+	 * get the timeout of a method from the value of the timeout property.
+	 * 
+	 * @param value
+	 *            the value of the property.
+	 * @param methodSignature
+	 *            the method signature.
+	 * @return the timeout in milliseconds.
+	 */
+	private static int parseTimeout(final Object value,
+			final String methodSignature) {
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		int timeout = RemoteOSGiServiceImpl.CALL_TIMEOUT;
+		if (!(value instanceof String)) {
+			return timeout;
+		}
+		final String methodName = methodSignature.substring(0,
+				methodSignature.indexOf('('));
+		final String[] entries = StringUtils.splitString((String) value, ","); //$NON-NLS-1$
+		for (int i = 0; i < entries.length; i++) {
+			final int pos = entries[i].indexOf('=');
+			try {
+				if (pos == -1) {
+					timeout = Integer.parseInt(entries[i]);
+					continue;
+				}
+				final String method = entries[i].substring(0, pos).trim();
+				if (method.equals(methodSignature)) {
+					// the exact signature takes precedence
+					return Integer.parseInt(entries[i].substring(pos + 1)
+							.trim());
+				} else if (method.equals(methodName)) {
+					timeout = Integer.parseInt(entries[i].substring(pos + 1)
+							.trim());
+				}
+			} catch (final NumberFormatException nfe) {
+				throw new RemoteOSGiException("Invalid timeout " //$NON-NLS-1$
+						+ entries[i] + " of " + methodSignature, nfe); //$NON-NLS-1$
+			}
+		}
+		return timeout;
 	}
 
 	/**
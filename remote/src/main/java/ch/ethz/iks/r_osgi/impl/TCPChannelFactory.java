@@ -30,22 +30,35 @@ package ch.ethz.iks.r_osgi.impl;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 
 import org.osgi.service.log.LogService;
 
 import ch.ethz.iks.r_osgi.Remoting;
 import ch.ethz.iks.r_osgi.URI;
+import ch.ethz.iks.r_osgi.channels.BatchNetworkChannel;
 import ch.ethz.iks.r_osgi.channels.ChannelEndpoint;
 import ch.ethz.iks.r_osgi.channels.NetworkChannel;
 import ch.ethz.iks.r_osgi.channels.NetworkChannelFactory;
 import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.util.CompressionCodec;
+import ch.ethz.iks.util.DescriptorTable;
 import ch.ethz.iks.util.SmartObjectInputStream;
 import ch.ethz.iks.util.SmartObjectOutputStream;
 
@@ -60,10 +73,43 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 	public static final boolean beSmart = true;
 
 	static final String PROTOCOL = "r-osgi"; //$NON-NLS-1$
+
+	/**
+	 * frames with a body of at least this size are not decoded by the receiver
+	 * thread but handed over to the decoder threads.
+	 */
+	private static final int INLINE_DECODE_LIMIT = 16384;
+
+	/**
+	 * the number of received frames of a channel that wait for delivery
+	 * before the receiver thread stops reading from the socket.
+	 */
+	private static final int MAX_PENDING_FRAMES = 64;
+
+	/**
+	 * the maximum number of connections that a peer can open for one channel.
+	 */
+	private static final int MAX_STRIPES = 16;
+
 	Remoting remoting;
 	private TCPAcceptorThread thread;
 	protected int listeningPort;
 
+	/**
+	 * the channels waiting for the decoder threads.
+	 */
+	final ArrayList decodeQueue = new ArrayList();
+
+	/**
+	 * the decoder threads, shared by all framed channels.
+	 */
+	private Thread[] decoders;
+
+	/**
+	 * the incoming channels with several connections, by channel id.
+	 */
+	final HashMap stripedChannels = new HashMap(0);
+
 	/**
 	 * get a new connection.
 	 * 
@@ -76,7 +122,11 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 	 */
 	public NetworkChannel getConnection(final ChannelEndpoint endpoint,
 			final URI endpointURI) throws IOException {
-		return new TCPChannel(endpoint, endpointURI);
+		if (RemoteOSGiServiceImpl.TCP_FRAMING
+				&& RemoteOSGiServiceImpl.TCP_STRIPES > 1) {
+			return new StripedChannel(this, endpoint, endpointURI);
+		}
+		return new TCPChannel(this, endpoint, endpointURI, null, 0);
 	}
 
 	/**
@@ -86,6 +136,11 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 	 */
 	public void activate(final Remoting r) throws IOException {
 		remoting = r;
+		decoders = new Thread[RemoteOSGiServiceImpl.TCP_DECODER_THREADS];
+		for (int i = 0; i < decoders.length; i++) {
+			decoders[i] = new DecoderThread(i);
+			decoders[i].start();
+		}
 		thread = new TCPAcceptorThread();
 		thread.start();
 		// TODO: remove debug output
@@ -102,6 +157,12 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 			thread.close();
 			thread = null;
 		}
+		if (decoders != null) {
+			for (int i = 0; i < decoders.length; i++) {
+				decoders[i].interrupt();
+			}
+			decoders = null;
+		}
 		remoting = null;
 	}
 
@@ -114,13 +175,67 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 		return listeningPort;
 	}
 
+	/**
+	 * create the endpoint for an incoming connection, or add the connection
+	 * to its channel if it is not the first connection of a channel.
+	 * 
+	 * @param channel
+	 *            the channel of the connection.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	void accepted(final TCPChannel channel) throws IOException {
+		if (channel.stripes <= 1) {
+			remoting.createEndpoint(channel);
+			return;
+		}
+		final Long id = new Long(channel.channelId);
+		if (channel.stripe == 0) {
+			final StripedChannel striped = new StripedChannel(this, channel);
+			synchronized (stripedChannels) {
+				stripedChannels.put(id, striped);
+			}
+			remoting.createEndpoint(striped);
+			return;
+		}
+		final StripedChannel striped;
+		synchronized (stripedChannels) {
+			striped = (StripedChannel) stripedChannels.get(id);
+		}
+		if (striped == null || !striped.attach(channel)) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * hand the delivery of the frames of a channel over to the decoder
+	 * threads.
+	 * 
+	 * @param task
+	 *            the delivery task.
+	 * @return <code>false</code> if there are no decoder threads.
+	 */
+	boolean offload(final Runnable task) {
+		if (decoders == null || decoders.length == 0) {
+			return false;
+		}
+		synchronized (decodeQueue) {
+			decodeQueue.add(task);
+			decodeQueue.notify();
+		}
+		return true;
+	}
+
 	/**
 	 * the inner class representing a channel with TCP transport. The TCP
 	 * connection uses the TCP keepAlive option to reduce reconnection overhead.
+	 * Unless framing is disabled, the channel uses the framed wire mode of the
+	 * <code>FrameCodec</code>. Incoming connections are accepted in either
+	 * mode.
 	 * 
 	 * @author Jan S. Rellermeyer, ETH Zurich
 	 */
-	private static final class TCPChannel implements NetworkChannel {
+	private static final class TCPChannel implements BatchNetworkChannel {
 		/**
 		 * the socket.
 		 */
@@ -136,6 +251,16 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 		 */
 		private URI localEndpointAddress;
 
+		/**
+		 * the channel factory.
+		 */
+		private final TCPChannelFactory factory;
+
+		/**
+		 * does the channel use the framed wire mode?
+		 */
+		boolean framed;
+
 		/**
 		 * the input stream.
 		 */
@@ -146,6 +271,63 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 		 */
 		protected ObjectOutputStream output;
 
+		/**
+		 * the input stream in framed mode.
+		 */
+		private DataInputStream frameInput;
+
+		/**
+		 * the output stream in framed mode.
+		 */
+		private OutputStream frameOutput;
+
+		/**
+		 * the frame encoder in framed mode.
+		 */
+		private FrameCodec encoder;
+
+		/**
+		 * the buffer that collects the frames of a batch in framed mode,
+		 * guarded by the encoder.
+		 */
+		private final FrameBatch frames = new FrameBatch();
+
+		/**
+		 * the table of the class descriptors sent by the peer in framed mode.
+		 */
+		private DescriptorTable inputDescriptors;
+
+		/**
+		 * the received frames waiting for delivery, in framed mode.
+		 */
+		private final LinkedList inbox = new LinkedList();
+
+		/**
+		 * is a thread delivering the frames of the inbox?
+		 */
+		private boolean delivering;
+
+		/**
+		 * has a frame failed to decode? The frames behind it are dropped.
+		 * Only used by the delivering thread.
+		 */
+		private boolean broken;
+
+		/**
+		 * delivers the frames of the inbox in order.
+		 */
+		private final Runnable deliverer = new Runnable() {
+			public void run() {
+				deliver();
+			}
+		};
+
+		/**
+		 * the queue of the output. Concurrent senders are written in batches,
+		 * control messages overtake waiting bulk messages.
+		 */
+		private final OutputQueue queue = new OutputQueue();
+
 		/**
 		 * the channel endpoint.
 		 */
@@ -156,41 +338,83 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 		 */
 		boolean connected = true;
 
+		/**
+		 * the channel with several connections that has opened this
+		 * connection, or <code>null</code>.
+		 */
+		private final StripedChannel owner;
+
+		/**
+		 * the id of the channel that the connection belongs to.
+		 */
+		long channelId;
+
+		/**
+		 * the index of the connection within its channel.
+		 */
+		int stripe;
+
+		/**
+		 * the number of connections of the channel.
+		 */
+		int stripes = 1;
+
 		/**
 		 * create a new TCPChannel.
 		 * 
+		 * @param factory
+		 *            the channel factory.
 		 * @param endpoint
 		 *            the channel endpoint.
 		 * @param endpointAddress
 		 *            the remote peer's URI.
+		 * @param owner
+		 *            the channel with several connections that this
+		 *            connection belongs to, or <code>null</code>.
+		 * @param stripe
+		 *            the index of the connection within the owner.
 		 * @throws IOException
 		 *             in case of IO errors.
 		 */
-		TCPChannel(final ChannelEndpoint endpoint, final URI endpointAddress)
+		TCPChannel(final TCPChannelFactory factory,
+				final ChannelEndpoint endpoint, final URI endpointAddress,
+				final StripedChannel owner, final int stripe)
 				throws IOException {
 			int port = endpointAddress.getPort();
 			if (port == -1) {
 				port = 9278;
 			}
+			this.factory = factory;
 			this.endpoint = endpoint;
+			this.owner = owner;
+			if (owner != null) {
+				channelId = owner.id;
+				this.stripe = stripe;
+				stripes = owner.getCapacity();
+			}
 			remoteEndpointAddress = endpointAddress;
-			open(new Socket(endpointAddress.getHost(), port));
+			open(new Socket(endpointAddress.getHost(), port), false);
 			new ReceiverThread().start();
 		}
 
 		/**
 		 * create a new TCPChannel from an existing socket.
 		 * 
+		 * @param factory
+		 *            the channel factory.
 		 * @param socket
 		 *            the socket.
 		 * @throws IOException
 		 *             in case of IO errors.
 		 */
-		public TCPChannel(final Socket socket) throws IOException {
+		public TCPChannel(final TCPChannelFactory factory, final Socket socket)
+				throws IOException {
+			this.factory = factory;
+			owner = null;
 			remoteEndpointAddress = URI.create(getProtocol() + "://" //$NON-NLS-1$
 					+ socket.getInetAddress().getHostName() + ":" //$NON-NLS-1$
 					+ socket.getPort());
-			open(socket);
+			open(socket, true);
 		}
 
 		/**
@@ -211,10 +435,15 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 		 * 
 		 * @param socket
 		 *            the socket.
+		 * @param accepted
+		 *            <code>true</code> if the socket is an incoming
+		 *            connection. In this case, the wire mode is determined by
+		 *            the first byte sent by the peer.
 		 * @throws IOException
 		 *             if something goes wrong.
 		 */
-		private void open(final Socket s) throws IOException {
+		private void open(final Socket s, final boolean accepted)
+				throws IOException {
 			socket = s;
 			localEndpointAddress = URI.create(getProtocol() + "://" //$NON-NLS-1$
 					+ socket.getLocalAddress().getHostName() + ":" //$NON-NLS-1$
@@ -225,16 +454,51 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 				// for 1.2 VMs that do not support the setKeepAlive
 			}
 			socket.setTcpNoDelay(true);
-			if (beSmart) {
-				output = new SmartObjectOutputStream(socket.getOutputStream());
+
+			final InputStream in = new BufferedInputStream(socket
+					.getInputStream());
+			if (accepted) {
+				in.mark(1);
+				framed = in.read() == FrameCodec.VERSION;
+				in.reset();
+			} else {
+				framed = RemoteOSGiServiceImpl.TCP_FRAMING;
+			}
+
+			if (framed) {
+				encoder = new FrameCodec();
+				// the frames are decoded in order, a descriptor is always
+				// defined before it is referenced
+				inputDescriptors = new DescriptorTable(
+						RemoteOSGiServiceImpl.DESCRIPTOR_CACHE_SIZE, 0);
+				frameOutput = socket.getOutputStream();
+				frameInput = new DataInputStream(in);
+				if (accepted) {
+					// the peer starts with the handshake
+					if (receiveFrame() != FrameCodec.HELLO) {
+						throw new IOException("Missing handshake"); //$NON-NLS-1$
+					}
+					channelId = encoder.getPeerChannel();
+					stripe = encoder.getPeerStripe();
+					stripes = Math.min(encoder.getPeerStripes(), MAX_STRIPES);
+				}
+				synchronized (encoder) {
+					encoder.encodeHello(channelId, stripe, stripes);
+					encoder.writeTo(frameOutput);
+				}
+			} else if (beSmart) {
+				output = new SmartObjectOutputStream(new BufferedOutputStream(
+						socket.getOutputStream()), true, new DescriptorTable(
+								RemoteOSGiServiceImpl.DESCRIPTOR_CACHE_SIZE));
 				output.flush();
-				input = new SmartObjectInputStream(socket.getInputStream());
+				input = new SmartObjectInputStream(in, true,
+						new DescriptorTable(
+								RemoteOSGiServiceImpl.DESCRIPTOR_CACHE_SIZE));
 			} else {
 				output = new ObjectOutputStream(new BufferedOutputStream(
 						socket.getOutputStream()));
 				output.flush();
-				input = new ObjectInputStream(new BufferedInputStream(
-						socket.getInputStream()));
+				input = new ObjectInputStream(in);
 			}
 		}
 
@@ -252,11 +516,36 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 		 * close the channel.
 		 */
 		public void close() throws IOException {
+			if (RemoteOSGiServiceImpl.MSG_DEBUG
+					&& RemoteOSGiServiceImpl.log != null && beSmart) {
+				RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+						"{TCP Channel} closing " + this + ", sent " //$NON-NLS-1$ //$NON-NLS-2$
+								+ getDescriptorTable(true) + ", received " //$NON-NLS-1$
+								+ getDescriptorTable(false) + ", " + queue); //$NON-NLS-1$
+			}
 			socket.close();
 			// receiver.interrupt();
 			connected = false;
 		}
 
+		/**
+		 * get the class descriptor table of one direction of the channel.
+		 * 
+		 * @param sent
+		 *            <code>true</code> for the descriptors sent to the peer,
+		 *            <code>false</code> for the descriptors received from the
+		 *            peer.
+		 * @return the descriptor table.
+		 */
+		DescriptorTable getDescriptorTable(final boolean sent) {
+			if (framed) {
+				return sent ? encoder.getDescriptorTable() : inputDescriptors;
+			}
+			return sent ? ((SmartObjectOutputStream) output)
+					.getDescriptorTable() : ((SmartObjectInputStream) input)
+					.getDescriptorTable();
+		}
+
 		/**
 		 * get the protocol that is implemented by the channel.
 		 * 
@@ -286,7 +575,8 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 		}
 
 		/**
-		 * send a message through the channel.
+		 * send a message through the channel. If other threads are sending at
+		 * the same time, the message is written together with theirs.
 		 * 
 		 * @param message
 		 *            the message.
@@ -300,7 +590,399 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 				RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
 						"{TCP Channel} sending " + message); //$NON-NLS-1$
 			}
-			message.send(output);
+			write(new PendingWrite(new RemoteOSGiMessage[] { message },
+					message.isControl()));
+		}
+
+		/**
+		 * send a batch of messages through the channel. The messages are
+		 * written at once. In framed mode, nothing is sent if one of the
+		 * messages cannot be encoded.
+		 * 
+		 * @param messages
+		 *            the messages.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#sendMessages(ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage[])
+		 */
+		public void sendMessages(final RemoteOSGiMessage[] messages)
+				throws IOException {
+			if (RemoteOSGiServiceImpl.MSG_DEBUG && RemoteOSGiServiceImpl.log != null) {
+				for (int i = 0; i < messages.length; i++) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+							"{TCP Channel} sending " + messages[i]); //$NON-NLS-1$
+				}
+			}
+			write(new PendingWrite(messages, false));
+		}
+
+		/**
+		 * write with group commit. The write is queued, and whichever sender
+		 * gets hold of the output writes all queued writes with a single flush
+		 * of the socket. The method returns when the write has been written.
+		 * 
+		 * @param write
+		 *            the write.
+		 * @throws IOException
+		 *             if the messages of the write could not be written.
+		 */
+		private void write(final PendingWrite write) throws IOException {
+			final PendingWrite[] batch = queue.submit(write);
+			if (batch != null) {
+				try {
+					if (framed) {
+						writeFrames(batch);
+					} else {
+						writeStream(batch);
+					}
+				} finally {
+					queue.completed(batch);
+				}
+			}
+			if (write.failure instanceof IOException) {
+				throw (IOException) write.failure;
+			} else if (write.failure != null) {
+				throw (RuntimeException) write.failure;
+			}
+		}
+
+		/**
+		 * write a batch in framed mode. The frames are collected and written
+		 * to the socket at once. Frames with out-of-band segments are written
+		 * straight from the encoder, so that the segments are not copied.
+		 * 
+		 * @param batch
+		 *            the writes.
+		 */
+		private void writeFrames(final PendingWrite[] batch) {
+			final DescriptorTable descriptors = encoder.getDescriptorTable();
+			final boolean single = batch.length == 1
+					&& batch[0].messages.length == 1;
+			IOException failure = null;
+			synchronized (encoder) {
+				for (int i = 0; i < batch.length && failure == null; i++) {
+					final PendingWrite w = batch[i];
+					final int start = frames.size();
+					final int mark = descriptors.mark();
+					boolean flushed = false;
+					for (int j = 0; j < w.messages.length; j++) {
+						try {
+							encoder.encode(w.messages[j]);
+						} catch (final Exception e) {
+							if (!flushed) {
+								// nothing of this write has been sent,
+								// withdraw its frames and the descriptors
+								// they define
+								descriptors.rollback(mark);
+								frames.truncate(start);
+							}
+							w.failure = e;
+							break;
+						}
+						try {
+							if (single || encoder.hasSegments()) {
+								if (frames.size() > 0) {
+									frames.writeTo(frameOutput);
+									frames.reset();
+								}
+								encoder.writeTo(frameOutput);
+								flushed = true;
+							} else {
+								encoder.writeTo(frames);
+							}
+						} catch (final IOException ioe) {
+							failure = ioe;
+							break;
+						}
+					}
+				}
+				try {
+					if (failure == null && frames.size() > 0) {
+						frames.writeTo(frameOutput);
+					}
+				} catch (final IOException ioe) {
+					failure = ioe;
+				} finally {
+					frames.reset();
+				}
+			}
+			if (failure != null) {
+				fail(batch, failure);
+			}
+		}
+
+		/**
+		 * write a batch in unframed mode. The stream is corked while the
+		 * messages are written, so that they share a single flush.
+		 * 
+		 * @param batch
+		 *            the writes.
+		 */
+		private void writeStream(final PendingWrite[] batch) {
+			final boolean smart = output instanceof SmartObjectOutputStream;
+			if (smart) {
+				((SmartObjectOutputStream) output).setCorked(true);
+			}
+			try {
+				for (int i = 0; i < batch.length; i++) {
+					final PendingWrite w = batch[i];
+					try {
+						for (int j = 0; j < w.messages.length; j++) {
+							w.messages[j].send(output);
+						}
+					} catch (final Exception e) {
+						w.failure = e;
+					}
+				}
+			} finally {
+				if (smart) {
+					((SmartObjectOutputStream) output).setCorked(false);
+				}
+			}
+			try {
+				output.flush();
+			} catch (final IOException ioe) {
+				fail(batch, ioe);
+			}
+		}
+
+		/**
+		 * fail the writes of a batch that have not failed yet.
+		 * 
+		 * @param batch
+		 *            the writes.
+		 * @param failure
+		 *            the exception.
+		 */
+		private void fail(final PendingWrite[] batch, final IOException failure) {
+			for (int i = 0; i < batch.length; i++) {
+				if (batch[i].failure == null) {
+					batch[i].failure = failure;
+				}
+			}
+		}
+
+		/**
+		 * check if the peer accepts messages that carry several remote calls.
+		 * This is the case if the peer has announced it in the handshake of
+		 * the framed mode.
+		 * 
+		 * @return <code>true</code> if calls can be coalesced.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsMultiCalls()
+		 */
+		public boolean acceptsMultiCalls() {
+			return framed && encoder.supports(FrameCodec.MULTI_CALLS);
+		}
+
+		/**
+		 * check if the peer accepts remote calls that carry a time budget.
+		 * This is the case if the peer has announced it in the handshake of
+		 * the framed mode.
+		 * 
+		 * @return <code>true</code> if calls can carry their deadline.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsDeadlines()
+		 */
+		public boolean acceptsDeadlines() {
+			return framed && encoder.supports(FrameCodec.DEADLINES);
+		}
+
+		/**
+		 * check if the peer accepts the cancellation of remote calls. This is
+		 * the case if the peer has announced it in the handshake of the framed
+		 * mode.
+		 * 
+		 * @return <code>true</code> if calls can be cancelled.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsCancellation()
+		 */
+		public boolean acceptsCancellation() {
+			return framed && encoder.supports(FrameCodec.CANCELLATION);
+		}
+
+		/**
+		 * read the next frame from the socket. Handshake frames are processed
+		 * immediately. The other frames are delivered in the order in which
+		 * they were received: a small frame is decoded and delivered right
+		 * away if no frame is waiting, large frames and the frames behind them
+		 * are handed over to the decoder threads so that the receiver thread
+		 * keeps reading.
+		 * 
+		 * @return the function ID of the frame.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 */
+		short receiveFrame() throws IOException {
+			final int version = frameInput.read();
+			if (version == -1) {
+				throw new EOFException();
+			} else if (version != FrameCodec.VERSION) {
+				throw new IOException("Unsupported frame version " + version); //$NON-NLS-1$
+			}
+			final short funcID = (short) frameInput.readUnsignedByte();
+			final int xid = frameInput.readInt();
+			final int flags = frameInput.readUnsignedByte();
+			final int codec = flags & ~FrameCodec.SEGMENTS;
+			final int length = frameInput.readInt();
+			if (length < 0) {
+				throw new IOException("Illegal frame length " + length); //$NON-NLS-1$
+			}
+
+			if (funcID == FrameCodec.HELLO) {
+				final byte[] body = new byte[length];
+				frameInput.readFully(body);
+				final byte mode = encoder.processHello(body);
+				if (RemoteOSGiServiceImpl.MSG_DEBUG
+						&& RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+							"{TCP Channel} compression with " //$NON-NLS-1$
+									+ CompressionCodec.getName(mode));
+				}
+				if (owner != null && stripe == 0) {
+					// the peer has agreed to the number of connections
+					owner.connect(encoder.getPeerStripes());
+				}
+				return funcID;
+			}
+
+			final byte[] body;
+			if (codec == CompressionCodec.NONE) {
+				body = FrameCodec.allocate(length);
+				frameInput.readFully(body, FrameCodec.BODY_OFFSET, length);
+			} else {
+				body = new byte[length];
+				frameInput.readFully(body);
+			}
+			final List segments = (flags & FrameCodec.SEGMENTS) != 0 ? FrameCodec
+					.readSegments(frameInput)
+					: null;
+
+			schedule(new Runnable() {
+				public void run() {
+					deliverFrame(funcID, xid, codec, body, segments);
+				}
+			}, length < INLINE_DECODE_LIMIT);
+			return funcID;
+		}
+
+		/**
+		 * deliver a received frame after the frames before it. Called by the
+		 * receiver thread, which stops reading while the inbox is full.
+		 * 
+		 * @param task
+		 *            the delivery of the frame.
+		 * @param inline
+		 *            <code>true</code> if the receiver thread can deliver the
+		 *            frame itself when no frame is waiting.
+		 */
+		private void schedule(final Runnable task, final boolean inline) {
+			synchronized (inbox) {
+				while (inbox.size() >= MAX_PENDING_FRAMES) {
+					try {
+						inbox.wait();
+					} catch (final InterruptedException ie) {
+						// ignore
+					}
+				}
+				if (delivering) {
+					inbox.addLast(task);
+					return;
+				}
+				delivering = true;
+				if (!inline) {
+					inbox.addLast(task);
+					if (factory.offload(deliverer)) {
+						return;
+					}
+				}
+			}
+			if (inline) {
+				// no frame is ahead of this one
+				try {
+					task.run();
+				} finally {
+					deliver();
+				}
+			} else {
+				deliver();
+			}
+		}
+
+		/**
+		 * deliver the frames of the inbox. After a batch of frames, a decoder
+		 * thread moves on to the other channels and the rest of the inbox is
+		 * delivered later.
+		 */
+		void deliver() {
+			for (int i = 0;; i++) {
+				final Runnable task;
+				synchronized (inbox) {
+					if (inbox.isEmpty()) {
+						delivering = false;
+						return;
+					}
+					if (i == MAX_PENDING_FRAMES && factory.offload(deliverer)) {
+						return;
+					}
+					task = (Runnable) inbox.removeFirst();
+					inbox.notify();
+				}
+				task.run();
+			}
+		}
+
+		/**
+		 * decode a frame and deliver the message to the endpoint. A frame that
+		 * cannot be decoded closes the channel, the class descriptors it
+		 * defines would be missing for the frames behind it.
+		 * 
+		 * @param funcID
+		 *            the function ID.
+		 * @param xid
+		 *            the xid.
+		 * @param codec
+		 *            the codec.
+		 * @param body
+		 *            the frame body.
+		 * @param segments
+		 *            the out-of-band segments, or <code>null</code>.
+		 */
+		void deliverFrame(final short funcID, final int xid, final int codec,
+				final byte[] body, final List segments) {
+			if (broken) {
+				return;
+			}
+			final RemoteOSGiMessage msg;
+			try {
+				msg = FrameCodec.decode(funcID, xid, codec, body, segments,
+						inputDescriptors);
+			} catch (final Throwable t) {
+				if (RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_ERROR,
+							"{TCP Channel} cannot decode frame from " //$NON-NLS-1$
+									+ remoteEndpointAddress
+									+ ", closing the channel", t); //$NON-NLS-1$
+				}
+				broken = true;
+				try {
+					close();
+				} catch (final IOException ioe) {
+					// ignore
+				}
+				endpoint.receivedMessage(null);
+				return;
+			}
+			if (RemoteOSGiServiceImpl.MSG_DEBUG
+					&& RemoteOSGiServiceImpl.log != null) {
+				RemoteOSGiServiceImpl.log.log(LogService.LOG_DEBUG,
+						"{TCP Channel} received " + msg); //$NON-NLS-1$
+			}
+			try {
+				endpoint.receivedMessage(msg);
+			} catch (final Throwable t) {
+				if (RemoteOSGiServiceImpl.log != null) {
+					RemoteOSGiServiceImpl.log.log(LogService.LOG_ERROR,
+							"{TCP Channel} error while delivering " + msg, t); //$NON-NLS-1$
+				}
+			}
 		}
 
 		/**
@@ -319,6 +1001,10 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 			public void run() {
 				while (connected) {
 					try {
+						if (framed) {
+							receiveFrame();
+							continue;
+						}
 						final RemoteOSGiMessage msg = RemoteOSGiMessage
 								.parse(input);
 						if (RemoteOSGiServiceImpl.MSG_DEBUG && RemoteOSGiServiceImpl.log != null) {
@@ -332,7 +1018,16 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 							socket.close();
 						} catch (final IOException e1) {
 						}
-						endpoint.receivedMessage(null);
+						if (framed) {
+							// after the frames received so far
+							schedule(new Runnable() {
+								public void run() {
+									endpoint.receivedMessage(null);
+								}
+							}, true);
+						} else {
+							endpoint.receivedMessage(null);
+						}
 						return;
 					} catch (final Throwable t) {
 						t.printStackTrace();
@@ -342,6 +1037,584 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 		}
 	}
 
+	/**
+	 * a channel that spreads its messages over several TCP connections to the
+	 * same peer, so that the senders of an endpoint are not serialized on one
+	 * socket and one encoder. Remote calls, their results, and their
+	 * cancellations are assigned to a connection by their xid, so that the
+	 * result of a call travels through the same connection as the call on
+	 * both sides. All other messages go through the first connection and
+	 * therefore keep their order. The first connection is opened right away,
+	 * the others once the peer has agreed to their number in the handshake.
+	 * 
+	 * @author Jan S. Rellermeyer, ETH Zurich
+	 * @since 1.0
+	 */
+	private static final class StripedChannel implements BatchNetworkChannel {
+
+		/**
+		 * the random source for the channel ids.
+		 */
+		private static final Random random = new Random();
+
+		/**
+		 * the channel factory.
+		 */
+		private final TCPChannelFactory factory;
+
+		/**
+		 * the channel id.
+		 */
+		final long id;
+
+		/**
+		 * the remote peer's URI, <code>null</code> for incoming channels.
+		 */
+		private final URI remoteEndpointAddress;
+
+		/**
+		 * the connections, some of them might not be open yet.
+		 */
+		private final TCPChannel[] connections;
+
+		/**
+		 * the number of connections the calls are spread over.
+		 */
+		private int count = 1;
+
+		/**
+		 * the channel endpoint.
+		 */
+		private ChannelEndpoint endpoint;
+
+		/**
+		 * closed ?
+		 */
+		private boolean closed;
+
+		/**
+		 * create a new channel to a peer. Only the first connection is opened.
+		 * 
+		 * @param factory
+		 *            the channel factory.
+		 * @param endpoint
+		 *            the channel endpoint.
+		 * @param endpointAddress
+		 *            the remote peer's URI.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 */
+		StripedChannel(final TCPChannelFactory factory,
+				final ChannelEndpoint endpoint, final URI endpointAddress)
+				throws IOException {
+			this.factory = factory;
+			this.endpoint = endpoint;
+			remoteEndpointAddress = endpointAddress;
+			long l;
+			synchronized (random) {
+				do {
+					l = random.nextLong();
+				} while (l == 0);
+			}
+			id = l;
+			connections = new TCPChannel[Math.min(
+					RemoteOSGiServiceImpl.TCP_STRIPES, 255)];
+			final TCPChannel first = new TCPChannel(factory, endpoint,
+					endpointAddress, this, 0);
+			synchronized (this) {
+				connections[0] = first;
+			}
+		}
+
+		/**
+		 * create a new channel from the first connection of a peer.
+		 * 
+		 * @param factory
+		 *            the channel factory.
+		 * @param first
+		 *            the first connection.
+		 */
+		StripedChannel(final TCPChannelFactory factory, final TCPChannel first) {
+			this.factory = factory;
+			id = first.channelId;
+			remoteEndpointAddress = null;
+			connections = new TCPChannel[first.stripes];
+			connections[0] = first;
+			count = first.stripes;
+		}
+
+		/**
+		 * get the number of connections requested for the channel.
+		 * 
+		 * @return the number of connections.
+		 */
+		int getCapacity() {
+			return connections.length;
+		}
+
+		/**
+		 * open the remaining connections. Called by the receiver thread of
+		 * the first connection when the handshake of the peer has arrived.
+		 * 
+		 * @param agreed
+		 *            the number of connections the peer has agreed to.
+		 */
+		void connect(final int agreed) {
+			final int n = Math.min(agreed, connections.length);
+			synchronized (this) {
+				count = Math.max(n, 1);
+			}
+			for (int i = 1; i < n; i++) {
+				final TCPChannel c;
+				try {
+					c = new TCPChannel(factory, endpoint,
+							remoteEndpointAddress, this, i);
+				} catch (final IOException ioe) {
+					// the calls of the missing connections use the first
+					return;
+				}
+				synchronized (this) {
+					if (!closed) {
+						connections[i] = c;
+						continue;
+					}
+				}
+				try {
+					c.close();
+				} catch (final IOException ioe) {
+					// ignore
+				}
+				return;
+			}
+		}
+
+		/**
+		 * add an incoming connection to the channel.
+		 * 
+		 * @param c
+		 *            the connection.
+		 * @return <code>false</code> if the connection does not fit.
+		 */
+		synchronized boolean attach(final TCPChannel c) {
+			if (closed || c.stripe >= connections.length
+					|| connections[c.stripe] != null) {
+				return false;
+			}
+			connections[c.stripe] = c;
+			if (endpoint != null) {
+				c.bind(endpoint);
+			}
+			return true;
+		}
+
+		/**
+		 * bind the channel to a channel endpoint.
+		 * 
+		 * @param e
+		 *            the channel endpoint.
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#bind(ch.ethz.iks.r_osgi.channels.ChannelEndpoint)
+		 */
+		public synchronized void bind(final ChannelEndpoint e) {
+			endpoint = e;
+			for (int i = 0; i < connections.length; i++) {
+				if (connections[i] != null) {
+					connections[i].bind(e);
+				}
+			}
+		}
+
+		/**
+		 * get the connection of a message. The lowest bit of the xid is
+		 * dropped, the xids of one side of a channel are all even or all odd.
+		 * Called with the lock of the channel held.
+		 * 
+		 * @param message
+		 *            the message.
+		 * @return the index of the connection.
+		 */
+		private int route(final RemoteOSGiMessage message) {
+			switch (message.getFuncID()) {
+			case RemoteOSGiMessage.REMOTE_CALL:
+			case RemoteOSGiMessage.REMOTE_CALL_RESULT:
+			case RemoteOSGiMessage.MULTI_CALL:
+			case RemoteOSGiMessage.CANCEL_CALL:
+				final int i = (message.getXID() >>> 1) % count;
+				if (connections[i] != null && connections[i].connected) {
+					return i;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * get the first connection.
+		 * 
+		 * @return the first connection.
+		 */
+		private synchronized TCPChannel first() {
+			return connections[0];
+		}
+
+		/**
+		 * send a message through the connection of the message.
+		 * 
+		 * @param message
+		 *            the message.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#sendMessage(ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage)
+		 */
+		public void sendMessage(final RemoteOSGiMessage message)
+				throws IOException {
+			final TCPChannel c;
+			synchronized (this) {
+				c = connections[route(message)];
+			}
+			c.sendMessage(message);
+		}
+
+		/**
+		 * send a batch of messages. The messages are grouped by their
+		 * connection, each group is sent at once.
+		 * 
+		 * @param messages
+		 *            the messages.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#sendMessages(ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage[])
+		 */
+		public void sendMessages(final RemoteOSGiMessage[] messages)
+				throws IOException {
+			final TCPChannel[] targets = new TCPChannel[messages.length];
+			final ArrayList[] groups = new ArrayList[connections.length];
+			synchronized (this) {
+				for (int i = 0; i < messages.length; i++) {
+					final int c = route(messages[i]);
+					if (groups[c] == null) {
+						groups[c] = new ArrayList(messages.length);
+						targets[c] = connections[c];
+					}
+					groups[c].add(messages[i]);
+				}
+			}
+			for (int c = 0; c < groups.length; c++) {
+				if (groups[c] != null) {
+					targets[c].sendMessages((RemoteOSGiMessage[]) groups[c]
+							.toArray(new RemoteOSGiMessage[groups[c].size()]));
+				}
+			}
+		}
+
+		/**
+		 * close all connections.
+		 * 
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#close()
+		 */
+		public void close() throws IOException {
+			final TCPChannel[] c;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				c = (TCPChannel[]) connections.clone();
+			}
+			synchronized (factory.stripedChannels) {
+				if (factory.stripedChannels.get(new Long(id)) == this) {
+					factory.stripedChannels.remove(new Long(id));
+				}
+			}
+			for (int i = 1; i < c.length; i++) {
+				if (c[i] != null) {
+					try {
+						c[i].close();
+					} catch (final IOException ioe) {
+						// ignore
+					}
+				}
+			}
+			c[0].close();
+		}
+
+		/**
+		 * get the String representation of the channel.
+		 * 
+		 * @return the ID.
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			return "StripedChannel (" + getRemoteAddress() + ", " //$NON-NLS-1$ //$NON-NLS-2$
+					+ connections.length + " connections)"; //$NON-NLS-1$
+		}
+
+		/**
+		 * get the protocol that is implemented by the channel.
+		 * 
+		 * @return the protocol.
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#getProtocol()
+		 */
+		public String getProtocol() {
+			return PROTOCOL;
+		}
+
+		/**
+		 * get the remote address.
+		 * 
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#getRemoteAddress()
+		 */
+		public URI getRemoteAddress() {
+			return first().getRemoteAddress();
+		}
+
+		/**
+		 * get the local address.
+		 * 
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#getLocalAddress()
+		 */
+		public URI getLocalAddress() {
+			return first().getLocalAddress();
+		}
+
+		/**
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsMultiCalls()
+		 */
+		public boolean acceptsMultiCalls() {
+			return first().acceptsMultiCalls();
+		}
+
+		/**
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsDeadlines()
+		 */
+		public boolean acceptsDeadlines() {
+			return first().acceptsDeadlines();
+		}
+
+		/**
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsCancellation()
+		 */
+		public boolean acceptsCancellation() {
+			return first().acceptsCancellation();
+		}
+	}
+
+	/**
+	 * the messages of one sender that wait to be written.
+	 * 
+	 * @author Jan S. Rellermeyer, ETH Zurich
+	 * @since 1.0
+	 */
+	private static final class PendingWrite {
+
+		/**
+		 * the messages.
+		 */
+		final RemoteOSGiMessage[] messages;
+
+		/**
+		 * is this a control message ?
+		 */
+		final boolean control;
+
+		/**
+		 * has the write been done ?
+		 */
+		boolean done;
+
+		/**
+		 * the exception if the write has failed.
+		 */
+		Exception failure;
+
+		PendingWrite(final RemoteOSGiMessage[] messages, final boolean control) {
+			this.messages = messages;
+			this.control = control;
+		}
+	}
+
+	/**
+	 * the output queue of a channel. Only one sender writes at a time. The
+	 * senders that arrive meanwhile queue their writes, and the next sender
+	 * that gets hold of the output writes all of them as one batch. Waiting
+	 * control messages go first in the batch. A batch that is being written is
+	 * not preempted.
+	 * 
+	 * @author Jan S. Rellermeyer, ETH Zurich
+	 * @since 1.0
+	 */
+	private static final class OutputQueue {
+
+		/**
+		 * is a batch being written ?
+		 */
+		private boolean busy;
+
+		/**
+		 * the waiting control messages.
+		 */
+		private final ArrayList control = new ArrayList(2);
+
+		/**
+		 * the waiting bulk messages.
+		 */
+		private final ArrayList bulk = new ArrayList();
+
+		/**
+		 * the highest number of waiting control messages so far.
+		 */
+		private int peakControl;
+
+		/**
+		 * the highest number of waiting bulk messages so far.
+		 */
+		private int peakBulk;
+
+		/**
+		 * the number of batches written so far.
+		 */
+		private long batches;
+
+		/**
+		 * the number of writes so far.
+		 */
+		private long writes;
+
+		/**
+		 * queue a write and wait until another sender has written it or the
+		 * output is free. The wait is not interrupted since an interrupt
+		 * would break the channel, the interrupt status is restored
+		 * afterwards.
+		 * 
+		 * @param write
+		 *            the write.
+		 * @return the batch that the caller has to write, including its own
+		 *         write, or <code>null</code> if the write has been done by
+		 *         another sender.
+		 */
+		synchronized PendingWrite[] submit(final PendingWrite write) {
+			if (write.control) {
+				control.add(write);
+				if (control.size() > peakControl) {
+					peakControl = control.size();
+				}
+			} else {
+				bulk.add(write);
+				if (bulk.size() > peakBulk) {
+					peakBulk = bulk.size();
+				}
+			}
+			boolean interrupted = false;
+			while (busy && !write.done) {
+				try {
+					wait();
+				} catch (final InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (write.done) {
+				return null;
+			}
+			busy = true;
+			final PendingWrite[] batch = new PendingWrite[control.size()
+					+ bulk.size()];
+			for (int i = 0; i < control.size(); i++) {
+				batch[i] = (PendingWrite) control.get(i);
+			}
+			for (int i = 0; i < bulk.size(); i++) {
+				batch[control.size() + i] = (PendingWrite) bulk.get(i);
+			}
+			control.clear();
+			bulk.clear();
+			batches++;
+			writes += batch.length;
+			return batch;
+		}
+
+		/**
+		 * release the output after a batch has been written.
+		 * 
+		 * @param batch
+		 *            the batch.
+		 */
+		synchronized void completed(final PendingWrite[] batch) {
+			for (int i = 0; i < batch.length; i++) {
+				batch[i].done = true;
+			}
+			busy = false;
+			notifyAll();
+		}
+
+		/**
+		 * get the String representation of the queue.
+		 * 
+		 * @return the number of batches and writes and the peak number of
+		 *         waiting messages per lane.
+		 * @see java.lang.Object#toString()
+		 */
+		public synchronized String toString() {
+			return "batches " + batches + ", writes " + writes //$NON-NLS-1$ //$NON-NLS-2$
+					+ ", peak waiting control " + peakControl + ", bulk " //$NON-NLS-1$ //$NON-NLS-2$
+					+ peakBulk;
+		}
+	}
+
+	/**
+	 * a byte array output stream that collects the frames of a batch and can
+	 * withdraw the frames of a failed write.
+	 * 
+	 * @author Jan S. Rellermeyer, ETH Zurich
+	 * @since 1.0
+	 */
+	private static final class FrameBatch extends ByteArrayOutputStream {
+
+		FrameBatch() {
+			super(4096);
+		}
+
+		/**
+		 * discard everything behind a position.
+		 * 
+		 * @param size
+		 *            the new size.
+		 */
+		void truncate(final int size) {
+			count = size;
+		}
+	}
+
+	/**
+	 * the decoder thread decodes large frames of all framed channels and
+	 * delivers the messages of a channel in the order of their frames.
+	 * 
+	 * @author Jan S. Rellermeyer, ETH Zurich
+	 * @since 1.0
+	 */
+	private final class DecoderThread extends Thread {
+		DecoderThread(final int i) {
+			setName("TCPChannel:DecoderThread" + i); //$NON-NLS-1$
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					final Runnable r;
+					synchronized (decodeQueue) {
+						while (decodeQueue.isEmpty()) {
+							decodeQueue.wait();
+						}
+						r = (Runnable) decodeQueue.remove(0);
+					}
+					r.run();
+				}
+			} catch (final InterruptedException ie) {
+				// that's fine
+			}
+		}
+	}
+
 	/**
 	 * TCPThread, handles incoming tcp messages.
 	 */
@@ -399,7 +1672,8 @@ final class TCPChannelFactory implements NetworkChannelFactory {
 				try {
 					// accept incoming connections and build channel endpoints
 					// for them
-					remoting.createEndpoint(new TCPChannel(socket.accept()));
+					accepted(new TCPChannel(TCPChannelFactory.this, socket
+							.accept()));
 				} catch (final IOException ioe) {
 					// TODO: to log
 				}
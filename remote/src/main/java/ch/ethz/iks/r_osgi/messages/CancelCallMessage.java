@@ -0,0 +1,97 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi.messages;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * <p>
+ * CancelCallMessage tells the peer that the caller has abandoned a remote
+ * call. The message carries the transaction ID of the call. If the call has
+ * not started yet, the peer drops it, otherwise the peer interrupts the
+ * thread that executes it. The peer does not reply to cancelled calls.
+ * </p>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public final class CancelCallMessage extends RemoteOSGiMessage {
+
+	/**
+	 * creates a new CancelCallMessage.
+	 */
+	public CancelCallMessage() {
+		super(CANCEL_CALL);
+	}
+
+	/**
+	 * creates a new CancelCallMessage for a call.
+	 * 
+	 * @param xid
+	 *            the transaction ID of the call.
+	 */
+	public CancelCallMessage(final int xid) {
+		super(CANCEL_CALL);
+		this.xid = xid;
+	}
+
+	/**
+	 * write the body of the message to a stream. A CancelCallMessage has no
+	 * body:
+	 * 
+	 * <pre>
+	 *       0                   1                   2                   3
+	 *       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *      |  R-OSGi header (function = CancelCall = 17, XID of the call)  |
+	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * </pre>
+	 * 
+	 * .
+	 * 
+	 * @param out
+	 *            the ObjectOutputStream.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#getBody()
+	 */
+	public void writeBody(final ObjectOutputStream out) throws IOException {
+	}
+
+	/**
+	 * String representation for debug outputs.
+	 * 
+	 * @return a string representation.
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "[CANCEL_CALL] - XID: " + xid; //$NON-NLS-1$
+	}
+
+}
@@ -33,10 +33,15 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
 
 /**
  * Lease message. Is exchanged when a channel is established. Leases are the
- * implementations of the statements of supply and demand.
+ * implementations of the statements of supply and demand. The service
+ * properties are written entry by entry as tagged values, so that a lease with
+ * thousands of services does not go through the serialization of a
+ * <code>Hashtable</code> object graph per service.
  * 
  * @author Jan S. Rellermeyer, ETH Zurich
  * @since 0.6
@@ -80,7 +85,7 @@ public final class LeaseMessage extends RemoteOSGiMessage {
 	 *  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 	 *  |       R-OSGi header (function = Lease = 1)                    |
 	 *  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-	 *  |  Array of service info (Fragment#, Interface[], properties    \
+	 *  |  Array of service info (ID, Interface[], property entries     \
 	 *  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 	 *  |  Array of topic strings                                       \
 	 *  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
@@ -103,7 +108,7 @@ public final class LeaseMessage extends RemoteOSGiMessage {
 		for (short i = 0; i < serviceCount; i++) {
 			serviceIDs[i] = input.readUTF();
 			serviceInterfaces[i] = readStringArray(input);
-			serviceProperties[i] = (Dictionary) input.readObject();
+			serviceProperties[i] = readProperties(input);
 		}
 		topics = readStringArray(input);
 	}
@@ -199,11 +204,53 @@ public final class LeaseMessage extends RemoteOSGiMessage {
 		for (short i = 0; i < slen; i++) {
 			out.writeUTF(serviceIDs[i]);
 			writeStringArray(out, serviceInterfaces[i]);
-			out.writeObject(serviceProperties[i]);
+			writeProperties(out, serviceProperties[i]);
 		}
 		writeStringArray(out, topics);
 	}
 
+	/**
+	 * write service properties as a sequence of key and tagged value pairs.
+	 * 
+	 * @param out
+	 *            the output stream.
+	 * @param props
+	 *            the properties.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	private static void writeProperties(final ObjectOutputStream out,
+			final Dictionary props) throws IOException {
+		writeVarInt(out, props.size());
+		for (final Enumeration keys = props.keys(); keys.hasMoreElements();) {
+			final String key = (String) keys.nextElement();
+			out.writeUTF(key);
+			writeValue(out, props.get(key), null);
+		}
+	}
+
+	/**
+	 * read service properties.
+	 * 
+	 * @param input
+	 *            the input stream.
+	 * @return the properties.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @throws ClassNotFoundException
+	 *             if the class of a property value cannot be resolved.
+	 */
+	private static Dictionary readProperties(final ObjectInputStream input)
+			throws IOException, ClassNotFoundException {
+		final int size = readVarInt(input);
+		final Hashtable props = new Hashtable(size * 4 / 3 + 1);
+		for (int i = 0; i < size; i++) {
+			final String key = input.readUTF();
+			props.put(key, readValue(input, null));
+		}
+		return props;
+	}
+
 	/**
 	 * String representation for debug outputs.
 	 * 
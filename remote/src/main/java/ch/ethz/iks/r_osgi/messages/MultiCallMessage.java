@@ -0,0 +1,186 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.r_osgi.messages;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+/**
+ * <p>
+ * MultiCallMessage carries several remote calls to the same peer in one
+ * message. Each call keeps its own transaction ID, the results are returned
+ * as single <code>RemoteCallResultMessage</code>s.
+ * </p>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public final class MultiCallMessage extends RemoteOSGiMessage {
+
+	/**
+	 * the calls.
+	 */
+	private RemoteCallMessage[] calls;
+
+	/**
+	 * creates a new MultiCallMessage.
+	 */
+	public MultiCallMessage() {
+		super(MULTI_CALL);
+	}
+
+	/**
+	 * reads a MultiCallMessage from network packet:
+	 * 
+	 * <pre>
+	 *       0                   1                   2                   3
+	 *       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *      |       R-OSGi header (function = MultiCall = 15)               |
+	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *      |  number of calls (varint)  \
+	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *      |  XID of the call (varint)  |  body of the RemoteCallMessage   \
+	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * </pre>
+	 * 
+	 * .
+	 * 
+	 * @param input
+	 *            an <code>ObjectInputStream</code> that provides the body of a
+	 *            R-OSGi network packet.
+	 * @param segments
+	 *            the out-of-band segments of the packet, or <code>null</code>.
+	 * @return the message.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @throws ClassNotFoundException
+	 */
+	static MultiCallMessage read(final ObjectInputStream input,
+			final List segments) throws IOException, ClassNotFoundException {
+		final MultiCallMessage msg = new MultiCallMessage();
+		final int count = readVarInt(input);
+		msg.calls = new RemoteCallMessage[count];
+		for (int i = 0; i < count; i++) {
+			final int xid = readVarInt(input);
+			msg.calls[i] = RemoteCallMessage.read(input, segments);
+			msg.calls[i].xid = xid;
+		}
+		return msg;
+	}
+
+	/**
+	 * write the body of the message to a stream.
+	 * 
+	 * @param out
+	 *            the ObjectOutputStream.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#getBody()
+	 */
+	public void writeBody(final ObjectOutputStream out) throws IOException {
+		writeBody(out, null);
+	}
+
+	/**
+	 * write the body of the message to a stream and collect large byte array
+	 * arguments as out-of-band segments.
+	 * 
+	 * @param out
+	 *            the ObjectOutputStream.
+	 * @param segments
+	 *            the list of segments, or <code>null</code>.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#writeBody(java.io.ObjectOutputStream,
+	 *      java.util.List)
+	 */
+	protected void writeBody(final ObjectOutputStream out, final List segments)
+			throws IOException {
+		writeVarInt(out, calls.length);
+		for (int i = 0; i < calls.length; i++) {
+			writeVarInt(out, calls[i].xid);
+			calls[i].writeBody(out, segments);
+		}
+	}
+
+	/**
+	 * get the calls.
+	 * 
+	 * @return the calls.
+	 */
+	public RemoteCallMessage[] getCalls() {
+		return calls;
+	}
+
+	/**
+	 * set the calls.
+	 * 
+	 * @param calls
+	 *            the calls, each with its own transaction ID.
+	 */
+	public void setCalls(final RemoteCallMessage[] calls) {
+		this.calls = calls;
+	}
+
+	/**
+	 * recycle the calls of a received message.
+	 * 
+	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#recycle()
+	 */
+	public void recycle() {
+		if (calls != null) {
+			for (int i = 0; i < calls.length; i++) {
+				calls[i].recycle();
+			}
+			calls = null;
+		}
+	}
+
+	/**
+	 * String representation for debug outputs.
+	 * 
+	 * @return a string representation.
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		final StringBuffer buffer = new StringBuffer();
+		buffer.append("[MULTI_CALL] - XID: "); //$NON-NLS-1$
+		buffer.append(xid);
+		if (calls != null) {
+			for (int i = 0; i < calls.length; i++) {
+				buffer.append(", "); //$NON-NLS-1$
+				buffer.append(calls[i]);
+			}
+		}
+		return buffer.toString();
+	}
+
+}
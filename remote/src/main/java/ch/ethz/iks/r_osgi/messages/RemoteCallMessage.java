@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * <p>
@@ -58,6 +59,37 @@ public final class RemoteCallMessage extends RemoteOSGiMessage {
 	 */
 	private Object[] arguments;
 
+	/**
+	 * the interned id of the method, or 0.
+	 */
+	private int methodID;
+
+	/**
+	 * <code>true</code> if the message carries the service ID and method
+	 * signature together with the method id.
+	 */
+	private boolean defineMethod;
+
+	/**
+	 * the time budget of the call in milliseconds, or 0.
+	 */
+	private int timeout;
+
+	/**
+	 * the local time at which the budget of a received call expires, or 0.
+	 */
+	private long deadline;
+
+	/**
+	 * the recycled messages.
+	 */
+	private static final RemoteCallMessage[] pool = new RemoteCallMessage[POOL_SIZE];
+
+	/**
+	 * the number of messages in the pool.
+	 */
+	private static int pooled;
+
 	/**
 	 * creates a new InvokeMethodMessage.
 	 */
@@ -66,7 +98,51 @@ public final class RemoteCallMessage extends RemoteOSGiMessage {
 	}
 
 	/**
-	 * creates a new InvokeMethodMessage from network packet:
+	 * get a message from the pool or create a new one if the pool is empty.
+	 * 
+	 * @return an empty message.
+	 * @since 1.0
+	 */
+	public static RemoteCallMessage obtain() {
+		synchronized (pool) {
+			if (pooled > 0) {
+				final RemoteCallMessage msg = pool[--pooled];
+				pool[pooled] = null;
+				msg.recycled = false;
+				return msg;
+			}
+		}
+		return new RemoteCallMessage();
+	}
+
+	/**
+	 * clear the message and put it back into the pool.
+	 * 
+	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#recycle()
+	 * @since 1.0
+	 */
+	public void recycle() {
+		synchronized (pool) {
+			if (recycled) {
+				return;
+			}
+			xid = 0;
+			serviceID = null;
+			methodSignature = null;
+			arguments = null;
+			methodID = 0;
+			defineMethod = false;
+			timeout = 0;
+			deadline = 0;
+			if (pooled < pool.length) {
+				recycled = true;
+				pool[pooled++] = this;
+			}
+		}
+	}
+
+	/**
+	 * reads an InvokeMethodMessage from network packet:
 	 * 
 	 * <pre>
 	 *       0                   1                   2                   3
@@ -74,34 +150,57 @@ public final class RemoteCallMessage extends RemoteOSGiMessage {
 	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 	 *      |       R-OSGi header (function = InvokeMsg = 3)                |
 	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *      |  method id and define flag (varint)  \
+	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 	 *      |   length of &lt;serviceID&gt;     |    &lt;serviceID&gt; String       \
 	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 	 *      |    length of &lt;MethodSignature&gt;     |     &lt;MethodSignature&gt; String       \
 	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-	 *      |   number of param blocks      |     Param blocks (if any)     \
+	 *      |   number of param blocks      |  time budget (varint, if any) \
+	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *      |     Param blocks (if any)     \
 	 *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 	 * </pre>
 	 * 
-	 * .
+	 * . The service ID and the method signature are only present if the
+	 * method id is 0 or the define flag is set. If the call carries a time
+	 * budget, the number of param blocks is written as its one's complement
+	 * and followed by the budget in milliseconds. Each param block starts
+	 * with a tag byte. Null, boolean, int, long, double, String, and byte[]
+	 * arguments are written as raw data, all other arguments as serialized
+	 * objects.
 	 * 
 	 * @param input
 	 *            an <code>ObjectInputStream</code> that provides the body of a
 	 *            R-OSGi network packet.
+	 * @param segments
+	 *            the out-of-band segments of the packet, or <code>null</code>.
+	 * @return the message, taken from the pool if possible.
 	 * @throws IOException
 	 *             in case of IO failures.
 	 * @throws ClassNotFoundException
 	 */
-	RemoteCallMessage(final ObjectInputStream input) throws IOException,
-			ClassNotFoundException {
-		super(REMOTE_CALL);
-
-		serviceID = input.readUTF();
-		methodSignature = input.readUTF();
-		final short argLength = input.readShort();
-		arguments = new Object[argLength];
+	static RemoteCallMessage read(final ObjectInputStream input,
+			final List segments) throws IOException, ClassNotFoundException {
+		final RemoteCallMessage msg = obtain();
+		final int id = readVarInt(input);
+		msg.methodID = id >>> 1;
+		msg.defineMethod = (id & 1) != 0;
+		if (msg.methodID == 0 || msg.defineMethod) {
+			msg.serviceID = input.readUTF();
+			msg.methodSignature = input.readUTF();
+		}
+		short argLength = input.readShort();
+		if (argLength < 0) {
+			argLength = (short) ~argLength;
+			msg.timeout = readVarInt(input);
+			msg.deadline = System.currentTimeMillis() + msg.timeout;
+		}
+		msg.arguments = new Object[argLength];
 		for (short i = 0; i < argLength; i++) {
-			arguments[i] = input.readObject();
+			msg.arguments[i] = readValue(input, segments);
 		}
+		return msg;
 	}
 
 	/**
@@ -114,11 +213,37 @@ public final class RemoteCallMessage extends RemoteOSGiMessage {
 	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#getBody()
 	 */
 	public void writeBody(final ObjectOutputStream out) throws IOException {
-		out.writeUTF(serviceID);
-		out.writeUTF(methodSignature);
-		out.writeShort(arguments.length);
+		writeBody(out, null);
+	}
+
+	/**
+	 * write the body of the message to a stream and collect large byte array
+	 * arguments as out-of-band segments.
+	 * 
+	 * @param out
+	 *            the ObjectOutputStream.
+	 * @param segments
+	 *            the list of segments, or <code>null</code>.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#writeBody(java.io.ObjectOutputStream,
+	 *      java.util.List)
+	 */
+	protected void writeBody(final ObjectOutputStream out, final List segments)
+			throws IOException {
+		writeVarInt(out, methodID << 1 | (defineMethod ? 1 : 0));
+		if (methodID == 0 || defineMethod) {
+			out.writeUTF(serviceID);
+			out.writeUTF(methodSignature);
+		}
+		if (timeout > 0) {
+			out.writeShort(~arguments.length);
+			writeVarInt(out, timeout);
+		} else {
+			out.writeShort(arguments.length);
+		}
 		for (short i = 0; i < arguments.length; i++) {
-			out.writeObject(arguments[i]);
+			writeValue(out, arguments[i], segments);
 		}
 	}
 
@@ -179,6 +304,77 @@ public final class RemoteCallMessage extends RemoteOSGiMessage {
 		this.methodSignature = methodSignature;
 	}
 
+	/**
+	 * get the interned method id.
+	 * 
+	 * @return the method id, or 0 if the method is not interned.
+	 * @since 1.0
+	 */
+	public int getMethodID() {
+		return methodID;
+	}
+
+	/**
+	 * does the message define the method id, i.e., does it carry the service
+	 * ID and the method signature together with the id ?
+	 * 
+	 * @return <code>true</code> if the message defines the method id.
+	 * @since 1.0
+	 */
+	public boolean definesMethod() {
+		return defineMethod;
+	}
+
+	/**
+	 * set the interned method id. If the id is not defined, only the id is
+	 * sent and the receiver resolves the service ID and the method signature
+	 * from its table.
+	 * 
+	 * @param methodID
+	 *            the method id.
+	 * @param define
+	 *            <code>true</code> to send the service ID and the method
+	 *            signature with the id.
+	 * @since 1.0
+	 */
+	public void setMethodID(final int methodID, final boolean define) {
+		this.methodID = methodID;
+		this.defineMethod = define;
+	}
+
+	/**
+	 * get the time budget of the call.
+	 * 
+	 * @return the time budget in milliseconds, or 0 if the call has none.
+	 * @since 1.0
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * set the time budget of the call. The receiver drops the call if the
+	 * budget has expired before the call could be processed. Only peers that
+	 * understand deadlines can read calls with a budget.
+	 * 
+	 * @param timeout
+	 *            the time budget in milliseconds, or 0 for none.
+	 * @since 1.0
+	 */
+	public void setTimeout(final int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * get the local time at which the budget of a received call expires.
+	 * 
+	 * @return the deadline, or 0 if the call has no budget.
+	 * @since 1.0
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
 	/**
 	 * String representation for debug outputs.
 	 * 
@@ -193,6 +389,8 @@ public final class RemoteCallMessage extends RemoteOSGiMessage {
 		buffer.append(serviceID);
 		buffer.append(", methodName: "); //$NON-NLS-1$
 		buffer.append(methodSignature);
+		buffer.append(", methodID: "); //$NON-NLS-1$
+		buffer.append(methodID);
 		buffer.append(", params: "); //$NON-NLS-1$
 		buffer.append(arguments == null ? "" : Arrays.asList(arguments) //$NON-NLS-1$
 				.toString());
@@ -31,6 +31,7 @@ package ch.ethz.iks.r_osgi.messages;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.List;
 
 /**
  * <p>
@@ -58,6 +59,16 @@ public final class RemoteCallResultMessage extends RemoteOSGiMessage {
 	 */
 	private Throwable exception;
 
+	/**
+	 * the recycled messages.
+	 */
+	private static final RemoteCallResultMessage[] pool = new RemoteCallResultMessage[POOL_SIZE];
+
+	/**
+	 * the number of messages in the pool.
+	 */
+	private static int pooled;
+
 	/**
 	 * creates a new MethodResultMessage from InvokeMethodMessage and set the
 	 * exception.
@@ -67,7 +78,47 @@ public final class RemoteCallResultMessage extends RemoteOSGiMessage {
 	}
 
 	/**
-	 * creates a new MethodResultMessage from network packet:
+	 * get a message from the pool or create a new one if the pool is empty.
+	 * 
+	 * @return an empty message.
+	 * @since 1.0
+	 */
+	public static RemoteCallResultMessage obtain() {
+		synchronized (pool) {
+			if (pooled > 0) {
+				final RemoteCallResultMessage msg = pool[--pooled];
+				pool[pooled] = null;
+				msg.recycled = false;
+				return msg;
+			}
+		}
+		return new RemoteCallResultMessage();
+	}
+
+	/**
+	 * clear the message and put it back into the pool.
+	 * 
+	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#recycle()
+	 * @since 1.0
+	 */
+	public void recycle() {
+		synchronized (pool) {
+			if (recycled) {
+				return;
+			}
+			xid = 0;
+			errorFlag = 0;
+			result = null;
+			exception = null;
+			if (pooled < pool.length) {
+				recycled = true;
+				pool[pooled++] = this;
+			}
+		}
+	}
+
+	/**
+	 * reads a MethodResultMessage from network packet:
 	 * 
 	 * <pre>
 	 *       0                   1                   2                   3
@@ -84,21 +135,23 @@ public final class RemoteCallResultMessage extends RemoteOSGiMessage {
 	 * @param input
 	 *            an <code>ObjectInputStream</code> that provides the body of a
 	 *            R-OSGi network packet.
+	 * @param segments
+	 *            the out-of-band segments of the packet, or <code>null</code>.
+	 * @return the message, taken from the pool if possible.
 	 * @throws IOException
 	 *             in case of IO failures.
 	 * @throws ClassNotFoundException
 	 */
-	RemoteCallResultMessage(final ObjectInputStream input) throws IOException,
-			ClassNotFoundException {
-		super(REMOTE_CALL_RESULT);
-		errorFlag = input.readByte();
-		if (errorFlag == 0) {
-			result = input.readObject();
-			exception = null;
+	static RemoteCallResultMessage read(final ObjectInputStream input,
+			final List segments) throws IOException, ClassNotFoundException {
+		final RemoteCallResultMessage msg = obtain();
+		msg.errorFlag = input.readByte();
+		if (msg.errorFlag == 0) {
+			msg.result = readValue(input, segments);
 		} else {
-			exception = (Throwable) input.readObject();
-			result = null;
+			msg.exception = (Throwable) input.readObject();
 		}
+		return msg;
 	}
 
 	/**
@@ -111,9 +164,27 @@ public final class RemoteCallResultMessage extends RemoteOSGiMessage {
 	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#getBody()
 	 */
 	public void writeBody(final ObjectOutputStream out) throws IOException {
+		writeBody(out, null);
+	}
+
+	/**
+	 * write the body of the message to a stream and collect a large byte
+	 * array result as out-of-band segment.
+	 * 
+	 * @param out
+	 *            the ObjectOutputStream.
+	 * @param segments
+	 *            the list of segments, or <code>null</code>.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @see ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage#writeBody(java.io.ObjectOutputStream,
+	 *      java.util.List)
+	 */
+	protected void writeBody(final ObjectOutputStream out, final List segments)
+			throws IOException {
 		if (exception == null) {
 			out.writeByte(0);
-			out.writeObject(result);
+			writeValue(out, result, segments);
 		} else {
 			out.writeByte(1);
 			out.writeObject(exception);
@@ -32,8 +32,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.SocketException;
+import java.util.List;
 
 import ch.ethz.iks.r_osgi.RemoteOSGiException;
+import ch.ethz.iks.r_osgi.types.BoxedPrimitive;
 
 /**
  * <p>
@@ -117,7 +119,95 @@ public abstract class RemoteOSGiMessage {
 	 */
 	public static final short DELIVER_BUNDLES = 14;
 
+	/**
+	 * type code for multi call messages.
+	 * 
+	 * @since 1.0
+	 */
+	public static final short MULTI_CALL = 15;
+
+	/**
+	 * type code for multi call result messages.
+	 * 
+	 * @since 1.0
+	 */
+	public static final short MULTI_CALL_RESULT = 16;
+
+	/**
+	 * type code for cancel call messages.
+	 * 
+	 * @since 1.0
+	 */
+	public static final short CANCEL_CALL = 17;
+
 	
+	/**
+	 * value tag for <code>null</code>.
+	 */
+	private static final byte VALUE_NULL = 0;
+
+	/**
+	 * value tag for <code>Boolean.FALSE</code>.
+	 */
+	private static final byte VALUE_FALSE = 1;
+
+	/**
+	 * value tag for <code>Boolean.TRUE</code>.
+	 */
+	private static final byte VALUE_TRUE = 2;
+
+	/**
+	 * value tag for <code>Integer</code>.
+	 */
+	private static final byte VALUE_INT = 3;
+
+	/**
+	 * value tag for <code>Long</code>.
+	 */
+	private static final byte VALUE_LONG = 4;
+
+	/**
+	 * value tag for <code>Double</code>.
+	 */
+	private static final byte VALUE_DOUBLE = 5;
+
+	/**
+	 * value tag for <code>String</code>.
+	 */
+	private static final byte VALUE_STRING = 6;
+
+	/**
+	 * value tag for <code>byte[]</code>.
+	 */
+	private static final byte VALUE_BYTES = 7;
+
+	/**
+	 * value tag for all other objects.
+	 */
+	private static final byte VALUE_OBJECT = 8;
+
+	/**
+	 * value tag for <code>byte[]</code> transferred as out-of-band segment.
+	 */
+	private static final byte VALUE_SEGMENT = 9;
+
+	/**
+	 * the minimum size of a byte array that is transferred as out-of-band
+	 * segment.
+	 */
+	private static final int MIN_SEGMENT_SIZE = 8192;
+
+	/**
+	 * the maximum length of a string that is guaranteed to fit into modified
+	 * UTF-8 encoding.
+	 */
+	private static final int MAX_UTF_CHARS = 0xFFFF / 3;
+
+	/**
+	 * the number of recycled instances that are kept per pooled message type.
+	 */
+	static final int POOL_SIZE = 32;
+
 	/**
 	 * the type code or functionID in SLP notation.
 	 */
@@ -128,6 +218,11 @@ public abstract class RemoteOSGiMessage {
 	 */
 	protected int xid;
 
+	/**
+	 * <code>true</code> while the message is in the pool of its type.
+	 */
+	boolean recycled;
+
 	/**
 	 * hides the default constructor.
 	 */
@@ -167,6 +262,26 @@ public abstract class RemoteOSGiMessage {
 		return funcID;
 	}
 
+	/**
+	 * check if the message belongs to the control plane, i.e., is a lease
+	 * update, a time offset, or a cancellation. Control messages are small
+	 * and should not wait behind bulk traffic like remote calls, bundle
+	 * transfers, or streams.
+	 * 
+	 * @return <code>true</code> for control messages.
+	 * @since 1.0
+	 */
+	public final boolean isControl() {
+		switch (funcID) {
+		case LEASE_UPDATE:
+		case TIME_OFFSET:
+		case CANCEL_CALL:
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	/**
 	 * reads in a network packet and constructs the corresponding subtype of
 	 * RemoteOSGiMessage from it. The header is:
@@ -195,6 +310,56 @@ public abstract class RemoteOSGiMessage {
 		input.readByte(); // version, currently unused
 		final short funcID = input.readByte();
 		final int xid = input.readInt();
+		return parse(funcID, xid, input);
+	}
+
+	/**
+	 * constructs the corresponding subtype of RemoteOSGiMessage from a message
+	 * body. Used by transports that read the header themselves, e.g., because
+	 * they frame the messages on the wire.
+	 * 
+	 * @param funcID
+	 *            the function ID from the header.
+	 * @param xid
+	 *            the transaction ID from the header.
+	 * @param input
+	 *            the input stream positioned at the start of the body.
+	 * @return the RemoteOSGiMessage.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @throws ClassNotFoundException
+	 *             if the body contains objects of unknown classes.
+	 * @since 1.0
+	 */
+	public static RemoteOSGiMessage parse(final short funcID, final int xid,
+			final ObjectInputStream input) throws IOException,
+			ClassNotFoundException {
+		return parse(funcID, xid, input, null);
+	}
+
+	/**
+	 * constructs the corresponding subtype of RemoteOSGiMessage from a message
+	 * body and the out-of-band segments that were transferred with it.
+	 * 
+	 * @param funcID
+	 *            the function ID from the header.
+	 * @param xid
+	 *            the transaction ID from the header.
+	 * @param input
+	 *            the input stream positioned at the start of the body.
+	 * @param segments
+	 *            the list of segments in the order in which they were
+	 *            collected by <code>sendBody</code>, or <code>null</code>.
+	 * @return the RemoteOSGiMessage.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @throws ClassNotFoundException
+	 *             if the body contains objects of unknown classes.
+	 * @since 1.0
+	 */
+	public static RemoteOSGiMessage parse(final short funcID, final int xid,
+			final ObjectInputStream input, final List segments)
+			throws IOException, ClassNotFoundException {
 		RemoteOSGiMessage msg;
 		switch (funcID) {
 		case LEASE:
@@ -207,10 +372,10 @@ public abstract class RemoteOSGiMessage {
 			msg = new DeliverServiceMessage(input);
 			break;
 		case REMOTE_CALL:
-			msg = new RemoteCallMessage(input);
+			msg = RemoteCallMessage.read(input, segments);
 			break;
 		case REMOTE_CALL_RESULT:
-			msg = new RemoteCallResultMessage(input);
+			msg = RemoteCallResultMessage.read(input, segments);
 			break;
 		case REMOTE_EVENT:
 			msg = new RemoteEventMessage(input);
@@ -236,6 +401,15 @@ public abstract class RemoteOSGiMessage {
 		case DELIVER_BUNDLES:
 			msg = new DeliverBundlesMessage(input);
 			break;
+		case MULTI_CALL:
+			msg = MultiCallMessage.read(input, segments);
+			break;
+		case MULTI_CALL_RESULT:
+			msg = MultiCallResultMessage.read(input, segments);
+			break;
+		case CANCEL_CALL:
+			msg = new CancelCallMessage();
+			break;
 		default:
 			throw new RemoteOSGiException("funcID " + funcID //$NON-NLS-1$
 					+ " not supported."); //$NON-NLS-1$ 
@@ -246,7 +420,22 @@ public abstract class RemoteOSGiMessage {
 	}
 
 	/**
-	 * write the RemoteOSGiMessage to an output stream.
+	 * hand the message back for reuse. The caller must not access the message
+	 * afterwards. Only the messages of the invocation path are pooled, for all
+	 * other messages this is a no-op. Messages that have been passed to a
+	 * network channel must not be recycled before the peer has replied to
+	 * them, since transports may encode them asynchronously.
+	 * 
+	 * @since 1.0
+	 */
+	public void recycle() {
+		// not pooled
+	}
+
+	/**
+	 * write the RemoteOSGiMessage to an output stream. The handle table of the
+	 * stream is reset after each message so that the stream does not hold on
+	 * to the objects that have been sent.
 	 * 
 	 * @param out
 	 *            the ObjectOutputStream.
@@ -259,7 +448,46 @@ public abstract class RemoteOSGiMessage {
 			out.write(funcID);
 			out.writeInt(xid);
 			writeBody(out);
-			//out.reset();
+			out.reset();
+			out.flush();
+		}
+	}
+
+	/**
+	 * write only the body of the RemoteOSGiMessage to an output stream. Used by
+	 * transports that write the header themselves.
+	 * 
+	 * @param out
+	 *            the ObjectOutputStream.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @since 1.0
+	 */
+	public final void sendBody(final ObjectOutputStream out)
+			throws IOException {
+		synchronized (out) {
+			writeBody(out);
+			out.flush();
+		}
+	}
+
+	/**
+	 * write only the body of the RemoteOSGiMessage to an output stream and
+	 * collect large byte arrays as out-of-band segments. Used by transports
+	 * that can transfer the segments behind the body without copying them.
+	 * 
+	 * @param out
+	 *            the ObjectOutputStream.
+	 * @param segments
+	 *            the list to which the segments are added.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @since 1.0
+	 */
+	public final void sendBody(final ObjectOutputStream out,
+			final List segments) throws IOException {
+		synchronized (out) {
+			writeBody(out, segments);
 			out.flush();
 		}
 	}
@@ -275,6 +503,24 @@ public abstract class RemoteOSGiMessage {
 	protected abstract void writeBody(final ObjectOutputStream output)
 			throws IOException;
 
+	/**
+	 * write the body of a RemoteOSGiMessage and collect large byte arrays as
+	 * out-of-band segments. Messages that carry bulk data override this
+	 * method, the default writes the whole body inline.
+	 * 
+	 * @param output
+	 *            the output stream.
+	 * @param segments
+	 *            the list to which the segments are added.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @since 1.0
+	 */
+	protected void writeBody(final ObjectOutputStream output,
+			final List segments) throws IOException {
+		writeBody(output);
+	}
+
 	/**
 	 * reads the bytes encoded as SLP string.
 	 * 
@@ -310,6 +556,159 @@ public abstract class RemoteOSGiMessage {
 		}
 	}
 
+	/**
+	 * write a single value, e.g., a method argument or a return value. Values
+	 * of the common types are written as raw data preceded by a tag byte, all
+	 * other objects go through object serialization.
+	 * 
+	 * @param out
+	 *            the output stream.
+	 * @param value
+	 *            the value.
+	 * @param segments
+	 *            the list that collects large byte arrays as out-of-band
+	 *            segments, or <code>null</code> if the transport does not
+	 *            support segments.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @since 1.0
+	 */
+	protected static void writeValue(final ObjectOutputStream out,
+			final Object value, final List segments) throws IOException {
+		final Object obj = value instanceof BoxedPrimitive ? ((BoxedPrimitive) value)
+				.getBoxed()
+				: value;
+		if (obj == null) {
+			out.writeByte(VALUE_NULL);
+		} else if (obj instanceof String) {
+			final String str = (String) obj;
+			if (str.length() <= MAX_UTF_CHARS) {
+				out.writeByte(VALUE_STRING);
+				out.writeUTF(str);
+			} else {
+				out.writeByte(VALUE_OBJECT);
+				out.writeObject(str);
+			}
+		} else if (obj instanceof Integer) {
+			out.writeByte(VALUE_INT);
+			out.writeInt(((Integer) obj).intValue());
+		} else if (obj instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong(((Long) obj).longValue());
+		} else if (obj instanceof Boolean) {
+			out.writeByte(((Boolean) obj).booleanValue() ? VALUE_TRUE
+					: VALUE_FALSE);
+		} else if (obj instanceof Double) {
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble(((Double) obj).doubleValue());
+		} else if (obj instanceof byte[]) {
+			final byte[] bytes = (byte[]) obj;
+			if (segments != null && bytes.length >= MIN_SEGMENT_SIZE) {
+				out.writeByte(VALUE_SEGMENT);
+				segments.add(bytes);
+			} else {
+				out.writeByte(VALUE_BYTES);
+				writeBytes(out, bytes);
+			}
+		} else {
+			out.writeByte(VALUE_OBJECT);
+			out.writeObject(obj);
+		}
+	}
+
+	/**
+	 * read a single value that was written by <code>writeValue</code>.
+	 * 
+	 * @param in
+	 *            the input stream.
+	 * @param segments
+	 *            the remaining out-of-band segments of the message, or
+	 *            <code>null</code>.
+	 * @return the value.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @throws ClassNotFoundException
+	 *             if the value is an object of an unknown class.
+	 * @since 1.0
+	 */
+	protected static Object readValue(final ObjectInputStream in,
+			final List segments) throws IOException, ClassNotFoundException {
+		final byte tag = in.readByte();
+		switch (tag) {
+		case VALUE_NULL:
+			return null;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_INT:
+			return new Integer(in.readInt());
+		case VALUE_LONG:
+			return new Long(in.readLong());
+		case VALUE_DOUBLE:
+			return new Double(in.readDouble());
+		case VALUE_STRING:
+			return in.readUTF();
+		case VALUE_BYTES:
+			return readBytes(in);
+		case VALUE_OBJECT:
+			return in.readObject();
+		case VALUE_SEGMENT:
+			if (segments == null || segments.isEmpty()) {
+				throw new RemoteOSGiException("missing segment"); //$NON-NLS-1$
+			}
+			return segments.remove(0);
+		default:
+			throw new RemoteOSGiException("value tag " + tag //$NON-NLS-1$
+					+ " not supported."); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * write a non-negative integer in variable-length encoding, seven bits per
+	 * byte, least significant group first.
+	 * 
+	 * @param out
+	 *            the output stream.
+	 * @param value
+	 *            the value.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @since 1.0
+	 */
+	protected static void writeVarInt(final ObjectOutputStream out,
+			final int value) throws IOException {
+		int v = value;
+		while ((v & ~0x7F) != 0) {
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	/**
+	 * read an integer in variable-length encoding.
+	 * 
+	 * @param in
+	 *            the input stream.
+	 * @return the value.
+	 * @throws IOException
+	 *             in case of IO failures.
+	 * @since 1.0
+	 */
+	protected static int readVarInt(final ObjectInputStream in)
+			throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new RemoteOSGiException("malformed variable-length integer"); //$NON-NLS-1$
+	}
+
 	/**
 	 * write a string array.
 	 * 
@@ -0,0 +1,267 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.util;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block compression codec for messages. A codec compresses a block of bytes
+ * in one piece, which makes it possible to decide for every single message if
+ * compression pays off. Instances are not thread-safe for compression but
+ * decompression is stateless and can be used concurrently.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public abstract class CompressionCodec {
+
+	/**
+	 * no compression.
+	 */
+	public static final byte NONE = 0;
+
+	/**
+	 * deflate (zlib) compression at best speed.
+	 */
+	public static final byte DEFLATE = 1;
+
+	/**
+	 * fast LZF block compression with a lower ratio than deflate.
+	 */
+	public static final byte FAST = 2;
+
+	/**
+	 * the names of the codecs, by codec id.
+	 */
+	private static final String[] NAMES = { "none", "deflate", "fast" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+	/**
+	 * the bit mask of all supported codecs.
+	 */
+	public static final int SUPPORTED = 1 << NONE | 1 << DEFLATE | 1 << FAST;
+
+	/**
+	 * shared instances for decompression.
+	 */
+	private static final CompressionCodec[] DECOMPRESSORS = { null,
+			new DeflateCodec(), new LZFCodec() };
+
+	/**
+	 * get the codec id.
+	 * 
+	 * @return the id.
+	 */
+	public abstract byte getId();
+
+	/**
+	 * compress a block.
+	 * 
+	 * @param in
+	 *            the input buffer.
+	 * @param inOff
+	 *            the offset of the block.
+	 * @param inLen
+	 *            the length of the block.
+	 * @param out
+	 *            the output buffer. Must have at least
+	 *            <code>maxCompressedLength(inLen)</code> bytes after
+	 *            <code>outOff</code>.
+	 * @param outOff
+	 *            the output offset.
+	 * @return the length of the compressed block.
+	 */
+	public abstract int compress(final byte[] in, final int inOff,
+			final int inLen, final byte[] out, final int outOff);
+
+	/**
+	 * decompress a block.
+	 * 
+	 * @param in
+	 *            the input buffer.
+	 * @param inOff
+	 *            the offset of the compressed block.
+	 * @param inLen
+	 *            the length of the compressed block.
+	 * @param out
+	 *            the output buffer.
+	 * @param outOff
+	 *            the output offset.
+	 * @param outLen
+	 *            the length of the uncompressed block.
+	 * @throws IOException
+	 *             if the block is corrupt.
+	 */
+	public abstract void decompress(final byte[] in, final int inOff,
+			final int inLen, final byte[] out, final int outOff,
+			final int outLen) throws IOException;
+
+	/**
+	 * get the maximum length of a compressed block.
+	 * 
+	 * @param len
+	 *            the length of the uncompressed block.
+	 * @return the maximum length of the compressed block.
+	 */
+	public static int maxCompressedLength(final int len) {
+		return len + (len >> 5) + 64;
+	}
+
+	/**
+	 * create a new codec for compression.
+	 * 
+	 * @param id
+	 *            the codec id.
+	 * @return the codec or <code>null</code> for <code>NONE</code>.
+	 */
+	public static CompressionCodec create(final int id) {
+		switch (id) {
+		case NONE:
+			return null;
+		case DEFLATE:
+			return new DeflateCodec();
+		case FAST:
+			return new LZFCodec();
+		default:
+			throw new IllegalArgumentException("Unknown codec " + id); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * decompress a block with a shared codec instance.
+	 * 
+	 * @param id
+	 *            the codec id.
+	 * @param in
+	 *            the input buffer.
+	 * @param inOff
+	 *            the offset of the compressed block.
+	 * @param inLen
+	 *            the length of the compressed block.
+	 * @param out
+	 *            the output buffer.
+	 * @param outOff
+	 *            the output offset.
+	 * @param outLen
+	 *            the length of the uncompressed block.
+	 * @throws IOException
+	 *             if the codec is unknown or the block is corrupt.
+	 */
+	public static void decompress(final int id, final byte[] in,
+			final int inOff, final int inLen, final byte[] out,
+			final int outOff, final int outLen) throws IOException {
+		if (id <= NONE || id >= DECOMPRESSORS.length) {
+			throw new IOException("Unknown codec " + id); //$NON-NLS-1$
+		}
+		DECOMPRESSORS[id].decompress(in, inOff, inLen, out, outOff, outLen);
+	}
+
+	/**
+	 * get the codec id for a name.
+	 * 
+	 * @param name
+	 *            the name, one of "none", "deflate", and "fast".
+	 * @return the codec id.
+	 */
+	public static byte forName(final String name) {
+		for (byte i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown codec " + name); //$NON-NLS-1$
+	}
+
+	/**
+	 * get the name of a codec.
+	 * 
+	 * @param id
+	 *            the codec id.
+	 * @return the name.
+	 */
+	public static String getName(final int id) {
+		return id >= 0 && id < NAMES.length ? NAMES[id] : String.valueOf(id);
+	}
+
+	/**
+	 * the deflate codec.
+	 */
+	private static final class DeflateCodec extends CompressionCodec {
+
+		private Deflater deflater;
+
+		public byte getId() {
+			return DEFLATE;
+		}
+
+		public int compress(final byte[] in, final int inOff,
+				final int inLen, final byte[] out, final int outOff) {
+			if (deflater == null) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+			}
+			deflater.reset();
+			deflater.setInput(in, inOff, inLen);
+			deflater.finish();
+			int pos = outOff;
+			while (!deflater.finished()) {
+				pos += deflater.deflate(out, pos, out.length - pos);
+			}
+			return pos - outOff;
+		}
+
+		public void decompress(final byte[] in, final int inOff,
+				final int inLen, final byte[] out, final int outOff,
+				final int outLen) throws IOException {
+			final Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(in, inOff, inLen);
+				int pos = outOff;
+				while (pos < outOff + outLen) {
+					final int n = inflater.inflate(out, pos, outOff + outLen
+							- pos);
+					if (n == 0 && (inflater.finished()
+							|| inflater.needsInput() || inflater
+							.needsDictionary())) {
+						break;
+					}
+					pos += n;
+				}
+				if (pos != outOff + outLen) {
+					throw new IOException("Corrupt deflate block"); //$NON-NLS-1$
+				}
+			} catch (final DataFormatException dfe) {
+				throw new IOException(dfe.getMessage());
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+}
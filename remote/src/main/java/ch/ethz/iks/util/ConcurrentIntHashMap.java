@@ -0,0 +1,175 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.util;
+
+/**
+ * Thread-safe hash map with primitive int keys. The keys are spread over a
+ * number of stripes, each of which is an <code>IntHashMap</code> with its own
+ * lock, so that threads that access different keys rarely contend.
+ * Consecutive transaction IDs go to different stripes. The map does not
+ * accept <code>null</code> values.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public final class ConcurrentIntHashMap {
+
+	/**
+	 * the stripes.
+	 */
+	private final IntHashMap[] stripes;
+
+	/**
+	 * the mask to select a stripe.
+	 */
+	private final int mask;
+
+	/**
+	 * create a new map with 16 stripes.
+	 */
+	public ConcurrentIntHashMap() {
+		this(16);
+	}
+
+	/**
+	 * create a new map.
+	 * 
+	 * @param concurrency
+	 *            the expected number of concurrently accessing threads, is
+	 *            rounded up to a power of two.
+	 */
+	public ConcurrentIntHashMap(final int concurrency) {
+		int n = 1;
+		while (n < concurrency) {
+			n <<= 1;
+		}
+		stripes = new IntHashMap[n];
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new IntHashMap();
+		}
+		mask = n - 1;
+	}
+
+	/**
+	 * get the value of a key.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the value or <code>null</code>.
+	 */
+	public Object get(final int key) {
+		final IntHashMap stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.get(key);
+		}
+	}
+
+	/**
+	 * put a value.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @param value
+	 *            the value, must not be <code>null</code>.
+	 * @return the previous value or <code>null</code>.
+	 */
+	public Object put(final int key, final Object value) {
+		final IntHashMap stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.put(key, value);
+		}
+	}
+
+	/**
+	 * remove a key.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the value or <code>null</code>.
+	 */
+	public Object remove(final int key) {
+		final IntHashMap stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.remove(key);
+		}
+	}
+
+	/**
+	 * get the stripe of a key. The high bits are folded in and the lowest bit
+	 * is dropped, since the transaction IDs of a channel are all even or all
+	 * odd and would otherwise only use half of the stripes.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the stripe.
+	 */
+	private IntHashMap stripe(final int key) {
+		return stripes[((key ^ key >>> 16) >>> 1) & mask];
+	}
+
+	/**
+	 * get the number of entries. The result is not a snapshot if the map is
+	 * modified concurrently.
+	 * 
+	 * @return the size.
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			synchronized (stripes[i]) {
+				size += stripes[i].size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * remove all entries and return the removed values.
+	 * 
+	 * @return the values that were in the map.
+	 */
+	public Object[] clear() {
+		final Object[][] parts = new Object[stripes.length][];
+		int size = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			synchronized (stripes[i]) {
+				parts[i] = stripes[i].values();
+				stripes[i].clear();
+			}
+			size += parts[i].length;
+		}
+		final Object[] result = new Object[size];
+		int pos = 0;
+		for (int i = 0; i < parts.length; i++) {
+			System.arraycopy(parts[i], 0, result, pos, parts[i].length);
+			pos += parts[i].length;
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,289 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ch.ethz.iks.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ * Table of class descriptors that have been transferred over one direction of
+ * a channel. The sender assigns an id to each class the first time its
+ * descriptor is written and afterwards only writes the id. The receiver keeps
+ * the descriptors indexed by id, so that they survive the reset of the handle
+ * table of the object streams between two messages.
+ * </p>
+ * <p>
+ * The table is bounded. When the sender has assigned <code>capacity</code>
+ * ids, further descriptors are written in full, as without the table. Since
+ * messages of a channel may be decoded in parallel, the receiver waits for
+ * the definition of an id that it has not yet seen, unless the channel decodes
+ * its messages in order.
+ * </p>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public final class DescriptorTable {
+
+	/**
+	 * the default capacity.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * how long the receiver waits for the definition of an id by default.
+	 */
+	private static final long TIMEOUT = 30000;
+
+	/**
+	 * the capacity.
+	 */
+	private final int capacity;
+
+	/**
+	 * how long the receiver waits for the definition of an id.
+	 */
+	private final long timeout;
+
+	/**
+	 * the ids assigned by the sender. Map of key -> Integer.
+	 */
+	private final WeakHashMap ids = new WeakHashMap();
+
+	/**
+	 * the next id to assign.
+	 */
+	private int nextID = 1;
+
+	/**
+	 * the descriptors known to the receiver, indexed by id.
+	 */
+	private Object[] descriptors = new Object[0];
+
+	/**
+	 * the number of descriptors known to the receiver.
+	 */
+	private int defined;
+
+	/**
+	 * the number of descriptors that have been written or read as a
+	 * reference.
+	 */
+	private long references;
+
+	/**
+	 * create a new descriptor table.
+	 * 
+	 * @param capacity
+	 *            the maximum number of ids the sender assigns.
+	 */
+	public DescriptorTable(final int capacity) {
+		this(capacity, TIMEOUT);
+	}
+
+	/**
+	 * create a new descriptor table.
+	 * 
+	 * @param capacity
+	 *            the maximum number of ids the sender assigns.
+	 * @param timeout
+	 *            how long the receiver waits for the definition of an id,
+	 *            <code>0</code> if the messages are decoded in order and an
+	 *            undefined id is an error right away.
+	 */
+	public DescriptorTable(final int capacity, final long timeout) {
+		this.capacity = capacity;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * get the id of a key on the sending side.
+	 * 
+	 * @param key
+	 *            the key, e.g., the class.
+	 * @return the id or 0 if the key has no id.
+	 */
+	synchronized int lookup(final Object key) {
+		final Integer id = (Integer) ids.get(key);
+		if (id == null) {
+			return 0;
+		}
+		references++;
+		return id.intValue();
+	}
+
+	/**
+	 * assign a new id to a key on the sending side.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the new id or 0 if the table is full.
+	 */
+	synchronized int assign(final Object key) {
+		if (nextID > capacity) {
+			return 0;
+		}
+		final int id = nextID++;
+		ids.put(key, new Integer(id));
+		return id;
+	}
+
+	/**
+	 * get the mark of the sending side. All ids assigned after the mark can
+	 * be withdrawn with <code>rollback</code>, e.g., when the message that
+	 * defines them is discarded.
+	 * 
+	 * @return the mark.
+	 */
+	public synchronized int mark() {
+		return nextID;
+	}
+
+	/**
+	 * withdraw all ids assigned after a mark.
+	 * 
+	 * @param mark
+	 *            the mark.
+	 */
+	public synchronized void rollback(final int mark) {
+		if (mark >= nextID) {
+			return;
+		}
+		for (final Iterator iter = ids.values().iterator(); iter.hasNext();) {
+			if (((Integer) iter.next()).intValue() >= mark) {
+				iter.remove();
+			}
+		}
+		nextID = mark;
+	}
+
+	/**
+	 * define an id on the receiving side.
+	 * 
+	 * @param id
+	 *            the id.
+	 * @param descriptor
+	 *            the descriptor.
+	 * @throws StreamCorruptedException
+	 *             if the id is invalid.
+	 */
+	synchronized void define(final int id, final Object descriptor)
+			throws StreamCorruptedException {
+		if (id <= 0) {
+			throw new StreamCorruptedException("Invalid descriptor id " + id); //$NON-NLS-1$
+		}
+		if (id >= descriptors.length) {
+			final Object[] newDescriptors = new Object[Math.max(id + 1,
+					descriptors.length * 2)];
+			System.arraycopy(descriptors, 0, newDescriptors, 0,
+					descriptors.length);
+			descriptors = newDescriptors;
+		}
+		if (descriptors[id] == null) {
+			defined++;
+		}
+		descriptors[id] = descriptor;
+		notifyAll();
+	}
+
+	/**
+	 * get the descriptor of an id on the receiving side. Waits if the id is
+	 * not yet defined and the table has a timeout.
+	 * 
+	 * @param id
+	 *            the id.
+	 * @return the descriptor.
+	 * @throws IOException
+	 *             if the id does not get defined.
+	 */
+	synchronized Object get(final int id) throws IOException {
+		if (id <= 0) {
+			throw new StreamCorruptedException("Invalid descriptor id " + id); //$NON-NLS-1$
+		}
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (id >= descriptors.length || descriptors[id] == null) {
+			final long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				throw new StreamCorruptedException("Unknown descriptor id " //$NON-NLS-1$
+						+ id);
+			}
+			try {
+				wait(wait);
+			} catch (final InterruptedException ie) {
+				throw new InterruptedIOException();
+			}
+		}
+		references++;
+		return descriptors[id];
+	}
+
+	/**
+	 * get the number of descriptors in the table.
+	 * 
+	 * @return the number of descriptors.
+	 */
+	public synchronized int size() {
+		return ids.size() + defined;
+	}
+
+	/**
+	 * get the capacity of the table.
+	 * 
+	 * @return the capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * get the number of descriptors that were transferred as a reference to
+	 * the table instead of in full.
+	 * 
+	 * @return the number of references.
+	 */
+	public synchronized long getReferenceCount() {
+		return references;
+	}
+
+	/**
+	 * get a string representation of the counters.
+	 * 
+	 * @return the string.
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "DescriptorTable{size=" + size() + ", capacity=" + capacity //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", references=" + getReferenceCount() + "}"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+}
@@ -0,0 +1,239 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.util;
+
+/**
+ * Hash map with primitive int keys. The entries are stored in open addressing
+ * tables, so that neither the keys nor the entries have to be allocated as
+ * objects. The map is not synchronized and does not accept <code>null</code>
+ * values.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+public final class IntHashMap {
+
+	/**
+	 * the keys.
+	 */
+	private int[] keys;
+
+	/**
+	 * the values, <code>null</code> marks a free slot.
+	 */
+	private Object[] values;
+
+	/**
+	 * the number of entries.
+	 */
+	private int size;
+
+	/**
+	 * create a new map.
+	 */
+	public IntHashMap() {
+		this(16);
+	}
+
+	/**
+	 * create a new map.
+	 * 
+	 * @param initialCapacity
+	 *            the number of entries the map can hold without growing.
+	 */
+	public IntHashMap(final int initialCapacity) {
+		int capacity = 4;
+		while (capacity < initialCapacity * 2) {
+			capacity <<= 1;
+		}
+		keys = new int[capacity];
+		values = new Object[capacity];
+	}
+
+	/**
+	 * get the value of a key.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the value or <code>null</code>.
+	 */
+	public Object get(final int key) {
+		final int mask = values.length - 1;
+		for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * put a value.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @param value
+	 *            the value, must not be <code>null</code>.
+	 * @return the previous value or <code>null</code>.
+	 */
+	public Object put(final int key, final Object value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null value"); //$NON-NLS-1$
+		}
+		final int mask = values.length - 1;
+		int i = hash(key) & mask;
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				final Object old = values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > values.length) {
+			rehash(values.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * remove a key.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the value or <code>null</code>.
+	 */
+	public Object remove(final int key) {
+		final int mask = values.length - 1;
+		int i = hash(key) & mask;
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				break;
+			}
+		}
+		final Object old = values[i];
+		if (old == null) {
+			return null;
+		}
+		// shift the following entries of the cluster back so that no
+		// tombstones are needed
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			final int home = hash(keys[j]) & mask;
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		values[i] = null;
+		size--;
+		return old;
+	}
+
+	/**
+	 * get the number of entries.
+	 * 
+	 * @return the size.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * is the map empty ?
+	 * 
+	 * @return <code>true</code> if the map has no entries.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * get the values.
+	 * 
+	 * @return an array of the values.
+	 */
+	public Object[] values() {
+		final Object[] result = new Object[size];
+		int j = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				result[j++] = values[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * remove all entries.
+	 */
+	public void clear() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		size = 0;
+	}
+
+	/**
+	 * grow the tables.
+	 * 
+	 * @param capacity
+	 *            the new capacity.
+	 */
+	private void rehash(final int capacity) {
+		final int[] oldKeys = keys;
+		final Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		final int mask = capacity - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int j = hash(oldKeys[i]) & mask;
+				while (values[j] != null) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * spread the bits of a key, consecutive keys are common.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the hash.
+	 */
+	private static int hash(final int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
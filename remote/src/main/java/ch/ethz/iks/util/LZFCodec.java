@@ -0,0 +1,186 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package ch.ethz.iks.util;
+
+import java.io.IOException;
+
+/**
+ * Codec for the LZF block format. LZF trades compression ratio for speed, it
+ * only finds matches through a hash of the next three bytes and does not
+ * entropy-code its output. The format consists of literal runs and back
+ * references:
+ * 
+ * <pre>
+ *   000LLLLL [L+1 literal bytes]
+ *   LLLOOOOO [ext. length if LLL=7] OOOOOOOO    copy LLL+2 bytes from offset O+1
+ * </pre>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
+final class LZFCodec extends CompressionCodec {
+
+	private static final int HASH_SIZE = 1 << 14;
+
+	private static final int MAX_LITERAL = 1 << 5;
+
+	private static final int MAX_OFFSET = 1 << 13;
+
+	private static final int MAX_REF = (1 << 8) + (1 << 3);
+
+	/**
+	 * the last positions of the three-byte prefixes. Stale entries from
+	 * previous blocks are harmless since every candidate match is verified.
+	 */
+	private int[] hashTable;
+
+	public byte getId() {
+		return FAST;
+	}
+
+	public int compress(final byte[] in, final int inOff, final int inLen,
+			final byte[] out, final int outOff) {
+		if (hashTable == null) {
+			hashTable = new int[HASH_SIZE];
+		}
+		final int[] table = hashTable;
+		final int end = inOff + inLen;
+		int inPos = inOff;
+		int outPos = outOff + 1;
+		int literalPos = outOff;
+		int literals = 0;
+
+		while (inPos < end - 2) {
+			final int hash = (((in[inPos] & 0xff) << 16
+					| (in[inPos + 1] & 0xff) << 8 | (in[inPos + 2] & 0xff)) * 0x9E3779B1) >>> 18;
+			final int ref = table[hash];
+			table[hash] = inPos;
+			final int off = inPos - ref - 1;
+			if (ref >= inOff && off >= 0 && off < MAX_OFFSET
+					&& in[ref] == in[inPos] && in[ref + 1] == in[inPos + 1]
+					&& in[ref + 2] == in[inPos + 2]) {
+				int maxLen = end - inPos;
+				if (maxLen > MAX_REF) {
+					maxLen = MAX_REF;
+				}
+				int len = 3;
+				while (len < maxLen && in[ref + len] == in[inPos + len]) {
+					len++;
+				}
+
+				// close the literal run
+				if (literals == 0) {
+					outPos--;
+				} else {
+					out[literalPos] = (byte) (literals - 1);
+					literals = 0;
+				}
+
+				len -= 2;
+				if (len < 7) {
+					out[outPos++] = (byte) ((off >> 8) + (len << 5));
+				} else {
+					out[outPos++] = (byte) ((off >> 8) + (7 << 5));
+					out[outPos++] = (byte) (len - 7);
+				}
+				out[outPos++] = (byte) off;
+				inPos += len + 2;
+
+				literalPos = outPos++;
+			} else {
+				out[outPos++] = in[inPos++];
+				literals++;
+				if (literals == MAX_LITERAL) {
+					out[literalPos] = (byte) (MAX_LITERAL - 1);
+					literals = 0;
+					literalPos = outPos++;
+				}
+			}
+		}
+
+		while (inPos < end) {
+			out[outPos++] = in[inPos++];
+			literals++;
+			if (literals == MAX_LITERAL) {
+				out[literalPos] = (byte) (MAX_LITERAL - 1);
+				literals = 0;
+				literalPos = outPos++;
+			}
+		}
+
+		if (literals == 0) {
+			outPos--;
+		} else {
+			out[literalPos] = (byte) (literals - 1);
+		}
+		return outPos - outOff;
+	}
+
+	public void decompress(final byte[] in, final int inOff, final int inLen,
+			final byte[] out, final int outOff, final int outLen)
+			throws IOException {
+		final int inEnd = inOff + inLen;
+		final int outEnd = outOff + outLen;
+		int inPos = inOff;
+		int outPos = outOff;
+		try {
+			while (inPos < inEnd) {
+				final int ctrl = in[inPos++] & 0xff;
+				if (ctrl < MAX_LITERAL) {
+					final int len = ctrl + 1;
+					if (outPos + len > outEnd) {
+						break;
+					}
+					System.arraycopy(in, inPos, out, outPos, len);
+					inPos += len;
+					outPos += len;
+				} else {
+					int len = ctrl >> 5;
+					if (len == 7) {
+						len += in[inPos++] & 0xff;
+					}
+					len += 2;
+					int ref = outPos - ((ctrl & 0x1f) << 8) - 1;
+					ref -= in[inPos++] & 0xff;
+					if (ref < outOff || outPos + len > outEnd) {
+						break;
+					}
+					for (int i = 0; i < len; i++) {
+						out[outPos++] = out[ref++];
+					}
+				}
+			}
+		} catch (final ArrayIndexOutOfBoundsException e) {
+			// corrupt block
+		}
+		if (inPos != inEnd || outPos != outEnd) {
+			throw new IOException("Corrupt LZF block"); //$NON-NLS-1$
+		}
+	}
+
+}
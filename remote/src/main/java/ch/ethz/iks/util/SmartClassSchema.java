@@ -0,0 +1,591 @@
+/* Copyright (c) 2006-2011 Jan S. Rellermeyer
+ * Systems Group, ETH Zurich.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *    - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *    - Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *    - Neither the name of ETH Zurich nor the names of its contributors may be
+ *      used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package ch.ethz.iks.util;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.WeakHashMap;
+
+/**
+ * The compiled schema of a class that is transferred through smart
+ * serialization. The schema is computed once per class and contains the
+ * accessible fields of the class and all its superclasses in a deterministic
+ * order, so that the position of a field can be used as its identifier on the
+ * wire. Schemas are cached and shared between all smart object streams.
+ * <p>
+ * The structural fingerprint of a schema takes the place of the serial
+ * version UID of serializable classes. If the peer has a class with a
+ * different fingerprint, the fields are mapped by name and the values of
+ * fields that only exist on one side are discarded or left at their default.
+ * </p>
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ */
+final class SmartClassSchema {
+
+	/**
+	 * the offset basis of the 64 bit FNV-1a hash.
+	 */
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	/**
+	 * the prime of the 64 bit FNV-1a hash.
+	 */
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * the cache of schemas, keyed by class. The schemas are only weakly
+	 * referenced, they refer to their class and would otherwise keep the
+	 * classes of uninstalled bundles and their class loaders alive.
+	 */
+	private static final WeakHashMap classCache = new WeakHashMap();
+
+	/**
+	 * orders the fields of a single class by name.
+	 */
+	private static final Comparator FIELD_ORDER = new Comparator() {
+		public int compare(final Object o1, final Object o2) {
+			return ((Field) o1).getName().compareTo(((Field) o2).getName());
+		}
+	};
+
+	/**
+	 * the class.
+	 */
+	final Class clazz;
+
+	/**
+	 * the name of the class.
+	 */
+	final String name;
+
+	/**
+	 * the fields in ordinal order.
+	 */
+	final Field[] fields;
+
+	/**
+	 * the type codes of the fields, as in the JVM type descriptors.
+	 */
+	private final char[] types;
+
+	/**
+	 * the structural fingerprint of the class.
+	 */
+	final long fingerprint;
+
+	/**
+	 * the default constructor or <code>null</code> if the class has none.
+	 */
+	private final Constructor constructor;
+
+	/**
+	 * create a new schema.
+	 * 
+	 * @param clazz
+	 *            the class.
+	 * @throws NotSerializableException
+	 *             if the class or one of its superclasses has native methods.
+	 */
+	private SmartClassSchema(final Class clazz) throws NotSerializableException {
+		this.clazz = clazz;
+		this.name = clazz.getName();
+
+		final ArrayList hierarchy = new ArrayList();
+		for (Class c = clazz; c != null && c != Object.class; c = c
+				.getSuperclass()) {
+			// check for native methods
+			final Method[] methods = c.getDeclaredMethods();
+			for (int i = 0; i < methods.length; i++) {
+				if (Modifier.isNative(methods[i].getModifiers())) {
+					throw new NotSerializableException(
+							"Class " //$NON-NLS-1$
+									+ clazz.getName()
+									+ " contains native methods and is therefore not serializable."); //$NON-NLS-1$
+				}
+			}
+			hierarchy.add(0, c);
+		}
+
+		final ArrayList fieldList = new ArrayList();
+		for (int i = 0; i < hierarchy.size(); i++) {
+			final Field[] declared = ((Class) hierarchy.get(i))
+					.getDeclaredFields();
+			final ArrayList level = new ArrayList(declared.length);
+			for (int j = 0; j < declared.length; j++) {
+				final int mod = declared[j].getModifiers();
+				if (Modifier.isStatic(mod) || Modifier.isTransient(mod)) {
+					continue;
+				}
+				declared[j].setAccessible(true);
+				level.add(declared[j]);
+			}
+			final Object[] sorted = level.toArray();
+			Arrays.sort(sorted, FIELD_ORDER);
+			fieldList.addAll(Arrays.asList(sorted));
+		}
+
+		fields = (Field[]) fieldList.toArray(new Field[fieldList.size()]);
+		types = new char[fields.length];
+		long hash = FNV_OFFSET;
+		for (int i = 0; i < fields.length; i++) {
+			types[i] = typeCode(fields[i].getType());
+			hash = fnv(hash, fields[i].getName());
+			hash = fnv(hash, fields[i].getType().getName());
+		}
+		fingerprint = hash;
+
+		Constructor constr;
+		try {
+			constr = clazz.getDeclaredConstructor(null);
+			constr.setAccessible(true);
+		} catch (final NoSuchMethodException nsme) {
+			constr = null;
+		}
+		constructor = constr;
+	}
+
+	/**
+	 * get the schema for a class.
+	 * 
+	 * @param clazz
+	 *            the class.
+	 * @return the schema.
+	 * @throws NotSerializableException
+	 *             if the class cannot be serialized.
+	 */
+	static SmartClassSchema forClass(final Class clazz)
+			throws NotSerializableException {
+		synchronized (classCache) {
+			final WeakReference ref = (WeakReference) classCache.get(clazz);
+			if (ref != null) {
+				final SmartClassSchema schema = (SmartClassSchema) ref.get();
+				if (schema != null) {
+					return schema;
+				}
+			}
+		}
+
+		final SmartClassSchema schema = new SmartClassSchema(clazz);
+		synchronized (classCache) {
+			classCache.put(clazz, new WeakReference(schema));
+		}
+		return schema;
+	}
+
+	/**
+	 * get the schema for a class name.
+	 * 
+	 * @param name
+	 *            the name of the class.
+	 * @return the schema.
+	 * @throws ClassNotFoundException
+	 *             if the class cannot be resolved.
+	 * @throws NotSerializableException
+	 *             if the class cannot be serialized.
+	 */
+	static SmartClassSchema forName(final String name)
+			throws ClassNotFoundException, NotSerializableException {
+		// resolve the name every time, the class can change with an update
+		// of its bundle
+		return forClass(Class.forName(name));
+	}
+
+	/**
+	 * create a new, uninitialized instance of the class.
+	 * 
+	 * @return the instance.
+	 * @throws IOException
+	 *             if the instance cannot be created.
+	 */
+	Object newInstance() throws IOException {
+		if (constructor == null) {
+			throw new InvalidClassException(name,
+					"no default constructor"); //$NON-NLS-1$
+		}
+		try {
+			return constructor.newInstance(null);
+		} catch (final Exception e) {
+			final IOException f = new IOException(
+					"Exception while resolving object"); //$NON-NLS-1$
+			f.initCause(e);
+			throw f;
+		}
+	}
+
+	/**
+	 * write the field values of an object in ordinal order.
+	 * 
+	 * @param obj
+	 *            the object.
+	 * @param out
+	 *            the output.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	void writeFields(final Object obj, final ObjectOutput out)
+			throws IOException {
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				final Field field = fields[i];
+				switch (types[i]) {
+				case 'Z':
+					out.writeBoolean(field.getBoolean(obj));
+					break;
+				case 'B':
+					out.writeByte(field.getByte(obj));
+					break;
+				case 'C':
+					out.writeChar(field.getChar(obj));
+					break;
+				case 'S':
+					out.writeShort(field.getShort(obj));
+					break;
+				case 'I':
+					out.writeInt(field.getInt(obj));
+					break;
+				case 'J':
+					out.writeLong(field.getLong(obj));
+					break;
+				case 'F':
+					out.writeFloat(field.getFloat(obj));
+					break;
+				case 'D':
+					out.writeDouble(field.getDouble(obj));
+					break;
+				default:
+					out.writeObject(field.get(obj));
+				}
+			}
+		} catch (final IllegalAccessException iae) {
+			throw new NotSerializableException("Exception while serializing " //$NON-NLS-1$
+					+ name + ":\n" + iae.getMessage()); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * read the field values of an object in ordinal order.
+	 * 
+	 * @param obj
+	 *            the object.
+	 * @param in
+	 *            the input.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @throws ClassNotFoundException
+	 *             if the class of a field value cannot be resolved.
+	 */
+	void readFields(final Object obj, final ObjectInput in)
+			throws IOException, ClassNotFoundException {
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				final Field field = fields[i];
+				switch (types[i]) {
+				case 'Z':
+					field.setBoolean(obj, in.readBoolean());
+					break;
+				case 'B':
+					field.setByte(obj, in.readByte());
+					break;
+				case 'C':
+					field.setChar(obj, in.readChar());
+					break;
+				case 'S':
+					field.setShort(obj, in.readShort());
+					break;
+				case 'I':
+					field.setInt(obj, in.readInt());
+					break;
+				case 'J':
+					field.setLong(obj, in.readLong());
+					break;
+				case 'F':
+					field.setFloat(obj, in.readFloat());
+					break;
+				case 'D':
+					field.setDouble(obj, in.readDouble());
+					break;
+				default:
+					field.set(obj, in.readObject());
+				}
+			}
+		} catch (final IllegalAccessException iae) {
+			throw new InvalidClassException(name, iae.getMessage());
+		}
+	}
+
+	/**
+	 * write the description of the schema, i.e., the class name, the
+	 * fingerprint, and the names and types of the fields.
+	 * 
+	 * @param out
+	 *            the output.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	void writeDescription(final ObjectOutput out) throws IOException {
+		out.writeUTF(name);
+		out.writeLong(fingerprint);
+		out.writeInt(fields.length);
+		for (int i = 0; i < fields.length; i++) {
+			out.writeUTF(fields[i].getName());
+			out.writeChar(types[i]);
+		}
+	}
+
+	/**
+	 * read the description of the schema of a peer and match it with the
+	 * local class.
+	 * 
+	 * @param in
+	 *            the input.
+	 * @return the local schema if the fingerprints match, or a
+	 *         <code>Mapping</code> from the fields of the peer to the local
+	 *         fields.
+	 * @throws IOException
+	 *             in case of IO errors or if a field has changed its type.
+	 * @throws ClassNotFoundException
+	 *             if the class cannot be resolved.
+	 */
+	static Object readDescription(final ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		final String clazzName = in.readUTF();
+		final long remoteFingerprint = in.readLong();
+		final int count = in.readInt();
+		if (count < 0) {
+			throw new InvalidClassException(clazzName,
+					"invalid field count " + count); //$NON-NLS-1$
+		}
+		final String[] remoteNames = new String[count];
+		final char[] remoteTypes = new char[count];
+		for (int i = 0; i < count; i++) {
+			remoteNames[i] = in.readUTF();
+			remoteTypes[i] = in.readChar();
+		}
+
+		final SmartClassSchema schema = forName(clazzName);
+		if (schema.fingerprint == remoteFingerprint
+				&& schema.fields.length == count) {
+			return schema;
+		}
+
+		// slow path, map the fields by name
+		final boolean[] used = new boolean[schema.fields.length];
+		final int[] map = new int[count];
+		for (int i = 0; i < count; i++) {
+			map[i] = -1;
+			for (int j = 0; j < schema.fields.length; j++) {
+				if (!used[j]
+						&& schema.fields[j].getName().equals(remoteNames[i])) {
+					if (schema.types[j] != remoteTypes[i]) {
+						throw new InvalidClassException(clazzName,
+								"incompatible types for field " //$NON-NLS-1$
+										+ remoteNames[i]);
+					}
+					used[j] = true;
+					map[i] = j;
+					break;
+				}
+			}
+		}
+		return new Mapping(schema, map, remoteTypes);
+	}
+
+	/**
+	 * read a single value of a given type.
+	 * 
+	 * @param type
+	 *            the type code.
+	 * @param in
+	 *            the input.
+	 * @return the value, primitives are boxed.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @throws ClassNotFoundException
+	 *             if the class of an object cannot be resolved.
+	 */
+	private static Object readValue(final char type, final ObjectInput in)
+			throws IOException, ClassNotFoundException {
+		switch (type) {
+		case 'Z':
+			return in.readBoolean() ? Boolean.TRUE : Boolean.FALSE;
+		case 'B':
+			return new Byte(in.readByte());
+		case 'C':
+			return new Character(in.readChar());
+		case 'S':
+			return new Short(in.readShort());
+		case 'I':
+			return new Integer(in.readInt());
+		case 'J':
+			return new Long(in.readLong());
+		case 'F':
+			return new Float(in.readFloat());
+		case 'D':
+			return new Double(in.readDouble());
+		case 'L':
+			return in.readObject();
+		default:
+			throw new StreamCorruptedException("invalid type code " + type); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * update a 64 bit FNV-1a hash with the characters of a string.
+	 * 
+	 * @param hash
+	 *            the hash.
+	 * @param s
+	 *            the string.
+	 * @return the new hash.
+	 */
+	private static long fnv(final long hash, final String s) {
+		long h = hash;
+		final int len = s.length();
+		for (int i = 0; i < len; i++) {
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		}
+		// terminate the string so that "ab", "c" differs from "a", "bc"
+		return (h ^ 0xFFFF) * FNV_PRIME;
+	}
+
+	/**
+	 * get the type code of a field type.
+	 * 
+	 * @param type
+	 *            the type.
+	 * @return the type code.
+	 */
+	private static char typeCode(final Class type) {
+		if (!type.isPrimitive()) {
+			return 'L';
+		} else if (type == Integer.TYPE) {
+			return 'I';
+		} else if (type == Long.TYPE) {
+			return 'J';
+		} else if (type == Boolean.TYPE) {
+			return 'Z';
+		} else if (type == Byte.TYPE) {
+			return 'B';
+		} else if (type == Character.TYPE) {
+			return 'C';
+		} else if (type == Short.TYPE) {
+			return 'S';
+		} else if (type == Float.TYPE) {
+			return 'F';
+		} else {
+			return 'D';
+		}
+	}
+
+	/**
+	 * the mapping of the fields of a peer's version of a class to the fields
+	 * of the local version.
+	 */
+	static final class Mapping {
+
+		/**
+		 * the local schema.
+		 */
+		final SmartClassSchema schema;
+
+		/**
+		 * the index of the local field for each field of the peer, or -1.
+		 */
+		private final int[] map;
+
+		/**
+		 * the type codes of the fields of the peer.
+		 */
+		private final char[] types;
+
+		/**
+		 * create a new mapping.
+		 * 
+		 * @param schema
+		 *            the local schema.
+		 * @param map
+		 *            the field map.
+		 * @param types
+		 *            the type codes of the fields of the peer.
+		 */
+		Mapping(final SmartClassSchema schema, final int[] map,
+				final char[] types) {
+			this.schema = schema;
+			this.map = map;
+			this.types = types;
+		}
+
+		/**
+		 * read the field values of an object in the order of the peer.
+		 * Values of fields unknown to the local class are discarded.
+		 * 
+		 * @param obj
+		 *            the object.
+		 * @param in
+		 *            the input.
+		 * @throws IOException
+		 *             in case of IO errors.
+		 * @throws ClassNotFoundException
+		 *             if the class of a field value cannot be resolved.
+		 */
+		void readFields(final Object obj, final ObjectInput in)
+				throws IOException, ClassNotFoundException {
+			for (int i = 0; i < map.length; i++) {
+				final Object value = readValue(types[i], in);
+				if (map[i] < 0) {
+					continue;
+				}
+				try {
+					schema.fields[map[i]].set(obj, value);
+				} catch (final IllegalArgumentException iae) {
+					throw new InvalidClassException(schema.name,
+							"incompatible value for field " //$NON-NLS-1$
+									+ schema.fields[map[i]].getName());
+				} catch (final IllegalAccessException iae) {
+					throw new InvalidClassException(schema.name, iae
+							.getMessage());
+				}
+			}
+		}
+	}
+
+}
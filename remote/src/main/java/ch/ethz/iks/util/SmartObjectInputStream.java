@@ -32,6 +32,8 @@ package ch.ethz.iks.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.zip.GZIPInputStream;
@@ -46,44 +48,130 @@ import java.util.zip.GZIPInputStream;
  */
 public final class SmartObjectInputStream extends ObjectInputStream {
 
-	private Object handles;
-	private Field handle;
-	private Method setHandle;
+	private static Field handlesField;
+	private static Field handle;
+	private static Method setHandle;
 
-	public SmartObjectInputStream(final InputStream in) throws IOException {
-		super(new GZIPInputStream(in));
-		enableResolveObject(true);
+	static {
 		try {
-			final Field field = getClass().getSuperclass().getDeclaredField(
-					"handles");
-			field.setAccessible(true);
-			handles = field.get(this);
-			handle = getClass().getSuperclass().getDeclaredField("passHandle");
+			handlesField = ObjectInputStream.class.getDeclaredField("handles"); //$NON-NLS-1$
+			handlesField.setAccessible(true);
+			handle = ObjectInputStream.class.getDeclaredField("passHandle"); //$NON-NLS-1$
 			handle.setAccessible(true);
-			setHandle = handles.getClass().getDeclaredMethod("setObject",
-					new Class[] { Integer.TYPE, Object.class });
-			setHandle.setAccessible(true);
+			final Method m = handlesField.getType().getDeclaredMethod(
+					"setObject", new Class[] { Integer.TYPE, Object.class }); //$NON-NLS-1$
+			m.setAccessible(true);
+			setHandle = m;
 		} catch (Exception e) {
 			// handle replacement won't work.
 		}
 	}
 
-	protected Object resolveObject(final Object obj) throws IOException {
-		if (obj instanceof SmartObjectStreamClass) {
+	private Object handles;
+
+	/**
+	 * the table of the class descriptors that have already been read.
+	 */
+	private final DescriptorTable descriptors;
+
+	/**
+	 * create a new smart object input stream for compressed input.
+	 * 
+	 * @param in
+	 *            the underlying input stream.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
+	public SmartObjectInputStream(final InputStream in) throws IOException {
+		this(in, true);
+	}
+
+	/**
+	 * create a new smart object input stream.
+	 * 
+	 * @param in
+	 *            the underlying input stream.
+	 * @param compressed
+	 *            if <code>true</code>, the input is GZIP compressed.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @since 1.0
+	 */
+	public SmartObjectInputStream(final InputStream in,
+			final boolean compressed) throws IOException {
+		this(in, compressed, new DescriptorTable(
+				DescriptorTable.DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * create a new smart object input stream that resolves class descriptors
+	 * through a descriptor table. Streams that decode the messages of the
+	 * same channel share the table.
+	 * 
+	 * @param in
+	 *            the underlying input stream.
+	 * @param compressed
+	 *            if <code>true</code>, the input is GZIP compressed.
+	 * @param descriptors
+	 *            the table of the class descriptors sent by the peer.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @since 1.0
+	 */
+	public SmartObjectInputStream(final InputStream in,
+			final boolean compressed, final DescriptorTable descriptors)
+			throws IOException {
+		super(compressed ? new GZIPInputStream(in) : in);
+		this.descriptors = descriptors;
+		enableResolveObject(true);
+		if (setHandle != null) {
 			try {
-				return ((SmartObjectStreamClass) obj).restoreObject();
+				handles = handlesField.get(this);
 			} catch (Exception e) {
-				final IOException f = new IOException(
-						"Exception while resolving object");
-				f.initCause(e);
-				throw f;
+				// handle replacement won't work.
 			}
 		}
+	}
+
+	/**
+	 * get the descriptor table of the stream.
+	 * 
+	 * @return the descriptor table.
+	 * @since 1.0
+	 */
+	public DescriptorTable getDescriptorTable() {
+		return descriptors;
+	}
+
+	protected ObjectStreamClass readClassDescriptor() throws IOException,
+			ClassNotFoundException {
+		final byte marker = readByte();
+		switch (marker) {
+		case SmartObjectOutputStream.DESCRIPTOR_FULL:
+			return super.readClassDescriptor();
+		case SmartObjectOutputStream.DESCRIPTOR_DEFINITION: {
+			final int id = readInt();
+			final ObjectStreamClass desc = super.readClassDescriptor();
+			descriptors.define(id, desc);
+			return desc;
+		}
+		case SmartObjectOutputStream.DESCRIPTOR_REFERENCE:
+			return (ObjectStreamClass) descriptors.get(readInt());
+		default:
+			throw new StreamCorruptedException("Invalid descriptor marker " //$NON-NLS-1$
+					+ marker);
+		}
+	}
+
+	protected Object resolveObject(final Object obj) throws IOException {
+		if (obj instanceof SmartObjectStreamClass) {
+			return ((SmartObjectStreamClass) obj).restoreObject();
+		}
 		return obj;
 	}
 
 	void fixHandle(final Object obj) {
-		if (setHandle == null) {
+		if (handles == null) {
 			return;
 		}
 		try {
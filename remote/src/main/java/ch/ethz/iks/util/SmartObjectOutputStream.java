@@ -31,6 +31,7 @@ package ch.ethz.iks.util;
 import java.io.IOException;
 import java.io.NotSerializableException;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.HashSet;
@@ -55,11 +56,139 @@ public final class SmartObjectOutputStream extends ObjectOutputStream {
 		blackList.add("org.osgi.framework.ServiceRegistration"); //$NON-NLS-1$
 	}
 
+	/**
+	 * marker for a class descriptor that is written in full.
+	 */
+	static final byte DESCRIPTOR_FULL = 0;
+
+	/**
+	 * marker for a class descriptor that is written in full and defines an
+	 * id in the descriptor table.
+	 */
+	static final byte DESCRIPTOR_DEFINITION = 1;
+
+	/**
+	 * marker for a class descriptor that is written as id.
+	 */
+	static final byte DESCRIPTOR_REFERENCE = 2;
+
+	/**
+	 * the table of the class descriptors that have already been written.
+	 */
+	private final DescriptorTable descriptors;
+
+	/**
+	 * are flushes deferred?
+	 */
+	private boolean corked;
+
+	/**
+	 * create a new smart object output stream that compresses its output.
+	 * 
+	 * @param out
+	 *            the underlying output stream.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 */
 	public SmartObjectOutputStream(final OutputStream out) throws IOException {
-		super(new EnhancedGZIPOutputStream(out));
+		this(out, true);
+	}
+
+	/**
+	 * create a new smart object output stream.
+	 * 
+	 * @param out
+	 *            the underlying output stream.
+	 * @param compressed
+	 *            if <code>true</code>, the output is GZIP compressed.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @since 1.0
+	 */
+	public SmartObjectOutputStream(final OutputStream out,
+			final boolean compressed) throws IOException {
+		this(out, compressed, new DescriptorTable(
+				DescriptorTable.DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * create a new smart object output stream. Class descriptors are written
+	 * only once and survive a <code>reset</code> of the stream.
+	 * 
+	 * @param out
+	 *            the underlying output stream.
+	 * @param compressed
+	 *            if <code>true</code>, the output is GZIP compressed.
+	 * @param descriptors
+	 *            the table of the class descriptors that the peer knows.
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @since 1.0
+	 */
+	public SmartObjectOutputStream(final OutputStream out,
+			final boolean compressed, final DescriptorTable descriptors)
+			throws IOException {
+		super(compressed ? new EnhancedGZIPOutputStream(out) : out);
+		this.descriptors = descriptors;
 		this.enableReplaceObject(true);
 	}
 
+	/**
+	 * get the descriptor table of the stream.
+	 * 
+	 * @return the descriptor table.
+	 * @since 1.0
+	 */
+	public DescriptorTable getDescriptorTable() {
+		return descriptors;
+	}
+
+	/**
+	 * defer the flushes of the stream. While the stream is corked,
+	 * <code>flush</code> has no effect, so that several messages share one
+	 * flush of the compressed stream. The caller has to flush the stream
+	 * after uncorking it.
+	 * 
+	 * @param corked
+	 *            <code>true</code> to defer the flushes.
+	 * @since 1.0
+	 */
+	public void setCorked(final boolean corked) {
+		this.corked = corked;
+	}
+
+	/**
+	 * flush the stream unless it is corked.
+	 * 
+	 * @throws IOException
+	 *             in case of IO errors.
+	 * @see java.io.ObjectOutputStream#flush()
+	 */
+	public void flush() throws IOException {
+		if (!corked) {
+			super.flush();
+		}
+	}
+
+	protected void writeClassDescriptor(final ObjectStreamClass desc)
+			throws IOException {
+		final Class clazz = desc.forClass();
+		int id = descriptors.lookup(clazz);
+		if (id != 0) {
+			writeByte(DESCRIPTOR_REFERENCE);
+			writeInt(id);
+			return;
+		}
+		id = descriptors.assign(clazz);
+		if (id != 0) {
+			writeByte(DESCRIPTOR_DEFINITION);
+			writeInt(id);
+		} else {
+			writeByte(DESCRIPTOR_FULL);
+		}
+		super.writeClassDescriptor(desc);
+	}
+
 	protected Object replaceObject(final Object obj) throws IOException {
 		if (obj instanceof BoxedPrimitive) {
 			return ((BoxedPrimitive) obj).getBoxed();
@@ -70,11 +199,21 @@ public final class SmartObjectOutputStream extends ObjectOutputStream {
 		}
 
 		final Class clazz = obj.getClass();
-		if (blackList.contains(clazz.getName())) {
-			throw new NotSerializableException(clazz.getName());
+		synchronized (blackList) {
+			if (blackList.contains(clazz.getName())) {
+				throw new NotSerializableException(clazz.getName());
+			}
 		}
 
-		return new SmartObjectStreamClass(obj, clazz);
+		try {
+			return new SmartObjectStreamClass(obj, SmartClassSchema
+					.forClass(clazz));
+		} catch (final NotSerializableException nse) {
+			synchronized (blackList) {
+				blackList.add(clazz.getName());
+			}
+			throw nse;
+		}
 	}
 
 	static class EnhancedGZIPOutputStream extends GZIPOutputStream {
@@ -0,0 +1,152 @@
+package ch.ethz.iks.r_osgi.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteCallResultMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.util.CompressionCodec;
+import ch.ethz.iks.util.DescriptorTable;
+import junit.framework.TestCase;
+
+/**
+ * sends messages with large byte arrays through the frame codec. Lives in the
+ * package of the codec since the codec is not exported.
+ */
+public class FrameCodecTest extends TestCase {
+
+	private static final int LARGE = 100000;
+
+	public FrameCodecTest() {
+		super("FrameCodecTest");
+	}
+
+	public void testCallWithSegments() throws Exception {
+		final byte[] large = random(LARGE);
+		final byte[] small = random(16);
+		final RemoteCallMessage msg = new RemoteCallMessage();
+		msg.setXID(42);
+		msg.setServiceID("7");
+		msg.setMethodSignature("call([BLjava/lang/String;[B[B)V");
+		msg.setArgs(new Object[] { large, "TEST", small, large });
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final FrameCodec encoder = new FrameCodec();
+		encoder.encode(msg);
+		assertTrue(encoder.hasSegments());
+		encoder.writeTo(out);
+		assertFalse(encoder.hasSegments());
+
+		final RemoteCallMessage rcv = (RemoteCallMessage) read(out
+				.toByteArray(), new int[] { LARGE, LARGE });
+		assertEquals(42, rcv.getXID());
+		assertEquals("7", rcv.getServiceID());
+		assertEquals(msg.getMethodSignature(), rcv.getMethodSignature());
+		final Object[] args = rcv.getArgs();
+		assertEquals(4, args.length);
+		assertEquals(large, (byte[]) args[0]);
+		assertEquals("TEST", args[1]);
+		assertEquals(small, (byte[]) args[2]);
+		assertEquals(large, (byte[]) args[3]);
+	}
+
+	public void testResultWithSegment() throws Exception {
+		final byte[] large = random(LARGE);
+		final RemoteCallResultMessage msg = new RemoteCallResultMessage();
+		msg.setXID(43);
+		msg.setResult(large);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final FrameCodec encoder = new FrameCodec();
+		encoder.encode(msg);
+		encoder.writeTo(out);
+
+		final RemoteCallResultMessage rcv = (RemoteCallResultMessage) read(
+				out.toByteArray(), new int[] { LARGE });
+		assertEquals(43, rcv.getXID());
+		assertFalse(rcv.causedException());
+		assertEquals(large, (byte[]) rcv.getResult());
+	}
+
+	public void testSmallArrayStaysInBody() throws Exception {
+		final RemoteCallResultMessage msg = new RemoteCallResultMessage();
+		msg.setXID(44);
+		msg.setResult(random(16));
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final FrameCodec encoder = new FrameCodec();
+		encoder.encode(msg);
+		assertFalse(encoder.hasSegments());
+		encoder.writeTo(out);
+
+		final RemoteCallResultMessage rcv = (RemoteCallResultMessage) read(
+				out.toByteArray(), null);
+		assertEquals((byte[]) msg.getResult(), (byte[]) rcv.getResult());
+	}
+
+	public void testIllegalSegmentCount() throws Exception {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(new byte[] { -1, -1, -1, -1 }));
+		try {
+			FrameCodec.readSegments(in);
+			fail("negative segment count was accepted");
+		} catch (final IOException ioe) {
+			// expected
+		}
+	}
+
+	/**
+	 * read a frame the way the TCP channel does and check the segment
+	 * framing on the way.
+	 */
+	private static RemoteOSGiMessage read(final byte[] bytes,
+			final int[] lengths) throws Exception {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes));
+		assertEquals(FrameCodec.VERSION, in.readUnsignedByte());
+		final short funcID = (short) in.readUnsignedByte();
+		final int xid = in.readInt();
+		final int flags = in.readUnsignedByte();
+		final int length = in.readInt();
+		assertEquals(CompressionCodec.NONE, flags & ~FrameCodec.SEGMENTS);
+		assertEquals(lengths != null, (flags & FrameCodec.SEGMENTS) != 0);
+
+		final byte[] body = FrameCodec.allocate(length);
+		in.readFully(body, FrameCodec.BODY_OFFSET, length);
+
+		List segments = null;
+		if (lengths != null) {
+			in.mark(4 + 4 * lengths.length);
+			assertEquals(lengths.length, in.readInt());
+			for (int i = 0; i < lengths.length; i++) {
+				assertEquals(lengths[i], in.readInt());
+			}
+			in.reset();
+			segments = FrameCodec.readSegments(in);
+			assertEquals(lengths.length, segments.size());
+		}
+		assertEquals(0, in.available());
+		return FrameCodec.decode(funcID, xid, flags & ~FrameCodec.SEGMENTS,
+				body, segments, new DescriptorTable(64));
+	}
+
+	private static void assertEquals(final byte[] expected,
+			final byte[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], actual[i]);
+		}
+	}
+
+	private static byte[] random(final int length) {
+		final byte[] b = new byte[length];
+		new Random(length).nextBytes(b);
+		return b;
+	}
+
+}
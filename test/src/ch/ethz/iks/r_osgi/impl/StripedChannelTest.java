@@ -0,0 +1,135 @@
+package ch.ethz.iks.r_osgi.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Random;
+
+import ch.ethz.iks.r_osgi.Remoting;
+import ch.ethz.iks.r_osgi.URI;
+import ch.ethz.iks.r_osgi.channels.ChannelEndpoint;
+import ch.ethz.iks.r_osgi.channels.NetworkChannel;
+import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
+import junit.framework.TestCase;
+
+/**
+ * sends remote calls through a channel with several TCP connections and
+ * checks that they are spread over all connections. Lives in the package of
+ * the channel factory since the factory is not exported.
+ */
+public class StripedChannelTest extends TestCase {
+
+	private static final int STRIPES = 4;
+
+	private TCPChannelFactory factory;
+
+	private NetworkChannel channel;
+
+	private int stripes;
+
+	private boolean framing;
+
+	private int port;
+
+	/**
+	 * the receiver threads that have delivered a call, one per connection.
+	 */
+	final HashSet receivers = new HashSet();
+
+	public StripedChannelTest() {
+		super("StripedChannelTest");
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		stripes = RemoteOSGiServiceImpl.TCP_STRIPES;
+		framing = RemoteOSGiServiceImpl.TCP_FRAMING;
+		port = RemoteOSGiServiceImpl.R_OSGI_PORT;
+		RemoteOSGiServiceImpl.TCP_STRIPES = STRIPES;
+		RemoteOSGiServiceImpl.TCP_FRAMING = true;
+		RemoteOSGiServiceImpl.R_OSGI_PORT = 20000 + new Random().nextInt(10000);
+
+		final ChannelEndpoint server = endpoint(true);
+		final Remoting remoting = (Remoting) Proxy.newProxyInstance(
+				Remoting.class.getClassLoader(),
+				new Class[] { Remoting.class }, new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method m,
+							final Object[] args) {
+						if (m.getName().equals("createEndpoint")) { //$NON-NLS-1$
+							((NetworkChannel) args[0]).bind(server);
+						}
+						return null;
+					}
+				});
+		factory = new TCPChannelFactory();
+		factory.activate(remoting);
+		channel = factory.getConnection(endpoint(false), URI
+				.create("r-osgi://localhost:" //$NON-NLS-1$
+						+ factory.getListeningPort("r-osgi"))); //$NON-NLS-1$
+	}
+
+	protected void tearDown() throws Exception {
+		channel.close();
+		factory.deactivate(null);
+		RemoteOSGiServiceImpl.TCP_STRIPES = stripes;
+		RemoteOSGiServiceImpl.TCP_FRAMING = framing;
+		RemoteOSGiServiceImpl.R_OSGI_PORT = port;
+		super.tearDown();
+	}
+
+	public void testCallsUseAllConnections() throws Exception {
+		// the connections besides the first open after the handshake, so
+		// keep sending until all of them have delivered a call
+		final long timeout = System.currentTimeMillis() + 10000;
+		int xid = 2;
+		while (System.currentTimeMillis() < timeout) {
+			for (int i = 0; i < 4 * STRIPES; i++) {
+				final RemoteCallMessage msg = new RemoteCallMessage();
+				// the transaction ids of a channel are all even
+				msg.setXID(xid);
+				xid += 2;
+				msg.setServiceID("1"); //$NON-NLS-1$
+				msg.setMethodSignature("call()V"); //$NON-NLS-1$
+				msg.setArgs(new Object[0]);
+				channel.sendMessage(msg);
+			}
+			synchronized (receivers) {
+				if (receivers.size() < STRIPES) {
+					receivers.wait(100);
+				}
+				if (receivers.size() == STRIPES) {
+					return;
+				}
+			}
+		}
+		synchronized (receivers) {
+			assertEquals(STRIPES, receivers.size());
+		}
+	}
+
+	/**
+	 * create a channel endpoint.
+	 * 
+	 * @param record
+	 *            record the threads that deliver the calls?
+	 * @return the endpoint.
+	 */
+	private ChannelEndpoint endpoint(final boolean record) {
+		return (ChannelEndpoint) Proxy.newProxyInstance(ChannelEndpoint.class
+				.getClassLoader(), new Class[] { ChannelEndpoint.class },
+				new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method m,
+							final Object[] args) {
+						if (record && m.getName().equals("receivedMessage") //$NON-NLS-1$
+								&& args[0] != null) {
+							synchronized (receivers) {
+								receivers.add(Thread.currentThread());
+								receivers.notifyAll();
+							}
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,140 @@
+package ch.ethz.iks.r_osgi.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteCallResultMessage;
+import ch.ethz.iks.util.IntHashMap;
+import junit.framework.TestCase;
+
+/**
+ * compares the garbage of the bookkeeping of a remote call, i.e., the
+ * messages and the registration of the callback, with and without pooling.
+ */
+public class CallPathAllocationTest extends TestCase {
+
+	private static final int CALLS = 200000;
+
+	private static final Object CALLBACK = new Object();
+
+	private static final Object[] ARGS = new Object[0];
+
+	public CallPathAllocationTest() {
+		super("CallPathAllocationTest");
+	}
+
+	public void testPooledMessages() throws Exception {
+		final RemoteCallMessage msg = RemoteCallMessage.obtain();
+		msg.setServiceID("1");
+		msg.setXID(42);
+		msg.recycle();
+		// recycling twice must not put the message into the pool twice
+		msg.recycle();
+		final RemoteCallMessage msg2 = RemoteCallMessage.obtain();
+		assertSame(msg, msg2);
+		assertNull(msg2.getServiceID());
+		assertEquals(0, msg2.getXID());
+		assertFalse(msg2 == RemoteCallMessage.obtain());
+
+		final RemoteCallResultMessage res = RemoteCallResultMessage.obtain();
+		res.setException(new Exception());
+		res.recycle();
+		final RemoteCallResultMessage res2 = RemoteCallResultMessage.obtain();
+		assertSame(res, res2);
+		assertFalse(res2.causedException());
+		assertNull(res2.getException());
+	}
+
+	public void testAllocation() throws Exception {
+		// warm up
+		unpooled(CALLS);
+		pooled(CALLS);
+
+		final long before1 = allocatedBytes();
+		long time1 = System.currentTimeMillis();
+		unpooled(CALLS);
+		time1 = System.currentTimeMillis() - time1;
+		final long bytes1 = allocatedBytes() - before1;
+
+		final long before2 = allocatedBytes();
+		long time2 = System.currentTimeMillis();
+		pooled(CALLS);
+		time2 = System.currentTimeMillis() - time2;
+		final long bytes2 = allocatedBytes() - before2;
+
+		System.out.println("unpooled " + time1 + " ms, " + bytes1 / CALLS
+				+ " bytes/call");
+		System.out.println("pooled " + time2 + " ms, " + bytes2 / CALLS
+				+ " bytes/call");
+		if (before1 >= 0) {
+			assertTrue(bytes2 < bytes1);
+		}
+	}
+
+	private static int unpooled(final int calls) {
+		final Map callbacks = new HashMap();
+		int sum = 0;
+		for (int i = 1; i <= calls; i++) {
+			final RemoteCallMessage msg = new RemoteCallMessage();
+			msg.setXID(i);
+			msg.setServiceID("1");
+			msg.setMethodSignature("call()V");
+			msg.setArgs(ARGS);
+			callbacks.put(new Integer(msg.getXID()), CALLBACK);
+
+			final RemoteCallResultMessage result = new RemoteCallResultMessage();
+			result.setXID(msg.getXID());
+			result.setResult(CALLBACK);
+			if (callbacks.remove(new Integer(result.getXID())) == CALLBACK) {
+				sum++;
+			}
+		}
+		return sum;
+	}
+
+	private static int pooled(final int calls) {
+		final IntHashMap callbacks = new IntHashMap();
+		int sum = 0;
+		for (int i = 1; i <= calls; i++) {
+			final RemoteCallMessage msg = RemoteCallMessage.obtain();
+			msg.setXID(i);
+			msg.setServiceID("1");
+			msg.setMethodSignature("call()V");
+			msg.setArgs(ARGS);
+			callbacks.put(msg.getXID(), CALLBACK);
+
+			final RemoteCallResultMessage result = RemoteCallResultMessage
+					.obtain();
+			result.setXID(msg.getXID());
+			result.setResult(CALLBACK);
+			if (callbacks.remove(result.getXID()) == CALLBACK) {
+				sum++;
+			}
+			result.recycle();
+			msg.recycle();
+		}
+		return sum;
+	}
+
+	/**
+	 * get the bytes allocated by the current thread, if the VM can tell.
+	 * 
+	 * @return the allocated bytes or -1.
+	 */
+	private static long allocatedBytes() {
+		try {
+			final Object bean = ManagementFactory.getThreadMXBean();
+			final Method m = Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes",
+							new Class[] { long.class });
+			return ((Long) m.invoke(bean, new Object[] { new Long(Thread
+					.currentThread().getId()) })).longValue();
+		} catch (final Exception e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+package ch.ethz.iks.r_osgi.test;
+
+import ch.ethz.iks.util.ConcurrentIntHashMap;
+import ch.ethz.iks.util.IntHashMap;
+import junit.framework.TestCase;
+
+/**
+ * compares the throughput of the callback registry under many concurrent
+ * callers, each of which registers, looks up, and removes the callback of its
+ * own transaction like the invocation path does.
+ */
+public class CallbackRegistryPerformanceTest extends TestCase {
+
+	private static final int THREADS = 64;
+
+	private static final int CALLS = 20000;
+
+	public CallbackRegistryPerformanceTest() {
+		super("CallbackRegistryPerformanceTest");
+	}
+
+	public void testConcurrentAccess() throws Exception {
+		final ConcurrentIntHashMap map = new ConcurrentIntHashMap();
+		final Registry striped = new Registry() {
+			public void put(final int key, final Object value) {
+				map.put(key, value);
+			}
+
+			public Object get(final int key) {
+				return map.get(key);
+			}
+
+			public Object remove(final int key) {
+				return map.remove(key);
+			}
+		};
+		final IntHashMap plain = new IntHashMap();
+		final Registry locked = new Registry() {
+			public void put(final int key, final Object value) {
+				synchronized (plain) {
+					plain.put(key, value);
+				}
+			}
+
+			public Object get(final int key) {
+				synchronized (plain) {
+					return plain.get(key);
+				}
+			}
+
+			public Object remove(final int key) {
+				synchronized (plain) {
+					return plain.remove(key);
+				}
+			}
+		};
+
+		// warm up
+		run(locked);
+		run(striped);
+
+		final long time1 = run(locked);
+		final long time2 = run(striped);
+
+		System.out.println("synchronized " + time1 + " ms, "
+				+ (long) THREADS * CALLS * 1000 / Math.max(time1, 1)
+				+ " calls/s");
+		System.out.println("striped " + time2 + " ms, "
+				+ (long) THREADS * CALLS * 1000 / Math.max(time2, 1)
+				+ " calls/s");
+
+		assertEquals(0, map.size());
+		assertTrue(plain.isEmpty());
+	}
+
+	public void testClear() throws Exception {
+		final ConcurrentIntHashMap map = new ConcurrentIntHashMap(4);
+		for (int i = 1; i <= 100; i++) {
+			map.put(i, new Integer(i));
+		}
+		assertEquals(100, map.size());
+		assertEquals(new Integer(17), map.get(17));
+		final Object[] values = map.clear();
+		assertEquals(100, values.length);
+		assertEquals(0, map.size());
+		assertNull(map.get(17));
+	}
+
+	private static long run(final Registry registry) throws Exception {
+		final Thread[] threads = new Thread[THREADS];
+		final String[] failure = new String[1];
+		for (int t = 0; t < THREADS; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				public void run() {
+					final Object callback = new Object();
+					for (int i = 0; i < CALLS; i++) {
+						final int xid = i * THREADS + offset;
+						registry.put(xid, callback);
+						if (registry.get(xid) != callback
+								|| registry.remove(xid) != callback) {
+							synchronized (failure) {
+								failure[0] = "lost callback " + xid; //$NON-NLS-1$
+							}
+							return;
+						}
+					}
+				}
+			};
+		}
+		final long start = System.currentTimeMillis();
+		for (int t = 0; t < THREADS; t++) {
+			threads[t].start();
+		}
+		for (int t = 0; t < THREADS; t++) {
+			threads[t].join();
+		}
+		final long time = System.currentTimeMillis() - start;
+		if (failure[0] != null) {
+			fail(failure[0]);
+		}
+		return time;
+	}
+
+	private interface Registry {
+
+		void put(int key, Object value);
+
+		Object get(int key);
+
+		Object remove(int key);
+
+	}
+
+}
@@ -0,0 +1,88 @@
+package ch.ethz.iks.r_osgi.test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import ch.ethz.iks.util.CompressionCodec;
+import junit.framework.TestCase;
+
+public class CompressionCodecTest extends TestCase {
+
+	private static final byte[] TEXT = ("R-OSGi is a middleware for the "
+			+ "transparent distribution of OSGi services. Remote services "
+			+ "are accessed through proxy bundles that are generated on the "
+			+ "fly, OSGi services are accessed through proxy bundles.")
+			.getBytes();
+
+	public CompressionCodecTest() {
+		super("CompressionCodecTest");
+	}
+
+	public void testFastRoundtrip() throws Exception {
+		roundtrip(CompressionCodec.FAST);
+	}
+
+	public void testDeflateRoundtrip() throws Exception {
+		roundtrip(CompressionCodec.DEFLATE);
+	}
+
+	public void testFastCompressesRedundantData() throws Exception {
+		final byte[] data = repeat(TEXT, 64);
+		final byte[] out = new byte[CompressionCodec
+				.maxCompressedLength(data.length)];
+		final int len = CompressionCodec.create(CompressionCodec.FAST)
+				.compress(data, 0, data.length, out, 0);
+		assertTrue(len < data.length / 4);
+	}
+
+	public void testCorruptBlock() throws Exception {
+		final byte[] data = repeat(TEXT, 8);
+		final byte[] out = new byte[CompressionCodec
+				.maxCompressedLength(data.length)];
+		final int len = CompressionCodec.create(CompressionCodec.FAST)
+				.compress(data, 0, data.length, out, 0);
+		try {
+			CompressionCodec.decompress(CompressionCodec.FAST, out, 0,
+					len - 1, new byte[data.length], 0, data.length);
+			fail("corrupt block was accepted");
+		} catch (final IOException ioe) {
+			// expected
+		}
+	}
+
+	private void roundtrip(final byte codec) throws Exception {
+		final Random random = new Random(4711);
+		final CompressionCodec compressor = CompressionCodec.create(codec);
+		final byte[][] inputs = new byte[][] { new byte[0], new byte[1],
+				new byte[] { 1, 2 }, TEXT, repeat(TEXT, 100),
+				new byte[100000], random(random, 3), random(random, 70000) };
+		for (int i = 0; i < inputs.length; i++) {
+			final byte[] data = inputs[i];
+			final byte[] packed = new byte[7 + CompressionCodec
+					.maxCompressedLength(data.length)];
+			final int len = compressor.compress(data, 0, data.length,
+					packed, 7);
+			final byte[] unpacked = new byte[data.length + 3];
+			CompressionCodec.decompress(codec, packed, 7, len, unpacked, 3,
+					data.length);
+			for (int j = 0; j < data.length; j++) {
+				assertEquals(data[j], unpacked[j + 3]);
+			}
+		}
+	}
+
+	private static byte[] repeat(final byte[] bytes, final int times) {
+		final byte[] result = new byte[bytes.length * times];
+		for (int i = 0; i < times; i++) {
+			System.arraycopy(bytes, 0, result, i * bytes.length, bytes.length);
+		}
+		return result;
+	}
+
+	private static byte[] random(final Random random, final int len) {
+		final byte[] result = new byte[len];
+		random.nextBytes(result);
+		return result;
+	}
+
+}
@@ -0,0 +1,60 @@
+package ch.ethz.iks.r_osgi.test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import ch.ethz.iks.util.IntHashMap;
+import junit.framework.TestCase;
+
+public class IntHashMapTest extends TestCase {
+
+	public IntHashMapTest() {
+		super("IntHashMapTest");
+	}
+
+	public void testBasics() throws Exception {
+		final IntHashMap map = new IntHashMap(2);
+		assertTrue(map.isEmpty());
+		assertNull(map.put(1, "a"));
+		assertNull(map.put(-1, "b"));
+		assertNull(map.put(0, "c"));
+		assertEquals("a", map.put(1, "d"));
+		assertEquals(3, map.size());
+		assertEquals("d", map.get(1));
+		assertEquals("b", map.get(-1));
+		assertEquals("c", map.get(0));
+		assertEquals("b", map.remove(-1));
+		assertNull(map.remove(-1));
+		assertNull(map.get(-1));
+		assertEquals(2, map.values().length);
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(1));
+	}
+
+	public void testRandomOperations() throws Exception {
+		final IntHashMap map = new IntHashMap();
+		final HashMap reference = new HashMap();
+		final Random random = new Random(4711);
+		for (int i = 0; i < 200000; i++) {
+			// small key range to get long probe sequences and many removals
+			final int key = random.nextInt(512) - 256;
+			final Integer k = new Integer(key);
+			switch (random.nextInt(3)) {
+			case 0:
+				assertEquals(reference.put(k, k), map.put(key, k));
+				break;
+			case 1:
+				assertEquals(reference.remove(k), map.remove(key));
+				break;
+			default:
+				assertEquals(reference.get(k), map.get(key));
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		for (int key = -256; key < 256; key++) {
+			assertEquals(reference.get(new Integer(key)), map.get(key));
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package ch.ethz.iks.r_osgi.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import ch.ethz.iks.r_osgi.messages.LeaseMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.util.SmartObjectInputStream;
+import ch.ethz.iks.util.SmartObjectOutputStream;
+import junit.framework.TestCase;
+
+public class LeaseMessageTest extends TestCase {
+
+	private static final int SERVICES = 5000;
+
+	public LeaseMessageTest() {
+		super("LeaseMessageTest");
+	}
+
+	public void testManyServices() throws Exception {
+		final String[] serviceIDs = new String[SERVICES];
+		final String[][] serviceInterfaces = new String[SERVICES][];
+		final Dictionary[] serviceProperties = new Dictionary[SERVICES];
+		for (int i = 0; i < SERVICES; i++) {
+			serviceIDs[i] = String.valueOf(i + 1);
+			serviceInterfaces[i] = new String[] { "test.Service" + (i % 10) };
+			final Hashtable props = new Hashtable();
+			props.put("service.id", new Long(i + 1));
+			props.put("service.ranking", new Integer(i % 3));
+			props.put("objectClass", serviceInterfaces[i]);
+			props.put("name", "service " + i);
+			serviceProperties[i] = props;
+		}
+		final LeaseMessage msg = new LeaseMessage();
+		msg.setXID(17);
+		msg.setServiceIDs(serviceIDs);
+		msg.setServiceInterfaces(serviceInterfaces);
+		msg.setServiceProperties(serviceProperties);
+		msg.setTopics(new String[] { "test/*" });
+
+		final LeaseMessage rcv = (LeaseMessage) roundtrip(msg);
+		assertEquals(17, rcv.getXID());
+		assertEquals(SERVICES, rcv.getServiceIDs().length);
+		assertEquals("test/*", rcv.getTopics()[0]);
+		for (int i = 0; i < SERVICES; i++) {
+			assertEquals(serviceIDs[i], rcv.getServiceIDs()[i]);
+			assertEquals(serviceInterfaces[i][0],
+					rcv.getServiceInterfaces()[i][0]);
+			final Dictionary props = rcv.getServiceProperties()[i];
+			assertEquals(4, props.size());
+			assertEquals(new Long(i + 1), props.get("service.id"));
+			assertEquals(new Integer(i % 3), props.get("service.ranking"));
+			assertEquals("service " + i, props.get("name"));
+			assertEquals(serviceInterfaces[i][0], ((String[]) props
+					.get("objectClass"))[0]);
+		}
+	}
+
+	private static RemoteOSGiMessage roundtrip(final RemoteOSGiMessage msg)
+			throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final SmartObjectOutputStream out = new SmartObjectOutputStream(bytes);
+		msg.send(out);
+		out.close();
+		final SmartObjectInputStream in = new SmartObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		return RemoteOSGiMessage.parse(in);
+	}
+
+}
@@ -1,5 +1,6 @@
 package ch.ethz.iks.r_osgi.test;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -17,12 +18,19 @@ import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.transport.socket.nio.SocketAcceptor;
 import org.apache.mina.transport.socket.nio.SocketConnector;
 
+import ch.ethz.iks.r_osgi.messages.CancelCallMessage;
 import ch.ethz.iks.r_osgi.messages.DeliverServiceMessage;
+import ch.ethz.iks.r_osgi.messages.MultiCallMessage;
+import ch.ethz.iks.r_osgi.messages.MultiCallResultMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteCallResultMessage;
 import ch.ethz.iks.r_osgi.messages.RequestServiceMessage;
 import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
 import ch.ethz.iks.r_osgi.messages.LeaseMessage;
 import ch.ethz.iks.r_osgi.messages.LeaseUpdateMessage;
 import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.r_osgi.messages.StreamRequestMessage;
+import ch.ethz.iks.r_osgi.messages.StreamResultMessage;
+import ch.ethz.iks.r_osgi.types.BoxedPrimitive;
 import ch.ethz.iks.r_osgi.transport.mina.codec.RemoteOSGiProtocolCodecFactory;
 import junit.framework.TestCase;
 
@@ -226,6 +234,209 @@ public class MinaMessageTestCase extends TestCase implements IoHandler {
 		assertEquals((String[]) rcv.getPayload()[1], (String[]) payload[1]);
 	}
 
+	public void testStreamRequestMessage() throws InterruptedException {
+		final byte[] ops = new byte[] { StreamRequestMessage.READ,
+				StreamRequestMessage.READ_ARRAY, StreamRequestMessage.WRITE,
+				StreamRequestMessage.WRITE_ARRAY };
+		final int[] lenOrVal = new int[] { 1, 4096, 0x42, bytes.length };
+		for (int i = 0; i < ops.length; i++) {
+			final StreamRequestMessage msg = new StreamRequestMessage();
+			msg.setXID(100 + i);
+			msg.setStreamID((short) 7);
+			msg.setOp(ops[i]);
+			msg.setLenOrVal(lenOrVal[i]);
+			if (ops[i] == StreamRequestMessage.WRITE_ARRAY) {
+				msg.setData(bytes);
+			}
+			clientSession.write(msg);
+		}
+
+		for (int i = 0; i < ops.length; i++) {
+			final RemoteOSGiMessage msg2 = waitForMessage();
+			assertTrue(msg2 instanceof StreamRequestMessage);
+			final StreamRequestMessage rcv = (StreamRequestMessage) msg2;
+
+			assertEquals(rcv.getXID(), 100 + i);
+			assertEquals(rcv.getStreamID(), (short) 7);
+			assertEquals(rcv.getOp(), ops[i]);
+			assertEquals(rcv.getLenOrVal(), lenOrVal[i]);
+			if (ops[i] == StreamRequestMessage.WRITE_ARRAY) {
+				assertEquals(rcv.getData(), bytes);
+			}
+		}
+	}
+
+	public void testStreamResultMessage() throws InterruptedException {
+		final short[] results = new short[] { 0x42, -1,
+				StreamResultMessage.RESULT_ARRAY,
+				StreamResultMessage.RESULT_WRITE_OK,
+				StreamResultMessage.RESULT_EXCEPTION };
+		for (int i = 0; i < results.length; i++) {
+			final StreamResultMessage msg = new StreamResultMessage();
+			msg.setXID(100 + i);
+			msg.setResult(results[i]);
+			if (results[i] == StreamResultMessage.RESULT_ARRAY) {
+				msg.setData(bytes);
+				msg.setLen(bytes.length);
+			} else if (results[i] == StreamResultMessage.RESULT_EXCEPTION) {
+				msg.setException(new IOException("stream closed"));
+			}
+			clientSession.write(msg);
+		}
+
+		for (int i = 0; i < results.length; i++) {
+			final RemoteOSGiMessage msg2 = waitForMessage();
+			assertTrue(msg2 instanceof StreamResultMessage);
+			final StreamResultMessage rcv = (StreamResultMessage) msg2;
+
+			assertEquals(rcv.getXID(), 100 + i);
+			assertEquals(rcv.getResult(), results[i]);
+			if (results[i] == StreamResultMessage.RESULT_ARRAY) {
+				assertEquals(rcv.getLen(), bytes.length);
+				assertEquals(rcv.getData(), bytes);
+			} else if (results[i] == StreamResultMessage.RESULT_EXCEPTION) {
+				assertTrue(rcv.causedException());
+				assertEquals(rcv.getException().getMessage(), "stream closed");
+			} else {
+				assertFalse(rcv.causedException());
+			}
+		}
+	}
+
+	public void testMultiCallMessage() throws InterruptedException {
+		final RemoteCallMessage[] calls = new RemoteCallMessage[3];
+		for (int i = 0; i < calls.length; i++) {
+			calls[i] = new RemoteCallMessage();
+			calls[i].setXID(100 + 2 * i);
+			calls[i].setServiceID(serviceID);
+			calls[i].setMethodSignature("call(I)I");
+			calls[i].setArgs(new Object[] { new Integer(i) });
+		}
+		final MultiCallMessage msg = new MultiCallMessage();
+		msg.setXID(99);
+		msg.setCalls(calls);
+		clientSession.write(msg);
+
+		final RemoteOSGiMessage msg2 = waitForMessage();
+		assertTrue(msg2 instanceof MultiCallMessage);
+		final RemoteCallMessage[] rcv = ((MultiCallMessage) msg2).getCalls();
+
+		assertEquals(msg2.getXID(), 99);
+		assertEquals(rcv.length, calls.length);
+		for (int i = 0; i < calls.length; i++) {
+			assertEquals(rcv[i].getXID(), 100 + 2 * i);
+			assertEquals(rcv[i].getServiceID(), serviceID);
+			assertEquals(rcv[i].getMethodSignature(), "call(I)I");
+			assertEquals(rcv[i].getArgs(), new Object[] { new Integer(i) });
+		}
+	}
+
+	public void testMultiCallResultMessage() throws InterruptedException {
+		final RemoteCallResultMessage[] results = new RemoteCallResultMessage[2];
+		results[0] = new RemoteCallResultMessage();
+		results[0].setXID(100);
+		results[0].setResult("TEST");
+		results[1] = new RemoteCallResultMessage();
+		results[1].setXID(102);
+		results[1].setException(new IllegalStateException("failed"));
+		final MultiCallResultMessage msg = new MultiCallResultMessage();
+		msg.setXID(99);
+		msg.setResults(results);
+		clientSession.write(msg);
+
+		final RemoteOSGiMessage msg2 = waitForMessage();
+		assertTrue(msg2 instanceof MultiCallResultMessage);
+		final RemoteCallResultMessage[] rcv = ((MultiCallResultMessage) msg2)
+				.getResults();
+
+		assertEquals(msg2.getXID(), 99);
+		assertEquals(rcv.length, 2);
+		assertEquals(rcv[0].getXID(), 100);
+		assertFalse(rcv[0].causedException());
+		assertEquals(rcv[0].getResult(), "TEST");
+		assertEquals(rcv[1].getXID(), 102);
+		assertTrue(rcv[1].causedException());
+		assertTrue(rcv[1].getException() instanceof IllegalStateException);
+		assertEquals(rcv[1].getException().getMessage(), "failed");
+	}
+
+	public void testCancelCallMessage() throws InterruptedException {
+		clientSession.write(new CancelCallMessage(100));
+
+		final RemoteOSGiMessage msg2 = waitForMessage();
+		assertTrue(msg2 instanceof CancelCallMessage);
+		assertEquals(msg2.getXID(), 100);
+	}
+
+	public void testValues() throws InterruptedException {
+		final Hashtable object = new Hashtable();
+		object.put("key", "value");
+		final Object[] arguments = new Object[] { null, Boolean.TRUE,
+				Boolean.FALSE, new Integer(Integer.MIN_VALUE),
+				new Long(Long.MAX_VALUE), new Double(-0.5), "TEST", bytes,
+				object, new BoxedPrimitive(42) };
+		final RemoteCallMessage msg = new RemoteCallMessage();
+		msg.setXID(100);
+		msg.setServiceID(serviceID);
+		msg.setMethodSignature("call()V");
+		msg.setArgs(arguments);
+		clientSession.write(msg);
+
+		final RemoteOSGiMessage msg2 = waitForMessage();
+		assertTrue(msg2 instanceof RemoteCallMessage);
+		final Object[] args = ((RemoteCallMessage) msg2).getArgs();
+
+		assertEquals(args.length, arguments.length);
+		for (int i = 0; i < 7; i++) {
+			assertEquals(args[i], arguments[i]);
+		}
+		assertEquals((byte[]) args[7], bytes);
+		assertEquals(args[8], object);
+		// boxed primitives travel as their boxed value
+		assertEquals(args[9], new Integer(42));
+	}
+
+	public void testStrings() throws InterruptedException {
+		final StringBuffer buffer = new StringBuffer();
+		for (int i = 0; i < 100000; i++) {
+			buffer.append((char) (i % 0x3000));
+		}
+		final String[] strings = new String[] { "",
+				"Z\u00fcrich \u20ac \u65e5\u672c \ud83d\ude00 \u0000",
+				buffer.toString() };
+		final RemoteCallMessage msg = new RemoteCallMessage();
+		msg.setXID(100);
+		msg.setServiceID(serviceID);
+		msg.setMethodSignature(strings[1]);
+		msg.setArgs(strings);
+		clientSession.write(msg);
+
+		final RemoteOSGiMessage msg2 = waitForMessage();
+		assertTrue(msg2 instanceof RemoteCallMessage);
+		final RemoteCallMessage rcv = (RemoteCallMessage) msg2;
+
+		assertEquals(rcv.getMethodSignature(), strings[1]);
+		assertEquals(rcv.getArgs(), strings);
+
+		// strings that are not set are decoded as null
+		final DeliverServiceMessage deliver = new DeliverServiceMessage();
+		deliver.setXID(101);
+		deliver.setServiceID(serviceID);
+		deliver.setInterfaceNames(new String[] { strings[1] });
+		deliver.setInjections(new HashMap());
+		clientSession.write(deliver);
+
+		final RemoteOSGiMessage msg3 = waitForMessage();
+		assertTrue(msg3 instanceof DeliverServiceMessage);
+		final DeliverServiceMessage rcv2 = (DeliverServiceMessage) msg3;
+
+		assertEquals(rcv2.getServiceID(), serviceID);
+		assertNull(rcv2.getImports());
+		assertNull(rcv2.getExports());
+		assertNull(rcv2.getSmartProxyName());
+		assertEquals(rcv2.getInterfaceNames(), new String[] { strings[1] });
+	}
+
 	// helpers
 
 	public static void assertEquals(String[] sa1, String[] sa2) {
@@ -0,0 +1,76 @@
+package ch.ethz.iks.r_osgi.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import ch.ethz.iks.r_osgi.RemoteCallFuture;
+import ch.ethz.iks.r_osgi.RemoteOSGiService;
+import ch.ethz.iks.r_osgi.RemoteServiceReference;
+import ch.ethz.iks.r_osgi.URI;
+import ch.ethz.iks.r_osgi.test.service.StreamTestService;
+import ch.ethz.iks.r_osgi.test.service.impl.StreamTestServiceImpl;
+
+public class NestedCallTest extends TestCase {
+
+	private static final URI uri = new URI("r-osgi://localhost:9278");
+
+	// more than the default in-flight limit of an endpoint
+	private static final int CALLS = 600;
+
+	private RemoteOSGiService remote;
+
+	private BundleContext context;
+
+	private URI service;
+
+	private ServiceRegistration reg;
+
+	public NestedCallTest() {
+		super("NestedCallTest");
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = Activator.getActivator().getContext();
+		remote = Activator.getActivator().getR_OSGi();
+		final Dictionary props = new Hashtable();
+		props.put(RemoteOSGiService.R_OSGi_REGISTRATION, Boolean.TRUE);
+		reg = context.registerService(StreamTestService.class.getName(),
+				new StreamTestServiceImpl(), props);
+
+		remote.connect(uri);
+		final RemoteServiceReference[] refs = remote
+				.getRemoteServiceReferences(uri,
+						StreamTestService.class.getName(), null);
+		assertNotNull(refs);
+		assertTrue(refs.length > 0);
+
+		service = refs[0].getURI();
+	}
+
+	protected void tearDown() throws Exception {
+		remote.disconnect(uri);
+		reg.unregister();
+		super.tearDown();
+	}
+
+	public void testCallbacksAboveInFlightLimit() throws Throwable {
+		final RemoteCallFuture[] futures = new RemoteCallFuture[CALLS];
+		for (int i = 0; i < CALLS; i++) {
+			// every handler reads the stream from the caller
+			futures[i] = remote.asyncRemoteCall(service,
+					"read(Ljava/io/InputStream;)I", //$NON-NLS-1$
+					new Object[] { new ByteArrayInputStream(
+							new byte[] { (byte) i }) });
+		}
+		for (int i = 0; i < CALLS; i++) {
+			assertEquals(new Integer(i & 0xFF), futures[i].get(30000));
+		}
+	}
+}
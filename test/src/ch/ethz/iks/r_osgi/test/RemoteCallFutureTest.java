@@ -0,0 +1,147 @@
+package ch.ethz.iks.r_osgi.test;
+
+import ch.ethz.iks.r_osgi.AsyncRemoteCallCallback;
+import ch.ethz.iks.r_osgi.RemoteCallFuture;
+import ch.ethz.iks.r_osgi.RemoteOSGiException;
+import junit.framework.TestCase;
+
+public class RemoteCallFutureTest extends TestCase {
+
+	public RemoteCallFutureTest() {
+		super("RemoteCallFutureTest");
+	}
+
+	public void testResult() throws Throwable {
+		final RemoteCallFuture future = new RemoteCallFuture();
+		final Object[] seen = new Object[2];
+		future.addCallback(new AsyncRemoteCallCallback() {
+			public void remoteCallResult(final boolean success, final Object o) {
+				seen[0] = o;
+			}
+		});
+		assertFalse(future.isDone());
+
+		new Thread() {
+			public void run() {
+				future.remoteCallResult(true, "result"); //$NON-NLS-1$
+			}
+		}.start();
+		assertEquals("result", future.get()); //$NON-NLS-1$
+		assertTrue(future.isDone());
+		assertEquals("result", seen[0]); //$NON-NLS-1$
+
+		// callbacks added later are invoked immediately
+		future.addCallback(new AsyncRemoteCallCallback() {
+			public void remoteCallResult(final boolean success, final Object o) {
+				seen[1] = o;
+			}
+		});
+		assertEquals("result", seen[1]); //$NON-NLS-1$
+
+		// the future is completed only once
+		future.remoteCallResult(false, new IllegalStateException());
+		assertEquals("result", future.get()); //$NON-NLS-1$
+	}
+
+	public void testException() throws Throwable {
+		final RemoteCallFuture future = new RemoteCallFuture();
+		final IllegalArgumentException e = new IllegalArgumentException();
+		future.remoteCallResult(false, e);
+		try {
+			future.get();
+			fail();
+		} catch (final IllegalArgumentException iae) {
+			assertSame(e, iae);
+		}
+	}
+
+	public void testAll() throws Throwable {
+		final RemoteCallFuture[] futures = new RemoteCallFuture[3];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = new RemoteCallFuture();
+		}
+		final RemoteCallFuture all = RemoteCallFuture.all(futures);
+		// complete out of order
+		futures[2].remoteCallResult(true, "c"); //$NON-NLS-1$
+		futures[0].remoteCallResult(true, "a"); //$NON-NLS-1$
+		assertFalse(all.isDone());
+		futures[1].remoteCallResult(true, "b"); //$NON-NLS-1$
+		final Object[] results = (Object[]) all.get();
+		assertEquals("a", results[0]); //$NON-NLS-1$
+		assertEquals("b", results[1]); //$NON-NLS-1$
+		assertEquals("c", results[2]); //$NON-NLS-1$
+
+		final RemoteCallFuture[] failing = new RemoteCallFuture[] {
+				new RemoteCallFuture(), new RemoteCallFuture() };
+		final IllegalStateException e = new IllegalStateException();
+		failing[1].remoteCallResult(false, e);
+		failing[0].remoteCallResult(true, "a"); //$NON-NLS-1$
+		try {
+			RemoteCallFuture.all(failing).get();
+			fail();
+		} catch (final IllegalStateException ise) {
+			assertSame(e, ise);
+		}
+
+		assertEquals(0, ((Object[]) RemoteCallFuture.all(
+				new RemoteCallFuture[0]).get()).length);
+	}
+
+	public void testCancel() throws Throwable {
+		final RemoteCallFuture future = new RemoteCallFuture();
+		final int[] cancelled = new int[1];
+		future.onCancel(new Runnable() {
+			public void run() {
+				cancelled[0]++;
+			}
+		});
+		assertTrue(future.cancel());
+		assertTrue(future.isDone());
+		assertTrue(future.isCancelled());
+		assertEquals(1, cancelled[0]);
+		try {
+			future.get();
+			fail();
+		} catch (final RemoteOSGiException e) {
+			// expected
+		}
+		// neither a second cancel nor a late result changes the outcome
+		assertFalse(future.cancel());
+		future.remoteCallResult(true, "late"); //$NON-NLS-1$
+		assertEquals(1, cancelled[0]);
+		assertTrue(future.isCancelled());
+
+		// completed calls cannot be cancelled
+		final RemoteCallFuture completed = new RemoteCallFuture();
+		completed.onCancel(new Runnable() {
+			public void run() {
+				cancelled[0]++;
+			}
+		});
+		completed.remoteCallResult(true, "result"); //$NON-NLS-1$
+		assertFalse(completed.cancel());
+		assertFalse(completed.isCancelled());
+		assertEquals(1, cancelled[0]);
+
+		// cancelling the aggregate cancels the pending calls
+		final RemoteCallFuture[] futures = new RemoteCallFuture[] {
+				new RemoteCallFuture(), new RemoteCallFuture() };
+		futures[0].remoteCallResult(true, "a"); //$NON-NLS-1$
+		assertTrue(RemoteCallFuture.all(futures).cancel());
+		assertFalse(futures[0].isCancelled());
+		assertTrue(futures[1].isCancelled());
+	}
+
+	public void testTimeout() throws Throwable {
+		final RemoteCallFuture future = new RemoteCallFuture();
+		final long start = System.currentTimeMillis();
+		try {
+			future.get(100);
+			fail();
+		} catch (final RemoteOSGiException e) {
+			assertTrue(System.currentTimeMillis() - start >= 100);
+		}
+		assertFalse(future.isDone());
+	}
+
+}
@@ -0,0 +1,210 @@
+package ch.ethz.iks.r_osgi.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import ch.ethz.iks.r_osgi.messages.CancelCallMessage;
+import ch.ethz.iks.r_osgi.messages.MultiCallMessage;
+import ch.ethz.iks.r_osgi.messages.MultiCallResultMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteCallResultMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.r_osgi.test.exported.SerializableClass;
+import ch.ethz.iks.r_osgi.types.BoxedPrimitive;
+import ch.ethz.iks.util.SmartObjectInputStream;
+import ch.ethz.iks.util.SmartObjectOutputStream;
+import junit.framework.TestCase;
+
+public class RemoteCallMessageTest extends TestCase {
+
+	public RemoteCallMessageTest() {
+		super("RemoteCallMessageTest");
+	}
+
+	public void testArguments() throws Exception {
+		final byte[] bytes = new byte[] { 1, 2, 3 };
+		final StringBuffer longString = new StringBuffer();
+		for (int i = 0; i < 30000; i++) {
+			longString.append('\u20ac');
+		}
+		final RemoteCallMessage msg = new RemoteCallMessage();
+		msg.setXID(42);
+		msg.setServiceID("7");
+		msg.setMethodSignature("call(ILjava/lang/String;[BJ)V");
+		msg.setArgs(new Object[] { null, Boolean.TRUE, Boolean.FALSE,
+				new BoxedPrimitive(10), new Long(Long.MIN_VALUE),
+				new Double(Math.PI), "TEST", bytes, longString.toString(),
+				new Short((short) 3), new SerializableClass("S") });
+
+		final RemoteCallMessage rcv = (RemoteCallMessage) roundtrip(msg);
+		assertEquals(42, rcv.getXID());
+		assertEquals("7", rcv.getServiceID());
+		assertEquals(msg.getMethodSignature(), rcv.getMethodSignature());
+
+		final Object[] args = rcv.getArgs();
+		assertEquals(11, args.length);
+		assertNull(args[0]);
+		assertEquals(Boolean.TRUE, args[1]);
+		assertEquals(Boolean.FALSE, args[2]);
+		assertEquals(new Integer(10), args[3]);
+		assertEquals(new Long(Long.MIN_VALUE), args[4]);
+		assertEquals(new Double(Math.PI), args[5]);
+		assertEquals("TEST", args[6]);
+		assertEquals(bytes.length, ((byte[]) args[7]).length);
+		for (int i = 0; i < bytes.length; i++) {
+			assertEquals(bytes[i], ((byte[]) args[7])[i]);
+		}
+		assertEquals(longString.toString(), args[8]);
+		assertEquals(new Short((short) 3), args[9]);
+		assertEquals(new SerializableClass("S"), args[10]);
+	}
+
+	public void testResult() throws Exception {
+		final RemoteCallResultMessage msg = new RemoteCallResultMessage();
+		msg.setXID(43);
+		msg.setResult(new BoxedPrimitive(4711L));
+		final RemoteCallResultMessage rcv = (RemoteCallResultMessage) roundtrip(msg);
+		assertFalse(rcv.causedException());
+		assertEquals(new Long(4711L), rcv.getResult());
+	}
+
+	public void testPrimitivesAreCompact() throws Exception {
+		final RemoteCallMessage msg = new RemoteCallMessage();
+		msg.setServiceID("7");
+		msg.setMethodSignature("add(II)I");
+		msg.setArgs(new Object[] { new Integer(1), new Integer(2) });
+		// block header, header, method id, service ID, signature, argument
+		// count, 2 * (tag + int), reset marker
+		assertEquals(2 + 6 + 1 + 3 + 10 + 2 + 10 + 1, size(msg));
+		msg.setMethodID(200, true);
+		assertEquals(2 + 6 + 2 + 3 + 10 + 2 + 10 + 1, size(msg));
+		msg.setMethodID(200, false);
+		assertEquals(2 + 6 + 2 + 2 + 10 + 1, size(msg));
+	}
+
+	public void testInternedMethod() throws Exception {
+		final RemoteCallMessage msg = new RemoteCallMessage();
+		msg.setServiceID("7");
+		msg.setMethodSignature("add(II)I");
+		msg.setArgs(new Object[] { new Integer(1), new Integer(2) });
+		msg.setMethodID(100000, true);
+
+		RemoteCallMessage rcv = (RemoteCallMessage) roundtrip(msg);
+		assertEquals(100000, rcv.getMethodID());
+		assertTrue(rcv.definesMethod());
+		assertEquals("7", rcv.getServiceID());
+		assertEquals("add(II)I", rcv.getMethodSignature());
+
+		msg.setMethodID(100000, false);
+		rcv = (RemoteCallMessage) roundtrip(msg);
+		assertEquals(100000, rcv.getMethodID());
+		assertFalse(rcv.definesMethod());
+		assertNull(rcv.getServiceID());
+		assertNull(rcv.getMethodSignature());
+		assertEquals(new Integer(2), rcv.getArgs()[1]);
+	}
+
+	public void testTimeout() throws Exception {
+		final RemoteCallMessage msg = new RemoteCallMessage();
+		msg.setServiceID("7");
+		msg.setMethodSignature("add(II)I");
+		msg.setArgs(new Object[] { new Integer(1), new Integer(2) });
+		final int size = size(msg);
+
+		RemoteCallMessage rcv = (RemoteCallMessage) roundtrip(msg);
+		assertEquals(0, rcv.getTimeout());
+		assertEquals(0, rcv.getDeadline());
+
+		msg.setTimeout(5000);
+		// the budget takes a varint behind the argument count
+		assertEquals(size + 2, size(msg));
+		final long before = System.currentTimeMillis();
+		rcv = (RemoteCallMessage) roundtrip(msg);
+		assertEquals(5000, rcv.getTimeout());
+		assertTrue(rcv.getDeadline() >= before + 5000);
+		assertTrue(rcv.getDeadline() <= System.currentTimeMillis() + 5000);
+		assertEquals(2, rcv.getArgs().length);
+		assertEquals(new Integer(2), rcv.getArgs()[1]);
+
+		msg.setArgs(new Object[0]);
+		rcv = (RemoteCallMessage) roundtrip(msg);
+		assertEquals(5000, rcv.getTimeout());
+		assertEquals(0, rcv.getArgs().length);
+	}
+
+	public void testCancelCall() throws Exception {
+		final RemoteOSGiMessage rcv = roundtrip(new CancelCallMessage(4711));
+		assertTrue(rcv instanceof CancelCallMessage);
+		assertEquals(RemoteOSGiMessage.CANCEL_CALL, rcv.getFuncID());
+		assertEquals(4711, rcv.getXID());
+		assertTrue(rcv.isControl());
+		assertFalse(new RemoteCallMessage().isControl());
+	}
+
+	public void testMultiCall() throws Exception {
+		final RemoteCallMessage[] calls = new RemoteCallMessage[3];
+		for (int i = 0; i < calls.length; i++) {
+			calls[i] = new RemoteCallMessage();
+			calls[i].setXID(1000 + 2 * i);
+			calls[i].setServiceID("7");
+			calls[i].setMethodSignature("add(II)I");
+			calls[i].setArgs(new Object[] { new Integer(i), new Integer(1) });
+		}
+		calls[1].setMethodID(5, false);
+		final MultiCallMessage msg = new MultiCallMessage();
+		msg.setXID(99);
+		msg.setCalls(calls);
+
+		final MultiCallMessage rcv = (MultiCallMessage) roundtrip(msg);
+		assertEquals(99, rcv.getXID());
+		assertEquals(3, rcv.getCalls().length);
+		for (int i = 0; i < calls.length; i++) {
+			assertEquals(1000 + 2 * i, rcv.getCalls()[i].getXID());
+			assertEquals(new Integer(i), rcv.getCalls()[i].getArgs()[0]);
+		}
+		assertEquals("7", rcv.getCalls()[0].getServiceID());
+		assertEquals(5, rcv.getCalls()[1].getMethodID());
+		assertNull(rcv.getCalls()[1].getServiceID());
+
+		final RemoteCallResultMessage[] results = new RemoteCallResultMessage[2];
+		results[0] = new RemoteCallResultMessage();
+		results[0].setXID(1000);
+		results[0].setResult(new Integer(1));
+		results[1] = new RemoteCallResultMessage();
+		results[1].setXID(1002);
+		results[1].setException(new IllegalArgumentException("x"));
+		final MultiCallResultMessage res = new MultiCallResultMessage();
+		res.setXID(99);
+		res.setResults(results);
+
+		final MultiCallResultMessage rcvRes = (MultiCallResultMessage) roundtrip(res);
+		assertEquals(2, rcvRes.getResults().length);
+		assertEquals(1000, rcvRes.getResults()[0].getXID());
+		assertEquals(new Integer(1), rcvRes.getResults()[0].getResult());
+		assertEquals(1002, rcvRes.getResults()[1].getXID());
+		assertTrue(rcvRes.getResults()[1].causedException());
+		assertEquals("x", rcvRes.getResults()[1].getException().getMessage());
+	}
+
+	private static RemoteOSGiMessage roundtrip(final RemoteOSGiMessage msg)
+			throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final SmartObjectOutputStream out = new SmartObjectOutputStream(bytes);
+		msg.send(out);
+		out.close();
+		final SmartObjectInputStream in = new SmartObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		return RemoteOSGiMessage.parse(in);
+	}
+
+	private static int size(final RemoteOSGiMessage msg) throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final SmartObjectOutputStream out = new SmartObjectOutputStream(
+				bytes, false);
+		out.flush();
+		final int header = bytes.size();
+		msg.send(out);
+		return bytes.size() - header;
+	}
+
+}
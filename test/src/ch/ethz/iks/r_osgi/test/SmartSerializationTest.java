@@ -1,7 +1,10 @@
 package ch.ethz.iks.r_osgi.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InvalidClassException;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -9,6 +12,7 @@ import java.lang.reflect.Array;
 import java.util.Random;
 
 import ch.ethz.iks.r_osgi.test.exported.NonSerializableClass;
+import ch.ethz.iks.r_osgi.test.exported.NonSerializableSubclass;
 import ch.ethz.iks.r_osgi.test.exported.SerializableClass;
 import ch.ethz.iks.util.SmartObjectInputStream;
 import ch.ethz.iks.util.SmartObjectOutputStream;
@@ -140,6 +144,113 @@ public class SmartSerializationTest extends TestCase {
 		assertDeepEquals(N3, in.readObject());
 	}
 
+	public void testInheritedFields() throws Exception {
+		final NonSerializableSubclass n = new NonSerializableSubclass(N1,
+				INT, LONG, DOUBLE, BOOLEAN, CHAR);
+		out.writeObject(n);
+		out.writeObject(n);
+		out.flush();
+		final Object o = in.readObject();
+		assertEquals(n, o);
+		assertNull(((NonSerializableSubclass) o).getCached());
+		assertEquals(o, in.readObject());
+	}
+
+	public void testDescriptorsSurviveReset() throws Exception {
+		out.writeObject(S2);
+		out.reset();
+		out.writeObject(S2);
+		out.flush();
+		assertDeepEquals(S2, in.readObject());
+		assertDeepEquals(S2, in.readObject());
+		assertTrue(out.getDescriptorTable().getReferenceCount() > 0);
+		assertEquals(out.getDescriptorTable().size(), in
+				.getDescriptorTable().size());
+		assertEquals(out.getDescriptorTable().getReferenceCount(), in
+				.getDescriptorTable().getReferenceCount());
+	}
+
+	public void testSchemaSentOnce() throws Exception {
+		final NonSerializableSubclass n = new NonSerializableSubclass(N1,
+				INT, LONG, DOUBLE, BOOLEAN, CHAR);
+		out.writeObject(n);
+		out.reset();
+		final long references = out.getDescriptorTable().getReferenceCount();
+		out.writeObject(n);
+		out.flush();
+		assertEquals(n, in.readObject());
+		assertEquals(n, in.readObject());
+		assertTrue(out.getDescriptorTable().getReferenceCount() > references);
+		assertEquals(out.getDescriptorTable().getReferenceCount(), in
+				.getDescriptorTable().getReferenceCount());
+	}
+
+	public void testDroppedFields() throws Exception {
+		final Evolved0 o = (Evolved0) evolve(new Evolved1(INT, STRING, LONG,
+				DOUBLE), Evolved0.class);
+		assertEquals(INT, o.count);
+		assertEquals(STRING, o.name);
+		assertTrue(o.ratio == DOUBLE);
+	}
+
+	public void testDefaultedFields() throws Exception {
+		final Evolved0 o = (Evolved0) evolve(new Evolved2(STRING),
+				Evolved0.class);
+		assertEquals(0, o.count);
+		assertEquals(STRING, o.name);
+		assertTrue(o.ratio == 0);
+	}
+
+	public void testChangedFieldType() throws Exception {
+		try {
+			evolve(new Evolved3(LONG, STRING), Evolved0.class);
+			fail("field with a changed type was accepted");
+		} catch (final InvalidClassException ice) {
+			// expected
+		}
+	}
+
+	/**
+	 * write an object and read it back as a different version of its class,
+	 * as if the peer had another version of the bundle. The class names have
+	 * the same length, so the name in the stream can be replaced in place.
+	 */
+	private Object evolve(final Object peer, final Class local)
+			throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final SmartObjectOutputStream output = new SmartObjectOutputStream(
+				bytes, false);
+		output.writeObject(peer);
+		output.writeObject(peer);
+		output.close();
+
+		final byte[] stream = bytes.toByteArray();
+		final byte[] from = peer.getClass().getName().getBytes();
+		final byte[] to = local.getName().getBytes();
+		assertEquals(from.length, to.length);
+		int replaced = 0;
+		for (int i = 0; i <= stream.length - from.length; i++) {
+			int j = 0;
+			while (j < from.length && stream[i + j] == from[j]) {
+				j++;
+			}
+			if (j == from.length) {
+				System.arraycopy(to, 0, stream, i, to.length);
+				replaced++;
+			}
+		}
+		assertEquals(1, replaced);
+
+		final SmartObjectInputStream input = new SmartObjectInputStream(
+				new ByteArrayInputStream(stream), false);
+		final Object result = input.readObject();
+		assertSame(local, result.getClass());
+		// the second object refers to the mapped descriptor
+		assertEquals(result, input.readObject());
+		input.close();
+		return result;
+	}
+
 	private void assertBytesEqual(byte[] b1, byte[] b2) {
 		assertNotNull(b1);
 		assertNotNull(b2);
@@ -165,6 +276,79 @@ public class SmartSerializationTest extends TestCase {
 		assertTrue(o1.equals(o2));
 	}
 
+	/**
+	 * the local version of the evolved class.
+	 */
+	static class Evolved0 {
+		int count;
+		String name;
+		double ratio;
+
+		public boolean equals(final Object o) {
+			if (!(o instanceof Evolved0)) {
+				return false;
+			}
+			final Evolved0 e = (Evolved0) o;
+			return e.count == count && e.ratio == ratio
+					&& (name == null ? e.name == null : name.equals(e.name));
+		}
+
+		public int hashCode() {
+			return count;
+		}
+	}
+
+	/**
+	 * a peer version with an additional field.
+	 */
+	static class Evolved1 {
+		int count;
+		String name;
+		long extra;
+		double ratio;
+
+		Evolved1() {
+		}
+
+		Evolved1(final int count, final String name, final long extra,
+				final double ratio) {
+			this.count = count;
+			this.name = name;
+			this.extra = extra;
+			this.ratio = ratio;
+		}
+	}
+
+	/**
+	 * a peer version with fewer fields.
+	 */
+	static class Evolved2 {
+		String name;
+
+		Evolved2() {
+		}
+
+		Evolved2(final String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * a peer version in which a field has changed its type.
+	 */
+	static class Evolved3 {
+		long count;
+		String name;
+
+		Evolved3() {
+		}
+
+		Evolved3(final long count, final String name) {
+			this.count = count;
+			this.name = name;
+		}
+	}
+
 	class PipeThread extends Thread {
 
 		private final byte[] buffer = new byte[1024];
@@ -0,0 +1,45 @@
+package ch.ethz.iks.r_osgi.test.exported;
+
+public class NonSerializableSubclass extends NonSerializableClass {
+
+	static int instances;
+
+	private int count;
+	private long stamp;
+	private double ratio;
+	private boolean flag;
+	private char letter;
+	private transient String cached;
+
+	public NonSerializableSubclass(final Object state, final int count,
+			final long stamp, final double ratio, final boolean flag,
+			final char letter) {
+		super(state);
+		this.count = count;
+		this.stamp = stamp;
+		this.ratio = ratio;
+		this.flag = flag;
+		this.letter = letter;
+		this.cached = String.valueOf(state);
+		instances++;
+	}
+
+	public NonSerializableSubclass() {
+
+	}
+
+	public String getCached() {
+		return cached;
+	}
+
+	public boolean equals(final Object o) {
+		if (o instanceof NonSerializableSubclass) {
+			final NonSerializableSubclass other = (NonSerializableSubclass) o;
+			return super.equals(o) && count == other.count
+					&& stamp == other.stamp && ratio == other.ratio
+					&& flag == other.flag && letter == other.letter;
+		}
+		return false;
+	}
+
+}
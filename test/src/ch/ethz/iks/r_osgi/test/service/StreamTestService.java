@@ -0,0 +1,10 @@
+package ch.ethz.iks.r_osgi.test.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface StreamTestService {
+
+	public int read(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,15 @@
+package ch.ethz.iks.r_osgi.test.service.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import ch.ethz.iks.r_osgi.test.service.StreamTestService;
+
+public class StreamTestServiceImpl implements StreamTestService {
+
+	public int read(final InputStream in) throws IOException {
+		// reading the stream calls back into the caller
+		return in.read();
+	}
+
+}
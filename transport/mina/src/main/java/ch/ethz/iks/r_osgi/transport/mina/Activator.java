@@ -5,12 +5,46 @@ import java.util.Hashtable;
 
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
 
 import ch.ethz.iks.r_osgi.channels.NetworkChannelFactory;
 
 public class Activator implements BundleActivator {
 
+	/**
+	 * the tracker of the log service.
+	 */
+	private static ServiceTracker logTracker;
+
+	/**
+	 * get the log service.
+	 * 
+	 * @return the log service or <code>null</code> if there is none.
+	 */
+	static LogService getLog() {
+		final ServiceTracker tracker = logTracker;
+		return tracker == null ? null : (LogService) tracker.getService();
+	}
+
 	public void start(final BundleContext context) throws Exception {
+		logTracker = new ServiceTracker(context, LogService.class.getName(),
+				null);
+		logTracker.open();
+
+		String prop = context.getProperty(MinaNetworkChannelFactory.PORT_PROPERTY);
+		if (prop != null) {
+			MinaNetworkChannelFactory.PORT = Integer.parseInt(prop);
+		}
+		prop = context
+				.getProperty(MinaNetworkChannelFactory.IO_PROCESSORS_PROPERTY);
+		if (prop != null) {
+			MinaNetworkChannelFactory.IO_PROCESSORS = Integer.parseInt(prop);
+		}
+		MinaNetworkChannelFactory.MSG_DEBUG = Boolean.valueOf(
+				context.getProperty(MinaNetworkChannelFactory.MSG_DEBUG_PROPERTY))
+				.booleanValue();
+
 		final Dictionary properties = new Hashtable();
 		properties.put(NetworkChannelFactory.PROTOCOL_PROPERTY,
 				MinaNetworkChannelFactory.PROTOCOL_SCHEME);
@@ -19,7 +53,8 @@ public class Activator implements BundleActivator {
 	}
 
 	public void stop(final BundleContext context) throws Exception {
-
+		logTracker.close();
+		logTracker = null;
 	}
 
 }
@@ -3,144 +3,364 @@ package ch.ethz.iks.r_osgi.transport.mina;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.mina.common.ConnectFuture;
-import org.apache.mina.common.IdleStatus;
 import org.apache.mina.common.IoHandler;
+import org.apache.mina.common.IoHandlerAdapter;
+import org.apache.mina.common.IoService;
+import org.apache.mina.common.IoServiceConfig;
 import org.apache.mina.common.IoSession;
+import org.apache.mina.common.RuntimeIOException;
+import org.apache.mina.common.ThreadModel;
 import org.apache.mina.filter.LoggingFilter;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.transport.socket.nio.SocketAcceptor;
+import org.apache.mina.transport.socket.nio.SocketAcceptorConfig;
 import org.apache.mina.transport.socket.nio.SocketConnector;
+import org.apache.mina.transport.socket.nio.SocketSessionConfig;
+import org.apache.mina.util.NewThreadExecutor;
+import org.osgi.service.log.LogService;
 
 import ch.ethz.iks.r_osgi.Remoting;
 import ch.ethz.iks.r_osgi.URI;
+import ch.ethz.iks.r_osgi.channels.BatchNetworkChannel;
 import ch.ethz.iks.r_osgi.channels.ChannelEndpoint;
 import ch.ethz.iks.r_osgi.channels.NetworkChannel;
 import ch.ethz.iks.r_osgi.channels.NetworkChannelFactory;
 import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
 import ch.ethz.iks.r_osgi.transport.mina.codec.RemoteOSGiProtocolCodecFactory;
 
+/**
+ * channel factory for TCP transport through Apache MINA. All connections of
+ * the factory share the I/O processors of one acceptor and one connector, the
+ * messages are encoded and decoded by the codecs of the
+ * <code>RemoteOSGiProtocolCodecFactory</code>.
+ *
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * @since 1.0
+ */
 public class MinaNetworkChannelFactory implements NetworkChannelFactory {
 
 	public static final String PROTOCOL_SCHEME = "r-osgi+mina";
 
+	/**
+	 * the property for the listening port.
+	 */
+	static final String PORT_PROPERTY = "ch.ethz.iks.r_osgi.mina.port"; //$NON-NLS-1$
+
+	/**
+	 * the property for the number of I/O processors of the acceptor and the
+	 * connector.
+	 */
+	static final String IO_PROCESSORS_PROPERTY = "ch.ethz.iks.r_osgi.mina.ioProcessors"; //$NON-NLS-1$
+
+	/**
+	 * the property for logging all events of the connections.
+	 */
+	static final String MSG_DEBUG_PROPERTY = "ch.ethz.iks.r_osgi.debug.messages"; //$NON-NLS-1$
+
+	/**
+	 * the number of bytes that can be scheduled for writing on a connection
+	 * before senders of bulk messages have to wait.
+	 */
+	private static final int MAX_SCHEDULED_BYTES = 1024 * 1024;
+
+	/**
+	 * how long the factory waits for each I/O thread to terminate when it is
+	 * deactivated.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	/**
+	 * the listening port.
+	 */
+	static int PORT = 9279;
+
+	/**
+	 * the number of I/O processors.
+	 */
+	static int IO_PROCESSORS = Runtime.getRuntime().availableProcessors() + 1;
+
+	/**
+	 * log all events of the connections ?
+	 */
+	static boolean MSG_DEBUG = false;
+
+	Remoting remoting;
+
 	private SocketAcceptor acceptor;
 
-	public void activate(final Remoting remoting) throws IOException {
-		acceptor = new SocketAcceptor();
-		acceptor.getFilterChain().addLast("logger", new LoggingFilter());
-		acceptor.getFilterChain().addLast("protocol",
-				new ProtocolCodecFilter(new RemoteOSGiProtocolCodecFactory()));
-		// TODO: make port dynamic !!!
-		final InetSocketAddress address = new InetSocketAddress(9279);
-		acceptor.bind(address, new IoHandler() {
+	private SocketConnector connector;
+
+	private InetSocketAddress address;
+
+	/**
+	 * the running threads of the acceptor and the connector.
+	 */
+	private final List threads = new ArrayList();
+
+	/**
+	 * the number of threads started so far, for the thread names.
+	 */
+	private int threadCount;
+
+	/**
+	 * starts the I/O threads of the acceptor and the connector and keeps
+	 * track of them, so that they can be awaited when the factory is
+	 * deactivated.
+	 */
+	private final NewThreadExecutor executor = new NewThreadExecutor() {
+		public void execute(final Runnable task) {
+			final Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						synchronized (threads) {
+							threads.remove(Thread.currentThread());
+						}
+					}
+				}
+			});
+			synchronized (threads) {
+				thread.setName("MinaChannel:IoThread" + threadCount++); //$NON-NLS-1$
+				threads.add(thread);
+			}
+			thread.setDaemon(true);
+			thread.start();
+		}
+	};
+
+	/**
+	 * the handler of the accepted connections. Creates the channel when the
+	 * session is created and hands all later events to the channel.
+	 */
+	private final IoHandler acceptorHandler = new IoHandlerAdapter() {
+
+		public void sessionCreated(final IoSession session) throws Exception {
+			final MinaNetworkChannel channel = new MinaNetworkChannel(session);
+			session.setAttachment(channel);
+			remoting.createEndpoint(channel);
+		}
 
-			private MinaNetworkChannel channel;
+		public void messageReceived(final IoSession session,
+				final Object message) throws Exception {
+			((MinaNetworkChannel) session.getAttachment()).messageReceived(
+					session, message);
+		}
 
-			public void sessionCreated(IoSession session) throws Exception {
-				channel = new MinaNetworkChannel(session);
-				remoting.createEndpoint(channel);
-			}
+		public void messageSent(final IoSession session, final Object message)
+				throws Exception {
+			((MinaNetworkChannel) session.getAttachment()).messageSent(
+					session, message);
+		}
 
-			public void exceptionCaught(IoSession session, Throwable cause)
-					throws Exception {
-				channel.exceptionCaught(session, cause);
-			}
+		public void exceptionCaught(final IoSession session,
+				final Throwable cause) throws Exception {
+			((MinaNetworkChannel) session.getAttachment()).exceptionCaught(
+					session, cause);
+		}
 
-			public void messageReceived(IoSession session, Object message)
-					throws Exception {
-				channel.messageReceived(session, message);
-			}
+		public void sessionClosed(final IoSession session) throws Exception {
+			((MinaNetworkChannel) session.getAttachment())
+					.sessionClosed(session);
+		}
 
-			public void messageSent(IoSession session, Object message)
-					throws Exception {
-				channel.messageSent(session, message);
-			}
+	};
+
+	/**
+	 * activate the factory. Binds the acceptor to the listening port and
+	 * creates the connector for the outgoing connections.
+	 *
+	 * @see ch.ethz.iks.r_osgi.channels.NetworkChannelFactory#activate(ch.ethz.iks.r_osgi.Remoting)
+	 */
+	public void activate(final Remoting r) throws IOException {
+		remoting = r;
+
+		acceptor = new SocketAcceptor(IO_PROCESSORS, executor);
+		final SocketAcceptorConfig config = (SocketAcceptorConfig) acceptor
+				.getDefaultConfig();
+		config.setReuseAddress(true);
+		configure(config);
+		address = new InetSocketAddress(PORT);
+		acceptor.bind(address, acceptorHandler);
+
+		connector = new SocketConnector(IO_PROCESSORS, executor);
+		configure(connector.getDefaultConfig());
+	}
 
-			public void sessionClosed(IoSession session) throws Exception {
-				channel.sessionClosed(session);
-			}
+	/**
+	 * set up the filter chain and the session options of a service.
+	 *
+	 * @param config
+	 *            the configuration of the acceptor or the connector.
+	 */
+	private void configure(final IoServiceConfig config) {
+		if (MSG_DEBUG) {
+			config.getFilterChain().addLast("logger", new LoggingFilter()); //$NON-NLS-1$
+		}
+		config.getFilterChain().addLast("protocol", //$NON-NLS-1$
+				new ProtocolCodecFilter(new RemoteOSGiProtocolCodecFactory()));
+		// the endpoints hand the messages over to their own handler threads
+		config.setThreadModel(ThreadModel.MANUAL);
+		final SocketSessionConfig session = (SocketSessionConfig) config
+				.getSessionConfig();
+		session.setTcpNoDelay(true);
+		session.setKeepAlive(true);
+	}
 
-			public void sessionIdle(IoSession session, IdleStatus status)
-					throws Exception {
-				channel.sessionIdle(session, status);
+	/**
+	 * deactivate the factory. The acceptor is unbound, which closes the
+	 * incoming sessions, and the outgoing sessions are closed. MINA stops the
+	 * I/O threads once they have no sessions left, the factory waits for
+	 * them to terminate.
+	 *
+	 * @see ch.ethz.iks.r_osgi.channels.NetworkChannelFactory#deactivate(ch.ethz.iks.r_osgi.Remoting)
+	 */
+	public void deactivate(final Remoting r) throws IOException {
+		if (acceptor != null) {
+			acceptor.unbindAll();
+			closeSessions(acceptor);
+			acceptor = null;
+		}
+		if (connector != null) {
+			closeSessions(connector);
+			// let the connector thread go right away instead of idling
+			connector.setWorkerTimeout(0);
+			connector = null;
+		}
+		final Thread[] t;
+		synchronized (threads) {
+			t = (Thread[]) threads.toArray(new Thread[threads.size()]);
+			threads.clear();
+		}
+		try {
+			for (int i = 0; i < t.length; i++) {
+				t[i].join(SHUTDOWN_TIMEOUT);
 			}
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		address = null;
+		remoting = null;
+	}
 
-			public void sessionOpened(IoSession session) throws Exception {
-				channel.sessionOpened(session);
+	/**
+	 * close the sessions of an acceptor or a connector and wait until they
+	 * are closed.
+	 *
+	 * @param service
+	 *            the acceptor or the connector.
+	 */
+	private static void closeSessions(final IoService service) {
+		final Iterator addresses = service.getManagedServiceAddresses()
+				.iterator();
+		while (addresses.hasNext()) {
+			final Iterator sessions = service.getManagedSessions(
+					(SocketAddress) addresses.next()).iterator();
+			while (sessions.hasNext()) {
+				((IoSession) sessions.next()).close().join();
 			}
-
-		});
+		}
 	}
 
-	public void deactivate(Remoting remoting) throws IOException {
-		acceptor.unbindAll();
+	/**
+	 * get a new connection.
+	 *
+	 * @see ch.ethz.iks.r_osgi.channels.NetworkChannelFactory#getConnection(ch.ethz.iks.r_osgi.channels.ChannelEndpoint,
+	 *      ch.ethz.iks.r_osgi.URI)
+	 */
+	public NetworkChannel getConnection(final ChannelEndpoint endpoint,
+			final URI endpointURI) throws IOException {
+		final MinaNetworkChannel channel = new MinaNetworkChannel(endpoint,
+				endpointURI);
+		channel.connect();
+		return channel;
 	}
 
-	public NetworkChannel getConnection(ChannelEndpoint endpoint,
-			URI endpointURI) throws IOException {
-		return new MinaNetworkChannel(endpoint, endpointURI);
+	/**
+	 * get the listening port.
+	 *
+	 * @see ch.ethz.iks.r_osgi.channels.NetworkChannelFactory#getListeningPort(java.lang.String)
+	 */
+	public int getListeningPort(final String protocol) {
+		return address == null ? PORT : address.getPort();
 	}
-	
-	public int getListeningPort(String protocol) {
-		return 9279;
+
+	/**
+	 * get the URI of a socket address.
+	 *
+	 * @param s
+	 *            the socket address.
+	 * @return the URI.
+	 */
+	static URI uriFromSocketAddress(final SocketAddress s) {
+		final InetSocketAddress a = (InetSocketAddress) s;
+		return URI.create(PROTOCOL_SCHEME + "://" + a.getHostName() + ":" //$NON-NLS-1$ //$NON-NLS-2$
+				+ a.getPort());
 	}
 
-	private class MinaNetworkChannel implements NetworkChannel, IoHandler {
+	/**
+	 * the channel of a single MINA session. The channel is the handler of the
+	 * outgoing session, the events of incoming sessions are forwarded by the
+	 * handler of the acceptor.
+	 */
+	private final class MinaNetworkChannel extends IoHandlerAdapter implements
+			BatchNetworkChannel {
+
+		private final URI remoteAddress;
 
-		private URI remoteAddress;
 		private ChannelEndpoint endpoint;
-		private SocketConnector connector;
+
 		private IoSession session;
+
 		private URI localAddress;
 
-		private MinaNetworkChannel(ChannelEndpoint endpoint, URI address) {
+		/**
+		 * the lock for senders that wait for the scheduled writes to drain.
+		 */
+		private final Object writeLock = new Object();
+
+		private MinaNetworkChannel(final ChannelEndpoint endpoint,
+				final URI address) {
 			this.remoteAddress = address;
 			this.endpoint = endpoint;
-
-			connector = new SocketConnector();
-			connector.getFilterChain().addLast("logger", new LoggingFilter());
-			connector.getFilterChain().addLast(
-					"protocol",
-					new ProtocolCodecFilter(
-							new RemoteOSGiProtocolCodecFactory()));
-			connect();
 		}
 
-		private MinaNetworkChannel(IoSession session) {
-
+		private MinaNetworkChannel(final IoSession session) {
 			this.session = session;
 			this.remoteAddress = uriFromSocketAddress(session
 					.getRemoteAddress());
 			this.localAddress = uriFromSocketAddress(session.getLocalAddress());
 		}
 
-		private void connect() {
-			final ConnectFuture connectFuture = connector.connect(
+		/**
+		 * connect to the peer and wait until the session is established.
+		 *
+		 * @throws IOException
+		 *             if the connection cannot be established.
+		 */
+		void connect() throws IOException {
+			final ConnectFuture future = connector.connect(
 					new InetSocketAddress(remoteAddress.getHost(),
 							remoteAddress.getPort()), this);
-			/*
-			 * connectFuture.addListener(new IoFutureListener() { public void
-			 * operationComplete(IoFuture future) { session =
-			 * future.getSession(); MinaNetworkChannel.this.localAddress =
-			 * uriFromSocketAddress(session .getLocalAddress()); } });
-			 */
-			while (connectFuture.getSession() == null) {
-
+			future.join();
+			try {
+				session = future.getSession();
+			} catch (final RuntimeIOException e) {
+				final IOException ioe = new IOException("Cannot connect to " //$NON-NLS-1$
+						+ remoteAddress);
+				ioe.initCause(e.getCause() == null ? e : e.getCause());
+				throw ioe;
 			}
-			session = connectFuture.getSession();
+			localAddress = uriFromSocketAddress(session.getLocalAddress());
 		}
 
-		private URI uriFromSocketAddress(final SocketAddress s) {
-			final InetSocketAddress a = (InetSocketAddress) s;
-			return URI.create(PROTOCOL_SCHEME + "://" + a.getHostName() + ":"
-					+ a.getPort());
-		}
-
-		public void bind(ChannelEndpoint endpoint) {
+		public void bind(final ChannelEndpoint endpoint) {
 			this.endpoint = endpoint;
-			// now receiving
 		}
 
 		public URI getLocalAddress() {
@@ -155,89 +375,154 @@ public class MinaNetworkChannelFactory implements NetworkChannelFactory {
 			return remoteAddress;
 		}
 
-		public void sendMessage(RemoteOSGiMessage message) throws IOException {
-			session.write(message);
+		/**
+		 * send a message. The message is encoded right away, the bytes are
+		 * written by the I/O processor. Bulk messages wait while too many
+		 * bytes are scheduled for writing, control messages never wait.
+		 *
+		 * @see ch.ethz.iks.r_osgi.channels.NetworkChannel#sendMessage(ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage)
+		 */
+		public void sendMessage(final RemoteOSGiMessage message)
+				throws IOException {
+			if (!message.isControl()) {
+				awaitCapacity();
+			}
+			write(message);
 		}
 
-		/*
-		 * 
-		 * @see org.apache.mina.common.IoHandler#exceptionCaught(org.apache.mina.common.IoSession,
-		 *      java.lang.Throwable)
+		/**
+		 * send a batch of messages. MINA keeps the order of the writes of a
+		 * session.
+		 *
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#sendMessages(ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage[])
 		 */
-		public void exceptionCaught(IoSession session, Throwable cause)
-				throws Exception {
-			// TODO Auto-generated method stub
+		public void sendMessages(final RemoteOSGiMessage[] messages)
+				throws IOException {
+			awaitCapacity();
+			for (int i = 0; i < messages.length; i++) {
+				write(messages[i]);
+			}
+		}
 
+		private void write(final RemoteOSGiMessage message) throws IOException {
+			if (!session.isConnected()) {
+				throw new IOException("Session to " + remoteAddress //$NON-NLS-1$
+						+ " is closed"); //$NON-NLS-1$
+			}
+			session.write(message);
 		}
 
-		/*
-		 * 
-		 * @see org.apache.mina.common.IoHandler#messageReceived(org.apache.mina.common.IoSession,
-		 *      java.lang.Object)
+		/**
+		 * wait until the scheduled writes of the session have drained below
+		 * the limit.
+		 *
+		 * @throws IOException
+		 *             if the session is closed while waiting.
 		 */
-		public void messageReceived(IoSession session, Object message)
-				throws Exception {
-			endpoint.receivedMessage((RemoteOSGiMessage) message);
+		private void awaitCapacity() throws IOException {
+			if (session.getScheduledWriteBytes() <= MAX_SCHEDULED_BYTES) {
+				return;
+			}
+			synchronized (writeLock) {
+				while (session.getScheduledWriteBytes() > MAX_SCHEDULED_BYTES) {
+					if (!session.isConnected()) {
+						throw new IOException("Session to " + remoteAddress //$NON-NLS-1$
+								+ " is closed"); //$NON-NLS-1$
+					}
+					try {
+						writeLock.wait(100);
+					} catch (final InterruptedException ie) {
+						throw new IOException("Interrupted"); //$NON-NLS-1$
+					}
+				}
+			}
 		}
 
-		/*
-		 * 
-		 * @see org.apache.mina.common.IoHandler#messageSent(org.apache.mina.common.IoSession,
-		 *      java.lang.Object)
+		/**
+		 * the channel understands <code>MultiCallMessage</code>s.
+		 *
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsMultiCalls()
 		 */
-		public void messageSent(IoSession session, Object message)
-				throws Exception {
-			// TODO Auto-generated method stub
-
+		public boolean acceptsMultiCalls() {
+			return true;
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see org.apache.mina.common.IoHandler#sessionClosed(org.apache.mina.common.IoSession)
+		/**
+		 * the codecs do not carry the time budget of calls.
+		 *
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsDeadlines()
 		 */
-		public void sessionClosed(IoSession session) throws Exception {
-			// TODO Auto-generated method stub
-
+		public boolean acceptsDeadlines() {
+			return false;
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see org.apache.mina.common.IoHandler#sessionCreated(org.apache.mina.common.IoSession)
+		/**
+		 * the channel understands <code>CancelCallMessage</code>s.
+		 *
+		 * @see ch.ethz.iks.r_osgi.channels.BatchNetworkChannel#acceptsCancellation()
 		 */
-		public void sessionCreated(IoSession session) throws Exception {
-			// TODO Auto-generated method stub
-
+		public boolean acceptsCancellation() {
+			return true;
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see org.apache.mina.common.IoHandler#sessionIdle(org.apache.mina.common.IoSession,
-		 *      org.apache.mina.common.IdleStatus)
+		/**
+		 * hand a received message to the endpoint. Called by the I/O
+		 * processor of the session, which serves other sessions as well. The
+		 * endpoint never blocks the caller, it runs the handlers of the
+		 * requests on its own threads and defers the requests above its
+		 * in-flight limit.
+		 *
+		 * @see org.apache.mina.common.IoHandlerAdapter#messageReceived(org.apache.mina.common.IoSession,
+		 *      java.lang.Object)
 		 */
-		public void sessionIdle(IoSession session, IdleStatus status)
-				throws Exception {
-			// TODO Auto-generated method stub
+		public void messageReceived(final IoSession session,
+				final Object message) throws Exception {
+			endpoint.receivedMessage((RemoteOSGiMessage) message);
+		}
 
+		public void messageSent(final IoSession session, final Object message)
+				throws Exception {
+			synchronized (writeLock) {
+				writeLock.notifyAll();
+			}
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see org.apache.mina.common.IoHandler#sessionOpened(org.apache.mina.common.IoSession)
+		/**
+		 * a failing session cannot be trusted to be in a consistent state
+		 * anymore, e.g., after a message could not be decoded. Close it, the
+		 * endpoint is disposed when the session is closed.
+		 *
+		 * @see org.apache.mina.common.IoHandlerAdapter#exceptionCaught(org.apache.mina.common.IoSession,
+		 *      java.lang.Throwable)
 		 */
-		public void sessionOpened(IoSession session) throws Exception {
-			// TODO Auto-generated method stub
+		public void exceptionCaught(final IoSession session,
+				final Throwable cause) throws Exception {
+			final LogService log = Activator.getLog();
+			if (log != null) {
+				log.log(LogService.LOG_WARNING, "Error in session to " //$NON-NLS-1$
+						+ remoteAddress + ", closing it", cause); //$NON-NLS-1$
+			}
+			session.close();
+		}
 
+		public void sessionClosed(final IoSession session) throws Exception {
+			synchronized (writeLock) {
+				writeLock.notifyAll();
+			}
+			final ChannelEndpoint e = endpoint;
+			if (e != null) {
+				e.receivedMessage(null);
+			}
 		}
 
 		public void close() throws IOException {
 			session.close();
 		}
 
-	}
+		public String toString() {
+			return "MinaNetworkChannel (" + getRemoteAddress() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
 
+	}
 
 }
@@ -0,0 +1,57 @@
+package ch.ethz.iks.r_osgi.transport.mina.codec;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.demux.MessageDecoderResult;
+
+import ch.ethz.iks.r_osgi.messages.CancelCallMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+
+/**
+ * <pre>
+ *       0                   1                   2                   3
+ *       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       R-OSGi header (function = CancelCall = 17)              |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * 
+ * . The XID of the header is the XID of the cancelled call.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * 
+ */
+public class CancelCallMessageCodec extends RemoteOSGiMessageCodec {
+
+	private static final Set MESSAGE_TYPE;
+
+	static {
+		MESSAGE_TYPE = Collections.unmodifiableSet(new HashSet(Arrays
+				.asList(new Class[] { CancelCallMessage.class })));
+	}
+
+	public CancelCallMessageCodec() {
+		super(RemoteOSGiMessage.CANCEL_CALL);
+	}
+
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
+		out.write(new CancelCallMessage(xid));
+		return MessageDecoderResult.OK;
+	}
+
+	public void encodeBody(IoSession session, RemoteOSGiMessage message,
+			ByteBuffer buf) {
+	}
+
+	public Set getMessageTypes() {
+		return MESSAGE_TYPE;
+	}
+
+}
@@ -27,10 +27,10 @@ public class DeliverBundlesMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.DELIVER_BUNDLES);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final DeliverBundlesMessage msg = new DeliverBundlesMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 
 		final int bundles = in.getInt();
 		final byte[][] bytes = new byte[bundles][];
@@ -48,6 +48,7 @@ public class DeliverBundlesMessageCodec extends RemoteOSGiMessageCodec {
 		final DeliverBundlesMessage msg = (DeliverBundlesMessage) message;
 		final byte[][] bytes = msg.getDependencies();
 		final int bundles = bytes.length;
+		buf.putInt(bundles);
 		for (int i = 0; i < bundles; i++) {
 			encodeBytes(buf, bytes[i]);
 		}
@@ -53,10 +53,10 @@ public class DeliverServiceMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.DELIVER_SERVICE);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final DeliverServiceMessage msg = new DeliverServiceMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 		msg.setServiceID(decodeString(in));
 		msg.setImports(decodeString(in));
 		msg.setExports(decodeString(in));
@@ -66,13 +66,7 @@ public class DeliverServiceMessageCodec extends RemoteOSGiMessageCodec {
 		final short blocks = in.getShort();
 		final HashMap injections = new HashMap(blocks);
 		for (short i = 0; i < blocks; i++) {
-			if (!in.prefixedDataAvailable(2, Short.MAX_VALUE)) {
-				return MessageDecoderResult.NEED_DATA;
-			}
 			final String name = decodeString(in);
-			if (!in.prefixedDataAvailable(4, Integer.MAX_VALUE)) {
-				return MessageDecoderResult.NEED_DATA;
-			}
 			injections.put(name, decodeBytes(in));
 		}
 		msg.setInjections(injections);
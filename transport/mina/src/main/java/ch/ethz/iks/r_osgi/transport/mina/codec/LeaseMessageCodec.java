@@ -44,10 +44,10 @@ public class LeaseMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.LEASE);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final LeaseMessage msg = new LeaseMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 
 		final short blocks = in.getShort();
 		final String[] serviceIDs = new String[blocks];
@@ -43,10 +43,10 @@ public class LeaseUpdateMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.LEASE_UPDATE);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final LeaseUpdateMessage msg = new LeaseUpdateMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 
 		msg.setType(in.getShort());
 		msg.setServiceID(decodeString(in));
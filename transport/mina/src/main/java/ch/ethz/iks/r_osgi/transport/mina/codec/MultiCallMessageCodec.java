@@ -0,0 +1,80 @@
+package ch.ethz.iks.r_osgi.transport.mina.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.demux.MessageDecoderResult;
+
+import ch.ethz.iks.r_osgi.messages.MultiCallMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+
+/**
+ * <pre>
+ *       0                   1                   2                   3
+ *       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       R-OSGi header (function = MultiCall = 15)               |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       number of calls                                         |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       XID of the call                                         |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       body of the call as in REMOTE_CALL                      \
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * 
+ * . The last two blocks are repeated for every call.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * 
+ */
+public class MultiCallMessageCodec extends RemoteOSGiMessageCodec {
+
+	private static final Set MESSAGE_TYPE;
+
+	static {
+		MESSAGE_TYPE = Collections.unmodifiableSet(new HashSet(Arrays
+				.asList(new Class[] { MultiCallMessage.class })));
+	}
+
+	public MultiCallMessageCodec() {
+		super(RemoteOSGiMessage.MULTI_CALL);
+	}
+
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
+		final MultiCallMessage msg = new MultiCallMessage();
+		msg.setXID(xid);
+		final int count = in.getInt();
+		final RemoteCallMessage[] calls = new RemoteCallMessage[count];
+		for (int i = 0; i < count; i++) {
+			calls[i] = decodeCall(in, in.getInt());
+		}
+		msg.setCalls(calls);
+		out.write(msg);
+		return MessageDecoderResult.OK;
+	}
+
+	public void encodeBody(IoSession session, RemoteOSGiMessage message,
+			ByteBuffer buf) throws IOException {
+		final RemoteCallMessage[] calls = ((MultiCallMessage) message)
+				.getCalls();
+		buf.putInt(calls.length);
+		for (int i = 0; i < calls.length; i++) {
+			buf.putInt(calls[i].getXID());
+			encodeCall(buf, calls[i]);
+		}
+	}
+
+	public Set getMessageTypes() {
+		return MESSAGE_TYPE;
+	}
+
+}
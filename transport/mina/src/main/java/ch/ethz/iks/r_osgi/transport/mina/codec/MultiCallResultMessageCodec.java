@@ -0,0 +1,79 @@
+package ch.ethz.iks.r_osgi.transport.mina.codec;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.demux.MessageDecoderResult;
+
+import ch.ethz.iks.r_osgi.messages.MultiCallResultMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteCallResultMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+
+/**
+ * <pre>
+ *       0                   1                   2                   3
+ *       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       R-OSGi header (function = MultiCallResult = 16)         |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       number of results                                       |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       XID of the call                                         |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       body of the result as in REMOTE_CALL_RESULT             \
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * 
+ * . The last two blocks are repeated for every result.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * 
+ */
+public class MultiCallResultMessageCodec extends RemoteOSGiMessageCodec {
+
+	private static final Set MESSAGE_TYPE;
+
+	static {
+		MESSAGE_TYPE = Collections.unmodifiableSet(new HashSet(Arrays
+				.asList(new Class[] { MultiCallResultMessage.class })));
+	}
+
+	public MultiCallResultMessageCodec() {
+		super(RemoteOSGiMessage.MULTI_CALL_RESULT);
+	}
+
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
+		final MultiCallResultMessage msg = new MultiCallResultMessage();
+		msg.setXID(xid);
+		final int count = in.getInt();
+		final RemoteCallResultMessage[] results = new RemoteCallResultMessage[count];
+		for (int i = 0; i < count; i++) {
+			results[i] = decodeResult(in, in.getInt());
+		}
+		msg.setResults(results);
+		out.write(msg);
+		return MessageDecoderResult.OK;
+	}
+
+	public void encodeBody(IoSession session, RemoteOSGiMessage message,
+			ByteBuffer buf) {
+		final RemoteCallResultMessage[] results = ((MultiCallResultMessage) message)
+				.getResults();
+		buf.putInt(results.length);
+		for (int i = 0; i < results.length; i++) {
+			buf.putInt(results[i].getXID());
+			encodeResult(buf, results[i]);
+		}
+	}
+
+	public Set getMessageTypes() {
+		return MESSAGE_TYPE;
+	}
+
+}
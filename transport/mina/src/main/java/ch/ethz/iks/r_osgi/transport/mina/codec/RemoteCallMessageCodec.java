@@ -12,14 +12,15 @@ import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.apache.mina.filter.codec.demux.MessageDecoderResult;
 import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
 import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
-import ch.ethz.iks.r_osgi.types.BoxedPrimitive;
 
 /**
  * <pre>
  *       0                   1                   2                   3
  *       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
  *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
- *      |       R-OSGi header (function = REMOTE_CALL = 3)              |
+ *      |       R-OSGi header (function = REMOTE_CALL = 5)              |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |             method id and define flag                         |
  *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
  *      |   length of &lt;serviceID&gt;     |    &lt;serviceID&gt; String       \
  *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
@@ -29,7 +30,8 @@ import ch.ethz.iks.r_osgi.types.BoxedPrimitive;
  *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
  * </pre>
  * 
- * .
+ * . The service ID and the method signature are only present if the method
+ * id is 0 or the define flag is set.
  * 
  * @author Jan S. Rellermeyer, ETH Zurich
  * 
@@ -47,37 +49,15 @@ public class RemoteCallMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.REMOTE_CALL);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
-		final RemoteCallMessage msg = new RemoteCallMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
-		msg.setServiceID(decodeString(in));
-		msg.setMethodSignature(decodeString(in));
-
-		final short argLength = in.getShort();
-		final Object[] arguments = new Object[argLength];
-		for (short i = 0; i < argLength; i++) {
-			arguments[i] = in.getObject();
-		}
-		msg.setArgs(arguments);
-		out.write(msg);
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
+		out.write(decodeCall(in, xid));
 		return MessageDecoderResult.OK;
 	}
 
 	public void encodeBody(IoSession session, RemoteOSGiMessage message,
 			ByteBuffer buf) throws IOException {
-		final RemoteCallMessage msg = (RemoteCallMessage) message;
-		encodeString(buf, msg.getServiceID());
-		encodeString(buf, msg.getMethodSignature());
-
-		final Object[] arguments = msg.getArgs();
-		buf.putShort((short) arguments.length);
-		for (int i = 0; i < arguments.length; i++) {
-			buf
-					.putObject(arguments[i] instanceof BoxedPrimitive ? ((BoxedPrimitive) arguments[i])
-							.getBoxed()
-							: arguments[i]);
-		}
+		encodeCall(buf, (RemoteCallMessage) message);
 	}
 
 	public Set getMessageTypes() {
@@ -42,29 +42,15 @@ public class RemoteCallResultMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.REMOTE_CALL_RESULT);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
-		final RemoteCallResultMessage msg = new RemoteCallResultMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
-		if (in.get() == 0) {
-			msg.setResult(in.getObject());
-		} else {
-			msg.setException((Throwable) in.getObject());
-		}
-		out.write(msg);
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
+		out.write(decodeResult(in, xid));
 		return MessageDecoderResult.OK;
 	}
 
 	public void encodeBody(IoSession session, RemoteOSGiMessage message,
 			ByteBuffer buf) {
-		final RemoteCallResultMessage msg = (RemoteCallResultMessage) message;
-		if (msg.causedException()) {
-			buf.put((byte) 1);
-			buf.putObject(msg.getException());
-		} else {
-			buf.put((byte) 0);
-			buf.putObject(msg.getResult());
-		}
+		encodeResult(buf, (RemoteCallResultMessage) message);
 	}
 
 	public Set getMessageTypes() {
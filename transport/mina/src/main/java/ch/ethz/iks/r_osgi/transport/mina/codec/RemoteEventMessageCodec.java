@@ -44,10 +44,10 @@ public class RemoteEventMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.REMOTE_EVENT);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final RemoteEventMessage msg = new RemoteEventMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 		msg.setTopic(decodeString(in));
 		msg.setProperties((Dictionary) in.getObject());
 		out.write(msg);
@@ -1,9 +1,8 @@
 package ch.ethz.iks.r_osgi.transport.mina.codec;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
+import java.io.UTFDataFormatException;
+
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
@@ -12,32 +11,118 @@ import org.apache.mina.filter.codec.demux.MessageDecoder;
 import org.apache.mina.filter.codec.demux.MessageDecoderResult;
 import org.apache.mina.filter.codec.demux.MessageEncoder;
 
+import ch.ethz.iks.r_osgi.messages.RemoteCallMessage;
+import ch.ethz.iks.r_osgi.messages.RemoteCallResultMessage;
 import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.r_osgi.types.BoxedPrimitive;
 
 /**
  * <pre>
  *           0                   1                   2                   3
  *           0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
  *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
- *          |    Version    |         Function-ID           |     XID       |
+ *          |    Version    |  Function-ID  |             XID               \
+ *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *          |      XID cntd.                |        LENGTH of body         \
  *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
- *          |    XID cntd.  | LENGTH (4)
- *          +-+-+-+-+-+-+-+-+
+ *          |      LENGTH cntd.             |
+ *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
  * </pre>
  * 
+ * the length counts the bytes of the body that follows the header. Bodies
+ * are only decoded once they have been received completely.
+ * <p>
+ * The protocol codec factory creates the codecs per session. Decoding is
+ * serialized by MINA, so the decoder keeps its scratch space in the instance.
+ * Encoding happens in the threads of the senders, the encoder therefore only
+ * keeps the size of the last message as hint for the next buffer. Strings are
+ * written as modified UTF-8 straight from the characters of the string,
+ * without a charset encoder and without intermediate copies.
+ * </p>
+ * 
  * @author rjan
  * 
  */
 public abstract class RemoteOSGiMessageCodec implements MessageEncoder,
 		MessageDecoder {
 
-	private short type;
+	/**
+	 * the version of the wire format.
+	 */
+	static final byte VERSION = 3;
+
+	/**
+	 * the size of the header.
+	 */
+	static final int HEADER_SIZE = 10;
+
+	/**
+	 * the smallest buffer that is allocated for a message.
+	 */
+	private static final int MIN_BUFFER_SIZE = 64;
+
+	/**
+	 * the largest buffer that is allocated up front, larger messages expand
+	 * their buffer while they are encoded.
+	 */
+	private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * value tag for <code>null</code>.
+	 */
+	private static final byte VALUE_NULL = 0;
+
+	/**
+	 * value tag for <code>Boolean.FALSE</code>.
+	 */
+	private static final byte VALUE_FALSE = 1;
+
+	/**
+	 * value tag for <code>Boolean.TRUE</code>.
+	 */
+	private static final byte VALUE_TRUE = 2;
+
+	/**
+	 * value tag for <code>Integer</code>.
+	 */
+	private static final byte VALUE_INT = 3;
+
+	/**
+	 * value tag for <code>Long</code>.
+	 */
+	private static final byte VALUE_LONG = 4;
+
+	/**
+	 * value tag for <code>Double</code>.
+	 */
+	private static final byte VALUE_DOUBLE = 5;
+
+	/**
+	 * value tag for <code>String</code>.
+	 */
+	private static final byte VALUE_STRING = 6;
+
+	/**
+	 * value tag for <code>byte[]</code>.
+	 */
+	private static final byte VALUE_BYTES = 7;
 
-	private static Charset CHARSET = Charset.forName("UTF-8");
+	/**
+	 * value tag for all other objects.
+	 */
+	private static final byte VALUE_OBJECT = 8;
 
-	protected static CharsetDecoder DECODER = CHARSET.newDecoder();
+	private final short type;
 
-	protected static CharsetEncoder ENCODER = CHARSET.newEncoder();
+	/**
+	 * the size of the last message that was encoded by this codec.
+	 */
+	private int sizeHint = MIN_BUFFER_SIZE;
+
+	/**
+	 * the characters of the string that is being decoded.
+	 */
+	private char[] chars = new char[MIN_BUFFER_SIZE];
 
 	protected RemoteOSGiMessageCodec(final short type) {
 		this.type = type;
@@ -50,22 +135,21 @@ public abstract class RemoteOSGiMessageCodec implements MessageEncoder,
 	 * .mina.common.IoSession, org.apache.mina.common.ByteBuffer)
 	 */
 	public MessageDecoderResult decodable(IoSession session, ByteBuffer in) {
-		if (in.remaining() < 5) {
+		if (in.remaining() < HEADER_SIZE) {
 			return MessageDecoderResult.NEED_DATA;
 		}
 		final byte version = in.get();
-		if (version != 1) {
+		if (version != VERSION) {
 			return MessageDecoderResult.NOT_OK;
 		}
 		final byte funcID = in.get();
 		if (funcID != type) {
 			return MessageDecoderResult.NOT_OK;
 		}
-		final Integer xid = new Integer(in.getInt());
-		session.setAttribute("xid", xid);
+		in.skip(4); // xid
 
 		final int length = in.getInt();
-		if (in.remaining() < (length - 10)) {			
+		if (in.remaining() < length) {
 			return MessageDecoderResult.NEED_DATA;
 		}
 		return MessageDecoderResult.OK;
@@ -81,14 +165,26 @@ public abstract class RemoteOSGiMessageCodec implements MessageEncoder,
 	 */
 	public MessageDecoderResult decode(IoSession session, ByteBuffer in,
 			ProtocolDecoderOutput out) throws Exception {
-		in.skip(12);
+		in.skip(2);
+		final int xid = in.getInt();
+		final int length = in.getInt();
+		final int end = in.position() + length;
+		final int limit = in.limit();
 
-		decodeBody(session, in, out);
+		// the body must not read into the next message
+		in.limit(end);
+		try {
+			decodeBody(session, xid, in, out);
+		} finally {
+			in.limit(limit);
+			in.position(end);
+		}
 		return MessageDecoderResult.OK;
 	}
 
 	public abstract MessageDecoderResult decodeBody(IoSession session,
-			ByteBuffer in, ProtocolDecoderOutput out) throws Exception;
+			int xid, ByteBuffer in, ProtocolDecoderOutput out)
+			throws Exception;
 
 	/*
 	 * (non-Javadoc)
@@ -101,18 +197,23 @@ public abstract class RemoteOSGiMessageCodec implements MessageEncoder,
 	public void encode(IoSession session, Object message,
 			ProtocolEncoderOutput out) throws Exception {
 		final RemoteOSGiMessage msg = (RemoteOSGiMessage) message;
-		final ByteBuffer buf = ByteBuffer.allocate(128);
-		buf.setAutoExpand(true); // Enable auto-expand for easier encoding
+		// the buffer comes from the pool of the allocator and is sized after
+		// the previous message of the same type
+		final ByteBuffer buf = ByteBuffer.allocate(sizeHint);
+		buf.setAutoExpand(true);
 
-		buf.put((byte) 1); // version
+		buf.put(VERSION);
 		buf.put((byte) type); // funcID
 		buf.putInt(msg.getXID()); // xid
 
-		buf.skip(6); // skip length
+		buf.skip(4); // skip length
 
 		encodeBody(session, msg, buf);
-		
-		buf.putInt(6, buf.position());
+
+		final int size = buf.position();
+		buf.putInt(HEADER_SIZE - 4, size - HEADER_SIZE);
+		sizeHint = size < MIN_BUFFER_SIZE ? MIN_BUFFER_SIZE
+				: size > MAX_BUFFER_SIZE ? MAX_BUFFER_SIZE : size;
 
 		buf.flip();
 		out.write(buf);
@@ -134,19 +235,134 @@ public abstract class RemoteOSGiMessageCodec implements MessageEncoder,
 
 	}
 
-	protected final void encodeString(final ByteBuffer out, final String s)
-			throws IOException {
-		out.putShort((short) s.length());
-		out.putString(s, ENCODER);
+	/**
+	 * encode a string as modified UTF-8, preceded by the number of bytes. A
+	 * <code>null</code> string is encoded as length -1.
+	 * 
+	 * @param out
+	 *            the buffer.
+	 * @param s
+	 *            the string, or <code>null</code>.
+	 */
+	protected final void encodeString(final ByteBuffer out, final String s) {
+		if (s == null) {
+			out.putInt(-1);
+			return;
+		}
+		final int len = s.length();
+		int utflen = 0;
+		for (int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				utflen++;
+			} else if (c > 0x07FF) {
+				utflen += 3;
+			} else {
+				utflen += 2;
+			}
+		}
+		out.putInt(utflen);
+		out.expand(utflen);
+
+		final java.nio.ByteBuffer buf = out.buf();
+		if (utflen == len) {
+			for (int i = 0; i < len; i++) {
+				buf.put((byte) s.charAt(i));
+			}
+			return;
+		}
+		for (int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				buf.put((byte) c);
+			} else if (c > 0x07FF) {
+				buf.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+				buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (c & 0x3F)));
+			} else {
+				buf.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+				buf.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
 	}
 
-	protected final String decodeString(final ByteBuffer in) throws IOException {
-		final short len = in.getShort();
-		return in.getString(len, DECODER);
+	/**
+	 * decode a string that was encoded by <code>encodeString</code>. The
+	 * characters are collected in the scratch space of the decoder, the only
+	 * allocation is the string itself.
+	 * 
+	 * @param in
+	 *            the buffer.
+	 * @return the string, or <code>null</code>.
+	 * @throws IOException
+	 *             if the string is malformed.
+	 */
+	protected final String decodeString(final ByteBuffer in)
+			throws IOException {
+		final int utflen = in.getInt();
+		if (utflen < 0) {
+			return null;
+		}
+		if (utflen > in.remaining()) {
+			throw new UTFDataFormatException("string exceeds the message"); //$NON-NLS-1$
+		}
+		if (chars.length < utflen) {
+			chars = new char[Math.max(utflen, chars.length * 2)];
+		}
+		final java.nio.ByteBuffer buf = in.buf();
+		final int end = buf.position() + utflen;
+		int count = 0;
+		while (buf.position() < end) {
+			final int c = buf.get() & 0xFF;
+			switch (c >> 4) {
+			case 0:
+			case 1:
+			case 2:
+			case 3:
+			case 4:
+			case 5:
+			case 6:
+			case 7:
+				chars[count++] = (char) c;
+				break;
+			case 12:
+			case 13: {
+				if (buf.position() + 1 > end) {
+					throw new UTFDataFormatException("partial character"); //$NON-NLS-1$
+				}
+				final int c2 = buf.get();
+				if ((c2 & 0xC0) != 0x80) {
+					throw new UTFDataFormatException("malformed character"); //$NON-NLS-1$
+				}
+				chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+				break;
+			}
+			case 14: {
+				if (buf.position() + 2 > end) {
+					throw new UTFDataFormatException("partial character"); //$NON-NLS-1$
+				}
+				final int c2 = buf.get();
+				final int c3 = buf.get();
+				if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) {
+					throw new UTFDataFormatException("malformed character"); //$NON-NLS-1$
+				}
+				chars[count++] = (char) (((c & 0x0F) << 12)
+						| ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+				break;
+			}
+			default:
+				throw new UTFDataFormatException("malformed character"); //$NON-NLS-1$
+			}
+		}
+		return new String(chars, 0, count);
 	}
 
 	protected final void encodeStringArray(final ByteBuffer out,
-			final String[] strings) throws IOException {
+			final String[] strings) {
+		if (strings == null) {
+			out.putShort((short) -1);
+			return;
+		}
 		final short length = (short) strings.length;
 		out.putShort(length);
 		for (short i = 0; i < length; i++) {
@@ -157,6 +373,9 @@ public abstract class RemoteOSGiMessageCodec implements MessageEncoder,
 	protected final String[] decodeStringArray(final ByteBuffer in)
 			throws IOException {
 		final short length = in.getShort();
+		if (length < 0) {
+			return null;
+		}
 		final String[] result = new String[length];
 		for (short i = 0; i < length; i++) {
 			result[i] = decodeString(in);
@@ -175,4 +394,213 @@ public abstract class RemoteOSGiMessageCodec implements MessageEncoder,
 		in.get(bytes);
 		return bytes;
 	}
+
+	/**
+	 * encode a single value, e.g., a method argument or a return value.
+	 * Values of the common types are written as raw data preceded by a tag
+	 * byte, all other objects go through object serialization.
+	 * 
+	 * @param out
+	 *            the buffer.
+	 * @param value
+	 *            the value.
+	 */
+	protected final void encodeValue(final ByteBuffer out, final Object value) {
+		final Object obj = value instanceof BoxedPrimitive ? ((BoxedPrimitive) value)
+				.getBoxed()
+				: value;
+		if (obj == null) {
+			out.put(VALUE_NULL);
+		} else if (obj instanceof String) {
+			out.put(VALUE_STRING);
+			encodeString(out, (String) obj);
+		} else if (obj instanceof Integer) {
+			out.put(VALUE_INT);
+			out.putInt(((Integer) obj).intValue());
+		} else if (obj instanceof Long) {
+			out.put(VALUE_LONG);
+			out.putLong(((Long) obj).longValue());
+		} else if (obj instanceof Boolean) {
+			out.put(((Boolean) obj).booleanValue() ? VALUE_TRUE : VALUE_FALSE);
+		} else if (obj instanceof Double) {
+			out.put(VALUE_DOUBLE);
+			out.putDouble(((Double) obj).doubleValue());
+		} else if (obj instanceof byte[]) {
+			out.put(VALUE_BYTES);
+			encodeBytes(out, (byte[]) obj);
+		} else {
+			out.put(VALUE_OBJECT);
+			out.putObject(obj);
+		}
+	}
+
+	/**
+	 * decode a single value that was encoded by <code>encodeValue</code>.
+	 * 
+	 * @param in
+	 *            the buffer.
+	 * @return the value.
+	 * @throws IOException
+	 *             if the value is malformed.
+	 * @throws ClassNotFoundException
+	 *             if the value is an object of an unknown class.
+	 */
+	protected final Object decodeValue(final ByteBuffer in)
+			throws IOException, ClassNotFoundException {
+		final byte tag = in.get();
+		switch (tag) {
+		case VALUE_NULL:
+			return null;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_INT:
+			return new Integer(in.getInt());
+		case VALUE_LONG:
+			return new Long(in.getLong());
+		case VALUE_DOUBLE:
+			return new Double(in.getDouble());
+		case VALUE_STRING:
+			return decodeString(in);
+		case VALUE_BYTES:
+			return decodeBytes(in);
+		case VALUE_OBJECT:
+			return in.getObject();
+		default:
+			throw new IOException("value tag " + tag + " not supported."); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	/**
+	 * encode a remote call. Used for single calls and for the calls of a
+	 * multi call.
+	 * 
+	 * <pre>
+	 *           0                   1                   2                   3
+	 *           0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+	 *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *          |             method id and define flag                         |
+	 *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *          |   length of &lt;serviceID&gt;     |    &lt;serviceID&gt; String       \
+	 *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *          |    length of &lt;MethodSignature&gt;     |     &lt;MethodSignature&gt; String       \
+	 *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *          |   number of param blocks      |     Param blocks (if any)     \
+	 *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * </pre>
+	 * 
+	 * The service ID and the method signature are only present if the method
+	 * id is 0 or the define flag is set. Each param block is a value as
+	 * written by <code>encodeValue</code>.
+	 * 
+	 * @param out
+	 *            the buffer.
+	 * @param msg
+	 *            the remote call.
+	 */
+	protected final void encodeCall(final ByteBuffer out,
+			final RemoteCallMessage msg) {
+		final int methodID = msg.getMethodID();
+		out.putInt(methodID << 1 | (msg.definesMethod() ? 1 : 0));
+		if (methodID == 0 || msg.definesMethod()) {
+			encodeString(out, msg.getServiceID());
+			encodeString(out, msg.getMethodSignature());
+		}
+
+		final Object[] arguments = msg.getArgs();
+		out.putShort((short) arguments.length);
+		for (int i = 0; i < arguments.length; i++) {
+			encodeValue(out, arguments[i]);
+		}
+	}
+
+	/**
+	 * decode a remote call.
+	 * 
+	 * @param in
+	 *            the buffer.
+	 * @param xid
+	 *            the transaction id of the call.
+	 * @return the remote call, taken from the pool if possible.
+	 * @throws IOException
+	 *             if the decoding fails.
+	 * @throws ClassNotFoundException
+	 *             if the class of an argument cannot be resolved.
+	 */
+	protected final RemoteCallMessage decodeCall(final ByteBuffer in,
+			final int xid) throws IOException, ClassNotFoundException {
+		final RemoteCallMessage msg = RemoteCallMessage.obtain();
+		msg.setXID(xid);
+		final int id = in.getInt();
+		msg.setMethodID(id >>> 1, (id & 1) != 0);
+		if (msg.getMethodID() == 0 || msg.definesMethod()) {
+			msg.setServiceID(decodeString(in));
+			msg.setMethodSignature(decodeString(in));
+		}
+
+		final short argLength = in.getShort();
+		final Object[] arguments = new Object[argLength];
+		for (short i = 0; i < argLength; i++) {
+			arguments[i] = decodeValue(in);
+		}
+		msg.setArgs(arguments);
+		return msg;
+	}
+
+	/**
+	 * encode the result of a remote call. Used for single results and for
+	 * the results of a multi call.
+	 * 
+	 * <pre>
+	 *           0                   1                   2                   3
+	 *           0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+	 *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 *          |  error flag   | result or Exception                           \
+	 *          +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	 * </pre>
+	 * 
+	 * . The result is a value as written by <code>encodeValue</code>, the
+	 * exception a serialized object.
+	 * 
+	 * @param out
+	 *            the buffer.
+	 * @param msg
+	 *            the result.
+	 */
+	protected final void encodeResult(final ByteBuffer out,
+			final RemoteCallResultMessage msg) {
+		if (msg.causedException()) {
+			out.put((byte) 1);
+			out.putObject(msg.getException());
+		} else {
+			out.put((byte) 0);
+			encodeValue(out, msg.getResult());
+		}
+	}
+
+	/**
+	 * decode the result of a remote call.
+	 * 
+	 * @param in
+	 *            the buffer.
+	 * @param xid
+	 *            the transaction id of the call.
+	 * @return the result, taken from the pool if possible.
+	 * @throws IOException
+	 *             if the decoding fails.
+	 * @throws ClassNotFoundException
+	 *             if the class of the result cannot be resolved.
+	 */
+	protected final RemoteCallResultMessage decodeResult(final ByteBuffer in,
+			final int xid) throws IOException, ClassNotFoundException {
+		final RemoteCallResultMessage msg = RemoteCallResultMessage.obtain();
+		msg.setXID(xid);
+		if (in.get() == 0) {
+			msg.setResult(decodeValue(in));
+		} else {
+			msg.setException((Throwable) in.getObject());
+		}
+		return msg;
+	}
 }
@@ -17,6 +17,11 @@ public class RemoteOSGiProtocolCodecFactory extends
 		register(RequestServiceMessageCodec.class);
 		register(RemoteEventMessageCodec.class);
 		register(TimeOffsetMessageCodec.class);
+		register(StreamRequestMessageCodec.class);
+		register(StreamResultMessageCodec.class);
+		register(MultiCallMessageCodec.class);
+		register(MultiCallResultMessageCodec.class);
+		register(CancelCallMessageCodec.class);
 	}
 
 }
@@ -27,10 +27,10 @@ public class RequestBundleMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.DELIVER_BUNDLES);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final RequestBundleMessage msg = new RequestBundleMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 		msg.setServiceID(decodeString(in));
 		out.write(msg);
 
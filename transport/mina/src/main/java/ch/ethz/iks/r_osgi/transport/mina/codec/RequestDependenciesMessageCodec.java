@@ -27,10 +27,10 @@ public class RequestDependenciesMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.DELIVER_BUNDLES);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final RequestDependenciesMessage msg = new RequestDependenciesMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 		msg.setPackages(decodeStringArray(in));
 		out.write(msg);
 
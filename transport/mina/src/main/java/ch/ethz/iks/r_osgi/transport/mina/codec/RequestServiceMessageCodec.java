@@ -40,10 +40,10 @@ public class RequestServiceMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.REQUEST_SERVICE);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final RequestServiceMessage msg = new RequestServiceMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 		msg.setServiceID(decodeString(in));
 		out.write(msg);
 		return MessageDecoderResult.OK;
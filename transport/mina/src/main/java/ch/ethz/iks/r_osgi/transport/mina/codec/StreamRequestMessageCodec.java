@@ -0,0 +1,93 @@
+package ch.ethz.iks.r_osgi.transport.mina.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.demux.MessageDecoderResult;
+
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.r_osgi.messages.StreamRequestMessage;
+
+/**
+ * <pre>
+ *       0                   1                   2                   3
+ *       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       R-OSGi header (function = StreamRequest = 10)           |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       stream id               |      op       | length or value\
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       data (if op = WRITE_ARRAY)                              \
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * 
+ * . The length or value is not present if op = READ.
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * 
+ */
+public class StreamRequestMessageCodec extends RemoteOSGiMessageCodec {
+
+	private static final Set MESSAGE_TYPE;
+
+	static {
+		MESSAGE_TYPE = Collections.unmodifiableSet(new HashSet(Arrays
+				.asList(new Class[] { StreamRequestMessage.class })));
+	}
+
+	public StreamRequestMessageCodec() {
+		super(RemoteOSGiMessage.STREAM_REQUEST);
+	}
+
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
+		final StreamRequestMessage msg = new StreamRequestMessage();
+		msg.setXID(xid);
+		msg.setStreamID(in.getShort());
+		final byte op = in.get();
+		msg.setOp(op);
+		switch (op) {
+		case StreamRequestMessage.READ:
+			msg.setLenOrVal(1);
+			break;
+		case StreamRequestMessage.READ_ARRAY:
+		case StreamRequestMessage.WRITE:
+			msg.setLenOrVal(in.getInt());
+			break;
+		case StreamRequestMessage.WRITE_ARRAY:
+			final byte[] b = decodeBytes(in);
+			msg.setLenOrVal(b.length);
+			msg.setData(b);
+			break;
+		default:
+			throw new IllegalArgumentException(
+					"op code not within valid range: " + op); //$NON-NLS-1$
+		}
+		out.write(msg);
+		return MessageDecoderResult.OK;
+	}
+
+	public void encodeBody(IoSession session, RemoteOSGiMessage message,
+			ByteBuffer buf) throws IOException {
+		final StreamRequestMessage msg = (StreamRequestMessage) message;
+		buf.putShort(msg.getStreamID());
+		buf.put(msg.getOp());
+		if (msg.getOp() == StreamRequestMessage.WRITE_ARRAY) {
+			buf.putInt(msg.getLenOrVal());
+			buf.put(msg.getData(), 0, msg.getLenOrVal());
+		} else if (msg.getOp() != StreamRequestMessage.READ) {
+			buf.putInt(msg.getLenOrVal());
+		}
+	}
+
+	public Set getMessageTypes() {
+		return MESSAGE_TYPE;
+	}
+
+}
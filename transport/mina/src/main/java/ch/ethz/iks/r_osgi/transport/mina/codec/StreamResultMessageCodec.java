@@ -0,0 +1,96 @@
+package ch.ethz.iks.r_osgi.transport.mina.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.demux.MessageDecoderResult;
+
+import ch.ethz.iks.r_osgi.messages.RemoteOSGiMessage;
+import ch.ethz.iks.r_osgi.messages.StreamResultMessage;
+
+/**
+ * <pre>
+ *       0                   1                   2                   3
+ *       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       R-OSGi header (function = StreamResult = 11)            |
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       result                  | length (if result = ARRAY)    \
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *      |       data or Exception                                       \
+ *      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * 
+ * .
+ * 
+ * @author Jan S. Rellermeyer, ETH Zurich
+ * 
+ */
+public class StreamResultMessageCodec extends RemoteOSGiMessageCodec {
+
+	private static final Set MESSAGE_TYPE;
+
+	static {
+		MESSAGE_TYPE = Collections.unmodifiableSet(new HashSet(Arrays
+				.asList(new Class[] { StreamResultMessage.class })));
+	}
+
+	public StreamResultMessageCodec() {
+		super(RemoteOSGiMessage.STREAM_RESULT);
+	}
+
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
+		final StreamResultMessage msg = new StreamResultMessage();
+		msg.setXID(xid);
+		final short result = in.getShort();
+		msg.setResult(result);
+		switch (result) {
+		case StreamResultMessage.RESULT_ARRAY:
+			final byte[] b = decodeBytes(in);
+			msg.setLen(b.length);
+			msg.setData(b);
+			break;
+		case StreamResultMessage.RESULT_EXCEPTION:
+			msg.setException((IOException) in.getObject());
+			break;
+		case StreamResultMessage.RESULT_WRITE_OK:
+			break;
+		default:
+			if ((result < -1) || (result > 255)) { // -1 indicates EOF -> valid
+				throw new IllegalArgumentException(
+						"result not within valid range: " + result); //$NON-NLS-1$
+			}
+			break;
+		}
+		out.write(msg);
+		return MessageDecoderResult.OK;
+	}
+
+	public void encodeBody(IoSession session, RemoteOSGiMessage message,
+			ByteBuffer buf) throws IOException {
+		final StreamResultMessage msg = (StreamResultMessage) message;
+		final short result = msg.getResult();
+		buf.putShort(result);
+		if (result == StreamResultMessage.RESULT_ARRAY) {
+			final int len = msg.getLen();
+			buf.putInt(len);
+			if (len > 0) {
+				buf.put(msg.getData(), 0, len);
+			}
+		} else if (result == StreamResultMessage.RESULT_EXCEPTION) {
+			buf.putObject(msg.getException());
+		}
+	}
+
+	public Set getMessageTypes() {
+		return MESSAGE_TYPE;
+	}
+
+}
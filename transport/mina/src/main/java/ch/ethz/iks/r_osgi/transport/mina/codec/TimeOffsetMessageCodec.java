@@ -40,10 +40,10 @@ public class TimeOffsetMessageCodec extends RemoteOSGiMessageCodec {
 		super(RemoteOSGiMessage.TIME_OFFSET);
 	}
 
-	public MessageDecoderResult decodeBody(IoSession session, ByteBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
+	public MessageDecoderResult decodeBody(IoSession session, int xid,
+			ByteBuffer in, ProtocolDecoderOutput out) throws Exception {
 		final TimeOffsetMessage msg = new TimeOffsetMessage();
-		msg.setXID(((Integer) session.getAttribute("xid")).intValue());
+		msg.setXID(xid);
 		msg.setTimeSeries((long[]) in.getObject());
 		out.write(msg);
 		return MessageDecoderResult.OK;